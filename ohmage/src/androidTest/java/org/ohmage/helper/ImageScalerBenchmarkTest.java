@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.helper;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.ohmage.app.Ohmage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Random;
+
+/**
+ * Compares how an image prompt handled a 12 MP camera image before and after the scaling pipeline.
+ * Before, the whole image was decoded on the main thread for the preview and uploaded at full
+ * size. Now only a sampled preview is decoded, and the uploaded copy is bounded by
+ * {@link Ohmage#IMAGE_MAX_DIMENSION}.
+ */
+@LargeTest
+public class ImageScalerBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = ImageScalerBenchmarkTest.class.getSimpleName();
+
+    private static final int WIDTH = 4000;
+
+    private static final int HEIGHT = 3000;
+
+    private static final int PREVIEW_WIDTH = 720;
+
+    private static final int PREVIEW_HEIGHT = 300;
+
+    private File mFile;
+
+    private long mOriginalLength;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        // Random shapes so the jpeg has about as much detail as a photo
+        Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.RGB_565);
+        Canvas canvas = new Canvas(bitmap);
+        Paint paint = new Paint();
+        Random random = new Random(12);
+        for (int i = 0; i < 20000; i++) {
+            paint.setColor(0xff000000 | random.nextInt(0xffffff));
+            int x = random.nextInt(WIDTH);
+            int y = random.nextInt(HEIGHT);
+            canvas.drawRect(x, y, x + random.nextInt(200), y + random.nextInt(200), paint);
+        }
+
+        mFile = File.createTempFile("camera", ".jpg", getContext().getCacheDir());
+        FileOutputStream out = new FileOutputStream(mFile);
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 95, out);
+        out.close();
+        bitmap.recycle();
+        mOriginalLength = mFile.length();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testPreview_fullDecode() {
+        long start = SystemClock.elapsedRealtime();
+        Bitmap bitmap = BitmapFactory.decodeFile(mFile.getAbsolutePath());
+        long time = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, "Full decode for the preview took " + time + "ms and "
+                   + (bitmap.getRowBytes() * bitmap.getHeight() / 1024) + "KB, uploading "
+                   + (mOriginalLength / 1024) + "KB");
+        bitmap.recycle();
+    }
+
+    public void testPreview_scaled() {
+        long start = SystemClock.elapsedRealtime();
+        ImageScaler.scaleInPlace(mFile, Ohmage.IMAGE_MAX_DIMENSION, Ohmage.IMAGE_JPEG_QUALITY);
+        long scaleTime = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        Bitmap bitmap = ImageScaler.decodePreview(mFile, PREVIEW_WIDTH, PREVIEW_HEIGHT);
+        long previewTime = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, "Scaling took " + scaleTime + "ms and the preview decode took " + previewTime
+                   + "ms and " + (bitmap.getRowBytes() * bitmap.getHeight() / 1024)
+                   + "KB, all off the main thread. Uploading " + (mFile.length() / 1024)
+                   + "KB instead of " + (mOriginalLength / 1024) + "KB");
+        assertTrue(mFile.length() < mOriginalLength);
+        bitmap.recycle();
+    }
+}
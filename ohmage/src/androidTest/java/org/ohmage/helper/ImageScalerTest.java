@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.helper;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+/**
+ * Tests {@link ImageScaler}
+ */
+public class ImageScalerTest extends AndroidTestCase {
+
+    private File mFile;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        mFile = File.createTempFile("image", ".jpg", getContext().getCacheDir());
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testCalculateInSampleSize_smallerThanRequested_returnsOne() {
+        assertEquals(1, ImageScaler.calculateInSampleSize(200, 100, 300, 300));
+    }
+
+    public void testCalculateInSampleSize_largeImage_keepsImageAtLeastRequestedSize() {
+        assertEquals(4, ImageScaler.calculateInSampleSize(4000, 3000, 640, 300));
+    }
+
+    public void testCalculateInSampleSize_exactlyTwiceRequested_returnsTwo() {
+        assertEquals(2, ImageScaler.calculateInSampleSize(800, 600, 400, 300));
+    }
+
+    public void testScaleInPlace_largeImage_boundsLargestSide() throws Exception {
+        writeImage(1200, 900);
+
+        assertTrue(ImageScaler.scaleInPlace(mFile, 500, 85));
+
+        BitmapFactory.Options options = readBounds();
+        assertEquals(500, options.outWidth);
+        assertEquals(375, options.outHeight);
+    }
+
+    public void testScaleInPlace_portraitImage_boundsHeight() throws Exception {
+        writeImage(900, 1200);
+
+        assertTrue(ImageScaler.scaleInPlace(mFile, 500, 85));
+
+        BitmapFactory.Options options = readBounds();
+        assertEquals(375, options.outWidth);
+        assertEquals(500, options.outHeight);
+    }
+
+    public void testScaleInPlace_smallImage_keepsSize() throws Exception {
+        writeImage(300, 200);
+
+        assertTrue(ImageScaler.scaleInPlace(mFile, 500, 85));
+
+        BitmapFactory.Options options = readBounds();
+        assertEquals(300, options.outWidth);
+        assertEquals(200, options.outHeight);
+    }
+
+    public void testScaleInPlace_rotatedImage_appliesExifOrientation() throws Exception {
+        writeImage(1200, 900);
+        ExifInterface exif = new ExifInterface(mFile.getAbsolutePath());
+        exif.setAttribute(ExifInterface.TAG_ORIENTATION,
+                String.valueOf(ExifInterface.ORIENTATION_ROTATE_90));
+        exif.saveAttributes();
+
+        assertTrue(ImageScaler.scaleInPlace(mFile, 500, 85));
+
+        BitmapFactory.Options options = readBounds();
+        assertEquals(375, options.outWidth);
+        assertEquals(500, options.outHeight);
+    }
+
+    public void testScaleInPlace_notAnImage_leavesFile() throws Exception {
+        FileOutputStream out = new FileOutputStream(mFile);
+        out.write("not an image".getBytes());
+        out.close();
+
+        assertFalse(ImageScaler.scaleInPlace(mFile, 500, 85));
+        assertEquals("not an image".length(), mFile.length());
+    }
+
+    public void testDecodePreview_largeImage_samplesDown() throws Exception {
+        writeImage(1200, 900);
+
+        Bitmap bitmap = ImageScaler.decodePreview(mFile, 300, 200);
+
+        assertEquals(300, bitmap.getWidth());
+        assertEquals(225, bitmap.getHeight());
+    }
+
+    private void writeImage(int width, int height) throws Exception {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+        bitmap.eraseColor(0xff336699);
+        FileOutputStream out = new FileOutputStream(mFile);
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 95, out);
+        out.close();
+        bitmap.recycle();
+    }
+
+    private BitmapFactory.Options readBounds() {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(mFile.getAbsolutePath(), options);
+        return options;
+    }
+}
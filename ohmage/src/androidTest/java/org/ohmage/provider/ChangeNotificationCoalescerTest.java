@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.provider;
+
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests merging change notifications, counting how many times an observer wakes up
+ */
+public class ChangeNotificationCoalescerTest extends AndroidTestCase {
+
+    private static final String TAG = ChangeNotificationCoalescerTest.class.getSimpleName();
+
+    private static final Uri URI = Uri.parse("content://org.ohmage.test.coalescer/streams");
+
+    private static final Uri OTHER_URI = Uri.parse("content://org.ohmage.test.coalescer/other");
+
+    private static final long WINDOW_MS = 100;
+
+    private HandlerThread mThread;
+
+    private CountingObserver mObserver;
+
+    private CountingObserver mOtherObserver;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mObserver = new CountingObserver(new Handler(mThread.getLooper()));
+        mOtherObserver = new CountingObserver(new Handler(mThread.getLooper()));
+        getContext().getContentResolver().registerContentObserver(URI, false, mObserver);
+        getContext().getContentResolver().registerContentObserver(OTHER_URI, false,
+                mOtherObserver);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        getContext().getContentResolver().unregisterContentObserver(mObserver);
+        getContext().getContentResolver().unregisterContentObserver(mOtherObserver);
+        mThread.quit();
+        super.tearDown();
+    }
+
+    public void testNotifyChange_noWindow_notifiesEveryChange() throws Exception {
+        ChangeNotificationCoalescer coalescer = coalescer(0);
+        mObserver.expect(50);
+
+        for (int i = 0; i < 50; i++)
+            coalescer.notifyChange(URI);
+
+        assertTrue(mObserver.await());
+        assertEquals(50, mObserver.count.get());
+    }
+
+    public void testNotifyChange_withinWindow_notifiesOnce() throws Exception {
+        ChangeNotificationCoalescer coalescer = coalescer(WINDOW_MS);
+        mObserver.expect(1);
+
+        for (int i = 0; i < 50; i++)
+            coalescer.notifyChange(URI);
+
+        assertTrue(mObserver.await());
+        SystemClock.sleep(WINDOW_MS * 3);
+        assertEquals(1, mObserver.count.get());
+    }
+
+    public void testNotifyChange_differentUris_notifiesEachUri() throws Exception {
+        ChangeNotificationCoalescer coalescer = coalescer(WINDOW_MS);
+        mObserver.expect(1);
+        mOtherObserver.expect(1);
+
+        coalescer.notifyChange(URI);
+        coalescer.notifyChange(OTHER_URI);
+        coalescer.notifyChange(URI);
+
+        assertTrue(mObserver.await());
+        assertTrue(mOtherObserver.await());
+        assertEquals(1, mObserver.count.get());
+        assertEquals(1, mOtherObserver.count.get());
+    }
+
+    public void testFlush_pendingChange_notifiesBeforeWindowEnds() throws Exception {
+        ChangeNotificationCoalescer coalescer = coalescer(WINDOW_MS * 100);
+        mObserver.expect(1);
+
+        coalescer.notifyChange(URI);
+        coalescer.flush();
+
+        assertTrue(mObserver.await());
+    }
+
+    public void testFlush_nothingPending_doesNotNotify() throws Exception {
+        ChangeNotificationCoalescer coalescer = coalescer(WINDOW_MS);
+
+        coalescer.flush();
+
+        SystemClock.sleep(WINDOW_MS * 3);
+        assertEquals(0, mObserver.count.get());
+    }
+
+    /**
+     * Several producers notify as fast as sensors insert points. The observer should only wake up
+     * about once per window.
+     */
+    public void testNotifyChange_underLoad_wakesUpOncePerWindow() throws Exception {
+        final ChangeNotificationCoalescer coalescer = coalescer(WINDOW_MS);
+        final int producers = 4;
+        final int changes = 500;
+
+        long start = SystemClock.elapsedRealtime();
+        Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < changes; j++) {
+                        coalescer.notifyChange(URI);
+                        SystemClock.sleep(1);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        long time = SystemClock.elapsedRealtime() - start;
+        coalescer.flush();
+        SystemClock.sleep(WINDOW_MS * 3);
+
+        int wakeups = mObserver.count.get();
+        Log.i(TAG, producers * changes + " changes in " + time + "ms woke the observer up "
+                   + wakeups + " times");
+        assertTrue(wakeups >= 1);
+        assertTrue(wakeups <= time / WINDOW_MS + 2);
+    }
+
+    private ChangeNotificationCoalescer coalescer(long windowMs) {
+        return new ChangeNotificationCoalescer(getContext().getContentResolver(),
+                mThread.getLooper(), windowMs);
+    }
+
+    private static class CountingObserver extends ContentObserver {
+        final AtomicInteger count = new AtomicInteger();
+
+        private CountDownLatch mLatch;
+
+        CountingObserver(Handler handler) {
+            super(handler);
+        }
+
+        void expect(int changes) {
+            mLatch = new CountDownLatch(changes);
+        }
+
+        boolean await() throws InterruptedException {
+            return mLatch.await(5, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            count.incrementAndGet();
+            if (mLatch != null)
+                mLatch.countDown();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.provider;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
+import android.test.AndroidTestCase;
+
+import org.ohmage.provider.OhmageDbHelper.Tables;
+import org.ohmage.streams.StreamContract;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests the group commit writer against an in memory database
+ */
+public class GroupCommitWriterTest extends AndroidTestCase {
+
+    private SQLiteOpenHelper mDbHelper;
+
+    private AtomicInteger mCommits = new AtomicInteger();
+
+    private AtomicInteger mRollbacks = new AtomicInteger();
+
+    private volatile boolean mFailInserts;
+
+    private volatile boolean mInsertErrors;
+
+    private GroupCommitWriter.Target mTarget = new GroupCommitWriter.Target() {
+        @Override public boolean insert(SQLiteDatabase db, ContentValues values) {
+            if (mFailInserts)
+                throw new IllegalStateException("insert failed");
+            if (mInsertErrors)
+                throw new LinkageError("insert failed");
+            return db.insert(Tables.StreamData, BaseColumns._ID, values) != -1;
+        }
+
+        @Override public void onCommitted(int count) {
+            mCommits.incrementAndGet();
+        }
+
+        @Override public void onRolledBack() {
+            mRollbacks.incrementAndGet();
+        }
+    };
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        mDbHelper = new SQLiteOpenHelper(getContext(), null, null, 1) {
+            @Override public void onCreate(SQLiteDatabase db) {
+                new StreamDbHelper(getContext()).onCreate(db);
+            }
+
+            @Override public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            }
+        };
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mDbHelper.close();
+        super.tearDown();
+    }
+
+    public void testWrite_durable_pointsCommittedWhenItReturns() {
+        GroupCommitWriter writer = new GroupCommitWriter(mDbHelper, mTarget, 20, 100, 1000);
+
+        int count = writer.write(points(5), true);
+
+        assertEquals(5, count);
+        assertEquals(5, rows());
+        assertEquals(1, mCommits.get());
+    }
+
+    public void testWrite_async_returnsQueuedCountAndCommitsInOrder() {
+        GroupCommitWriter writer = new GroupCommitWriter(mDbHelper, mTarget, 20, 100, 1000);
+
+        assertEquals(3, writer.write(points(3), false));
+        writer.write(points(2), true);
+
+        assertEquals(5, rows());
+    }
+
+    public void testWrite_concurrentCallers_shareTransactions() throws Exception {
+        final int threads = 8;
+        final int writes = 25;
+        final GroupCommitWriter writer = new GroupCommitWriter(mDbHelper, mTarget, 20, 1000, 1000);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            new Thread() {
+                @Override public void run() {
+                    for (int i = 0; i < writes; i++)
+                        writer.write(points(1), true);
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+
+        assertEquals(threads * writes, rows());
+        assertTrue(mCommits.get() < threads * writes);
+    }
+
+    public void testWrite_maxRowsQueued_commitsWithoutWaitingForDelay() {
+        GroupCommitWriter writer = new GroupCommitWriter(mDbHelper, mTarget, 60 * 1000, 10, 1000);
+
+        long start = SystemClock.uptimeMillis();
+        writer.write(points(10), true);
+
+        assertTrue(SystemClock.uptimeMillis() - start < 30 * 1000);
+        assertEquals(10, rows());
+    }
+
+    public void testWrite_insertFails_throwsAndRollsBackGroup() {
+        GroupCommitWriter writer = new GroupCommitWriter(mDbHelper, mTarget, 20, 100, 1000);
+        mFailInserts = true;
+
+        try {
+            writer.write(points(3), true);
+            fail("The insert error should be thrown to the caller");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        assertEquals(0, rows());
+        assertEquals(0, mCommits.get());
+        assertEquals(1, mRollbacks.get());
+    }
+
+    public void testWrite_insertThrowsError_releasesCallerAndKeepsWriting() {
+        GroupCommitWriter writer = new GroupCommitWriter(mDbHelper, mTarget, 20, 100, 1000);
+        mInsertErrors = true;
+
+        try {
+            writer.write(points(3), true);
+            fail("The insert error should be thrown to the caller");
+        } catch (LinkageError e) {
+            // expected
+        }
+        mInsertErrors = false;
+
+        assertEquals(2, writer.write(points(2), true));
+        assertEquals(2, rows());
+        assertEquals(1, mRollbacks.get());
+    }
+
+    public void testClose_asyncPointsQueued_commitsThemBeforeReturning() {
+        GroupCommitWriter writer = new GroupCommitWriter(mDbHelper, mTarget, 60 * 1000, 100,
+                1000);
+        writer.write(points(3), false);
+
+        writer.close();
+
+        assertEquals(3, rows());
+    }
+
+    public void testWrite_afterClose_commitsRightAway() {
+        GroupCommitWriter writer = new GroupCommitWriter(mDbHelper, mTarget, 60 * 1000, 100,
+                1000);
+        writer.close();
+
+        assertEquals(2, writer.write(points(2), false));
+
+        assertEquals(2, rows());
+    }
+
+    private long rows() {
+        return DatabaseUtils.queryNumEntries(mDbHelper.getReadableDatabase(), Tables.StreamData);
+    }
+
+    private ContentValues[] points(int count) {
+        ContentValues[] points = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = new ContentValues();
+            points[i].put(StreamContract.Streams.STREAM_ID, "stream");
+            points[i].put(StreamContract.Streams.STREAM_VERSION, 1);
+            points[i].put(StreamContract.Streams.USERNAME, "user");
+            points[i].put(StreamContract.Streams.STREAM_DATA, "{}");
+        }
+        return points;
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ohmage.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.ohmage.provider.OhmageDbHelper.Tables;
+import org.ohmage.streams.StreamContract;
+import org.ohmage.sync.StreamWriterOutput;
+
+import java.io.File;
+
+/**
+ * Compares storing {@link #POINTS} framed points of a high frequency stream in the stream_data
+ * table and in a {@link SegmentStreamStore}. Logs the ingest throughput, the throughput of reading
+ * the points in upload sized pages, and the size of the files on disk.
+ */
+@LargeTest
+public class SegmentStoreBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = SegmentStoreBenchmarkTest.class.getSimpleName();
+
+    private static final String DB_NAME = "segment_store_benchmark.db";
+
+    private static final int POINTS = 100000;
+
+    /**
+     * Points are inserted into the database in transactions of this many points, the same as
+     * group commit
+     */
+    private static final int TRANSACTION_SIZE = 500;
+
+    private static final int PAGE_SIZE = StreamWriterOutput.BATCH_MAX_COUNT;
+
+    private static final String PAGE_QUERY = "SELECT " + BaseColumns._ID + ", "
+                                             + StreamContentProvider.COLUMN_POINT + " FROM "
+                                             + Tables.StreamData + " WHERE "
+                                             + StreamContract.Streams.USERNAME + "=? AND "
+                                             + StreamContract.Streams.STREAM_ID + "=? AND "
+                                             + StreamContract.Streams.STREAM_VERSION + "=? AND "
+                                             + BaseColumns._ID + ">? ORDER BY " + BaseColumns._ID
+                                             + " LIMIT " + PAGE_SIZE;
+
+    private static final byte[] POINT = StreamContentProvider.encodePoint(
+            "{\"mode\":\"still\",\"accel\":[0.0123,9.8012,0.2031]}",
+            "{\"id\":\"6f1e8d20-3c1b-4d44-8d52-2a1c3f7e9b10\",\"timestamp\":"
+            + "\"2014-05-02T10:15:30.123-07:00\"}");
+
+    private File mDir;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        getContext().deleteDatabase(DB_NAME);
+        mDir = new File(getContext().getCacheDir(), "segment_store_benchmark");
+        delete(mDir);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        getContext().deleteDatabase(DB_NAME);
+        delete(mDir);
+        super.tearDown();
+    }
+
+    public void testDatabase() {
+        SQLiteDatabase db = getContext().openOrCreateDatabase(DB_NAME, 0, null);
+        try {
+            OhmageDbHelper.enableWriteAheadLogging(db);
+            new StreamDbHelper(getContext()).onCreate(db);
+
+            long start = SystemClock.elapsedRealtime();
+            StreamPointInserter inserter = new StreamPointInserter(db);
+            try {
+                for (int i = 0; i < POINTS; i += TRANSACTION_SIZE) {
+                    db.beginTransaction();
+                    try {
+                        for (int j = i; j < i + TRANSACTION_SIZE; j++)
+                            inserter.insert("stream", 1, "user", null, null, POINT);
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                }
+            } finally {
+                inserter.close();
+            }
+            log("database", "ingest", start);
+
+            start = SystemClock.elapsedRealtime();
+            long lastId = 0;
+            int read = 0;
+            while (true) {
+                Cursor cursor = db.rawQuery(PAGE_QUERY,
+                        new String[]{"user", "stream", "1", String.valueOf(lastId)});
+                try {
+                    if (!cursor.moveToFirst())
+                        break;
+                    do {
+                        lastId = cursor.getLong(0);
+                        read += cursor.getBlob(1).length > 0 ? 1 : 0;
+                    } while (cursor.moveToNext());
+                } finally {
+                    cursor.close();
+                }
+            }
+            log("database", "upload read", start);
+            assertEquals(POINTS, read);
+        } finally {
+            db.close();
+        }
+
+        File file = getContext().getDatabasePath(DB_NAME);
+        long size = file.length() + new File(file.getPath() + "-wal").length();
+        Log.i(TAG, "database uses " + size / 1024 + "KB on disk for " + POINTS + " points");
+    }
+
+    public void testSegments() {
+        SegmentStreamStore store = new SegmentStreamStore(mDir);
+        try {
+            long start = SystemClock.elapsedRealtime();
+            for (int i = 0; i < POINTS; i++)
+                store.append("user", "stream", 1, POINT);
+            log("segments", "ingest", start);
+
+            start = SystemClock.elapsedRealtime();
+            long lastId = 0;
+            int read = 0;
+            String[] projection = new String[]{
+                    BaseColumns._ID, StreamContentProvider.COLUMN_POINT};
+            while (true) {
+                StreamSelection selection = new StreamSelection();
+                selection.username = "user";
+                selection.streamId = "stream";
+                selection.streamVersion = 1L;
+                selection.firstId = lastId + 1;
+                Cursor cursor = store.query(projection, selection, PAGE_SIZE);
+                try {
+                    if (!cursor.moveToFirst())
+                        break;
+                    do {
+                        lastId = cursor.getLong(0);
+                        read += cursor.getBlob(1).length > 0 ? 1 : 0;
+                    } while (cursor.moveToNext());
+                } finally {
+                    cursor.close();
+                }
+            }
+            log("segments", "upload read", start);
+            assertEquals(POINTS, read);
+
+            Log.i(TAG, "segments use " + store.getSize() / 1024 + "KB on disk for " + POINTS
+                       + " points");
+        } finally {
+            store.close();
+        }
+    }
+
+    private static void log(String store, String operation, long start) {
+        long time = Math.max(SystemClock.elapsedRealtime() - start, 1);
+        Log.i(TAG, store + " " + operation + " of " + POINTS + " points took " + time + "ms ("
+                   + (POINTS * 1000L / time) + " points/s)");
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files)
+                delete(child);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ohmage.provider;
+
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+
+import org.ohmage.provider.StreamContentProvider.PendingCounts;
+import org.ohmage.streams.StreamContract;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Tests storing stream points in memory mapped segments
+ */
+public class SegmentStreamStoreTest extends AndroidTestCase {
+
+    /**
+     * Small enough that each segment only holds a few points
+     */
+    private static final int SEGMENT_SIZE = 64;
+
+    private static final String[] PROJECTION = new String[]{
+            StreamContract.Streams._ID, StreamContentProvider.COLUMN_POINT};
+
+    private File mDir;
+
+    private SegmentStreamStore mStore;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        mDir = new File(getContext().getCacheDir(), "segment_store_test");
+        delete(mDir);
+        mStore = new SegmentStreamStore(mDir, SEGMENT_SIZE);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mStore.close();
+        delete(mDir);
+        super.tearDown();
+    }
+
+    public void testAppend_newStream_idsStartAtOne() {
+        assertEquals(1, append("stream", 0));
+        assertEquals(2, append("stream", 1));
+        assertEquals(1, append("other", 0));
+    }
+
+    public void testQuery_afterId_readsPointsInOrderUpToLimit() {
+        appendPoints("stream", 10);
+
+        Cursor cursor = mStore.query(PROJECTION, select("stream", "_id>?", "3"), 4);
+
+        assertPoints(cursor, 4, 5, 6, 7);
+    }
+
+    public void testQuery_distinct_listsStreamsWithPoints() {
+        appendPoints("stream", 2);
+        appendPoints("other", 1);
+        mStore.delete(select("other", null));
+
+        Cursor cursor = mStore.query(new String[]{"distinct " + StreamContract.Streams.STREAM_ID,
+                StreamContract.Streams.STREAM_VERSION}, StreamSelection.parse(null, null), 100);
+        try {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals("stream", cursor.getString(0));
+            assertEquals(1, cursor.getLong(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testDelete_range_skipsDeletedPoints() {
+        appendPoints("stream", 10);
+
+        int count = mStore.delete(select("stream", "_id BETWEEN ? AND ?", "3", "5"));
+
+        assertEquals(3, count);
+        assertPoints(mStore.query(PROJECTION, select("stream", null), 100), 1, 2, 6, 7, 8, 9, 10);
+    }
+
+    public void testDelete_uploadedSegments_deletesSegmentFiles() {
+        appendPoints("stream", 10);
+        int segments = segmentFiles();
+
+        mStore.delete(select("stream", "_id BETWEEN ? AND ?", "1", "9"));
+
+        assertTrue(segmentFiles() < segments);
+        assertEquals(1, segmentFiles());
+        assertPoints(mStore.query(PROJECTION, select("stream", null), 100), 10);
+    }
+
+    public void testDelete_sameRangeTwice_deletesOnce() {
+        appendPoints("stream", 4);
+
+        assertEquals(2, mStore.delete(select("stream", "_id BETWEEN ? AND ?", "1", "2")));
+        assertEquals(0, mStore.delete(select("stream", "_id BETWEEN ? AND ?", "1", "2")));
+    }
+
+    public void testReopen_keepsPointsIdsAndCheckpoint() {
+        appendPoints("stream", 6);
+        mStore.delete(select("stream", "_id BETWEEN ? AND ?", "2", "3"));
+        mStore.close();
+
+        mStore = new SegmentStreamStore(mDir, SEGMENT_SIZE);
+
+        assertPoints(mStore.query(PROJECTION, select("stream", null), 100), 1, 4, 5, 6);
+        assertEquals(7, append("stream", 6));
+    }
+
+    public void testReopen_tornLastRecord_endsAtLastGoodRecordAndZerosTheRest()
+            throws Exception {
+        mStore.close();
+        mStore = new SegmentStreamStore(mDir, 4096);
+        appendPoints("stream", 2);
+        mStore.close();
+
+        // Corrupt the body of the second point as if only its header reached the disk
+        int end = SegmentLog.HEADER_SIZE + point(0).length;
+        File segment = segmentFile();
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            raf.seek(end + SegmentLog.HEADER_SIZE);
+            int b = raf.read();
+            raf.seek(end + SegmentLog.HEADER_SIZE);
+            raf.write(~b);
+        } finally {
+            raf.close();
+        }
+
+        mStore = new SegmentStreamStore(mDir, 4096);
+
+        assertPoints(mStore.query(PROJECTION, select("stream", null), 100), 1);
+        byte[] bytes = new byte[(int) segment.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(segment));
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        for (int i = end; i < bytes.length; i++)
+            assertEquals(0, bytes[i]);
+        assertEquals(2, append("stream", 1));
+    }
+
+    public void testSync_afterAppend_keepsPoints() {
+        appendPoints("stream", 3);
+
+        mStore.sync();
+
+        assertPoints(mStore.query(PROJECTION, select("stream", null), 100), 1, 2, 3);
+    }
+
+    public void testCounts_sumsPointsAndBytesOfEachStream() {
+        appendPoints("stream", 3);
+        mStore.delete(select("stream", "_id=?", "1"));
+
+        Cursor cursor = mStore.counts(new String[]{StreamContract.Streams.STREAM_ID,
+                PendingCounts.COUNT, PendingCounts.BYTES});
+        try {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals("stream", cursor.getString(0));
+            assertEquals(2, cursor.getLong(1));
+            assertEquals(point(1).length + point(2).length, cursor.getLong(2));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long append(String streamId, int n) {
+        return mStore.append("user", streamId, 1, point(n));
+    }
+
+    private void appendPoints(String streamId, int count) {
+        for (int i = 0; i < count; i++)
+            append(streamId, i);
+    }
+
+    private static byte[] point(int n) {
+        return StreamContentProvider.encodePoint("{\"n\":" + n + "}", null);
+    }
+
+    private static StreamSelection select(String streamId, String ids, String... idArgs) {
+        String selection = "username=? AND stream_id=? AND stream_version=?";
+        String[] args = new String[3 + idArgs.length];
+        args[0] = "user";
+        args[1] = streamId;
+        args[2] = "1";
+        System.arraycopy(idArgs, 0, args, 3, idArgs.length);
+        return StreamSelection.parse(ids != null ? selection + " AND " + ids : selection, args);
+    }
+
+    private static void assertPoints(Cursor cursor, long... ids) {
+        try {
+            assertEquals(ids.length, cursor.getCount());
+            for (long id : ids) {
+                cursor.moveToNext();
+                assertEquals(id, cursor.getLong(0));
+                assertEquals(new String(point((int) id - 1)), new String(cursor.getBlob(1)));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private File segmentFile() {
+        for (File file : new File(mDir, "user/stream/1").listFiles()) {
+            if (file.getName().endsWith(SegmentLog.SEGMENT_SUFFIX))
+                return file;
+        }
+        return null;
+    }
+
+    private int segmentFiles() {
+        File[] files = new File(mDir, "user/stream/1").listFiles();
+        int count = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(SegmentLog.SEGMENT_SUFFIX))
+                count++;
+        }
+        return count;
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files)
+                delete(child);
+        }
+        file.delete();
+    }
+}
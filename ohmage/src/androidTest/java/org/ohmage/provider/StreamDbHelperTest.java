@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.BaseColumns;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+import org.ohmage.provider.OhmageDbHelper.Tables;
+import org.ohmage.streams.StreamContract;
+
+/**
+ * Tests moving stream points out of the ohmage database into their own database
+ */
+public class StreamDbHelperTest extends AndroidTestCase {
+
+    private RenamingDelegatingContext mContext;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        mContext = new RenamingDelegatingContext(getContext(), "test.");
+        closeHelpers();
+        mContext.deleteDatabase(OhmageDbHelper.DB_NAME);
+        mContext.deleteDatabase(StreamDbHelper.DB_NAME);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        closeHelpers();
+        super.tearDown();
+    }
+
+    public void testGetInstance_sameContext_returnsSharedHelper() {
+        assertSame(StreamDbHelper.getInstance(mContext), StreamDbHelper.getInstance(mContext));
+        assertSame(OhmageDbHelper.getInstance(mContext), OhmageDbHelper.getInstance(mContext));
+    }
+
+    public void testGetInstance_afterClose_returnsNewHelper() {
+        StreamDbHelper helper = StreamDbHelper.getInstance(mContext);
+        helper.close();
+
+        assertNotSame(helper, StreamDbHelper.getInstance(mContext));
+    }
+
+    public void testMigrate_pointsInOldDatabase_movesThemWithTheirIds() {
+        SQLiteDatabase old = OhmageDbHelper.getInstance(mContext).getWritableDatabase();
+        new StreamDbHelper(mContext).onCreate(old);
+        for (int i = 0; i < 3; i++)
+            old.insert(Tables.StreamData, null, point(i));
+        old.delete(Tables.StreamData, BaseColumns._ID + "=1", null);
+
+        assertEquals(2, StreamDbHelper.getInstance(mContext).migrate());
+
+        SQLiteDatabase db = StreamDbHelper.getInstance(mContext).getWritableDatabase();
+
+        Cursor cursor = db.query(Tables.StreamData, new String[]{BaseColumns._ID,
+                        StreamContract.Streams.STREAM_DATA}, null, null, null, null,
+                BaseColumns._ID);
+        try {
+            assertEquals(2, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals(2, cursor.getLong(0));
+            assertEquals("{\"n\":1}", cursor.getString(1));
+        } finally {
+            cursor.close();
+        }
+        assertEquals(0, DatabaseUtils.longForQuery(old,
+                "SELECT count(*) FROM sqlite_master WHERE name=?",
+                new String[]{Tables.StreamData}));
+    }
+
+    public void testOpen_pointsLeftInOldDatabase_newPointsGetLaterIds() {
+        SQLiteDatabase old = OhmageDbHelper.getInstance(mContext).getWritableDatabase();
+        new StreamDbHelper(mContext).onCreate(old);
+        for (int i = 0; i < 3; i++)
+            old.insert(Tables.StreamData, null, point(i));
+
+        StreamDbHelper helper = StreamDbHelper.getInstance(mContext);
+        SQLiteDatabase db = helper.getWritableDatabase();
+
+        assertEquals(4, db.insert(Tables.StreamData, null, point(3)));
+        assertEquals(3, helper.migrate());
+        assertEquals(4, DatabaseUtils.queryNumEntries(db, Tables.StreamData));
+    }
+
+    public void testMigrate_morePointsThanOnePage_movesThemAll() {
+        SQLiteDatabase old = OhmageDbHelper.getInstance(mContext).getWritableDatabase();
+        new StreamDbHelper(mContext).onCreate(old);
+        old.beginTransaction();
+        try {
+            for (int i = 0; i < 2500; i++)
+                old.insert(Tables.StreamData, null, point(i));
+            old.setTransactionSuccessful();
+        } finally {
+            old.endTransaction();
+        }
+
+        StreamDbHelper helper = StreamDbHelper.getInstance(mContext);
+
+        assertEquals(2500, helper.migrate());
+        assertEquals(2500, DatabaseUtils.queryNumEntries(helper.getReadableDatabase(),
+                Tables.StreamData));
+        assertEquals(0, helper.migrate());
+    }
+
+    public void testIndex_uploadQuery_searchesIndexInIdOrder() {
+        String plan = plan("SELECT " + BaseColumns._ID + ", " + StreamContract.Streams.STREAM_DATA
+                           + " FROM " + Tables.StreamData + " WHERE ("
+                           + StreamContract.Streams.USERNAME + "=? AND "
+                           + StreamContract.Streams.STREAM_ID + "=? AND "
+                           + StreamContract.Streams.STREAM_VERSION + "=?) AND "
+                           + BaseColumns._ID + ">? ORDER BY " + BaseColumns._ID + " LIMIT 100",
+                "user", "stream", "1", "0");
+
+        assertTrue(plan, plan.contains(StreamDbHelper.INDEX_STREAM_DATA_UPLOAD));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+    }
+
+    public void testIndex_distinctStreams_usesCoveringIndex() {
+        String plan = plan("SELECT DISTINCT " + StreamContract.Streams.STREAM_ID + ", "
+                           + StreamContract.Streams.STREAM_VERSION + " FROM " + Tables.StreamData
+                           + " WHERE (" + StreamContract.Streams.USERNAME + "=?)", "user");
+
+        assertTrue(plan, plan.contains(
+                "COVERING INDEX " + StreamDbHelper.INDEX_STREAM_DATA_UPLOAD));
+    }
+
+    public void testIndex_streamCounts_usesCoveringIndex() {
+        String plan = plan("SELECT " + StreamContract.Streams.STREAM_ID + ", "
+                           + StreamContract.Streams.STREAM_VERSION + ", count(*) FROM "
+                           + Tables.StreamData + " GROUP BY " + StreamContract.Streams.STREAM_ID
+                           + ", " + StreamContract.Streams.STREAM_VERSION);
+
+        assertTrue(plan, plan.contains(
+                "COVERING INDEX " + StreamDbHelper.INDEX_STREAM_DATA_UPLOAD));
+    }
+
+    public void testOnUpgrade_fromFirstVersion_createsIndex() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            createFirstVersion(db);
+
+            new StreamDbHelper(mContext).onUpgrade(db, 1, 2);
+
+            assertEquals(1, DatabaseUtils.longForQuery(db,
+                    "SELECT count(*) FROM sqlite_master WHERE type='index' AND name=?",
+                    new String[]{StreamDbHelper.INDEX_STREAM_DATA_UPLOAD}));
+        } finally {
+            db.close();
+        }
+    }
+
+    public void testCounts_insertPoints_countsRowsAndBytes() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            new StreamDbHelper(mContext).onCreate(db);
+            db.insert(Tables.StreamData, null, point(1));
+            db.insert(Tables.StreamData, null, point(22));
+
+            assertCounts(db, 2, 15);
+        } finally {
+            db.close();
+        }
+    }
+
+    public void testCounts_deletePoints_subtractsRowsAndBytes() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            new StreamDbHelper(mContext).onCreate(db);
+            db.insert(Tables.StreamData, null, point(1));
+            db.insert(Tables.StreamData, null, point(22));
+            db.insert(Tables.StreamData, null, point(333));
+
+            db.delete(Tables.StreamData, BaseColumns._ID + " BETWEEN ? AND ?",
+                    new String[]{"1", "2"});
+
+            assertCounts(db, 1, 9);
+        } finally {
+            db.close();
+        }
+    }
+
+    public void testCounts_framedPoint_countsPointLength() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            new StreamDbHelper(mContext).onCreate(db);
+            ContentValues values = point(1);
+            values.remove(StreamContract.Streams.STREAM_DATA);
+            values.put(StreamContentProvider.COLUMN_POINT, new byte[]{'{', '}'});
+            values.put(StreamContentProvider.COLUMN_POINT_LENGTH, 2);
+            db.insert(Tables.StreamData, null, values);
+
+            assertCounts(db, 1, 2);
+        } finally {
+            db.close();
+        }
+    }
+
+    public void testOnUpgrade_fromSecondVersion_countsExistingPoints() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            createFirstVersion(db);
+            db.insert(Tables.StreamData, null, point(1));
+            db.insert(Tables.StreamData, null, point(22));
+
+            new StreamDbHelper(mContext).onUpgrade(db, 2, 4);
+
+            assertCounts(db, 2, 15);
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Creates the points table the way it was before the upload index, counts and metadata
+     * dictionary were added
+     */
+    private static void createFirstVersion(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + Tables.StreamData + " (" + BaseColumns._ID
+                   + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                   + StreamContract.Streams.STREAM_ID + " TEXT NOT NULL, "
+                   + StreamContract.Streams.STREAM_VERSION + " INTEGER NOT NULL, "
+                   + StreamContract.Streams.USERNAME + " TEXT NOT NULL, "
+                   + StreamContract.Streams.STREAM_METADATA + " TEXT, "
+                   + StreamContract.Streams.STREAM_DATA + " TEXT, "
+                   + StreamContentProvider.COLUMN_POINT + " BLOB, "
+                   + StreamContentProvider.COLUMN_POINT_LENGTH + " INTEGER)");
+    }
+
+    private static void assertCounts(SQLiteDatabase db, long count, long bytes) {
+        Cursor cursor = db.query(Tables.StreamCounts, new String[]{
+                StreamContentProvider.PendingCounts.COUNT,
+                StreamContentProvider.PendingCounts.BYTES}, null, null, null, null, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals(count, cursor.getLong(0));
+            assertEquals(bytes, cursor.getLong(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the details of each step of the query plan
+     */
+    private String plan(String sql, String... args) {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            new StreamDbHelper(mContext).onCreate(db);
+            Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+            try {
+                StringBuilder plan = new StringBuilder();
+                int detail = cursor.getColumnIndexOrThrow("detail");
+                while (cursor.moveToNext())
+                    plan.append(cursor.getString(detail)).append('\n');
+                return plan.toString();
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    private void closeHelpers() {
+        StreamDbHelper.getInstance(mContext).close();
+        OhmageDbHelper.getInstance(mContext).close();
+    }
+
+    private static ContentValues point(int n) {
+        ContentValues values = new ContentValues();
+        values.put(StreamContract.Streams.STREAM_ID, "stream");
+        values.put(StreamContract.Streams.STREAM_VERSION, 1);
+        values.put(StreamContract.Streams.USERNAME, "user");
+        values.put(StreamContract.Streams.STREAM_DATA, "{\"n\":" + n + "}");
+        return values;
+    }
+}
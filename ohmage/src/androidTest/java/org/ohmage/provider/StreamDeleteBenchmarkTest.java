@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.provider;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.ohmage.provider.OhmageDbHelper.Tables;
+import org.ohmage.streams.StreamContract;
+
+/**
+ * Compares the ways a batch of uploaded stream points can be deleted from the database. Each
+ * benchmark deletes a batch of {@link #BATCH_SIZE} points and logs how long it took.
+ */
+@LargeTest
+public class StreamDeleteBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = StreamDeleteBenchmarkTest.class.getSimpleName();
+
+    private static final int BATCH_SIZE = 100000;
+
+    private SQLiteDatabase db;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        db = SQLiteDatabase.create(null);
+        new StreamDbHelper(getContext()).onCreate(db);
+
+        ContentValues values = new ContentValues();
+        values.put(StreamContract.Streams.STREAM_ID, "stream");
+        values.put(StreamContract.Streams.STREAM_VERSION, 1);
+        values.put(StreamContract.Streams.USERNAME, "user");
+        values.put(StreamContract.Streams.STREAM_METADATA, "{\"timestamp\":\"now\"}");
+        values.put(StreamContract.Streams.STREAM_DATA, "{\"x\":0,\"y\":0,\"z\":0}");
+
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                db.insert(Tables.StreamData, BaseColumns._ID, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        db.close();
+        super.tearDown();
+    }
+
+    /**
+     * The way points were deleted before, with chains of {@code _id=? OR} expressions
+     */
+    public void testDelete_orChains() {
+        long start = SystemClock.elapsedRealtime();
+
+        StringBuilder deleteString = new StringBuilder();
+        for (int id = 1; id <= BATCH_SIZE; id++) {
+            if (deleteString.length() != 0)
+                deleteString.append(" OR ");
+            deleteString.append(BaseColumns._ID + "=" + id);
+
+            if ((id % (1000 - 2) == 0) || id == BATCH_SIZE) {
+                db.delete(Tables.StreamData, deleteString.toString(), null);
+                deleteString = new StringBuilder();
+            }
+        }
+
+        log("or chains", start);
+    }
+
+    /**
+     * Deleting sets of bound ids in a single transaction
+     */
+    public void testDelete_boundIdSets() {
+        long start = SystemClock.elapsedRealtime();
+
+        db.beginTransaction();
+        try {
+            String[] args = new String[999];
+            StringBuilder selection = new StringBuilder(BaseColumns._ID).append(" IN (");
+            for (int i = 0; i < args.length; i++)
+                selection.append(i == 0 ? "?" : ",?");
+            selection.append(')');
+
+            for (int id = 1; id <= BATCH_SIZE; id += args.length) {
+                for (int i = 0; i < args.length; i++)
+                    args[i] = String.valueOf(id + i);
+                db.delete(Tables.StreamData, selection.toString(), args);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        log("bound id sets", start);
+    }
+
+    /**
+     * Deleting one contiguous range of ids
+     */
+    public void testDelete_range() {
+        long start = SystemClock.elapsedRealtime();
+
+        db.delete(Tables.StreamData, BaseColumns._ID + " BETWEEN ? AND ?",
+                new String[]{"1", String.valueOf(BATCH_SIZE)});
+
+        log("range", start);
+    }
+
+    private void log(String method, long start) {
+        long time = SystemClock.elapsedRealtime() - start;
+        Log.i(TAG, "Deleting " + BATCH_SIZE + " points with " + method + " took " + time + "ms");
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, Tables.StreamData));
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.ohmage.provider.OhmageDbHelper.Tables;
+import org.ohmage.streams.StreamContract;
+
+/**
+ * Times the queries made for uploading, listing and counting stream points against
+ * {@link #ROWS} points, first without the upload index and then with it. Most points belong to a
+ * busy stream, and one in every {@link #RARE_EVERY} belongs to a rare stream, which is the worst
+ * case for reading a stream without an index.
+ */
+@LargeTest
+public class StreamIndexBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = StreamIndexBenchmarkTest.class.getSimpleName();
+
+    private static final String DB_NAME = "stream_index_benchmark.db";
+
+    private static final int ROWS = 1000000;
+
+    private static final int RARE_EVERY = 1000;
+
+    private static final String UPLOAD_QUERY = "SELECT " + BaseColumns._ID + ", "
+                                               + StreamContract.Streams.STREAM_DATA + " FROM "
+                                               + Tables.StreamData + " WHERE ("
+                                               + StreamContract.Streams.USERNAME + "=? AND "
+                                               + StreamContract.Streams.STREAM_ID + "=? AND "
+                                               + StreamContract.Streams.STREAM_VERSION
+                                               + "=?) AND " + BaseColumns._ID + ">? ORDER BY "
+                                               + BaseColumns._ID + " LIMIT 100";
+
+    private static final String DISTINCT_QUERY = "SELECT DISTINCT "
+                                                 + StreamContract.Streams.STREAM_ID + ", "
+                                                 + StreamContract.Streams.STREAM_VERSION
+                                                 + " FROM " + Tables.StreamData + " WHERE ("
+                                                 + StreamContract.Streams.USERNAME + "=?)";
+
+    private static final String COUNTS_QUERY = "SELECT " + StreamContract.Streams.STREAM_ID
+                                               + ", " + StreamContract.Streams.STREAM_VERSION
+                                               + ", count(*) FROM " + Tables.StreamData
+                                               + " GROUP BY " + StreamContract.Streams.STREAM_ID
+                                               + ", " + StreamContract.Streams.STREAM_VERSION;
+
+    private SQLiteDatabase db;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        getContext().deleteDatabase(DB_NAME);
+        db = getContext().openOrCreateDatabase(DB_NAME, 0, null);
+        new StreamDbHelper(getContext()).onCreate(db);
+        db.execSQL("DROP INDEX " + StreamDbHelper.INDEX_STREAM_DATA_UPLOAD);
+
+        StreamPointInserter inserter = new StreamPointInserter(db);
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < ROWS; i++) {
+                String stream = i % RARE_EVERY == 0 ? "rare" : "busy";
+                inserter.insert(stream, 1, "user", "{}", "{\"n\":" + i + "}", null);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            inserter.close();
+        }
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        db.close();
+        getContext().deleteDatabase(DB_NAME);
+        super.tearDown();
+    }
+
+    public void testQueries_withoutAndWithIndex() {
+        run("without index");
+
+        long start = SystemClock.elapsedRealtime();
+        new StreamDbHelper(getContext()).onUpgrade(db, 1, 2);
+        Log.i(TAG, "Creating the index over " + ROWS + " points took "
+                   + (SystemClock.elapsedRealtime() - start) + "ms");
+
+        run("with index");
+    }
+
+    private void run(String mode) {
+        time(mode, "upload busy stream", UPLOAD_QUERY, "user", "busy", "1", "0");
+        time(mode, "upload rare stream", UPLOAD_QUERY, "user", "rare", "1", "0");
+        time(mode, "upload rare stream from the middle", UPLOAD_QUERY, "user", "rare", "1",
+                String.valueOf(ROWS / 2));
+        time(mode, "distinct streams", DISTINCT_QUERY, "user");
+        time(mode, "stream counts", COUNTS_QUERY);
+    }
+
+    private void time(String mode, String query, String sql, String... args) {
+        long start = SystemClock.elapsedRealtime();
+        Cursor cursor = db.rawQuery(sql, args);
+        try {
+            int rows = 0;
+            while (cursor.moveToNext())
+                rows++;
+            assertTrue(rows > 0);
+        } finally {
+            cursor.close();
+        }
+        Log.i(TAG, query + " over " + ROWS + " points " + mode + " took "
+                   + (SystemClock.elapsedRealtime() - start) + "ms");
+    }
+}
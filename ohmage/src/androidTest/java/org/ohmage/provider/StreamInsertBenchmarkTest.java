@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.provider;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.ohmage.provider.OhmageDbHelper.Tables;
+import org.ohmage.streams.StreamContract;
+
+/**
+ * Compares the ways stream points can be inserted by bulkInsert. Each benchmark inserts
+ * 1k, 10k and 100k points in a single transaction and logs the points inserted per second.
+ */
+@LargeTest
+public class StreamInsertBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = StreamInsertBenchmarkTest.class.getSimpleName();
+
+    private static final int[] ROWS = new int[]{1000, 10000, 100000};
+
+    private static final String METADATA = "{\"id\":\"6f1e8d20-3c1b-4d44-8d52-2a1c3f7e9b10\","
+                                           + "\"timestamp\":\"2014-05-02T10:15:30.123-07:00\"}";
+
+    private static final String DATA = "{\"mode\":\"still\",\"accel\":[0.0123,9.8012,0.2031]}";
+
+    private SQLiteDatabase db;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        db = SQLiteDatabase.create(null);
+        new StreamDbHelper(getContext()).onCreate(db);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        db.close();
+        super.tearDown();
+    }
+
+    /**
+     * The way points were inserted before, setting the username on each {@link ContentValues}
+     * and calling {@link SQLiteDatabase#insert(String, String, ContentValues)}
+     */
+    public void testInsert_contentValues() {
+        for (int rows : ROWS) {
+            ContentValues[] values = values(rows);
+
+            long start = SystemClock.elapsedRealtime();
+            db.beginTransaction();
+            try {
+                for (ContentValues v : values) {
+                    v.put(StreamContract.Streams.USERNAME, "user");
+                    db.insert(Tables.StreamData, BaseColumns._ID, v);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            log("content values", rows, start);
+        }
+    }
+
+    /**
+     * Reading each {@link ContentValues} into a compiled statement
+     */
+    public void testInsert_compiledStatement() {
+        StreamPointInserter inserter = new StreamPointInserter(db);
+        for (int rows : ROWS) {
+            ContentValues[] values = values(rows);
+
+            long start = SystemClock.elapsedRealtime();
+            db.beginTransaction();
+            try {
+                for (ContentValues v : values) {
+                    inserter.insert(v.getAsString(StreamContract.Streams.STREAM_ID),
+                            v.getAsLong(StreamContract.Streams.STREAM_VERSION), "user",
+                            v.getAsString(StreamContract.Streams.STREAM_METADATA),
+                            v.getAsString(StreamContract.Streams.STREAM_DATA), null);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            log("compiled statement", rows, start);
+        }
+        inserter.close();
+    }
+
+    /**
+     * Binding {@link StreamPointRows} to a compiled statement without any {@link ContentValues}
+     */
+    public void testInsert_primitiveRows() {
+        StreamPointInserter inserter = new StreamPointInserter(db);
+        for (int rows : ROWS) {
+            StreamPointRows points = new StreamPointRows(rows);
+            for (int i = 0; i < rows; i++)
+                points.add("stream", 1, METADATA, DATA);
+
+            long start = SystemClock.elapsedRealtime();
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < points.size(); i++) {
+                    inserter.insert(points.getStreamId(i), points.getStreamVersion(i), "user",
+                            points.getMetadata(i), points.getData(i), null);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            log("primitive rows", rows, start);
+        }
+        inserter.close();
+    }
+
+    private ContentValues[] values(int rows) {
+        ContentValues[] values = new ContentValues[rows];
+        for (int i = 0; i < rows; i++) {
+            values[i] = new ContentValues();
+            values[i].put(StreamContract.Streams.STREAM_ID, "stream");
+            values[i].put(StreamContract.Streams.STREAM_VERSION, 1);
+            values[i].put(StreamContract.Streams.STREAM_METADATA, METADATA);
+            values[i].put(StreamContract.Streams.STREAM_DATA, DATA);
+        }
+        return values;
+    }
+
+    private void log(String method, int rows, long start) {
+        long time = Math.max(SystemClock.elapsedRealtime() - start, 1);
+        Log.i(TAG, "Inserting " + rows + " points with " + method + " took " + time + "ms ("
+                   + (rows * 1000L / time) + " points/s)");
+        assertEquals(rows, DatabaseUtils.queryNumEntries(db, Tables.StreamData));
+        db.delete(Tables.StreamData, null, null);
+    }
+}
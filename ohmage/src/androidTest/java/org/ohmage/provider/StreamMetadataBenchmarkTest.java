@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.provider;
+
+import android.content.ContentProviderClient;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.ohmage.models.Stream;
+import org.ohmage.provider.OhmageDbHelper.Tables;
+import org.ohmage.provider.StreamContentProvider.SharedMetadata;
+import org.ohmage.sync.StreamWriterOutput;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Compares storing the full metadata of every point with storing the shared fields in the
+ * {@link SharedMetadata} dictionary. The points look like an accelerometer stream sampled at 20hz
+ * whose location is updated every {@link #LOCATION_INTERVAL} points. Logs the size of the database
+ * and how fast the points can be read back by the {@link StreamWriterOutput}.
+ */
+@LargeTest
+public class StreamMetadataBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = StreamMetadataBenchmarkTest.class.getSimpleName();
+
+    private static final int POINTS = 20000;
+
+    private static final int LOCATION_INTERVAL = 1200;
+
+    private static final Stream STREAM = new Stream("accelerometer", 1);
+
+    private SQLiteDatabase db;
+
+    private ContentProviderClient fakeContentProviderClient;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        db = SQLiteDatabase.create(null);
+        new StreamDbHelper(getContext()).onCreate(db);
+
+        fakeContentProviderClient = mock(ContentProviderClient.class);
+        when(fakeContentProviderClient.query(any(Uri.class), any(String[].class), anyString(),
+                any(String[].class), anyString())).then(new Answer<Object>() {
+            @Override public Object answer(InvocationOnMock invocation) throws Throwable {
+                Object[] args = invocation.getArguments();
+                Uri uri = (Uri) args[0];
+                String table = SharedMetadata.CONTENT_URI.equals(uri)
+                        ? Tables.StreamMetadataDictionary : Tables.StreamData;
+                return db.query(table, (String[]) args[1], (String) args[2],
+                        (String[]) args[3], null, null, (String) args[4],
+                        uri.getQueryParameter(StreamContentProvider.QUERY_PARAMETER_LIMIT));
+            }
+        });
+        when(fakeContentProviderClient.delete(any(Uri.class), anyString(), any(String[].class)))
+                .then(new Answer<Object>() {
+                    @Override public Object answer(InvocationOnMock invocation) throws Throwable {
+                        Object[] args = invocation.getArguments();
+                        Uri uri = (Uri) args[0];
+                        String[] selectionArgs = (String[]) args[2];
+                        String[] rangeArgs = new String[selectionArgs.length + 2];
+                        System.arraycopy(selectionArgs, 0, rangeArgs, 0, selectionArgs.length);
+                        rangeArgs[selectionArgs.length] = uri.getQueryParameter(
+                                StreamContentProvider.QUERY_PARAMETER_FIRST_ID);
+                        rangeArgs[selectionArgs.length + 1] = uri.getQueryParameter(
+                                StreamContentProvider.QUERY_PARAMETER_LAST_ID);
+                        return db.delete(Tables.StreamData, DatabaseUtils.concatenateWhere(
+                                (String) args[1], BaseColumns._ID + " BETWEEN ? AND ?"),
+                                rangeArgs);
+                    }
+                });
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        db.close();
+        super.tearDown();
+    }
+
+    public void testFullMetadata() throws Exception {
+        benchmark("full metadata", false);
+    }
+
+    public void testSharedMetadata() throws Exception {
+        benchmark("shared metadata", true);
+    }
+
+    private void benchmark(String mode, boolean deduplicate) throws Exception {
+        long start = SystemClock.elapsedRealtime();
+        insertPoints(deduplicate);
+        long insertTime = SystemClock.elapsedRealtime() - start;
+
+        long size = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)
+                    * DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+
+        CountingOutputStream out = new CountingOutputStream();
+        StreamWriterOutput writer = new StreamWriterOutput(fakeContentProviderClient);
+        start = SystemClock.elapsedRealtime();
+        writer.query("user", STREAM);
+        while (writer.moveToNextBatch()) {
+            writer.writeTo(out);
+            writer.deleteBatch();
+        }
+        writer.close();
+        long readTime = Math.max(SystemClock.elapsedRealtime() - start, 1);
+
+        Log.i(TAG, "Storing " + POINTS + " points with " + mode + " took " + insertTime
+                   + "ms and " + (size / 1024) + "KB. Reading them for upload took " + readTime
+                   + "ms (" + (POINTS * 1000L / readTime) + " points/s, " + out.count
+                   + " bytes written)");
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, Tables.StreamData));
+    }
+
+    private void insertPoints(boolean deduplicate) {
+        StreamMetadataDictionary dictionary = new StreamMetadataDictionary(db);
+        StreamPointInserter inserter = new StreamPointInserter(db);
+        Random random = new Random(0);
+        long time = 1399050930123L;
+        String location = null;
+
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < POINTS; i++) {
+                if (i % LOCATION_INTERVAL == 0) {
+                    location = String.format(Locale.US, "{\"latitude\":%.6f,\"longitude\":%.6f,"
+                                                        + "\"accuracy\":%.1f,\"time\":%d}",
+                            34.0689 + random.nextGaussian() / 1000,
+                            -118.4452 + random.nextGaussian() / 1000,
+                            5 + random.nextInt(30) * 1.0, time);
+                }
+                String metadata = "{\"id\":\"" + UUID.randomUUID() + "\",\"timestamp\":" + time
+                                  + ",\"location\":" + location + ",\"device\":{\"manufacturer\""
+                                  + ":\"LGE\",\"model\":\"Nexus 5\",\"os\":\"Android 4.4.2\"}}";
+                String data = String.format(Locale.US, "{\"accel\":[%.4f,%.4f,%.4f]}",
+                        random.nextGaussian(), 9.81 + random.nextGaussian(),
+                        random.nextGaussian());
+
+                long metadataId = -1;
+                if (deduplicate) {
+                    StreamMetadataDictionary.Entry entry = dictionary.add(metadata);
+                    metadata = entry.varying;
+                    metadataId = entry.id;
+                }
+                inserter.insert(STREAM.schemaId, STREAM.schemaVersion, "user", metadata, data,
+                        null, metadataId);
+                time += 50;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override public void write(int oneByte) throws IOException {
+            count++;
+        }
+
+        @Override public void write(byte[] buffer, int offset, int count) throws IOException {
+            this.count += count;
+        }
+    }
+}
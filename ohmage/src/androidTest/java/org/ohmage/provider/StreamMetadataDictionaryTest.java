@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.provider;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import org.ohmage.provider.OhmageDbHelper.Tables;
+import org.ohmage.provider.StreamContentProvider.PendingCounts;
+import org.ohmage.provider.StreamContentProvider.SharedMetadata;
+
+/**
+ * Tests splitting stream metadata into the varying fields and the shared dictionary entries
+ */
+public class StreamMetadataDictionaryTest extends AndroidTestCase {
+
+    private static final String METADATA = "{\"id\":\"a\",\"timestamp\":\"t\","
+                                           + "\"location\":{\"latitude\":1.5}}";
+
+    private SQLiteDatabase db;
+
+    private StreamMetadataDictionary mDictionary;
+
+    private StreamPointInserter mInserter;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        db = SQLiteDatabase.create(null);
+        new StreamDbHelper(getContext()).onCreate(db);
+        mDictionary = new StreamMetadataDictionary(db);
+        mInserter = new StreamPointInserter(db);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        db.close();
+        super.tearDown();
+    }
+
+    public void testSplit_object_separatesVaryingFields() {
+        String[] split = mDictionary.split(METADATA);
+
+        assertEquals("{\"id\":\"a\",\"timestamp\":\"t\"}", split[0]);
+        assertEquals("{\"location\":{\"latitude\":1.5}}", split[1]);
+    }
+
+    public void testSplit_onlyVaryingFields_returnsNull() {
+        assertNull(mDictionary.split("{\"id\":\"a\",\"timestamp\":\"t\"}"));
+    }
+
+    public void testSplit_notAnObject_returnsNull() {
+        assertNull(mDictionary.split("[1,2]"));
+        assertNull(mDictionary.split("{not json"));
+    }
+
+    public void testSplit_formattingAndEscapes_joinsBackToOriginal() {
+        String metadata = "{ \"timestamp\" : \"t\\\",}\", \"id\":\"a\" ,\"n\":1.50E2,"
+                          + "\"s\":\"\\u00e9/\",\"o\":{\"id\":[1,{\"x\":\"}\"}]} }";
+
+        String[] split = mDictionary.split(metadata);
+
+        assertEquals(metadata, join(split));
+    }
+
+    public void testSplit_noVaryingFields_sharesWholeMetadata() {
+        String metadata = "{\"location\":{\"latitude\":1.50}}";
+
+        String[] split = mDictionary.split(metadata);
+
+        assertEquals("{}", split[0]);
+        assertEquals(metadata, split[1]);
+    }
+
+    public void testSplit_varyingFieldAfterSharedField_returnsNull() {
+        assertNull(mDictionary.split("{\"id\":\"a\",\"location\":1,\"timestamp\":\"t\"}"));
+    }
+
+    public void testAdd_sameSharedFields_reusesEntry() {
+        StreamMetadataDictionary.Entry first = mDictionary.add(METADATA);
+        StreamMetadataDictionary.Entry second = mDictionary.add(
+                "{\"id\":\"b\",\"timestamp\":\"u\",\"location\":{\"latitude\":1.5}}");
+
+        assertEquals(first.id, second.id);
+        assertEquals("{\"id\":\"b\",\"timestamp\":\"u\"}", second.varying);
+        assertEquals("{\"location\":{\"latitude\":1.5}}".length(), second.sharedSize);
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, Tables.StreamMetadataDictionary));
+    }
+
+    public void testAdd_differentSharedFields_addsEntry() {
+        StreamMetadataDictionary.Entry first = mDictionary.add(METADATA);
+        StreamMetadataDictionary.Entry second = mDictionary.add(
+                "{\"id\":\"b\",\"location\":{\"latitude\":2.5}}");
+
+        assertTrue(first.id != second.id);
+        assertEquals(2, DatabaseUtils.queryNumEntries(db, Tables.StreamMetadataDictionary));
+    }
+
+    public void testInvalidate_afterRollback_addsEntryAgain() {
+        db.beginTransaction();
+        try {
+            mDictionary.add(METADATA);
+        } finally {
+            db.endTransaction();
+        }
+        mDictionary.invalidate();
+
+        StreamMetadataDictionary.Entry entry = mDictionary.add(METADATA);
+
+        assertEquals(1, DatabaseUtils.longForQuery(db, "SELECT count(*) FROM "
+                                                       + Tables.StreamMetadataDictionary
+                                                       + " WHERE " + SharedMetadata._ID + "=?",
+                new String[]{String.valueOf(entry.id)}));
+    }
+
+    public void testInsert_withEntry_countsReferences() {
+        StreamMetadataDictionary.Entry entry = mDictionary.add(METADATA);
+        mInserter.insert("stream", 1, "user", entry.varying, "{}", null, entry.id);
+        mInserter.insert("stream", 1, "user", entry.varying, "{}", null, entry.id);
+
+        assertEquals(2, DatabaseUtils.longForQuery(db, "SELECT " + SharedMetadata.REFS + " FROM "
+                                                       + Tables.StreamMetadataDictionary, null));
+    }
+
+    public void testPrune_afterPointsDeleted_removesUnusedEntries() {
+        StreamMetadataDictionary.Entry entry = mDictionary.add(METADATA);
+        mInserter.insert("stream", 1, "user", entry.varying, "{}", null, entry.id);
+        mDictionary.add("{\"id\":\"b\",\"location\":{\"latitude\":2.5}}");
+
+        assertEquals(1, mDictionary.prune());
+        db.delete(Tables.StreamData, null, null);
+        assertEquals(1, mDictionary.prune());
+
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, Tables.StreamMetadataDictionary));
+    }
+
+    public void testSplit_trailingText_returnsNull() {
+        assertNull(mDictionary.split(METADATA + "x"));
+    }
+
+    public void testInsert_withEntry_countsSharedBytes() {
+        StreamMetadataDictionary.Entry entry = mDictionary.add(METADATA);
+        mInserter.insert("stream", 1, "user", entry.varying, "{}", null, entry.id);
+
+        assertEquals(entry.varying.length() + entry.sharedSize + "{}".length(),
+                DatabaseUtils.longForQuery(db, "SELECT " + PendingCounts.BYTES + " FROM "
+                                               + Tables.StreamCounts, null));
+    }
+
+    /**
+     * Joins split metadata back together the same way it is joined when it is uploaded
+     */
+    private static String join(String[] split) {
+        if (split[0].length() <= 2)
+            return split[1];
+        return split[0].substring(0, split[0].length() - 1) + "," + split[1].substring(1);
+    }
+}
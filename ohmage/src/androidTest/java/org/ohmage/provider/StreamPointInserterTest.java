@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import org.ohmage.provider.OhmageDbHelper.Tables;
+import org.ohmage.streams.StreamContract;
+
+import java.util.Arrays;
+
+/**
+ * Tests inserting points with the compiled statement
+ */
+public class StreamPointInserterTest extends AndroidTestCase {
+
+    private static final String[] PROJECTION = new String[]{StreamContract.Streams.STREAM_ID,
+            StreamContract.Streams.STREAM_VERSION, StreamContract.Streams.USERNAME,
+            StreamContract.Streams.STREAM_METADATA, StreamContract.Streams.STREAM_DATA,
+            StreamContentProvider.COLUMN_POINT, StreamContentProvider.COLUMN_POINT_LENGTH};
+
+    private SQLiteDatabase db;
+
+    private StreamPointInserter mInserter;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        db = SQLiteDatabase.create(null);
+        new StreamDbHelper(getContext()).onCreate(db);
+        mInserter = new StreamPointInserter(db);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mInserter.close();
+        db.close();
+        super.tearDown();
+    }
+
+    public void testInsert_point_insertsAllColumns() {
+        long id = mInserter.insert("stream", 2, "user", "{\"m\":1}", "{\"d\":1}", null);
+
+        assertTrue(id != -1);
+        Cursor cursor = db.query(Tables.StreamData, PROJECTION, null, null, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("stream", cursor.getString(0));
+            assertEquals(2, cursor.getLong(1));
+            assertEquals("user", cursor.getString(2));
+            assertEquals("{\"m\":1}", cursor.getString(3));
+            assertEquals("{\"d\":1}", cursor.getString(4));
+            assertTrue(cursor.isNull(5));
+            assertTrue(cursor.isNull(6));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testInsert_framedPoint_storesBlobAndLength() {
+        byte[] point = StreamContentProvider.encodePoint("{\"d\":1}", "{\"m\":1}");
+
+        mInserter.insert("stream", 2, "user", null, null, point);
+
+        Cursor cursor = db.query(Tables.StreamData, PROJECTION, null, null, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertTrue(cursor.isNull(3));
+            assertTrue(cursor.isNull(4));
+            assertTrue(Arrays.equals(point, cursor.getBlob(5)));
+            assertEquals(point.length, cursor.getInt(6));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testInsert_reusedStatement_insertsEachPoint() {
+        StreamPointRows rows = new StreamPointRows(1);
+        for (int i = 0; i < 20; i++)
+            rows.add("stream", i, null, "{}");
+
+        for (int i = 0; i < rows.size(); i++) {
+            mInserter.insert(rows.getStreamId(i), rows.getStreamVersion(i), "user",
+                    rows.getMetadata(i), rows.getData(i), null);
+        }
+
+        Cursor cursor = db.query(Tables.StreamData, PROJECTION, null, null, null, null,
+                StreamContract.Streams._ID);
+        try {
+            assertEquals(20, cursor.getCount());
+            assertTrue(cursor.moveToLast());
+            assertEquals(19, cursor.getLong(1));
+            assertTrue(cursor.isNull(3));
+        } finally {
+            cursor.close();
+        }
+    }
+}
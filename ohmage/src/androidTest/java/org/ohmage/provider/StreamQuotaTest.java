@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.BaseColumns;
+import android.test.AndroidTestCase;
+
+import org.ohmage.provider.OhmageDbHelper.Tables;
+import org.ohmage.provider.StreamQuota.Policy;
+import org.ohmage.streams.StreamContract;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests the stream quota against an in memory database
+ */
+public class StreamQuotaTest extends AndroidTestCase {
+
+    private SQLiteDatabase db;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        db = SQLiteDatabase.create(null);
+        new StreamDbHelper(getContext()).onCreate(db);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        db.close();
+        super.tearDown();
+    }
+
+    public void testOnInserted_oldestFirstOverStreamRows_evictsOldestToLowWaterMark() {
+        StreamQuota quota = new StreamQuota(Policy.OLDEST_FIRST, 10, 0, 0, 0);
+
+        insert(quota, "a", 11);
+
+        assertEquals(9, ids("a").size());
+        assertEquals(Long.valueOf(3), ids("a").get(0));
+        assertEquals(2, quota.getEvicted());
+    }
+
+    public void testOnInserted_underLimit_doesNotEvict() {
+        StreamQuota quota = new StreamQuota(Policy.OLDEST_FIRST, 10, 0, 0, 0);
+
+        insert(quota, "a", 10);
+
+        assertEquals(10, ids("a").size());
+        assertEquals(0, quota.getEvicted());
+    }
+
+    public void testOnInserted_downsampleOlder_evictsEveryOtherOldPoint() {
+        StreamQuota quota = new StreamQuota(Policy.DOWNSAMPLE_OLDER, 10, 0, 0, 0);
+
+        insert(quota, "a", 11);
+
+        List<Long> ids = ids("a");
+        assertEquals(9, ids.size());
+        assertFalse(ids.contains(2l));
+        assertFalse(ids.contains(4l));
+        assertTrue(ids.contains(1l));
+        assertTrue(ids.contains(3l));
+        assertTrue(ids.contains(11l));
+    }
+
+    public void testOnInserted_downsampleOlderAgain_carriesOnFromLastThinnedPoint() {
+        StreamQuota quota = new StreamQuota(Policy.DOWNSAMPLE_OLDER, 10, 0, 0, 0);
+        insert(quota, "a", 11);
+
+        insert(quota, "a", 2);
+
+        List<Long> ids = ids("a");
+        assertEquals(9, ids.size());
+        assertTrue(ids.contains(5l));
+        assertFalse(ids.contains(6l));
+        assertTrue(ids.contains(13l));
+    }
+
+    public void testOnInserted_otherUserSameStream_evictsOnlyOwnPoints() {
+        StreamQuota quota = new StreamQuota(Policy.OLDEST_FIRST, 10, 0, 0, 0);
+        insert(quota, "other", "a", 10);
+
+        insert(quota, "a", 11);
+
+        assertEquals(9, ids("user", "a").size());
+        assertEquals(10, ids("other", "a").size());
+    }
+
+    public void testInvalidate_afterRollback_readsUsageAgain() {
+        StreamQuota quota = new StreamQuota(Policy.REJECT_NEW, 10, 0, 0, 0);
+        insert(quota, "a", 5);
+
+        db.beginTransaction();
+        try {
+            insert(quota, "a", 5);
+        } finally {
+            db.endTransaction();
+        }
+        quota.invalidate();
+        insert(quota, "a", 5);
+
+        assertEquals(10, ids("a").size());
+        assertEquals(0, quota.getRejected());
+    }
+
+    public void testAdmit_rejectNewOverStreamRows_dropsNewPoints() {
+        StreamQuota quota = new StreamQuota(Policy.REJECT_NEW, 10, 0, 0, 0);
+
+        insert(quota, "a", 12);
+
+        assertEquals(10, ids("a").size());
+        assertEquals(Long.valueOf(10), ids("a").get(9));
+        assertEquals(2, quota.getRejected());
+        assertEquals(0, quota.getEvicted());
+    }
+
+    public void testOnInserted_overStreamBytes_evictsBytes() {
+        // Each point is 2 bytes of data and 2 bytes of metadata
+        StreamQuota quota = new StreamQuota(Policy.OLDEST_FIRST, 0, 40, 0, 0);
+
+        insert(quota, "a", 11);
+
+        assertEquals(9, ids("a").size());
+    }
+
+    public void testOnInserted_overGlobalRows_evictsFromLargestStream() {
+        StreamQuota quota = new StreamQuota(Policy.OLDEST_FIRST, 0, 0, 20, 0);
+
+        insert(quota, "small", 5);
+        insert(quota, "large", 16);
+
+        assertEquals(5, ids("small").size());
+        assertEquals(13, ids("large").size());
+    }
+
+    public void testOnDeleted_pointsDeleted_admitsNewPoints() {
+        StreamQuota quota = new StreamQuota(Policy.REJECT_NEW, 10, 0, 0, 0);
+        insert(quota, "a", 10);
+
+        String selection = StreamContract.Streams.STREAM_ID + "=? AND " + BaseColumns._ID + "<=?";
+        db.delete(Tables.StreamData, selection, new String[]{"a", "5"});
+        quota.onDeleted();
+        insert(quota, "a", 5);
+
+        assertEquals(10, ids("a").size());
+        assertEquals(0, quota.getRejected());
+    }
+
+    public void testOnDeleted_pointsDeleted_keepsEvictionCounters() {
+        StreamQuota quota = new StreamQuota(Policy.OLDEST_FIRST, 10, 0, 0, 0);
+        insert(quota, "a", 11);
+
+        String selection = StreamContract.Streams.STREAM_ID + "=? AND " + BaseColumns._ID + "<=?";
+        db.delete(Tables.StreamData, selection, new String[]{"a", "7"});
+        quota.onDeleted();
+
+        Cursor cursor = quota.counts(db);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(4, cursor.getLong(
+                    cursor.getColumnIndex(StreamContentProvider.QuotaCounts.ROWS)));
+            assertEquals(2, cursor.getLong(
+                    cursor.getColumnIndex(StreamContentProvider.QuotaCounts.EVICTED)));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testOnInserted_existingPoints_countsThemOnFirstInsert() {
+        insert(new StreamQuota(Policy.OLDEST_FIRST, 0, 0, 0, 0), "a", 10);
+        StreamQuota quota = new StreamQuota(Policy.OLDEST_FIRST, 10, 0, 0, 0);
+
+        insert(quota, "a", 1);
+
+        assertEquals(9, ids("a").size());
+    }
+
+    public void testCounts_afterEviction_listsCounters() {
+        StreamQuota quota = new StreamQuota(Policy.OLDEST_FIRST, 10, 0, 0, 0);
+        insert(quota, "a", 11);
+
+        Cursor cursor = quota.counts(db);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("a", cursor.getString(
+                    cursor.getColumnIndex(StreamContract.Streams.STREAM_ID)));
+            assertEquals(9, cursor.getLong(
+                    cursor.getColumnIndex(StreamContentProvider.QuotaCounts.ROWS)));
+            assertEquals(36, cursor.getLong(
+                    cursor.getColumnIndex(StreamContentProvider.QuotaCounts.BYTES)));
+            assertEquals(2, cursor.getLong(
+                    cursor.getColumnIndex(StreamContentProvider.QuotaCounts.EVICTED)));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testSizeOf_multibyteCharacters_countsUtf8Bytes() {
+        ContentValues values = new ContentValues();
+        values.put(StreamContract.Streams.STREAM_DATA, "\"\u00e9\u4e2d\ud83d\ude00\"");
+
+        assertEquals(11, StreamQuota.sizeOf(values));
+    }
+
+    private void insert(StreamQuota quota, String stream, int count) {
+        insert(quota, "user", stream, count);
+    }
+
+    private void insert(StreamQuota quota, String username, String stream, int count) {
+        for (int i = 0; i < count; i++) {
+            ContentValues values = new ContentValues();
+            values.put(StreamContract.Streams.STREAM_ID, stream);
+            values.put(StreamContract.Streams.STREAM_VERSION, 1);
+            values.put(StreamContract.Streams.USERNAME, username);
+            values.put(StreamContract.Streams.STREAM_METADATA, "{}");
+            values.put(StreamContract.Streams.STREAM_DATA, "[]");
+            if (quota.admit(db, values) && db.insert(Tables.StreamData, null, values) != -1)
+                quota.onInserted(db, values);
+        }
+    }
+
+    private List<Long> ids(String stream) {
+        return ids("user", stream);
+    }
+
+    private List<Long> ids(String username, String stream) {
+        List<Long> ids = new ArrayList<Long>();
+        Cursor cursor = db.query(Tables.StreamData, new String[]{BaseColumns._ID},
+                StreamContract.Streams.USERNAME + "=? AND " + StreamContract.Streams.STREAM_ID
+                + "=?", new String[]{username, stream}, null, null, BaseColumns._ID);
+        try {
+            while (cursor.moveToNext())
+                ids.add(cursor.getLong(0));
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+}
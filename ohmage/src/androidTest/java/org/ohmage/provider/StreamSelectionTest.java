@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ohmage.provider;
+
+import android.test.AndroidTestCase;
+
+import org.ohmage.streams.StreamContract;
+
+/**
+ * Tests parsing the selections the stream stores understand
+ */
+public class StreamSelectionTest extends AndroidTestCase {
+
+    public void testParse_null_selectsEverything() {
+        StreamSelection selection = StreamSelection.parse(null, null);
+
+        assertNull(selection.username);
+        assertNull(selection.streamId);
+        assertNull(selection.streamVersion);
+        assertEquals(0, selection.firstId);
+        assertEquals(Long.MAX_VALUE, selection.lastId);
+    }
+
+    public void testParse_pageSelection_selectsStreamAfterId() {
+        StreamSelection selection = StreamSelection.parse(
+                "(username=? AND stream_id=? AND stream_version=?) AND _id>?",
+                new String[]{"user", "stream", "2", "10"});
+
+        assertEquals("user", selection.username);
+        assertEquals("stream", selection.streamId);
+        assertEquals(Long.valueOf(2), selection.streamVersion);
+        assertEquals(11, selection.firstId);
+        assertEquals(Long.MAX_VALUE, selection.lastId);
+    }
+
+    public void testParse_rangeSelection_selectsInclusiveRange() {
+        StreamSelection selection = StreamSelection.parse(
+                "(username=? AND stream_id=? AND stream_version=?) AND (_id BETWEEN ? AND ?)",
+                new String[]{"user", "stream", "2", "5", "9"});
+
+        assertEquals(5, selection.firstId);
+        assertEquals(9, selection.lastId);
+    }
+
+    public void testParse_otherColumn_throwsUnsupportedOperationException() {
+        try {
+            StreamSelection.parse(StreamContract.Streams.STREAM_DATA + "=?", new String[]{"{}"});
+            fail("No Exception Thrown");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    public void testParse_otherOperator_throwsUnsupportedOperationException() {
+        try {
+            StreamSelection.parse("stream_id LIKE ?", new String[]{"stream"});
+            fail("No Exception Thrown");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    public void testMatches_onlyChecksColumnsInSelection() {
+        StreamSelection selection = StreamSelection.parse("stream_id=?", new String[]{"stream"});
+
+        assertTrue(selection.matches("user", "stream", 1));
+        assertTrue(selection.matches("other", "stream", 2));
+        assertFalse(selection.matches("user", "other", 1));
+    }
+}
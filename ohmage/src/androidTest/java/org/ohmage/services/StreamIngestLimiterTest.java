@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.services;
+
+import android.test.AndroidTestCase;
+
+import org.ohmage.models.Stream;
+import org.ohmage.models.Stream.IngestLimits;
+import org.ohmage.models.Stream.IngestLimits.OverLimit;
+import org.ohmage.models.Stream.IngestLimits.Priority;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Tests the per stream token buckets and priorities of the ingest limiter
+ */
+public class StreamIngestLimiterTest extends AndroidTestCase {
+
+    private static final double NORMAL_RATE = 10;
+
+    private static final int NORMAL_BURST = 20;
+
+    private static final double BULK_RATE = 5;
+
+    private static final int BULK_BURST = 100;
+
+    private static final double SHARED_RATE = 100;
+
+    private static final int SHARED_BURST = 100;
+
+    private StreamIngestLimiter mLimiter;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        mLimiter = new StreamIngestLimiter(NORMAL_RATE, NORMAL_BURST, BULK_RATE, BULK_BURST,
+                SHARED_RATE, SHARED_BURST, 0);
+    }
+
+    public void testAdmit_withinBurst_acceptsPoints() {
+        assertEquals(NORMAL_BURST, admit("normal", NORMAL_BURST * 2, 0));
+
+        StreamIngestLimiter.Counts counts = mLimiter.getCounts("normal", 1);
+        assertEquals(NORMAL_BURST, counts.accepted);
+        assertEquals(NORMAL_BURST, counts.dropped);
+    }
+
+    public void testAdmit_afterBurst_refillsAtRate() {
+        admit("normal", NORMAL_BURST, 0);
+
+        assertEquals(10, admit("normal", NORMAL_BURST, 1000));
+    }
+
+    public void testAdmit_critical_notLimitedBySharedBucket() {
+        setLimits(stream("critical", Priority.CRITICAL, 0, null));
+        admit("normal", NORMAL_BURST, 0);
+
+        assertEquals(1000, admit("critical", 1000, 0));
+    }
+
+    public void testAdmit_bulk_limitedBeforeNormalStreams() {
+        setLimits(stream("bulk", Priority.BULK, 0, null));
+
+        int bulk = admit("bulk", BULK_BURST, 0);
+        int normal = admit("normal", NORMAL_BURST, 0);
+
+        assertEquals((int) (SHARED_BURST * StreamIngestLimiter.BULK_RESERVE), bulk);
+        assertEquals(NORMAL_BURST, normal);
+    }
+
+    public void testAdmit_sharedBucketEmpty_limitsNormalStreams() {
+        setLimits(stream("a", Priority.NORMAL, 1000, null),
+                stream("b", Priority.NORMAL, 1000, null));
+
+        int a = admit("a", SHARED_BURST, 0);
+        int b = admit("b", SHARED_BURST, 0);
+
+        assertEquals(SHARED_BURST, a + b);
+    }
+
+    public void testAdmit_definitionRate_overridesDefault() {
+        setLimits(stream("normal", Priority.NORMAL, 50, null));
+
+        assertEquals(50, admit("normal", 100, 0));
+    }
+
+    public void testAdmit_downsample_keepsOneInN() {
+        IngestLimits limits = new IngestLimits();
+        limits.overLimit = OverLimit.DOWNSAMPLE;
+        limits.keepOneIn = 5;
+        Stream stream = new Stream("normal", 1);
+        stream.ingest = limits;
+        setLimits(stream);
+
+        assertEquals(NORMAL_BURST + 4, admit("normal", NORMAL_BURST + 20, 0));
+
+        StreamIngestLimiter.Counts counts = mLimiter.getCounts("normal", 1);
+        assertEquals(NORMAL_BURST, counts.accepted);
+        assertEquals(4, counts.downsampled);
+        assertEquals(16, counts.dropped);
+    }
+
+    public void testSetLimits_limitsUnchanged_keepsBucket() {
+        setLimits(stream("normal", Priority.NORMAL, 50, null));
+        admit("normal", 50, 0);
+
+        setLimits(stream("normal", Priority.NORMAL, 50, null), stream("other", null, 5, null));
+
+        assertFalse(mLimiter.admit("normal", 1, 0));
+    }
+
+    public void testSetLimits_limitsChanged_resetsBucket() {
+        admit("normal", NORMAL_BURST, 0);
+
+        setLimits(stream("normal", Priority.NORMAL, 50, null));
+
+        assertTrue(mLimiter.admit("normal", 1, 0));
+    }
+
+    public void testGetCounts_pointsSent_listsEachStream() {
+        admit("a", 1, 0);
+        admit("b", 2, 0);
+
+        Map<String, StreamIngestLimiter.Counts> counts = mLimiter.getCounts();
+
+        assertEquals(2, counts.size());
+        assertEquals(2, counts.get("b:1").accepted);
+    }
+
+    private int admit(String streamId, int points, long now) {
+        int accepted = 0;
+        for (int i = 0; i < points; i++) {
+            if (mLimiter.admit(streamId, 1, now))
+                accepted++;
+        }
+        return accepted;
+    }
+
+    private void setLimits(Stream... streams) {
+        mLimiter.setLimits(Arrays.asList(streams));
+    }
+
+    private static Stream stream(String streamId, Priority priority, double rate,
+            OverLimit overLimit) {
+        IngestLimits limits = new IngestLimits();
+        limits.priority = priority;
+        limits.rate = rate;
+        limits.burst = (int) rate;
+        limits.overLimit = overLimit;
+        Stream stream = new Stream(streamId, 1);
+        stream.ingest = limits;
+        return stream;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.os.RemoteException;
+import android.test.AndroidTestCase;
+
+import org.mockito.ArgumentCaptor;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests splitting points into batches which fit in a binder transaction
+ */
+public class StreamBatchSenderTest extends AndroidTestCase {
+
+    private IStreamReceiver2 fakeReceiver;
+
+    private StreamBatchSender mSender;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        fakeReceiver = mock(IStreamReceiver2.class);
+        mSender = new StreamBatchSender(fakeReceiver, "stream", 1);
+    }
+
+    public void testAdd_underLimit_doesNotSend() throws Exception {
+        mSender.add("{}", "{}");
+        mSender.add("{}", "{}");
+
+        verify(fakeReceiver, never()).sendStreamBatch(anyString(), anyInt(), any(String[].class),
+                any(String[].class));
+    }
+
+    public void testFlush_pointsAdded_sendsThemInOneCall() throws Exception {
+        mSender.add("{\"m\":1}", "{\"d\":1}");
+        mSender.add("{\"m\":2}", "{\"d\":2}");
+
+        mSender.flush();
+
+        verify(fakeReceiver).sendStreamBatch("stream", 1, new String[]{"{\"m\":1}", "{\"m\":2}"},
+                new String[]{"{\"d\":1}", "{\"d\":2}"});
+    }
+
+    public void testFlush_nothingAdded_doesNotSend() throws Exception {
+        mSender.flush();
+
+        verify(fakeReceiver, never()).sendStreamBatch(anyString(), anyInt(), any(String[].class),
+                any(String[].class));
+    }
+
+    public void testFlush_sendFails_keepsPointsForNextFlush() throws Exception {
+        mSender.add("{\"m\":1}", "{\"d\":1}");
+        when(fakeReceiver.sendStreamBatch(anyString(), anyInt(), any(String[].class),
+                any(String[].class))).thenThrow(new RemoteException()).thenReturn(1);
+
+        try {
+            mSender.flush();
+            fail("The send error should be thrown");
+        } catch (RemoteException e) {
+            // expected
+        }
+        mSender.flush();
+
+        verify(fakeReceiver, times(2)).sendStreamBatch("stream", 1, new String[]{"{\"m\":1}"},
+                new String[]{"{\"d\":1}"});
+    }
+
+    public void testAdd_overLimit_sendsBatchesUnderLimit() throws Exception {
+        String data = repeat('x', 10000);
+        int perPoint = StreamBatchSender.parcelSize(data) + StreamBatchSender.parcelSize(null);
+        int points = StreamBatchSender.MAX_BATCH_BYTES / perPoint * 3;
+        for (int i = 0; i < points; i++)
+            mSender.add(null, data);
+        mSender.flush();
+
+        ArgumentCaptor<String[]> captor = ArgumentCaptor.forClass(String[].class);
+        verify(fakeReceiver, times(3)).sendStreamBatch(eq("stream"), eq(1), any(String[].class),
+                captor.capture());
+        List<String[]> batches = captor.getAllValues();
+        for (String[] batch : batches) {
+            assertTrue(batch.length * perPoint <= StreamBatchSender.MAX_BATCH_BYTES);
+        }
+    }
+
+    public void testParcelSize_string_countsLengthAndPaddedCharacters() {
+        assertEquals(4, StreamBatchSender.parcelSize(null));
+        assertEquals(8, StreamBatchSender.parcelSize(""));
+        assertEquals(12, StreamBatchSender.parcelSize("abc"));
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
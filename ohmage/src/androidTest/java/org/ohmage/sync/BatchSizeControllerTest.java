@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.sync;
+
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+
+import org.ohmage.models.Stream;
+
+import static org.mockito.Matchers.anyFloat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the batch size controller
+ */
+public class BatchSizeControllerTest extends AndroidTestCase {
+
+    private static final long SIZE = 1024 * 256;
+
+    private static final int NUM = 200;
+
+    private BatchSizeController mController;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        mController = new BatchSizeController("stream:1", SIZE, NUM, 0, 0);
+    }
+
+    public void testOnSuccess_fastBatch_increasesLimits() {
+        mController.onSuccess(SIZE, 500);
+
+        assertEquals(SIZE + BatchSizeController.SIZE_STEP_BYTES, mController.getSize());
+        assertEquals(NUM + BatchSizeController.COUNT_STEP, mController.getNum());
+    }
+
+    public void testOnSuccess_slowBatch_halvesLimits() {
+        mController.onSuccess(SIZE, BatchSizeController.TARGET_LATENCY_MS + 1);
+
+        assertEquals(SIZE / 2, mController.getSize());
+        assertEquals(NUM / 2, mController.getNum());
+    }
+
+    public void testOnSuccess_throughputDropped_keepsLimits() {
+        mController.onSuccess(SIZE, 500);
+        long size = mController.getSize();
+        int num = mController.getNum();
+
+        mController.onSuccess(SIZE, 5000);
+
+        assertEquals(size, mController.getSize());
+        assertEquals(num, mController.getNum());
+    }
+
+    public void testOnFailure_halvesLimits() {
+        mController.onFailure();
+
+        assertEquals(SIZE / 2, mController.getSize());
+        assertEquals(NUM / 2, mController.getNum());
+    }
+
+    public void testOnSuccess_afterFailures_keepsLimitsUntilErrorRateRecovers() {
+        mController.onFailure();
+        mController.onFailure();
+        long size = mController.getSize();
+
+        mController.onSuccess(SIZE / 2, 500);
+
+        assertEquals(size, mController.getSize());
+    }
+
+    public void testOnFailure_manyFailures_staysAboveMinimum() {
+        for (int i = 0; i < 100; i++)
+            mController.onFailure();
+
+        assertEquals(BatchSizeController.MIN_SIZE_BYTES, mController.getSize());
+        assertEquals(BatchSizeController.MIN_COUNT, mController.getNum());
+    }
+
+    public void testOnSuccess_manyFastBatches_staysBelowMaximum() {
+        for (int i = 0; i < 1000; i++)
+            mController.onSuccess(mController.getSize(), 1);
+
+        assertEquals(BatchSizeController.MAX_SIZE_BYTES, mController.getSize());
+        assertEquals(BatchSizeController.MAX_COUNT, mController.getNum());
+    }
+
+    public void testApply_setsWriterLimits() {
+        StreamWriterOutput fakeWriter = mock(StreamWriterOutput.class);
+
+        mController.apply(fakeWriter);
+
+        verify(fakeWriter).setBatchLimits(SIZE, NUM);
+    }
+
+    public void testLoad_nothingSaved_usesWriterDefaults() {
+        SharedPreferences fakePreferences = mock(SharedPreferences.class);
+        when(fakePreferences.getLong("stream:1:size", StreamWriterOutput.BATCH_MAX_SIZE_BYTES))
+                .thenReturn(StreamWriterOutput.BATCH_MAX_SIZE_BYTES);
+        when(fakePreferences.getInt("stream:1:num", StreamWriterOutput.BATCH_MAX_COUNT))
+                .thenReturn(StreamWriterOutput.BATCH_MAX_COUNT);
+
+        BatchSizeController controller = BatchSizeController.load(fakePreferences,
+                new Stream("stream", 1));
+
+        assertEquals(StreamWriterOutput.BATCH_MAX_SIZE_BYTES, controller.getSize());
+        assertEquals(StreamWriterOutput.BATCH_MAX_COUNT, controller.getNum());
+    }
+
+    public void testSave_savesLimitsForStream() {
+        SharedPreferences fakePreferences = mock(SharedPreferences.class);
+        SharedPreferences.Editor fakeEditor = mock(SharedPreferences.Editor.class);
+        when(fakePreferences.edit()).thenReturn(fakeEditor);
+        when(fakeEditor.putLong(anyString(), anyLong())).thenReturn(fakeEditor);
+        when(fakeEditor.putInt(anyString(), anyInt())).thenReturn(fakeEditor);
+        when(fakeEditor.putFloat(anyString(), anyFloat())).thenReturn(fakeEditor);
+
+        mController.save(fakePreferences);
+
+        verify(fakeEditor).putLong("stream:1:size", SIZE);
+        verify(fakeEditor).putInt("stream:1:num", NUM);
+        verify(fakeEditor).apply();
+    }
+}
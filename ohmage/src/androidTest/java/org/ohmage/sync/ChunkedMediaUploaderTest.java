@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import com.squareup.okhttp.mockwebserver.SocketPolicy;
+
+import org.ohmage.app.OhmageService;
+import org.ohmage.sync.ResponseTypedOutput.ResponseFiles;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import retrofit.RestAdapter;
+
+/**
+ * Uploads a media file to a local server which drops connections, and checks that the upload
+ * resumes from the last chunk the server confirmed.
+ */
+public class ChunkedMediaUploaderTest extends AndroidTestCase {
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private static final int FILE_SIZE = 40 * CHUNK_SIZE + 1000;
+
+    private static final String MEDIA_ID = "media";
+
+    private static final long RETRY_DELAY_MS = 1;
+
+    private SharedPreferences mPrefs;
+
+    private MockWebServer mServer;
+
+    private ResumableServer mResumableServer;
+
+    private OhmageService mService;
+
+    private ChunkedMediaUploader mUploader;
+
+    private File mFile;
+
+    private byte[] mBytes;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        mPrefs = getContext().getSharedPreferences("test_" + ChunkedMediaUploader.PREFERENCES_NAME,
+                Context.MODE_PRIVATE);
+        mPrefs.edit().clear().commit();
+
+        mResumableServer = new ResumableServer();
+        mServer = new MockWebServer();
+        mServer.setDispatcher(mResumableServer);
+        mServer.play();
+
+        mService = new RestAdapter.Builder()
+                .setServer(mServer.getUrl("/").toString())
+                .build().create(OhmageService.class);
+        mUploader = newUploader();
+
+        mBytes = new byte[FILE_SIZE];
+        new Random(7).nextBytes(mBytes);
+        mFile = File.createTempFile(MEDIA_ID, ".mp4", getContext().getCacheDir());
+        FileOutputStream out = new FileOutputStream(mFile);
+        out.write(mBytes);
+        out.close();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+        mFile.delete();
+        mPrefs.edit().clear().commit();
+        super.tearDown();
+    }
+
+    public void testUpload_reliableServer_sendsEachChunkOnce() throws Exception {
+        mUploader.upload(MEDIA_ID, mFile);
+
+        assertTrue(Arrays.equals(mBytes, mResumableServer.received.toByteArray()));
+        assertEquals(41, mResumableServer.starts.size());
+        assertEquals(FILE_SIZE, mResumableServer.bytesSent);
+        assertEquals(FILE_SIZE, mUploader.getOffset(MEDIA_ID));
+    }
+
+    public void testUpload_droppedConnections_serverGetsWholeFile() throws Exception {
+        mResumableServer.dropRate = 0.3f;
+
+        // Each failed call stands in for a sync which gave up on the file
+        int syncs = 0;
+        while (true) {
+            syncs++;
+            try {
+                newUploader().upload(MEDIA_ID, mFile);
+                break;
+            } catch (IOException e) {
+                assertTrue(syncs < 100);
+            }
+        }
+
+        assertTrue(Arrays.equals(mBytes, mResumableServer.received.toByteArray()));
+        assertTrue(mResumableServer.drops > 0);
+        // Only the chunks which were dropped are sent again
+        assertTrue(mResumableServer.bytesSent
+                   <= FILE_SIZE + (long) mResumableServer.drops * CHUNK_SIZE);
+    }
+
+    public void testUpload_afterFailedSync_resumesFromConfirmedOffset() throws Exception {
+        mResumableServer.downAfter = 10;
+        try {
+            mUploader.upload(MEDIA_ID, mFile);
+            fail("The server went down so the upload should fail");
+        } catch (IOException e) {
+            // The sync gives up on the file
+        }
+        assertEquals(10 * CHUNK_SIZE, mUploader.getOffset(MEDIA_ID));
+
+        mResumableServer.downAfter = Integer.MAX_VALUE;
+        mResumableServer.starts.clear();
+        newUploader().upload(MEDIA_ID, mFile);
+
+        assertEquals(10L * CHUNK_SIZE, mResumableServer.starts.get(0).longValue());
+        assertTrue(Arrays.equals(mBytes, mResumableServer.received.toByteArray()));
+    }
+
+    public void testUpload_serverDown_waitsLongerBeforeEachRetry() throws Exception {
+        mResumableServer.downAfter = 0;
+        ChunkedMediaUploader uploader = new ChunkedMediaUploader(mService, mPrefs, CHUNK_SIZE, 100);
+
+        long start = System.currentTimeMillis();
+        try {
+            uploader.upload(MEDIA_ID, mFile);
+            fail("The server is down so the upload should fail");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // The retries wait 100ms and then 200ms
+        assertTrue(System.currentTimeMillis() - start >= 300);
+        assertEquals(ChunkedMediaUploader.MAX_ATTEMPTS, mResumableServer.starts.size());
+    }
+
+    public void testUpload_alreadyConfirmed_sendsNothing() throws Exception {
+        mUploader.upload(MEDIA_ID, mFile);
+        mResumableServer.starts.clear();
+
+        mUploader.upload(MEDIA_ID, mFile);
+
+        assertTrue(mResumableServer.starts.isEmpty());
+    }
+
+    public void testForget_removesConfirmedOffsets() throws Exception {
+        mUploader.upload(MEDIA_ID, mFile);
+        ResponseFiles files = new ResponseFiles();
+        files.put(MEDIA_ID, mFile.getAbsolutePath());
+
+        mUploader.forget(files);
+
+        assertEquals(0, mUploader.getOffset(MEDIA_ID));
+    }
+
+    private ChunkedMediaUploader newUploader() {
+        return new ChunkedMediaUploader(mService, mPrefs, CHUNK_SIZE, RETRY_DELAY_MS);
+    }
+
+    /**
+     * Stands in for a server which stores chunks of a single file. Dropped connections are
+     * simulated by cutting the reply short, sometimes after keeping only part of the chunk.
+     */
+    private static class ResumableServer extends Dispatcher {
+
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+        final List<Long> starts = new ArrayList<Long>();
+
+        final Random random = new Random(42);
+
+        float dropRate;
+
+        int downAfter = Integer.MAX_VALUE;
+
+        long bytesSent;
+
+        int drops;
+
+        @Override public synchronized MockResponse dispatch(RecordedRequest request) {
+            String range = request.getHeader("Content-Range");
+            long start = Long.parseLong(range.substring("bytes ".length(), range.indexOf('-')));
+            long total = Long.parseLong(range.substring(range.indexOf('/') + 1));
+            byte[] chunk = request.getBody();
+            starts.add(start);
+            bytesSent += chunk.length;
+
+            if (starts.size() > downAfter)
+                return dropped();
+
+            boolean drop = random.nextFloat() < dropRate;
+            if (drop && random.nextBoolean())
+                chunk = Arrays.copyOf(chunk, random.nextInt(chunk.length));
+
+            // Bytes the server already has are ignored, and chunks after a gap are refused
+            long confirmed = received.size();
+            if (start <= confirmed && start + chunk.length > confirmed) {
+                int skip = (int) (confirmed - start);
+                received.write(chunk, skip, chunk.length - skip);
+            }
+
+            if (drop)
+                return dropped();
+            if (received.size() == total)
+                return new MockResponse().setResponseCode(201);
+
+            MockResponse response = new MockResponse()
+                    .setResponseCode(ChunkedMediaUploader.RESUME_INCOMPLETE);
+            if (received.size() > 0)
+                response.setHeader("Range", "bytes=0-" + (received.size() - 1));
+            return response;
+        }
+
+        private MockResponse dropped() {
+            drops++;
+            return new MockResponse().setResponseCode(ChunkedMediaUploader.RESUME_INCOMPLETE)
+                    .setBody("x").setHeader("Content-Length", 1024)
+                    .setSocketPolicy(SocketPolicy.DISCONNECT_AT_END);
+        }
+    }
+}
@@ -22,7 +22,14 @@ import android.database.MatrixCursor;
 import android.net.Uri;
 import android.test.AndroidTestCase;
 
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -104,4 +111,36 @@ public class DeletingCursorTest extends AndroidTestCase {
 
         assertFalse(mDeletingCursorWithPoints.hasDeletedPoints());
     }
-}
\ No newline at end of file
+
+    public void testDeleteMarked_markedPoints_appliesDeletesAsOneBatch() throws Exception {
+        while (mDeletingCursorWithPoints.moveToNext()) ;
+
+        int count = mDeletingCursorWithPoints.deleteMarked(fakeContentProvider, Uri.EMPTY);
+
+        assertEquals(10, count);
+        verify(fakeContentProvider).applyBatch(any(ArrayList.class));
+        verify(fakeContentProvider, never()).delete(any(Uri.class), anyString(),
+                any(String[].class));
+    }
+
+    public void testDeleteMarked_moreIdsThanSqlVariables_splitsIntoMultipleOperations()
+            throws Exception {
+        MatrixCursor cursor = new MatrixCursor(new String[]{"id"});
+        for (int i = 0; i < 1500; i++)
+            cursor.addRow(new Object[]{(long) i});
+        DeletingCursor deletingCursor = new DeletingCursor(cursor);
+        while (deletingCursor.moveToNext()) ;
+        ArgumentCaptor<ArrayList> operations = ArgumentCaptor.forClass(ArrayList.class);
+
+        deletingCursor.deleteMarked(fakeContentProvider, Uri.EMPTY);
+
+        verify(fakeContentProvider).applyBatch(operations.capture());
+        assertEquals(2, operations.getValue().size());
+    }
+
+    public void testDeleteMarked_noMarkedPoints_doesNotApplyBatch() throws Exception {
+        mDeletingCursorWithPoints.deleteMarked(fakeContentProvider, Uri.EMPTY);
+
+        verify(fakeContentProvider, never()).applyBatch(any(ArrayList.class));
+    }
+}
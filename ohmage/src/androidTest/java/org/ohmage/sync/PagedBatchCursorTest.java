@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.sync;
+
+import android.content.ContentProviderClient;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.test.AndroidTestCase;
+
+import org.ohmage.provider.StreamContentProvider;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the paged batch cursor
+ */
+public class PagedBatchCursorTest extends AndroidTestCase {
+
+    private static final String[] PROJECTION = new String[]{BaseColumns._ID, "data"};
+
+    private static final String SELECTION = "stream_id=?";
+
+    private static final String[] SELECTION_ARGS = new String[]{"stream"};
+
+    private ContentProviderClient fakeContentProvider;
+
+    private PagedBatchCursor mPagedCursor;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        fakeContentProvider = mock(ContentProviderClient.class);
+        when(fakeContentProvider.query(any(Uri.class), any(String[].class), anyString(),
+                any(String[].class), anyString())).thenReturn(page(1, 3), page(4, 2),
+                page(0, 0));
+
+        mPagedCursor = new PagedBatchCursor(fakeContentProvider, Uri.EMPTY, PROJECTION,
+                SELECTION, SELECTION_ARGS, 3);
+    }
+
+    public void testConstructor_queriesFirstPageAfterNothingAcked() throws Exception {
+        verify(fakeContentProvider).query(any(Uri.class), eq(PROJECTION),
+                eq("(" + SELECTION + ") AND " + BaseColumns._ID + ">?"),
+                eq(new String[]{"stream", "-1"}), eq(BaseColumns._ID));
+    }
+
+    public void testMoveToNext_readsOnlyTheCurrentPage() {
+        int count = 0;
+        while (mPagedCursor.moveToNext())
+            count++;
+
+        assertEquals(3, count);
+        assertTrue(mPagedCursor.isAfterLast());
+    }
+
+    public void testHasPointsToDelete_beforeMoving_returnsFalse() {
+        assertFalse(mPagedCursor.hasPointsToDelete());
+    }
+
+    public void testHasPointsToDelete_afterMoving_returnsTrue() {
+        mPagedCursor.moveToNext();
+
+        assertTrue(mPagedCursor.hasPointsToDelete());
+    }
+
+    public void testDeleteMarked_deletesRangeUpToLastReadPoint() throws Exception {
+        mPagedCursor.moveToNext();
+        mPagedCursor.moveToNext();
+
+        int count = mPagedCursor.deleteMarked(fakeContentProvider, Uri.EMPTY);
+
+        assertEquals(2, count);
+        verify(fakeContentProvider).delete(StreamContentProvider.buildRangeUri(Uri.EMPTY, 0, 2),
+                SELECTION, SELECTION_ARGS);
+    }
+
+    public void testDeleteMarked_queriesNextPageAfterLastAckedPoint() throws Exception {
+        mPagedCursor.moveToNext();
+        mPagedCursor.moveToNext();
+        mPagedCursor.moveToNext();
+
+        mPagedCursor.deleteMarked(fakeContentProvider, Uri.EMPTY);
+
+        verify(fakeContentProvider).query(any(Uri.class), eq(PROJECTION), anyString(),
+                eq(new String[]{"stream", "3"}), eq(BaseColumns._ID));
+        assertTrue(mPagedCursor.moveToNext());
+        assertEquals("4", mPagedCursor.getString(0));
+    }
+
+    public void testDeleteMarked_nothingMarked_doesNotDelete() throws Exception {
+        int count = mPagedCursor.deleteMarked(fakeContentProvider, Uri.EMPTY);
+
+        assertEquals(0, count);
+        verify(fakeContentProvider, never()).delete(any(Uri.class), anyString(),
+                any(String[].class));
+    }
+
+    public void testRestart_afterMoving_startsPageAgain() {
+        mPagedCursor.moveToNext();
+        mPagedCursor.moveToNext();
+
+        assertTrue(mPagedCursor.restart());
+
+        assertFalse(mPagedCursor.hasPointsToDelete());
+        assertTrue(mPagedCursor.moveToNext());
+        assertEquals("1", mPagedCursor.getString(0));
+    }
+
+    public void testIsAfterLast_allPagesDeleted_returnsTrue() throws Exception {
+        while (mPagedCursor.moveToNext()) ;
+        mPagedCursor.deleteMarked(fakeContentProvider, Uri.EMPTY);
+        while (mPagedCursor.moveToNext()) ;
+        mPagedCursor.deleteMarked(fakeContentProvider, Uri.EMPTY);
+
+        assertTrue(mPagedCursor.isAfterLast());
+        verify(fakeContentProvider, times(3)).query(any(Uri.class), any(String[].class),
+                anyString(), any(String[].class), anyString());
+    }
+
+    private MatrixCursor page(int start, int count) {
+        MatrixCursor cursor = new MatrixCursor(PROJECTION);
+        for (int i = start; i < start + count; i++)
+            cursor.addRow(new Object[]{(long) i, "{}"});
+        return cursor;
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.sync;
+
+import android.content.ContentProviderClient;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.provider.BaseColumns;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.ohmage.app.OhmageService;
+import org.ohmage.provider.OhmageDbHelper;
+import org.ohmage.provider.OhmageDbHelper.Tables;
+import org.ohmage.provider.ResponseContract.Responses;
+import org.ohmage.sync.ResponseTypedOutput.ResponseFiles;
+import org.ohmage.test.dagger.InjectedAndroidTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.inject.Inject;
+
+import retrofit.RestAdapter;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Uploads responses with and without media to a local server, and checks that only the responses
+ * without media are packed into batches.
+ */
+public class ResponseBatchUploadTest extends InjectedAndroidTestCase {
+
+    @Inject OhmageService fakeOhmageService;
+
+    @Inject Gson fakeGson;
+
+    private final Gson mGson = new Gson();
+
+    private SQLiteDatabase db;
+
+    private ContentProviderClient fakeContentProviderClient;
+
+    private SyncResult fakeSyncResult;
+
+    private MockWebServer mServer;
+
+    private DataPointServer mDataPointServer;
+
+    private ResponseSyncAdapter mSyncAdapter;
+
+    private final List<File> mMedia = new ArrayList<File>();
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        db = SQLiteDatabase.create(null);
+        new OhmageDbHelper(getContext()).onCreate(db);
+
+        fakeContentProviderClient = mock(ContentProviderClient.class);
+        when(fakeContentProviderClient.query(any(Uri.class), any(String[].class), anyString(),
+                any(String[].class), anyString())).then(new Answer<Object>() {
+            @Override public Object answer(InvocationOnMock invocation) throws Throwable {
+                Object[] args = invocation.getArguments();
+                return db.query(Tables.Responses, (String[]) args[1], (String) args[2],
+                        (String[]) args[3], null, null, (String) args[4],
+                        ((Uri) args[0]).getQueryParameter(Responses.QUERY_PARAMETER_LIMIT));
+            }
+        });
+        when(fakeContentProviderClient.delete(any(Uri.class), anyString(), any(String[].class)))
+                .then(new Answer<Object>() {
+                    @Override public Object answer(InvocationOnMock invocation) throws Throwable {
+                        long id = ContentUris.parseId((Uri) invocation.getArguments()[0]);
+                        return db.delete(Tables.Responses, BaseColumns._ID + "=" + id, null);
+                    }
+                });
+
+        when(fakeGson.fromJson(anyString(), eq(ResponseFiles.class))).then(new Answer<Object>() {
+            @Override public Object answer(InvocationOnMock invocation) throws Throwable {
+                return mGson.fromJson((String) invocation.getArguments()[0], ResponseFiles.class);
+            }
+        });
+        when(fakeGson.toJson(any())).then(new Answer<Object>() {
+            @Override public Object answer(InvocationOnMock invocation) throws Throwable {
+                return mGson.toJson(invocation.getArguments()[0]);
+            }
+        });
+
+        mDataPointServer = new DataPointServer();
+        mServer = new MockWebServer();
+        mServer.setDispatcher(mDataPointServer);
+        mServer.play();
+
+        final OhmageService service = new RestAdapter.Builder()
+                .setServer(mServer.getUrl("/").toString())
+                .build().create(OhmageService.class);
+        when(fakeOhmageService.uploadDataPoint(any(DataPointTypedOutput.class)))
+                .then(new Answer<Object>() {
+                    @Override public Object answer(InvocationOnMock invocation) throws Throwable {
+                        return service.uploadDataPoint(
+                                (DataPointTypedOutput) invocation.getArguments()[0]);
+                    }
+                });
+        when(fakeOhmageService.uploadDataPoints(any(DataPointBatchTypedOutput.class)))
+                .then(new Answer<Object>() {
+                    @Override public Object answer(InvocationOnMock invocation) throws Throwable {
+                        return service.uploadDataPoints(
+                                (DataPointBatchTypedOutput) invocation.getArguments()[0]);
+                    }
+                });
+
+        fakeSyncResult = new SyncResult();
+        mSyncAdapter = new ResponseSyncAdapter(getContext(), false, false);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+        db.close();
+        for (File file : mMedia)
+            file.delete();
+        super.tearDown();
+    }
+
+    public void testPerformSync_mixedResponses_batchesOnlyResponsesWithoutMedia()
+            throws Exception {
+        insertResponses(10, 3);
+        mSyncAdapter.setBatchSize(4);
+
+        mSyncAdapter.performSync(fakeContentProviderClient, fakeSyncResult);
+
+        assertEquals(3, mDataPointServer.batches);
+        assertEquals(10, mDataPointServer.batched.size());
+        assertEquals(3, mDataPointServer.single.size());
+        for (int i = 0; i < 3; i++)
+            assertTrue(mDataPointServer.single.contains("media" + i));
+        assertEquals(13, fakeSyncResult.stats.numEntries);
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, Tables.Responses));
+        for (File file : mMedia)
+            assertFalse(file.exists());
+    }
+
+    public void testPerformSync_batchSizeOfOne_uploadsEachResponseOnItsOwn() throws Exception {
+        insertResponses(5, 1);
+        mSyncAdapter.setBatchSize(1);
+
+        mSyncAdapter.performSync(fakeContentProviderClient, fakeSyncResult);
+
+        assertEquals(0, mDataPointServer.batches);
+        assertEquals(6, mDataPointServer.single.size());
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, Tables.Responses));
+    }
+
+    public void testPerformSync_rejectedDataPoint_keepsOnlyThatResponse() throws Exception {
+        insertResponses(6, 0);
+        mSyncAdapter.setBatchSize(10);
+        mDataPointServer.rejected.add("point3");
+
+        mSyncAdapter.performSync(fakeContentProviderClient, fakeSyncResult);
+
+        assertEquals(1, mDataPointServer.batches);
+        assertEquals(5, fakeSyncResult.stats.numEntries);
+        assertEquals(1, fakeSyncResult.stats.numSkippedEntries);
+        Cursor cursor = db.query(Tables.Responses, new String[]{Responses.RESPONSE_METADATA},
+                null, null, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.getString(0).contains("point3"));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testPerformSync_alreadyUploadedDataPoint_deletesResponse() throws Exception {
+        insertResponses(3, 0);
+        mSyncAdapter.setBatchSize(10);
+        mDataPointServer.conflicts.add("point1");
+
+        mSyncAdapter.performSync(fakeContentProviderClient, fakeSyncResult);
+
+        assertEquals(3, fakeSyncResult.stats.numEntries);
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, Tables.Responses));
+    }
+
+    /**
+     * Inserts the responses without media first, then the responses with a media file each
+     */
+    private void insertResponses(int points, int media) throws Exception {
+        ContentValues values = new ContentValues();
+        values.put(Responses.SURVEY_ID, "survey");
+        values.put(Responses.SURVEY_VERSION, 1);
+        values.put(Responses.RESPONSE_DATA, "{\"prompt\":1}");
+
+        for (int i = 0; i < points + media; i++) {
+            String id;
+            ResponseFiles files = new ResponseFiles();
+            if (i < points) {
+                id = "point" + i;
+            } else {
+                id = "media" + (i - points);
+                File file = File.createTempFile(id, ".jpg", getContext().getCacheDir());
+                FileOutputStream out = new FileOutputStream(file);
+                out.write(new byte[1024]);
+                out.close();
+                mMedia.add(file);
+                files.put(id, file.getAbsolutePath());
+            }
+            values.put(Responses.RESPONSE_METADATA, "{\"id\":\"" + id + "\",\"timestamp\":"
+                                                    + "\"2014-05-02T10:15:30.123-07:00\"}");
+            values.put(Responses.RESPONSE_EXTRAS, mGson.toJson(files));
+            db.insert(Tables.Responses, null, values);
+        }
+    }
+
+    /**
+     * Accepts single data points and batches, and keeps track of which data points came in each
+     * way. Data points in a batch with ids in {@link #rejected} fail, and ids in {@link #conflicts}
+     * are reported as already uploaded.
+     */
+    private static class DataPointServer extends Dispatcher {
+
+        private static final Pattern ID = Pattern.compile("\"id\":\"(\\w+)\"");
+
+        final Set<String> single = new HashSet<String>();
+
+        final Set<String> batched = new HashSet<String>();
+
+        final Set<String> rejected = new HashSet<String>();
+
+        final Set<String> conflicts = new HashSet<String>();
+
+        int batches;
+
+        @Override public synchronized MockResponse dispatch(RecordedRequest request) {
+            String body = new String(request.getBody(), Charset.forName("UTF-8"));
+            if ("/dataPoints/batch".equals(request.getPath())) {
+                batches++;
+                JsonArray results = new JsonArray();
+                for (JsonElement point : new JsonParser().parse(body).getAsJsonArray()) {
+                    String id = point.getAsJsonObject().getAsJsonObject("header").get("id")
+                            .getAsString();
+                    batched.add(id);
+                    JsonObject result = new JsonObject();
+                    result.addProperty("id", id);
+                    result.addProperty("status", rejected.contains(id) ? 400
+                            : conflicts.contains(id) ? 409 : 201);
+                    results.add(result);
+                }
+                return new MockResponse().setResponseCode(200).setBody(results.toString());
+            }
+
+            // The multipart body has the data point json in its data part
+            Matcher id = ID.matcher(body);
+            if (id.find())
+                single.add(id.group(1));
+            return new MockResponse().setResponseCode(201);
+        }
+    }
+}
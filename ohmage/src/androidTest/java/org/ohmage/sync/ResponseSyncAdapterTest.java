@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.sync;
+
+import android.content.ContentProviderClient;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.SyncResult;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
+
+import com.google.gson.Gson;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.ohmage.app.OhmageService;
+import org.ohmage.models.OmhDataPointHeader;
+import org.ohmage.provider.OhmageDbHelper;
+import org.ohmage.provider.OhmageDbHelper.Tables;
+import org.ohmage.provider.ResponseContract.Responses;
+import org.ohmage.sync.ResponseTypedOutput.ResponseFiles;
+import org.ohmage.test.dagger.InjectedAndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+
+import retrofit.client.Header;
+import retrofit.client.Response;
+import rx.Observable;
+import rx.schedulers.Schedulers;
+import rx.util.functions.Func1;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests uploading responses a window at a time from an in memory database
+ */
+public class ResponseSyncAdapterTest extends InjectedAndroidTestCase {
+
+    @Inject OhmageService fakeOhmageService;
+
+    @Inject Gson fakeGson;
+
+    private SQLiteDatabase db;
+
+    private ContentProviderClient fakeContentProviderClient;
+
+    private SyncResult fakeSyncResult;
+
+    private ResponseSyncAdapter mSyncAdapter;
+
+    private final List<Long> mDeleted = Collections.synchronizedList(new ArrayList<Long>());
+
+    private final List<Thread> mDeleteThreads =
+            Collections.synchronizedList(new ArrayList<Thread>());
+
+    private final AtomicInteger mInFlight = new AtomicInteger();
+
+    private final AtomicInteger mMaxInFlight = new AtomicInteger();
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        db = SQLiteDatabase.create(null);
+        new OhmageDbHelper(getContext()).onCreate(db);
+
+        fakeContentProviderClient = mock(ContentProviderClient.class);
+        when(fakeContentProviderClient.query(any(Uri.class), any(String[].class), anyString(),
+                any(String[].class), anyString())).then(new Answer<Object>() {
+            @Override public Object answer(InvocationOnMock invocation) throws Throwable {
+                Object[] args = invocation.getArguments();
+                return db.query(Tables.Responses, (String[]) args[1], (String) args[2],
+                        (String[]) args[3], null, null, (String) args[4],
+                        ((Uri) args[0]).getQueryParameter(Responses.QUERY_PARAMETER_LIMIT));
+            }
+        });
+        when(fakeContentProviderClient.delete(any(Uri.class), anyString(), any(String[].class)))
+                .then(new Answer<Object>() {
+                    @Override public Object answer(InvocationOnMock invocation) throws Throwable {
+                        long id = ContentUris.parseId((Uri) invocation.getArguments()[0]);
+                        mDeleted.add(id);
+                        mDeleteThreads.add(Thread.currentThread());
+                        return db.delete(Tables.Responses, BaseColumns._ID + "=" + id, null);
+                    }
+                });
+
+        when(fakeGson.fromJson(anyString(), eq(ResponseFiles.class)))
+                .thenReturn(new ResponseFiles());
+        when(fakeGson.toJson(any())).thenReturn("{}");
+
+        fakeSyncResult = new SyncResult();
+        mSyncAdapter = new ResponseSyncAdapter(getContext(), false, false);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        db.close();
+        super.tearDown();
+    }
+
+    public void testPerformSync_severalPages_uploadsAndDeletesEveryResponse() throws Exception {
+        int responses = ResponseSyncAdapter.PAGE_SIZE * 2 + 10;
+        insertResponses(responses);
+        whenUploaded(0);
+
+        mSyncAdapter.performSync(fakeContentProviderClient, fakeSyncResult);
+
+        assertEquals(responses, fakeSyncResult.stats.numEntries);
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, Tables.Responses));
+    }
+
+    public void testPerformSync_windowOfOne_acknowledgesInCursorOrder() throws Exception {
+        insertResponses(20);
+        whenUploaded(1);
+        mSyncAdapter.setWindow(1);
+
+        mSyncAdapter.performSync(fakeContentProviderClient, fakeSyncResult);
+
+        assertEquals(20, mDeleted.size());
+        for (int i = 0; i < mDeleted.size(); i++)
+            assertEquals(i + 1, mDeleted.get(i).longValue());
+    }
+
+    public void testPerformSync_slowUploads_keepsWindowInFlight() throws Exception {
+        insertResponses(40);
+        whenUploaded(20);
+        mSyncAdapter.setWindow(3);
+
+        mSyncAdapter.performSync(fakeContentProviderClient, fakeSyncResult);
+
+        assertEquals(3, mMaxInFlight.get());
+        assertEquals(40, fakeSyncResult.stats.numEntries);
+    }
+
+    public void testPerformSync_uploadsFinishOnOtherThreads_deletesOnSyncThread()
+            throws Exception {
+        insertResponses(10);
+        whenUploaded(5);
+        mSyncAdapter.setWindow(3);
+
+        mSyncAdapter.performSync(fakeContentProviderClient, fakeSyncResult);
+
+        assertEquals(10, mDeleteThreads.size());
+        for (Thread thread : mDeleteThreads)
+            assertSame(Thread.currentThread(), thread);
+    }
+
+    public void testPerformSync_failedUploads_keepsResponses() throws Exception {
+        insertResponses(5);
+        when(fakeOhmageService.uploadDataPoint(any(DataPointTypedOutput.class)))
+                .thenReturn(Observable.<Response>error(new RuntimeException("failed")));
+
+        mSyncAdapter.performSync(fakeContentProviderClient, fakeSyncResult);
+
+        assertEquals(5, fakeSyncResult.stats.numIoExceptions);
+        assertEquals(5, DatabaseUtils.queryNumEntries(db, Tables.Responses));
+    }
+
+    public void testPerformSync_headerColumns_buildsHeaderFromColumns() throws Exception {
+        ContentValues values = new ContentValues();
+        values.put(Responses.SURVEY_ID, "survey");
+        values.put(Responses.SURVEY_VERSION, 1);
+        values.put(Responses.RESPONSE_DATA, "{\"prompt\":1}");
+        values.put(Responses.RESPONSE_EXTRAS, "{}");
+        // The metadata can't be parsed, so the header can only come from the columns
+        values.put(Responses.RESPONSE_METADATA, "not json");
+        values.put(Responses.RESPONSE_ID, "id");
+        values.put(Responses.RESPONSE_TIMESTAMP, "2014-05-02T10:15:30.123-07:00");
+        db.insert(Tables.Responses, null, values);
+        whenUploaded(0);
+
+        mSyncAdapter.performSync(fakeContentProviderClient, fakeSyncResult);
+
+        ArgumentCaptor<Object> header = ArgumentCaptor.forClass(Object.class);
+        verify(fakeGson).toJson(header.capture());
+        assertEquals("id", ((OmhDataPointHeader) header.getValue()).id);
+        assertEquals("2014-05-02T10:15:30.123-07:00",
+                ((OmhDataPointHeader) header.getValue()).creationDateTime);
+        assertEquals(1, fakeSyncResult.stats.numEntries);
+    }
+
+    public void testPerformSync_noHeaderColumns_buildsHeaderFromMetadata() throws Exception {
+        insertResponses(1);
+        whenUploaded(0);
+
+        mSyncAdapter.performSync(fakeContentProviderClient, fakeSyncResult);
+
+        ArgumentCaptor<Object> header = ArgumentCaptor.forClass(Object.class);
+        verify(fakeGson).toJson(header.capture());
+        assertEquals("0", ((OmhDataPointHeader) header.getValue()).id);
+        assertEquals(1, fakeSyncResult.stats.numEntries);
+    }
+
+    private void insertResponses(int count) {
+        ContentValues values = new ContentValues();
+        values.put(Responses.SURVEY_ID, "survey");
+        values.put(Responses.SURVEY_VERSION, 1);
+        values.put(Responses.RESPONSE_DATA, "{\"prompt\":1}");
+        values.put(Responses.RESPONSE_EXTRAS, "{}");
+
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                values.put(Responses.RESPONSE_METADATA, "{\"id\":\"" + i + "\",\"timestamp\":"
+                                                        + "\"2014-05-02T10:15:30.123-07:00\"}");
+                db.insert(Tables.Responses, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Each upload succeeds after taking {@code ms}, on another thread if it takes any time
+     */
+    private void whenUploaded(final long ms) throws Exception {
+        when(fakeOhmageService.uploadDataPoint(any(DataPointTypedOutput.class)))
+                .then(new Answer<Observable<Response>>() {
+                    @Override public Observable<Response> answer(InvocationOnMock invocation)
+                            throws Throwable {
+                        Observable<Response> upload = Observable.from(
+                                new Response(200, "", new ArrayList<Header>(), null));
+                        if (ms != 0)
+                            upload = upload.subscribeOn(Schedulers.io());
+                        return upload.map(new Func1<Response, Response>() {
+                            @Override public Response call(Response response) {
+                                int inFlight = mInFlight.incrementAndGet();
+                                synchronized (mMaxInFlight) {
+                                    mMaxInFlight.set(Math.max(mMaxInFlight.get(), inFlight));
+                                }
+                                SystemClock.sleep(ms);
+                                mInFlight.decrementAndGet();
+                                return response;
+                            }
+                        });
+                    }
+                });
+    }
+}
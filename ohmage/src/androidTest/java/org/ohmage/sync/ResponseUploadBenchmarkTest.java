@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.sync;
+
+import android.content.ContentProviderClient;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.SyncResult;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.google.gson.Gson;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.ohmage.app.OhmageService;
+import org.ohmage.provider.OhmageDbHelper;
+import org.ohmage.provider.OhmageDbHelper.Tables;
+import org.ohmage.provider.ResponseContract.Responses;
+import org.ohmage.sync.ResponseTypedOutput.ResponseFiles;
+import org.ohmage.test.dagger.InjectedAndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+
+import retrofit.client.Header;
+import retrofit.client.Response;
+import rx.Observable;
+import rx.schedulers.Schedulers;
+import rx.util.functions.Func1;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Uploads a backlog of {@link #RESPONSES} responses, each taking {@link #RTT_MS}, and logs how
+ * long it took, how many uploads were in flight at once and how much the heap grew.
+ */
+@LargeTest
+public class ResponseUploadBenchmarkTest extends InjectedAndroidTestCase {
+
+    private static final String TAG = ResponseUploadBenchmarkTest.class.getSimpleName();
+
+    private static final int RESPONSES = 10000;
+
+    private static final long RTT_MS = 5;
+
+    private static final int WINDOW = 4;
+
+    @Inject OhmageService fakeOhmageService;
+
+    @Inject Gson fakeGson;
+
+    private SQLiteDatabase db;
+
+    private ContentProviderClient fakeContentProviderClient;
+
+    private final AtomicInteger mInFlight = new AtomicInteger();
+
+    private final AtomicInteger mMaxInFlight = new AtomicInteger();
+
+    private final AtomicInteger mDeleted = new AtomicInteger();
+
+    private long mMaxHeap;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        db = SQLiteDatabase.create(null);
+        new OhmageDbHelper(getContext()).onCreate(db);
+
+        fakeContentProviderClient = mock(ContentProviderClient.class);
+        when(fakeContentProviderClient.query(any(Uri.class), any(String[].class), anyString(),
+                any(String[].class), anyString())).then(new Answer<Object>() {
+            @Override public Object answer(InvocationOnMock invocation) throws Throwable {
+                Object[] args = invocation.getArguments();
+                return db.query(Tables.Responses, (String[]) args[1], (String) args[2],
+                        (String[]) args[3], null, null, (String) args[4],
+                        ((Uri) args[0]).getQueryParameter(Responses.QUERY_PARAMETER_LIMIT));
+            }
+        });
+        when(fakeContentProviderClient.delete(any(Uri.class), anyString(), any(String[].class)))
+                .then(new Answer<Object>() {
+                    @Override public Object answer(InvocationOnMock invocation) throws Throwable {
+                        long id = ContentUris.parseId((Uri) invocation.getArguments()[0]);
+                        if (mDeleted.incrementAndGet() % 500 == 0)
+                            sampleHeap();
+                        return db.delete(Tables.Responses, BaseColumns._ID + "=" + id, null);
+                    }
+                });
+
+        when(fakeGson.fromJson(anyString(), eq(ResponseFiles.class)))
+                .thenReturn(new ResponseFiles());
+        when(fakeGson.toJson(any())).thenReturn("{}");
+        when(fakeOhmageService.uploadDataPoint(any(DataPointTypedOutput.class)))
+                .then(new Answer<Observable<Response>>() {
+                    @Override public Observable<Response> answer(InvocationOnMock invocation)
+                            throws Throwable {
+                        return Observable.from(new Response(200, "", new ArrayList<Header>(), null))
+                                .subscribeOn(Schedulers.io())
+                                .map(new Func1<Response, Response>() {
+                                    @Override public Response call(Response response) {
+                                        int inFlight = mInFlight.incrementAndGet();
+                                        synchronized (mMaxInFlight) {
+                                            mMaxInFlight.set(
+                                                    Math.max(mMaxInFlight.get(), inFlight));
+                                        }
+                                        SystemClock.sleep(RTT_MS);
+                                        mInFlight.decrementAndGet();
+                                        return response;
+                                    }
+                                });
+                    }
+                });
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        db.close();
+        super.tearDown();
+    }
+
+    public void testPerformSync_largeBacklog() throws Exception {
+        insertResponses();
+        ResponseSyncAdapter syncAdapter = new ResponseSyncAdapter(getContext(), false, false);
+        syncAdapter.setWindow(WINDOW);
+        SyncResult syncResult = new SyncResult();
+
+        System.gc();
+        long startHeap = usedHeap();
+        long start = SystemClock.elapsedRealtime();
+        syncAdapter.performSync(fakeContentProviderClient, syncResult);
+        long time = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, "Uploading " + RESPONSES + " responses with a window of " + WINDOW + " took "
+                   + time + "ms, at most " + mMaxInFlight.get() + " in flight, heap grew at most "
+                   + ((mMaxHeap - startHeap) / 1024) + "KB");
+        assertEquals(RESPONSES, syncResult.stats.numEntries);
+        assertTrue(mMaxInFlight.get() <= WINDOW);
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, Tables.Responses));
+    }
+
+    private synchronized void sampleHeap() {
+        mMaxHeap = Math.max(mMaxHeap, usedHeap());
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private void insertResponses() {
+        ContentValues values = new ContentValues();
+        values.put(Responses.SURVEY_ID, "survey");
+        values.put(Responses.SURVEY_VERSION, 1);
+        values.put(Responses.RESPONSE_DATA, "{\"mood\":3,\"sleep\":7.5,\"notes\":\"fine\"}");
+        values.put(Responses.RESPONSE_EXTRAS, "{}");
+
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < RESPONSES; i++) {
+                values.put(Responses.RESPONSE_METADATA, "{\"id\":\"" + i + "\",\"timestamp\":"
+                                                        + "\"2014-05-02T10:15:30.123-07:00\"}");
+                values.put(Responses.RESPONSE_ID, String.valueOf(i));
+                values.put(Responses.RESPONSE_TIMESTAMP, "2014-05-02T10:15:30.123-07:00");
+                db.insert(Tables.Responses, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
@@ -20,19 +20,29 @@ import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.content.ContentProviderClient;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.content.SyncResult;
 import android.os.RemoteException;
+import android.os.SystemClock;
 
 import org.apache.http.auth.AuthenticationException;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.ohmage.app.OhmageService;
 import org.ohmage.auth.AuthUtil;
 import org.ohmage.auth.Authenticator;
 import org.ohmage.models.Stream;
 import org.ohmage.models.Streams;
+import org.ohmage.sync.StreamWriterOutput.EncodedBatch;
 import org.ohmage.test.dagger.InjectedAndroidTestCase;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
 
@@ -42,9 +52,15 @@ import retrofit.client.Response;
 import retrofit.converter.ConversionException;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyFloat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -67,6 +83,9 @@ public class StreamSyncAdapterTest extends InjectedAndroidTestCase {
     private static final String fakeUserId = "userId";
     private ContentProviderClient fakeContentProviderClient;
     private SyncResult fakeSyncResult;
+    private String fakeAuthority = "fakeAuthority";
+    private final List<ContentProviderClient> mProviders =
+            Collections.synchronizedList(new ArrayList<ContentProviderClient>());
     private String fakeStreamId = "fakeStreamId";
     private int fakeStreamVersion = 0;
     private Stream fakeStream = new Stream(fakeStreamId, fakeStreamVersion);
@@ -120,6 +139,20 @@ public class StreamSyncAdapterTest extends InjectedAndroidTestCase {
                 .uploadStreamData(fakeStreamId, fakeStreamVersion, fakeWriter);
     }
 
+    public void testOnPerformSyncForStreams_gzipWriter_uploadsWithGzipContentEncoding()
+            throws Exception {
+        Streams fakeStreams = new Streams();
+        fakeStreams.add(fakeStream);
+        when(fakeWriter.moveToNextBatch()).thenReturn(true, false);
+        when(fakeWriter.isGzip()).thenReturn(true);
+        whenAccountStillExists();
+
+        mSyncAdapter.performSyncForStreams(fakeAccount, fakeStreams, fakeWriter, fakeSyncResult);
+
+        verify(fakeOhmageService).uploadStreamData(fakeStreamId, fakeStreamVersion,
+                StreamWriterOutput.CONTENT_ENCODING_GZIP, fakeWriter);
+    }
+
     public void testOnPerformSyncForStreams_authErrorUploading_triesAgainAfterInvalidating()
             throws Exception {
         Streams fakeStreams = new Streams();
@@ -262,6 +295,358 @@ public class StreamSyncAdapterTest extends InjectedAndroidTestCase {
         verify(fakeWriter).close();
     }
 
+    public void testOnPerformSyncForStreams_pipelined_uploadsAndDeletesEachEncodedBatch()
+            throws Exception {
+        Streams fakeStreams = new Streams();
+        fakeStreams.add(fakeStream);
+        EncodedBatch first = new EncodedBatch(new byte[0], false, 1, 10, 10, "first");
+        EncodedBatch second = new EncodedBatch(new byte[0], false, 11, 15, 5, "second");
+        when(fakeWriter.encodeNextBatch()).thenReturn(first, second, null);
+        when(fakeWriter.deleteBatch(first)).thenReturn(10);
+        when(fakeWriter.deleteBatch(second)).thenReturn(5);
+        whenAccountStillExists();
+        mSyncAdapter.setPipelined(true);
+
+        mSyncAdapter.performSyncForStreams(fakeAccount, fakeStreams, fakeWriter, fakeSyncResult);
+
+        InOrder inOrder = inOrder(fakeOhmageService, fakeWriter);
+        inOrder.verify(fakeOhmageService).uploadStreamData(fakeStreamId, fakeStreamVersion, null,
+                "first", first);
+        inOrder.verify(fakeWriter).deleteBatch(first);
+        inOrder.verify(fakeOhmageService).uploadStreamData(fakeStreamId, fakeStreamVersion, null,
+                "second", second);
+        inOrder.verify(fakeWriter).deleteBatch(second);
+        assertEquals(15, fakeSyncResult.stats.numEntries);
+    }
+
+    public void testOnPerformSyncForStreams_pipelinedNetworkError_doesNotDeleteBatches()
+            throws Exception {
+        Streams fakeStreams = new Streams();
+        fakeStreams.add(fakeStream);
+        EncodedBatch first = new EncodedBatch(new byte[0], false, 1, 10, 10, "first");
+        EncodedBatch second = new EncodedBatch(new byte[0], false, 11, 15, 5, "second");
+        when(fakeWriter.encodeNextBatch()).thenReturn(first, second, null);
+        whenAccountStillExists();
+        when(fakeOhmageService.uploadStreamData(fakeStreamId, fakeStreamVersion, null, "first",
+                first))
+                .thenThrow(RetrofitError.networkError("", new IOException()));
+        mSyncAdapter.setPipelined(true);
+
+        mSyncAdapter.performSyncForStreams(fakeAccount, fakeStreams, fakeWriter, fakeSyncResult);
+
+        verify(fakeWriter, never()).deleteBatch(any(EncodedBatch.class));
+        assertEquals(1, fakeSyncResult.stats.numIoExceptions);
+        verify(fakeWriter).close();
+    }
+
+    public void testOnPerformSyncForStreams_pipelinedAuthError_sendsSameBatchAgain()
+            throws Exception {
+        Streams fakeStreams = new Streams();
+        fakeStreams.add(fakeStream);
+        EncodedBatch first = new EncodedBatch(new byte[0], false, 1, 10, 10, "first");
+        when(fakeWriter.encodeNextBatch()).thenReturn(first, null);
+        whenAccountStillExists();
+        when(fakeOhmageService.uploadStreamData(fakeStreamId, fakeStreamVersion, null, "first",
+                first))
+                .thenThrow(new AuthenticationException("")).thenReturn(
+                new Response(200, "", new ArrayList<Header>(), null));
+        mSyncAdapter.setPipelined(true);
+
+        mSyncAdapter.performSyncForStreams(fakeAccount, fakeStreams, fakeWriter, fakeSyncResult);
+
+        verify(fakeOhmageService, times(2)).uploadStreamData(fakeStreamId, fakeStreamVersion,
+                null, "first", first);
+        verify(fakeWriter).deleteBatch(first);
+    }
+
+    public void testOnPerformSyncForStreams_adaptiveBatches_appliesLearnedLimitsBeforeQuery()
+            throws Exception {
+        Streams fakeStreams = new Streams();
+        fakeStreams.add(fakeStream);
+        SharedPreferences.Editor fakeEditor = whenBatchSizesSaved();
+        when(fakeWriter.moveToNextBatch()).thenReturn(true, false);
+        whenAccountStillExists();
+        mSyncAdapter.setAdaptiveBatches(true);
+
+        mSyncAdapter.performSyncForStreams(fakeAccount, fakeStreams, fakeWriter, fakeSyncResult);
+
+        InOrder inOrder = inOrder(fakeWriter);
+        inOrder.verify(fakeWriter).setBatchLimits(anyLong(), anyInt());
+        inOrder.verify(fakeWriter).query(fakeAccount.name, fakeStream);
+        verify(fakeEditor).apply();
+    }
+
+    public void testOnPerformSyncForStreams_adaptiveBatchesNetworkError_savesSmallerLimits()
+            throws Exception {
+        Streams fakeStreams = new Streams();
+        fakeStreams.add(fakeStream);
+        SharedPreferences.Editor fakeEditor = whenBatchSizesSaved();
+        when(fakeWriter.moveToNextBatch()).thenReturn(true, false);
+        whenAccountStillExists();
+        when(fakeOhmageService.uploadStreamData(fakeStreamId, fakeStreamVersion,
+                fakeWriter)).thenThrow(RetrofitError.networkError("", new IOException()));
+        mSyncAdapter.setAdaptiveBatches(true);
+
+        mSyncAdapter.performSyncForStreams(fakeAccount, fakeStreams, fakeWriter, fakeSyncResult);
+
+        String key = fakeStreamId + ":" + fakeStreamVersion;
+        verify(fakeEditor).putLong(key + ":size", StreamWriterOutput.BATCH_MAX_SIZE_BYTES / 2);
+        verify(fakeEditor).putInt(key + ":num", StreamWriterOutput.BATCH_MAX_COUNT / 2);
+        assertEquals(1, fakeSyncResult.stats.numIoExceptions);
+    }
+
+    public void testOnPerformSyncForStreams_adaptiveBatchesOff_doesNotReadPreferences()
+            throws Exception {
+        Streams fakeStreams = new Streams();
+        fakeStreams.add(fakeStream);
+        when(fakeWriter.moveToNextBatch()).thenReturn(true, false);
+        whenAccountStillExists();
+        mSyncAdapter.setAdaptiveBatches(false);
+
+        mSyncAdapter.performSyncForStreams(fakeAccount, fakeStreams, fakeWriter, fakeSyncResult);
+
+        verify(fakeContext, never()).getSharedPreferences(anyString(), anyInt());
+        verify(fakeWriter, never()).setBatchLimits(anyLong(), anyInt());
+    }
+
+    public void testPerformParallelSyncForStreams_eachStreamUploadedWithItsOwnWriter()
+            throws Exception {
+        Stream otherStream = new Stream("otherStreamId", 1);
+        Streams fakeStreams = new Streams();
+        fakeStreams.add(fakeStream);
+        fakeStreams.add(otherStream);
+        StreamWriterOutput otherWriter = mock(StreamWriterOutput.class);
+        when(fakeWriter.moveToNextBatch()).thenReturn(true, false);
+        when(fakeWriter.deleteBatch()).thenReturn(10);
+        when(otherWriter.moveToNextBatch()).thenReturn(true, false);
+        when(otherWriter.deleteBatch()).thenReturn(5);
+        whenAccountStillExists();
+        StreamSyncAdapter syncAdapter = syncAdapterWithWriters(fakeStreams, fakeWriter,
+                otherWriter);
+        syncAdapter.setConcurrency(2);
+
+        syncAdapter.performParallelSyncForStreams(fakeAccount, fakeStreams, fakeAuthority,
+                fakeSyncResult);
+
+        verify(fakeWriter).query(fakeAccount.name, fakeStream);
+        verify(otherWriter).query(fakeAccount.name, otherStream);
+        verify(fakeOhmageService).uploadStreamData(fakeStreamId, fakeStreamVersion, fakeWriter);
+        verify(fakeOhmageService).uploadStreamData("otherStreamId", 1, otherWriter);
+        verify(fakeWriter).close();
+        verify(otherWriter).close();
+        assertEquals(15, fakeSyncResult.stats.numEntries);
+    }
+
+    public void testPerformParallelSyncForStreams_streamsTakeTurnsUploadingBatches()
+            throws Exception {
+        Stream otherStream = new Stream("otherStreamId", 1);
+        Streams fakeStreams = new Streams();
+        fakeStreams.add(fakeStream);
+        fakeStreams.add(otherStream);
+        StreamWriterOutput otherWriter = mock(StreamWriterOutput.class);
+        when(fakeWriter.moveToNextBatch()).thenReturn(true, true, true, false);
+        when(otherWriter.moveToNextBatch()).thenReturn(true, true, false);
+        whenAccountStillExists();
+        StreamSyncAdapter syncAdapter = syncAdapterWithWriters(fakeStreams, fakeWriter,
+                otherWriter);
+        syncAdapter.setConcurrency(1);
+
+        syncAdapter.performParallelSyncForStreams(fakeAccount, fakeStreams, fakeAuthority,
+                fakeSyncResult);
+
+        InOrder inOrder = inOrder(fakeOhmageService);
+        inOrder.verify(fakeOhmageService).uploadStreamData(fakeStreamId, fakeStreamVersion,
+                fakeWriter);
+        inOrder.verify(fakeOhmageService).uploadStreamData("otherStreamId", 1, otherWriter);
+        inOrder.verify(fakeOhmageService).uploadStreamData(fakeStreamId, fakeStreamVersion,
+                fakeWriter);
+        inOrder.verify(fakeOhmageService).uploadStreamData("otherStreamId", 1, otherWriter);
+        inOrder.verify(fakeOhmageService).uploadStreamData(fakeStreamId, fakeStreamVersion,
+                fakeWriter);
+    }
+
+    public void testPerformParallelSyncForStreams_uploadsNoMoreThanConcurrencyAtOnce()
+            throws Exception {
+        Streams fakeStreams = new Streams();
+        StreamWriterOutput[] writers = new StreamWriterOutput[4];
+        for (int i = 0; i < writers.length; i++) {
+            fakeStreams.add(new Stream("stream" + i, 1));
+            writers[i] = mock(StreamWriterOutput.class);
+            when(writers[i].moveToNextBatch()).thenReturn(true, true, false);
+            when(writers[i].deleteBatch()).thenReturn(1);
+        }
+        whenAccountStillExists();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        when(fakeOhmageService.uploadStreamData(anyString(), anyLong(),
+                any(StreamWriterOutput.class))).then(new Answer<Response>() {
+            @Override public Response answer(InvocationOnMock invocation) throws Throwable {
+                int uploading = inFlight.incrementAndGet();
+                synchronized (maxInFlight) {
+                    maxInFlight.set(Math.max(maxInFlight.get(), uploading));
+                }
+                SystemClock.sleep(50);
+                inFlight.decrementAndGet();
+                return null;
+            }
+        });
+        StreamSyncAdapter syncAdapter = syncAdapterWithWriters(fakeStreams, writers);
+        syncAdapter.setConcurrency(2);
+
+        syncAdapter.performParallelSyncForStreams(fakeAccount, fakeStreams, fakeAuthority,
+                fakeSyncResult);
+
+        assertTrue(maxInFlight.get() <= 2);
+        assertEquals(8, fakeSyncResult.stats.numEntries);
+    }
+
+    public void testPerformParallelSyncForStreams_networkErrorInOneStream_othersStillUpload()
+            throws Exception {
+        Stream otherStream = new Stream("otherStreamId", 1);
+        Streams fakeStreams = new Streams();
+        fakeStreams.add(fakeStream);
+        fakeStreams.add(otherStream);
+        StreamWriterOutput otherWriter = mock(StreamWriterOutput.class);
+        when(fakeWriter.moveToNextBatch()).thenReturn(true, false);
+        when(otherWriter.moveToNextBatch()).thenReturn(true, false);
+        when(otherWriter.deleteBatch()).thenReturn(5);
+        whenAccountStillExists();
+        when(fakeOhmageService.uploadStreamData(fakeStreamId, fakeStreamVersion,
+                fakeWriter)).thenThrow(RetrofitError.networkError("", new IOException()));
+        StreamSyncAdapter syncAdapter = syncAdapterWithWriters(fakeStreams, fakeWriter,
+                otherWriter);
+        syncAdapter.setConcurrency(2);
+
+        syncAdapter.performParallelSyncForStreams(fakeAccount, fakeStreams, fakeAuthority,
+                fakeSyncResult);
+
+        verify(fakeWriter, never()).deleteBatch();
+        assertEquals(1, fakeSyncResult.stats.numIoExceptions);
+        assertEquals(5, fakeSyncResult.stats.numEntries);
+        verify(fakeWriter).close();
+    }
+
+    public void testPerformParallelSyncForStreams_eachStreamUsesItsOwnProvider()
+            throws Exception {
+        Stream otherStream = new Stream("otherStreamId", 1);
+        Streams fakeStreams = new Streams();
+        fakeStreams.add(fakeStream);
+        fakeStreams.add(otherStream);
+        StreamWriterOutput otherWriter = mock(StreamWriterOutput.class);
+        whenAccountStillExists();
+        StreamSyncAdapter syncAdapter = syncAdapterWithWriters(fakeStreams, fakeWriter,
+                otherWriter);
+        syncAdapter.setConcurrency(2);
+
+        syncAdapter.performParallelSyncForStreams(fakeAccount, fakeStreams, fakeAuthority,
+                fakeSyncResult);
+
+        assertEquals(2, mProviders.size());
+        assertNotSame(mProviders.get(0), mProviders.get(1));
+        verify(mProviders.get(0)).release();
+        verify(mProviders.get(1)).release();
+    }
+
+    public void testPerformParallelSyncForStreams_providerAcquiredWhenStreamStarts()
+            throws Exception {
+        Stream otherStream = new Stream("otherStreamId", 1);
+        Streams fakeStreams = new Streams();
+        fakeStreams.add(fakeStream);
+        fakeStreams.add(otherStream);
+        StreamWriterOutput otherWriter = mock(StreamWriterOutput.class);
+        when(fakeWriter.moveToNextBatch()).thenReturn(true, false);
+        whenAccountStillExists();
+        final AtomicInteger providersWhileUploading = new AtomicInteger();
+        when(fakeOhmageService.uploadStreamData(fakeStreamId, fakeStreamVersion, fakeWriter))
+                .then(new Answer<Response>() {
+                    @Override public Response answer(InvocationOnMock invocation) {
+                        providersWhileUploading.set(mProviders.size());
+                        return null;
+                    }
+                });
+        StreamSyncAdapter syncAdapter = syncAdapterWithWriters(fakeStreams, fakeWriter,
+                otherWriter);
+        syncAdapter.setConcurrency(1);
+
+        syncAdapter.performParallelSyncForStreams(fakeAccount, fakeStreams, fakeAuthority,
+                fakeSyncResult);
+
+        assertEquals(1, providersWhileUploading.get());
+        assertEquals(2, mProviders.size());
+    }
+
+    public void testPerformParallelSyncForStreams_pipelined_uploadsEncodedBatches()
+            throws Exception {
+        Stream otherStream = new Stream("otherStreamId", 1);
+        Streams fakeStreams = new Streams();
+        fakeStreams.add(fakeStream);
+        fakeStreams.add(otherStream);
+        StreamWriterOutput otherWriter = mock(StreamWriterOutput.class);
+        EncodedBatch first = new EncodedBatch(new byte[0], false, 1, 10, 10, "first");
+        EncodedBatch second = new EncodedBatch(new byte[0], false, 11, 15, 5, "second");
+        when(fakeWriter.encodeNextBatch()).thenReturn(first, null);
+        when(fakeWriter.deleteBatch(first)).thenReturn(10);
+        when(otherWriter.encodeNextBatch()).thenReturn(second, null);
+        when(otherWriter.deleteBatch(second)).thenReturn(5);
+        whenAccountStillExists();
+        StreamSyncAdapter syncAdapter = syncAdapterWithWriters(fakeStreams, fakeWriter,
+                otherWriter);
+        syncAdapter.setConcurrency(2);
+        syncAdapter.setPipelined(true);
+
+        syncAdapter.performParallelSyncForStreams(fakeAccount, fakeStreams, fakeAuthority,
+                fakeSyncResult);
+
+        verify(fakeOhmageService).uploadStreamData(fakeStreamId, fakeStreamVersion, null,
+                "first", first);
+        verify(fakeOhmageService).uploadStreamData("otherStreamId", 1, null, "second", second);
+        verify(fakeWriter, never()).moveToNextBatch();
+        assertEquals(15, fakeSyncResult.stats.numEntries);
+    }
+
+    /**
+     * Creates a sync adapter which gives each stream the writer at the same position. Each stream
+     * gets a new provider which is kept in {@link #mProviders}.
+     */
+    private StreamSyncAdapter syncAdapterWithWriters(Streams streams,
+            StreamWriterOutput... writers) {
+        final List<StreamWriterOutput> writerList = Arrays.asList(writers);
+        final List<Stream> streamList = new ArrayList<Stream>(streams);
+        return new StreamSyncAdapter(fakeContext, false, false) {
+            @Override StreamWriterOutput newWriter(ContentProviderClient provider,
+                    Stream stream) {
+                return writerList.get(streamList.indexOf(stream));
+            }
+
+            @Override ContentProviderClient acquireProvider(String authority) {
+                ContentProviderClient provider = mock(ContentProviderClient.class);
+                mProviders.add(provider);
+                return provider;
+            }
+        };
+    }
+
+    /**
+     * Sets up preferences for the batch sizes which have nothing saved
+     *
+     * @return the editor the batch sizes will be saved with
+     */
+    private SharedPreferences.Editor whenBatchSizesSaved() {
+        SharedPreferences fakePreferences = mock(SharedPreferences.class);
+        SharedPreferences.Editor fakeEditor = mock(SharedPreferences.Editor.class);
+        when(fakeContext.getSharedPreferences(eq(BatchSizeController.PREFERENCES_NAME), anyInt()))
+                .thenReturn(fakePreferences);
+        when(fakePreferences.getLong(anyString(), anyLong())).thenReturn(
+                StreamWriterOutput.BATCH_MAX_SIZE_BYTES);
+        when(fakePreferences.getInt(anyString(), anyInt())).thenReturn(
+                StreamWriterOutput.BATCH_MAX_COUNT);
+        when(fakePreferences.edit()).thenReturn(fakeEditor);
+        when(fakeEditor.putLong(anyString(), anyLong())).thenReturn(fakeEditor);
+        when(fakeEditor.putInt(anyString(), anyInt())).thenReturn(fakeEditor);
+        when(fakeEditor.putFloat(anyString(), anyFloat())).thenReturn(fakeEditor);
+        return fakeEditor;
+    }
+
     public void whenAccountStillExists() {
         when(fakeAccountManager.getUserData(fakeAccount, Authenticator.USER_ID))
                 .thenReturn(fakeUserId);
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.sync;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.ContentProviderClient;
+import android.content.ContentValues;
+import android.content.SyncResult;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.ohmage.app.OhmageService;
+import org.ohmage.auth.AuthUtil;
+import org.ohmage.auth.Authenticator;
+import org.ohmage.models.Stream;
+import org.ohmage.models.Streams;
+import org.ohmage.provider.OhmageDbHelper.Tables;
+import org.ohmage.provider.StreamContentProvider;
+import org.ohmage.provider.StreamDbHelper;
+import org.ohmage.streams.StreamContract;
+import org.ohmage.sync.StreamWriterOutput.EncodedBatch;
+import org.ohmage.test.dagger.InjectedAndroidTestCase;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.inject.Inject;
+
+import retrofit.client.Response;
+import retrofit.mime.TypedOutput;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Compares the sequential and pipelined upload modes of the {@link StreamSyncAdapter} when each
+ * upload takes {@link #RTT_MS}. Points are read from an in memory database so reading and encoding
+ * the batches has a real cost.
+ */
+@LargeTest
+public class StreamSyncPipelineBenchmarkTest extends InjectedAndroidTestCase {
+
+    private static final String TAG = StreamSyncPipelineBenchmarkTest.class.getSimpleName();
+
+    private static final long RTT_MS = 200;
+
+    private static final int POINTS = 10000;
+
+    @Inject AccountManager fakeAccountManager;
+
+    @Inject OhmageService fakeOhmageService;
+
+    private SQLiteDatabase db;
+
+    private ContentProviderClient fakeContentProviderClient;
+
+    private Account fakeAccount = new Account("name", AuthUtil.ACCOUNT_TYPE);
+
+    private Stream fakeStream = new Stream("fakeStreamId", 0);
+
+    private StreamSyncAdapter mSyncAdapter;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        db = SQLiteDatabase.create(null);
+        new StreamDbHelper(getContext()).onCreate(db);
+
+        fakeContentProviderClient = mock(ContentProviderClient.class);
+        when(fakeContentProviderClient.query(any(Uri.class), any(String[].class), anyString(),
+                any(String[].class), anyString())).then(new Answer<Object>() {
+            @Override public Object answer(InvocationOnMock invocation) throws Throwable {
+                Object[] args = invocation.getArguments();
+                return db.query(Tables.StreamData, (String[]) args[1], (String) args[2],
+                        (String[]) args[3], null, null, (String) args[4],
+                        ((Uri) args[0]).getQueryParameter(
+                                StreamContentProvider.QUERY_PARAMETER_LIMIT));
+            }
+        });
+        when(fakeContentProviderClient.delete(any(Uri.class), anyString(), any(String[].class)))
+                .then(new Answer<Object>() {
+                    @Override public Object answer(InvocationOnMock invocation) throws Throwable {
+                        Object[] args = invocation.getArguments();
+                        Uri uri = (Uri) args[0];
+                        String[] selectionArgs = (String[]) args[2];
+                        String[] rangeArgs = new String[selectionArgs.length + 2];
+                        System.arraycopy(selectionArgs, 0, rangeArgs, 0, selectionArgs.length);
+                        rangeArgs[selectionArgs.length] = uri.getQueryParameter(
+                                StreamContentProvider.QUERY_PARAMETER_FIRST_ID);
+                        rangeArgs[selectionArgs.length + 1] = uri.getQueryParameter(
+                                StreamContentProvider.QUERY_PARAMETER_LAST_ID);
+                        return db.delete(Tables.StreamData, DatabaseUtils.concatenateWhere(
+                                (String) args[1], BaseColumns._ID + " BETWEEN ? AND ?"),
+                                rangeArgs);
+                    }
+                });
+
+        Answer<Response> slowUpload = new Answer<Response>() {
+            @Override public Response answer(InvocationOnMock invocation) throws Throwable {
+                Object[] args = invocation.getArguments();
+                ((TypedOutput) args[args.length - 1]).writeTo(new OutputStream() {
+                    @Override public void write(int oneByte) throws IOException {
+                    }
+                });
+                SystemClock.sleep(RTT_MS);
+                return null;
+            }
+        };
+        when(fakeOhmageService.uploadStreamData(anyString(), anyLong(),
+                any(StreamWriterOutput.class))).then(slowUpload);
+        when(fakeOhmageService.uploadStreamData(anyString(), anyLong(), anyString(), anyString(),
+                any(EncodedBatch.class))).then(slowUpload);
+
+        when(fakeAccountManager.getUserData(fakeAccount, Authenticator.USER_ID))
+                .thenReturn("userId");
+        when(fakeAccountManager.getAccountsByType(AuthUtil.ACCOUNT_TYPE)).thenReturn(
+                new Account[]{fakeAccount});
+
+        mSyncAdapter = new StreamSyncAdapter(getContext(), false, false);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        db.close();
+        super.tearDown();
+    }
+
+    public void testSync_sequential() throws Exception {
+        mSyncAdapter.setPipelined(false);
+        sync("sequential");
+    }
+
+    public void testSync_pipelined() throws Exception {
+        mSyncAdapter.setPipelined(true);
+        sync("pipelined");
+    }
+
+    private void sync(String mode) {
+        insertPoints();
+        Streams streams = new Streams();
+        streams.add(fakeStream);
+        SyncResult syncResult = new SyncResult();
+
+        long start = SystemClock.elapsedRealtime();
+        mSyncAdapter.performSyncForStreams(fakeAccount, streams,
+                new StreamWriterOutput(fakeContentProviderClient), syncResult);
+        long time = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, "Uploading " + POINTS + " points " + mode + " with " + RTT_MS + "ms rtt took "
+                   + time + "ms (" + (POINTS * 1000L / time) + " points/s)");
+        assertEquals(POINTS, syncResult.stats.numEntries);
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, Tables.StreamData));
+    }
+
+    private void insertPoints() {
+        ContentValues values = new ContentValues();
+        values.put(StreamContract.Streams.STREAM_ID, fakeStream.schemaId);
+        values.put(StreamContract.Streams.STREAM_VERSION, fakeStream.schemaVersion);
+        values.put(StreamContract.Streams.USERNAME, fakeAccount.name);
+        values.put(StreamContract.Streams.STREAM_METADATA,
+                "{\"id\":\"6f1e8d20-3c1b-4d44-8d52-2a1c3f7e9b10\",\"timestamp\":"
+                + "\"2014-05-02T10:15:30.123-07:00\",\"location\":{\"latitude\":34.0689,"
+                + "\"longitude\":-118.4452,\"accuracy\":12.0,\"time\":1399050930123}}");
+        values.put(StreamContract.Streams.STREAM_DATA,
+                "{\"mode\":\"still\",\"accel\":[0.0123,9.8012,0.2031]}");
+
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < POINTS; i++) {
+                db.insert(Tables.StreamData, BaseColumns._ID, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
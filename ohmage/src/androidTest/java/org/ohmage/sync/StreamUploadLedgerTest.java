@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.sync;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.ContentProviderClient;
+import android.content.ContentValues;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.RenamingDelegatingContext;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.ohmage.app.OhmageService;
+import org.ohmage.auth.AuthUtil;
+import org.ohmage.auth.Authenticator;
+import org.ohmage.models.Stream;
+import org.ohmage.models.Streams;
+import org.ohmage.provider.StreamContentProvider;
+import org.ohmage.provider.StreamContentProvider.UploadLedger;
+import org.ohmage.provider.StreamDbHelper;
+import org.ohmage.streams.StreamContract;
+import org.ohmage.sync.StreamWriterOutput.EncodedBatch;
+import org.ohmage.test.dagger.InjectedAndroidTestCase;
+
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.inject.Inject;
+
+import retrofit.RestAdapter;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Kills a sync after the server accepted a batch but before the batch was deleted, then syncs
+ * again and counts the points the server stored twice. The points are stored by a real
+ * {@link StreamContentProvider} and uploaded to a local server which ignores batches with an
+ * idempotency key it has already seen.
+ */
+public class StreamUploadLedgerTest extends InjectedAndroidTestCase {
+
+    private static final int POINTS = 50;
+
+    private static final int BATCH_SIZE = 10;
+
+    @Inject AccountManager fakeAccountManager;
+
+    @Inject OhmageService fakeOhmageService;
+
+    private StreamContentProvider mProvider;
+
+    private ContentProviderClient fakeContentProviderClient;
+
+    private MockWebServer mServer;
+
+    private CountingServer mCountingServer;
+
+    private boolean mKillBeforeDelete;
+
+    private Account fakeAccount = new Account("name", AuthUtil.ACCOUNT_TYPE);
+
+    private Stream fakeStream = new Stream("fakeStreamId", 1);
+
+    private StreamSyncAdapter mSyncAdapter;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        RenamingDelegatingContext context = new RenamingDelegatingContext(getContext(), "test.");
+        StreamDbHelper.getInstance(context).close();
+        context.deleteDatabase("ohmage.db");
+        context.deleteDatabase("streams.db");
+        mProvider = new StreamContentProvider();
+        mProvider.attachInfo(context, null);
+        mProvider.onAccountsUpdated(new Account[]{fakeAccount});
+
+        fakeContentProviderClient = mock(ContentProviderClient.class);
+        when(fakeContentProviderClient.query(any(Uri.class), any(String[].class), anyString(),
+                any(String[].class), anyString())).then(new Answer<Cursor>() {
+            @Override public Cursor answer(InvocationOnMock invocation) throws Throwable {
+                Object[] args = invocation.getArguments();
+                return mProvider.query((Uri) args[0], (String[]) args[1], (String) args[2],
+                        (String[]) args[3], (String) args[4]);
+            }
+        });
+        when(fakeContentProviderClient.insert(any(Uri.class), any(ContentValues.class))).then(
+                new Answer<Uri>() {
+                    @Override public Uri answer(InvocationOnMock invocation) throws Throwable {
+                        Object[] args = invocation.getArguments();
+                        return mProvider.insert((Uri) args[0], (ContentValues) args[1]);
+                    }
+                });
+        when(fakeContentProviderClient.delete(any(Uri.class), anyString(), any(String[].class)))
+                .then(new Answer<Integer>() {
+                    @Override public Integer answer(InvocationOnMock invocation)
+                            throws Throwable {
+                        Object[] args = invocation.getArguments();
+                        Uri uri = (Uri) args[0];
+                        if (mKillBeforeDelete && uri.getQueryParameter(
+                                StreamContentProvider.QUERY_PARAMETER_FIRST_ID) != null) {
+                            mKillBeforeDelete = false;
+                            throw new SyncKilledException();
+                        }
+                        return mProvider.delete(uri, (String) args[1], (String[]) args[2]);
+                    }
+                });
+
+        mCountingServer = new CountingServer();
+        mServer = new MockWebServer();
+        mServer.setDispatcher(mCountingServer);
+        mServer.play();
+
+        final OhmageService service = new RestAdapter.Builder()
+                .setServer(mServer.getUrl("/").toString())
+                .build().create(OhmageService.class);
+        when(fakeOhmageService.uploadStreamData(anyString(), anyLong(),
+                any(StreamWriterOutput.class))).then(new Answer<Object>() {
+            @Override public Object answer(InvocationOnMock invocation) throws Throwable {
+                Object[] args = invocation.getArguments();
+                return service.uploadStreamData((String) args[0], (Long) args[1],
+                        (StreamWriterOutput) args[2]);
+            }
+        });
+        when(fakeOhmageService.uploadStreamData(anyString(), anyLong(), anyString(), anyString(),
+                any(EncodedBatch.class))).then(new Answer<Object>() {
+            @Override public Object answer(InvocationOnMock invocation) throws Throwable {
+                Object[] args = invocation.getArguments();
+                return service.uploadStreamData((String) args[0], (Long) args[1],
+                        (String) args[2], (String) args[3], (EncodedBatch) args[4]);
+            }
+        });
+
+        when(fakeAccountManager.getUserData(fakeAccount, Authenticator.USER_ID))
+                .thenReturn("userId");
+        when(fakeAccountManager.getAccountsByType(AuthUtil.ACCOUNT_TYPE)).thenReturn(
+                new Account[]{fakeAccount});
+
+        mSyncAdapter = new StreamSyncAdapter(getContext(), false, false);
+        insertPoints();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    public void testSync_killedBeforeDeleteWithLedger_noDuplicatePoints() throws Exception {
+        mSyncAdapter.setUploadLedger(true);
+
+        killedSync();
+        sync();
+
+        assertEquals(POINTS, mCountingServer.stored.size());
+        assertEquals(0, mCountingServer.duplicates);
+        assertEquals(1, mCountingServer.replayedBatches);
+        assertEquals(0, count(StreamContract.Streams.CONTENT_URI));
+        assertEquals(0, count(UploadLedger.CONTENT_URI));
+    }
+
+    public void testSync_killedBeforeDeleteWithoutLedger_uploadsBatchTwice() throws Exception {
+        mSyncAdapter.setUploadLedger(false);
+
+        killedSync();
+        sync();
+
+        assertEquals(POINTS, mCountingServer.stored.size());
+        assertEquals(BATCH_SIZE, mCountingServer.duplicates);
+        assertEquals(0, count(StreamContract.Streams.CONTENT_URI));
+    }
+
+    /**
+     * Syncs until the first batch has been accepted by the server, then stops the sync before
+     * the batch is deleted like the process was killed
+     */
+    private void killedSync() {
+        mKillBeforeDelete = true;
+        try {
+            sync();
+            fail("The sync should have been killed");
+        } catch (SyncKilledException e) {
+            // The first batch was sent but not deleted
+        }
+        assertEquals(POINTS, count(StreamContract.Streams.CONTENT_URI));
+    }
+
+    private void sync() {
+        Streams streams = new Streams();
+        streams.add(fakeStream);
+        mSyncAdapter.performSyncForStreams(fakeAccount, streams,
+                new StreamWriterOutput(fakeContentProviderClient,
+                        StreamWriterOutput.BATCH_MAX_SIZE_BYTES, BATCH_SIZE), new SyncResult());
+    }
+
+    private int count(Uri uri) {
+        Cursor cursor = mProvider.query(uri, null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void insertPoints() {
+        ContentValues[] values = new ContentValues[POINTS];
+        for (int i = 0; i < POINTS; i++) {
+            values[i] = new ContentValues();
+            values[i].put(StreamContract.Streams.STREAM_ID, fakeStream.schemaId);
+            values[i].put(StreamContract.Streams.STREAM_VERSION, fakeStream.schemaVersion);
+            values[i].put(StreamContract.Streams.STREAM_METADATA, "{\"id\":\"" + i + "\"}");
+            values[i].put(StreamContract.Streams.STREAM_DATA, "{\"n\":" + i + "}");
+        }
+        assertEquals(POINTS, mProvider.bulkInsert(StreamContract.Streams.CONTENT_URI, values));
+    }
+
+    private static class SyncKilledException extends RuntimeException {
+    }
+
+    /**
+     * Stores the points it receives and counts the ones it already had. Batches with an
+     * idempotency key which was already seen are accepted without storing them again.
+     */
+    private static class CountingServer extends Dispatcher {
+
+        final Set<Integer> stored = new HashSet<Integer>();
+
+        final Set<String> keys = new HashSet<String>();
+
+        int duplicates;
+
+        int replayedBatches;
+
+        @Override public synchronized MockResponse dispatch(RecordedRequest request) {
+            String key = request.getHeader("Idempotency-Key");
+            if (key != null && !keys.add(key)) {
+                replayedBatches++;
+                return new MockResponse().setResponseCode(200);
+            }
+
+            String body = new String(request.getBody(), Charset.forName("UTF-8"));
+            for (JsonElement point : new JsonParser().parse(body).getAsJsonArray()) {
+                int n = point.getAsJsonObject().getAsJsonObject("data").get("n").getAsInt();
+                if (!stored.add(n))
+                    duplicates++;
+            }
+            return new MockResponse().setResponseCode(200);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.sync;
+
+import android.content.ContentProviderClient;
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.ohmage.models.Stream;
+import org.ohmage.provider.OhmageDbHelper.Tables;
+import org.ohmage.provider.StreamContentProvider;
+import org.ohmage.provider.StreamDbHelper;
+import org.ohmage.streams.StreamContract;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Counts the objects allocated while {@link StreamWriterOutput} writes a batch. Two batches of
+ * different sizes are written after a warm up batch, and the difference in allocations between
+ * them is the garbage created for each point.
+ */
+@LargeTest
+public class StreamWriterAllocationBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = StreamWriterAllocationBenchmarkTest.class.getSimpleName();
+
+    private static final int SMALL_BATCH = 100;
+
+    private static final int LARGE_BATCH = 1000;
+
+    private SQLiteDatabase db;
+
+    private StreamWriterOutput mWriter;
+
+    private Stream fakeStream = new Stream("fakeStreamId", 0);
+
+    private final OutputStream mNullOutput = new OutputStream() {
+        @Override public void write(int oneByte) throws IOException {
+        }
+
+        @Override public void write(byte[] buffer, int offset, int count) throws IOException {
+        }
+    };
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        db = SQLiteDatabase.create(null);
+        new StreamDbHelper(getContext()).onCreate(db);
+        insertPoints(SMALL_BATCH * 2 + LARGE_BATCH);
+
+        ContentProviderClient fakeContentProviderClient = mock(ContentProviderClient.class);
+        when(fakeContentProviderClient.query(any(Uri.class), any(String[].class), anyString(),
+                any(String[].class), anyString())).then(new Answer<Object>() {
+            @Override public Object answer(InvocationOnMock invocation) throws Throwable {
+                Object[] args = invocation.getArguments();
+                return db.query(Tables.StreamData, (String[]) args[1], (String) args[2],
+                        (String[]) args[3], null, null, (String) args[4],
+                        ((Uri) args[0]).getQueryParameter(
+                                StreamContentProvider.QUERY_PARAMETER_LIMIT));
+            }
+        });
+
+        mWriter = new StreamWriterOutput(fakeContentProviderClient, Long.MAX_VALUE, LARGE_BATCH);
+        mWriter.query("user", fakeStream);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mWriter.close();
+        db.close();
+        super.tearDown();
+    }
+
+    public void testWriteTo_allocationsPerPoint() throws Exception {
+        writeBatch(SMALL_BATCH);
+        int small = writeBatch(SMALL_BATCH);
+        int large = writeBatch(LARGE_BATCH);
+
+        int perPoint = (large - small) / (LARGE_BATCH - SMALL_BATCH);
+        Log.i(TAG, "Writing " + SMALL_BATCH + " points allocated " + small + " objects, "
+                   + LARGE_BATCH + " points allocated " + large + " objects (" + perPoint
+                   + " per point)");
+        assertEquals(0, perPoint);
+    }
+
+    /**
+     * Writes a batch of points and counts the objects allocated by this thread while writing
+     *
+     * @param points the number of points in the batch
+     * @return the number of objects allocated
+     */
+    private int writeBatch(int points) throws Exception {
+        mWriter.setBatchLimits(Long.MAX_VALUE, points);
+        assertTrue(mWriter.moveToNextBatch());
+
+        long start = SystemClock.elapsedRealtime();
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        mWriter.writeTo(mNullOutput);
+        Debug.stopAllocCounting();
+        int allocations = Debug.getThreadAllocCount();
+        Log.i(TAG, "Writing " + points + " points took "
+                   + (SystemClock.elapsedRealtime() - start) + "ms");
+
+        // The next page is read when the batch is deleted, so make it large enough for any batch
+        mWriter.setBatchLimits(Long.MAX_VALUE, LARGE_BATCH);
+        assertEquals(points, mWriter.deleteBatch());
+        return allocations;
+    }
+
+    private void insertPoints(int count) {
+        ContentValues values = new ContentValues();
+        values.put(StreamContract.Streams.STREAM_ID, fakeStream.schemaId);
+        values.put(StreamContract.Streams.STREAM_VERSION, fakeStream.schemaVersion);
+        values.put(StreamContract.Streams.USERNAME, "user");
+        values.put(StreamContract.Streams.STREAM_METADATA,
+                "{\"id\":\"6f1e8d20-3c1b-4d44-8d52-2a1c3f7e9b10\",\"timestamp\":"
+                + "\"2014-05-02T10:15:30.123-07:00\"}");
+        values.put(StreamContract.Streams.STREAM_DATA,
+                "{\"mode\":\"still\",\"accel\":[0.0123,9.8012,0.2031]}");
+
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                db.insert(Tables.StreamData, BaseColumns._ID, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
@@ -17,28 +17,45 @@
 package org.ohmage.sync;
 
 import android.content.ContentProviderClient;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
 import android.database.MatrixCursor;
+import android.net.Uri;
 import android.test.AndroidTestCase;
 
 import com.google.gson.FieldNamingPolicy;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.internal.LinkedTreeMap;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
 
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
+import org.ohmage.app.OhmageService;
 import org.ohmage.models.Stream;
 import org.ohmage.models.Streams;
+import org.ohmage.provider.StreamContentProvider;
+import org.ohmage.provider.StreamContentProvider.SharedMetadata;
 import org.ohmage.streams.StreamContract;
 import org.ohmage.streams.StreamPointBuilder;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import retrofit.RestAdapter;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -65,6 +82,15 @@ public class StreamWriterOutputTest extends AndroidTestCase {
             StreamContract.Streams.STREAM_DATA
     };
 
+    String[] FRAMED_PROJECTION = new String[]{
+            StreamContract.Streams._ID,
+            StreamContract.Streams.STREAM_METADATA,
+            StreamContract.Streams.STREAM_DATA,
+            StreamContentProvider.COLUMN_POINT,
+            StreamContentProvider.COLUMN_POINT_LENGTH,
+            StreamContentProvider.COLUMN_METADATA_ID
+    };
+
     protected static final Gson gson = new GsonBuilder()
             .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
             .create();
@@ -78,27 +104,27 @@ public class StreamWriterOutputTest extends AndroidTestCase {
         mStreamWriterOutput = new StreamWriterOutput(fakeContentProviderClient);
     }
 
-    public void testQuery_withNameAndStream_QueriesForStreamsWithUserForStream() throws Exception {
+    public void testQuery_withNameAndStream_QueriesForFirstPageOfStreamsWithUserForStream()
+            throws Exception {
         String fakeName = "fakeName";
         Stream fakeStream = new Stream("fakeId", 0);
-        when(fakeContentProviderClient
-                .query(eq(StreamContract.Streams.CONTENT_URI), any(String[].class),
-                        eq(StreamContract.Streams.USERNAME + "=? AND " +
+        Uri pageUri = StreamContract.Streams.CONTENT_URI.buildUpon()
+                .appendQueryParameter(StreamContentProvider.QUERY_PARAMETER_LIMIT,
+                        String.valueOf(StreamWriterOutput.BATCH_MAX_COUNT)).build();
+        String selection = "(" + StreamContract.Streams.USERNAME + "=? AND " +
                            StreamContract.Streams.STREAM_ID + "=? AND " +
-                           StreamContract.Streams.STREAM_VERSION + "=?"),
-                        eq(new String[]{fakeName, fakeStream.schemaId,
-                                String.valueOf(fakeStream.schemaVersion)}), any(String.class)))
+                           StreamContract.Streams.STREAM_VERSION + "=?) AND " +
+                           StreamContract.Streams._ID + ">?";
+        String[] selectionArgs = new String[]{fakeName, fakeStream.schemaId,
+                String.valueOf(fakeStream.schemaVersion), "-1"};
+        when(fakeContentProviderClient.query(eq(pageUri), any(String[].class), eq(selection),
+                eq(selectionArgs), eq(StreamContract.Streams._ID)))
                 .thenReturn(new MatrixCursor(PROJECTION));
 
         mStreamWriterOutput.query(fakeName, fakeStream);
 
-        verify(fakeContentProviderClient)
-                .query(eq(StreamContract.Streams.CONTENT_URI), any(String[].class),
-                        eq(StreamContract.Streams.USERNAME + "=? AND " +
-                           StreamContract.Streams.STREAM_ID + "=? AND " +
-                           StreamContract.Streams.STREAM_VERSION + "=?"),
-                        eq(new String[]{fakeName, fakeStream.schemaId,
-                                String.valueOf(fakeStream.schemaVersion)}), any(String.class));
+        verify(fakeContentProviderClient).query(eq(pageUri), any(String[].class), eq(selection),
+                eq(selectionArgs), eq(StreamContract.Streams._ID));
     }
 
     public void testSetCursor_hasCursor_closesOldCursor() {
@@ -165,7 +191,7 @@ public class StreamWriterOutputTest extends AndroidTestCase {
         mStreamWriterOutput.deleteBatch();
 
         verify(fakeCursor).deleteMarked(fakeContentProviderClient,
-                StreamContract.Streams.CONTENT_URI);
+                OhmageSyncAdapter.appendSyncAdapterParam(StreamContract.Streams.CONTENT_URI));
     }
 
     public void testWriteTo_noCursorSet_throwsException()
@@ -202,16 +228,8 @@ public class StreamWriterOutputTest extends AndroidTestCase {
         Cursor fakeCursor = mock(Cursor.class);
         when(fakeCursor.moveToNext()).thenReturn(true);
         final int numPoints = 10;
-        when(fakeCursor.getString(anyInt())).then(new Answer<String>() {
-            @Override public String answer(InvocationOnMock invocationOnMock) throws Throwable {
-                int size = (int) StreamWriterOutput.BATCH_MAX_SIZE_BYTES / 2 / numPoints;
-                StringBuilder sb = new StringBuilder(size);
-                for (int i = 0; i < size; i++) {
-                    sb.append('a');
-                }
-                return sb.toString();
-            }
-        });
+        whenPointsHave(fakeCursor,
+                repeat('a', (int) StreamWriterOutput.BATCH_MAX_SIZE_BYTES / 2 / numPoints));
         mStreamWriterOutput.setCursor(fakeCursor);
         OutputStream fakeOutputStream = new OutputStream() {
             @Override public void write(int oneByte) throws IOException {
@@ -229,17 +247,9 @@ public class StreamWriterOutputTest extends AndroidTestCase {
         Cursor fakeCursor = mock(Cursor.class);
         when(fakeCursor.moveToNext()).thenReturn(true);
         final int numPoints = 10;
-        when(fakeCursor.getString(anyInt())).then(new Answer<String>() {
-            @Override public String answer(InvocationOnMock invocationOnMock) throws Throwable {
-                int size = (int) StreamWriterOutput.BATCH_MAX_SIZE_BYTES / 2 / numPoints / 2;
-                // This uses a character which takes up two bytes instead of one
-                StringBuilder sb = new StringBuilder(size);
-                for (int i = 0; i < size; i++) {
-                    sb.append('©');
-                }
-                return sb.toString();
-            }
-        });
+        // This uses a character which takes up two bytes instead of one
+        whenPointsHave(fakeCursor,
+                repeat('©', (int) StreamWriterOutput.BATCH_MAX_SIZE_BYTES / 2 / numPoints / 2));
         mStreamWriterOutput.setCursor(fakeCursor);
         OutputStream fakeOutputStream = new OutputStream() {
             @Override public void write(int oneByte) throws IOException {
@@ -326,4 +336,294 @@ public class StreamWriterOutputTest extends AndroidTestCase {
 
         verifyZeroInteractions(fakeOutputStream);
     }
+
+    public void testWriteTo_gzip_writesCompressedPointsJson() throws Exception {
+        MatrixCursor fakeCursor = new MatrixCursor(PROJECTION);
+        for (int i = 0; i < 100; i++) {
+            fakeCursor.addRow(new Object[]{i, fakeMetaData, fakeData});
+        }
+        mStreamWriterOutput.setCursor(fakeCursor);
+        mStreamWriterOutput.setGzip(true);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        mStreamWriterOutput.moveToNextBatch();
+
+        mStreamWriterOutput.writeTo(output);
+
+        Object[] streams = gson.fromJson(new InputStreamReader(
+                new GZIPInputStream(new ByteArrayInputStream(output.toByteArray()))),
+                Object[].class);
+        assertEquals(100, streams.length);
+    }
+
+    public void testWriteTo_gzip_countsCompressedBytesTowardsBatchSize() throws Exception {
+        Cursor fakeCursor = mock(Cursor.class);
+        when(fakeCursor.moveToNext()).thenReturn(true);
+        final int numPoints = 10;
+        whenPointsHave(fakeCursor,
+                repeat('a', (int) StreamWriterOutput.BATCH_MAX_SIZE_BYTES / 2 / numPoints));
+        mStreamWriterOutput.setCursor(fakeCursor);
+        mStreamWriterOutput.setGzip(true);
+        OutputStream fakeOutputStream = new OutputStream() {
+            @Override public void write(int oneByte) throws IOException {
+            }
+        };
+        mStreamWriterOutput.moveToNextBatch();
+
+        mStreamWriterOutput.writeTo(fakeOutputStream);
+
+        // The repeated data compresses well so many more points fit in the batch
+        verify(fakeCursor, times(StreamWriterOutput.BATCH_MAX_COUNT)).moveToNext();
+    }
+
+    public void testUploadStreamData_gzip_serverReceivesCompressedPoints() throws Exception {
+        MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setResponseCode(200));
+        server.play();
+        try {
+            OhmageService service = new RestAdapter.Builder()
+                    .setServer(server.getUrl("/").toString())
+                    .build().create(OhmageService.class);
+            MatrixCursor fakeCursor = new MatrixCursor(PROJECTION);
+            for (int i = 0; i < 100; i++) {
+                fakeCursor.addRow(new Object[]{i, fakeMetaData, fakeData});
+            }
+            mStreamWriterOutput.setCursor(fakeCursor);
+            mStreamWriterOutput.setGzip(true);
+            mStreamWriterOutput.moveToNextBatch();
+
+            service.uploadStreamData("fakeId", 0, StreamWriterOutput.CONTENT_ENCODING_GZIP,
+                    mStreamWriterOutput);
+
+            RecordedRequest request = server.takeRequest();
+            assertEquals(StreamWriterOutput.CONTENT_ENCODING_GZIP,
+                    request.getHeader("Content-Encoding"));
+            Object[] streams = gson.fromJson(new InputStreamReader(
+                    new GZIPInputStream(new ByteArrayInputStream(request.getBody()))),
+                    Object[].class);
+            assertEquals(100, streams.length);
+            for (int i = 0; i < 100; i++) {
+                LinkedTreeMap pointStream = (LinkedTreeMap) streams[i];
+                assertEquals(fakeData, gson.toJson(pointStream.get("data")));
+                assertEquals(fakeMetaData, gson.toJson(pointStream.get("meta_data")));
+            }
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    public void testWriteTo_multiByteCharacters_writesUtf8() throws Exception {
+        String data = "{\"name\":\"caf\u00e9 \u2603 \ud83d\ude00\"}";
+        MatrixCursor fakeCursor = new MatrixCursor(PROJECTION);
+        fakeCursor.addRow(new Object[]{0, fakeMetaData, data});
+        mStreamWriterOutput.setCursor(fakeCursor);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        mStreamWriterOutput.moveToNextBatch();
+
+        mStreamWriterOutput.writeTo(output);
+
+        assertEquals("[{\"data\":" + data + ",\"meta_data\":" + fakeMetaData + "}]",
+                output.toString("UTF-8"));
+    }
+
+    public void testWriteTo_pointsLargerThanBuffer_writesPointsJson() throws Exception {
+        String data = "{\"value\":\"" + repeat('\u00e9', 10000) + "\"}";
+        MatrixCursor fakeCursor = new MatrixCursor(PROJECTION);
+        fakeCursor.addRow(new Object[]{0, fakeMetaData, data});
+        fakeCursor.addRow(new Object[]{1, fakeMetaData, data});
+        mStreamWriterOutput.setCursor(fakeCursor);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        mStreamWriterOutput.moveToNextBatch();
+
+        mStreamWriterOutput.writeTo(output);
+
+        Object[] streams = gson.fromJson(output.toString("UTF-8"), Object[].class);
+        assertEquals(2, streams.length);
+        assertEquals(data, gson.toJson(((LinkedTreeMap) streams[1]).get("data")));
+    }
+
+    public void testWriteTo_onlyMetaData_writesMetaDataOnly() throws Exception {
+        MatrixCursor fakeCursor = new MatrixCursor(PROJECTION);
+        fakeCursor.addRow(new Object[]{0, fakeMetaData, null});
+        mStreamWriterOutput.setCursor(fakeCursor);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        mStreamWriterOutput.moveToNextBatch();
+
+        mStreamWriterOutput.writeTo(output);
+
+        assertEquals("[{\"meta_data\":" + fakeMetaData + "}]", output.toString("UTF-8"));
+    }
+
+    public void testGetBatchBytes_afterWriteTo_returnsBytesWritten() throws Exception {
+        MatrixCursor fakeCursor = new MatrixCursor(PROJECTION);
+        for (int i = 0; i < 10; i++) {
+            fakeCursor.addRow(new Object[]{i, fakeMetaData, "{\"\u00e9\":\"\u2603\"}"});
+        }
+        mStreamWriterOutput.setCursor(fakeCursor);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        mStreamWriterOutput.moveToNextBatch();
+
+        mStreamWriterOutput.writeTo(output);
+
+        assertEquals(output.size(), mStreamWriterOutput.getBatchBytes());
+    }
+
+    public void testEncodePoint_matchesPointWrittenFromText() throws Exception {
+        MatrixCursor fakeCursor = new MatrixCursor(PROJECTION);
+        fakeCursor.addRow(new Object[]{0, fakeMetaData, "{\"\u00e9\":1}"});
+        mStreamWriterOutput.setCursor(fakeCursor);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        mStreamWriterOutput.moveToNextBatch();
+
+        mStreamWriterOutput.writeTo(output);
+
+        byte[] point = StreamContentProvider.encodePoint("{\"\u00e9\":1}", fakeMetaData);
+        assertEquals("[" + new String(point, "UTF-8") + "]", output.toString("UTF-8"));
+    }
+
+    public void testLength_framedPoints_returnsBytesWritten() throws Exception {
+        MatrixCursor fakeCursor = new MatrixCursor(FRAMED_PROJECTION);
+        for (int i = 0; i < 10; i++) {
+            byte[] point = StreamContentProvider.encodePoint("{\"\u00e9\":" + i + "}",
+                    fakeMetaData);
+            fakeCursor.addRow(new Object[]{i, null, null, point, point.length, null});
+        }
+        whenQueried(fakeCursor);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        mStreamWriterOutput.moveToNextBatch();
+
+        long length = mStreamWriterOutput.length();
+        mStreamWriterOutput.writeTo(output);
+
+        assertEquals(output.size(), length);
+        Object[] streams = gson.fromJson(output.toString("UTF-8"), Object[].class);
+        assertEquals(10, streams.length);
+    }
+
+    public void testLength_framedPointsLargerThanMaxBytes_returnsLengthOfBatch()
+            throws Exception {
+        mStreamWriterOutput.setBatchLimits(1024, StreamWriterOutput.BATCH_MAX_COUNT);
+        MatrixCursor fakeCursor = new MatrixCursor(FRAMED_PROJECTION);
+        for (int i = 0; i < 100; i++) {
+            byte[] point = StreamContentProvider.encodePoint(fakeData, fakeMetaData);
+            fakeCursor.addRow(new Object[]{i, null, null, point, point.length, null});
+        }
+        whenQueried(fakeCursor);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        mStreamWriterOutput.moveToNextBatch();
+
+        long length = mStreamWriterOutput.length();
+        mStreamWriterOutput.writeTo(output);
+
+        assertEquals(output.size(), length);
+    }
+
+    public void testLength_textPoints_returnsUnknown() throws Exception {
+        MatrixCursor fakeCursor = new MatrixCursor(FRAMED_PROJECTION);
+        fakeCursor.addRow(new Object[]{0, fakeMetaData, fakeData, null, null, null});
+        whenQueried(fakeCursor);
+
+        mStreamWriterOutput.moveToNextBatch();
+
+        assertEquals(-1, mStreamWriterOutput.length());
+    }
+
+    public void testLength_gzip_returnsUnknown() throws Exception {
+        byte[] point = StreamContentProvider.encodePoint(fakeData, fakeMetaData);
+        MatrixCursor fakeCursor = new MatrixCursor(FRAMED_PROJECTION);
+        fakeCursor.addRow(new Object[]{0, null, null, point, point.length, null});
+        whenQueried(fakeCursor);
+        mStreamWriterOutput.setGzip(true);
+
+        mStreamWriterOutput.moveToNextBatch();
+
+        assertEquals(-1, mStreamWriterOutput.length());
+    }
+
+    public void testWriteTo_framedAndTextPoints_writesPointsJson() throws Exception {
+        byte[] point = StreamContentProvider.encodePoint(fakeData, fakeMetaData);
+        MatrixCursor fakeCursor = new MatrixCursor(FRAMED_PROJECTION);
+        fakeCursor.addRow(new Object[]{0, fakeMetaData, fakeData, null, null, null});
+        fakeCursor.addRow(new Object[]{1, null, null, point, point.length, null});
+        whenQueried(fakeCursor);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        mStreamWriterOutput.moveToNextBatch();
+
+        mStreamWriterOutput.writeTo(output);
+
+        Object[] streams = gson.fromJson(output.toString("UTF-8"), Object[].class);
+        assertEquals(2, streams.length);
+        for (Object stream : streams) {
+            LinkedTreeMap pointStream = (LinkedTreeMap) stream;
+            assertEquals(fakeData, gson.toJson(pointStream.get("data")));
+            assertEquals(fakeMetaData, gson.toJson(pointStream.get("meta_data")));
+        }
+    }
+
+    public void testWriteTo_sharedMetadata_joinsMetadataBackTogether() throws Exception {
+        MatrixCursor fakeCursor = new MatrixCursor(FRAMED_PROJECTION);
+        fakeCursor.addRow(new Object[]{0, "{\"id\":\"a\"}", fakeData, null, null, 7L});
+        fakeCursor.addRow(new Object[]{1, "{}", fakeData, null, null, 7L});
+        whenQueried(fakeCursor);
+        MatrixCursor sharedCursor = new MatrixCursor(new String[]{SharedMetadata.METADATA});
+        sharedCursor.addRow(new Object[]{"{\"device\":\"\u00e9\"}"});
+        when(fakeContentProviderClient.query(eq(SharedMetadata.CONTENT_URI), any(String[].class),
+                anyString(), any(String[].class), anyString())).thenReturn(sharedCursor);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        mStreamWriterOutput.moveToNextBatch();
+
+        mStreamWriterOutput.writeTo(output);
+
+        assertEquals("[{\"data\":{},\"meta_data\":{\"id\":\"a\",\"device\":\"\u00e9\"}},"
+                     + "{\"data\":{},\"meta_data\":{\"device\":\"\u00e9\"}}]",
+                output.toString("UTF-8"));
+        verify(fakeContentProviderClient, times(1)).query(eq(SharedMetadata.CONTENT_URI),
+                any(String[].class), anyString(), any(String[].class), anyString());
+    }
+
+    public void testWriteTo_afterRestartBatch_writesSameBatchAgain() throws Exception {
+        MatrixCursor fakeCursor = new MatrixCursor(FRAMED_PROJECTION);
+        for (int i = 0; i < 10; i++) {
+            fakeCursor.addRow(new Object[]{i, fakeMetaData, fakeData, null, null, null});
+        }
+        whenQueried(fakeCursor);
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        mStreamWriterOutput.moveToNextBatch();
+        mStreamWriterOutput.writeTo(first);
+
+        mStreamWriterOutput.restartBatch();
+        mStreamWriterOutput.writeTo(second);
+
+        assertEquals(first.toString("UTF-8"), second.toString("UTF-8"));
+    }
+
+    /**
+     * Makes {@link StreamWriterOutput#query(String, Stream)} read its first page from the cursor
+     */
+    private void whenQueried(Cursor cursor) throws Exception {
+        when(fakeContentProviderClient.query(any(Uri.class), any(String[].class), anyString(),
+                any(String[].class), anyString())).thenReturn(cursor);
+        mStreamWriterOutput.query("fakeName", new Stream("fakeId", 0));
+    }
+
+    /**
+     * Makes every column of every point read from the cursor have the given value
+     */
+    private void whenPointsHave(Cursor fakeCursor, final String value) {
+        when(fakeCursor.getString(anyInt())).thenReturn(value);
+        doAnswer(new Answer<Void>() {
+            @Override public Void answer(InvocationOnMock invocation) throws Throwable {
+                CharArrayBuffer buffer = (CharArrayBuffer) invocation.getArguments()[1];
+                buffer.data = value.toCharArray();
+                buffer.sizeCopied = value.length();
+                return null;
+            }
+        }).when(fakeCursor).copyStringToBuffer(anyInt(), any(CharArrayBuffer.class));
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
 }
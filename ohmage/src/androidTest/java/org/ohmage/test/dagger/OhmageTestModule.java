@@ -52,9 +52,14 @@ import org.ohmage.prompts.PromptFragment;
 import org.ohmage.provider.ContentProviderReader;
 import org.ohmage.provider.StreamContentProvider;
 import org.ohmage.sync.OhmageSyncAdapter;
+import org.ohmage.sync.ResponseBatchUploadTest;
 import org.ohmage.sync.ResponseSyncAdapter;
+import org.ohmage.sync.ResponseSyncAdapterTest;
+import org.ohmage.sync.ResponseUploadBenchmarkTest;
 import org.ohmage.sync.StreamSyncAdapter;
 import org.ohmage.sync.StreamSyncAdapterTest;
+import org.ohmage.sync.StreamSyncPipelineBenchmarkTest;
+import org.ohmage.sync.StreamUploadLedgerTest;
 import org.ohmage.tasks.LogoutTaskFragment;
 
 import javax.inject.Singleton;
@@ -70,6 +75,11 @@ import static org.mockito.Mockito.mock;
                 MainActivityTest.class,
                 AuthenticatorTest.class,
                 StreamSyncAdapterTest.class,
+                StreamSyncPipelineBenchmarkTest.class,
+                StreamUploadLedgerTest.class,
+                ResponseSyncAdapterTest.class,
+                ResponseUploadBenchmarkTest.class,
+                ResponseBatchUploadTest.class,
                 MainActivityOhmletsTest.class,
 
                 MainActivity.class,
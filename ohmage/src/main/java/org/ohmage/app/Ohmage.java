@@ -21,6 +21,7 @@ import android.app.Application;
 import org.ohmage.dagger.AndroidModule;
 import org.ohmage.dagger.OhmageModule;
 import org.ohmage.provider.OhmageContract;
+import org.ohmage.provider.StreamQuota;
 import org.ohmage.reminders.glue.TriggerFramework;
 
 import java.util.Arrays;
@@ -48,6 +49,143 @@ public class Ohmage extends Application {
      */
     public static final boolean USE_DSU_DATAPOINTS_API = true;
 
+    /**
+     * Compress stream uploads with gzip. The server must accept gzip content encoding for this to
+     * be turned on.
+     */
+    public static final boolean GZIP_STREAM_UPLOADS = false;
+
+    /**
+     * Read and encode the next batch of stream points while the current batch is uploading
+     */
+    public static final boolean PIPELINE_STREAM_UPLOADS = false;
+
+    /**
+     * Tune the size of stream upload batches for each stream from how well recent batches uploaded
+     */
+    public static final boolean ADAPTIVE_STREAM_BATCHES = false;
+
+    /**
+     * The number of streams which are uploaded at the same time. If this is 1, streams are
+     * uploaded one after the other.
+     */
+    public static final int STREAM_UPLOAD_CONCURRENCY = 1;
+
+    /**
+     * Store new stream points as a single UTF-8 blob which can be uploaded without decoding it
+     */
+    public static final boolean STORE_FRAMED_STREAM_POINTS = false;
+
+    /**
+     * Record stream batches in a ledger while they are uploading so a batch isn't sent as new
+     * points again if the sync is killed before it is deleted
+     */
+    public static final boolean STREAM_UPLOAD_LEDGER = false;
+
+    /**
+     * Store the metadata fields most points of a stream share once in a dictionary, and only the
+     * fields which change with every point with each point
+     */
+    public static final boolean DEDUPLICATE_STREAM_METADATA = false;
+
+    /**
+     * What to do when the stream points waiting to be uploaded go over the quota
+     */
+    public static final StreamQuota.Policy STREAM_QUOTA_POLICY = StreamQuota.Policy.OLDEST_FIRST;
+
+    /**
+     * The most points and bytes each stream can have waiting to be uploaded. 0 means no limit.
+     */
+    public static final long STREAM_QUOTA_MAX_STREAM_ROWS = 0;
+
+    public static final long STREAM_QUOTA_MAX_STREAM_BYTES = 0;
+
+    /**
+     * The most points and bytes all streams together can have waiting to be uploaded. 0 means no
+     * limit.
+     */
+    public static final long STREAM_QUOTA_MAX_ROWS = 0;
+
+    public static final long STREAM_QUOTA_MAX_BYTES = 0;
+
+    /**
+     * Insert stream points from all callers together on a single writer thread, committing once
+     * {@link #GROUP_COMMIT_MAX_ROWS} points are waiting or the oldest has waited
+     * {@link #GROUP_COMMIT_MAX_DELAY_MS}
+     */
+    public static final boolean GROUP_COMMIT_STREAM_INSERTS = false;
+
+    public static final long GROUP_COMMIT_MAX_DELAY_MS = 50;
+
+    public static final int GROUP_COMMIT_MAX_ROWS = 500;
+
+    /**
+     * The most inserts which can wait for the group commit writer. Callers block once this many
+     * are waiting.
+     */
+    public static final int GROUP_COMMIT_MAX_QUEUED = 1000;
+
+    /**
+     * Store stream points in append only memory mapped segment files instead of the database
+     */
+    public static final boolean SEGMENT_STREAM_STORE = false;
+
+    /**
+     * Change notifications for stream points are merged and sent at most once per window. 0 sends
+     * a notification for every insert and delete.
+     */
+    public static final long STREAM_NOTIFICATION_WINDOW_MS = 0;
+
+    /**
+     * Limit how fast the stream receiver accepts points for each stream. Streams which don't set
+     * their own limits in their definition use the defaults for their priority.
+     */
+    public static final boolean STREAM_INGEST_LIMITS = false;
+
+    public static final double STREAM_INGEST_NORMAL_RATE = 50;
+
+    public static final int STREAM_INGEST_NORMAL_BURST = 500;
+
+    public static final double STREAM_INGEST_BULK_RATE = 10;
+
+    public static final int STREAM_INGEST_BULK_BURST = 100;
+
+    /**
+     * The points per second and burst normal and bulk streams can send together
+     */
+    public static final double STREAM_INGEST_SHARED_RATE = 200;
+
+    public static final int STREAM_INGEST_SHARED_BURST = 2000;
+
+    /**
+     * The number of survey responses uploaded at once
+     */
+    public static final int RESPONSE_UPLOAD_WINDOW = 4;
+
+    /**
+     * The most survey responses without media which are packed into one upload. Setting this to 1
+     * uploads each response on its own. Only used with the DSU data points api.
+     */
+    public static final int RESPONSE_UPLOAD_BATCH_SIZE = 1;
+
+    /**
+     * Upload response media a chunk at a time so failed uploads can resume where they stopped.
+     * Only used with the DSU data points api.
+     */
+    public static final boolean RESUMABLE_MEDIA_UPLOADS = false;
+
+    public static final int MEDIA_UPLOAD_CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * The largest side of images taken for an image prompt which doesn't set a max dimension
+     */
+    public static final int IMAGE_MAX_DIMENSION = 1600;
+
+    /**
+     * The jpeg quality images taken for an image prompt are saved with
+     */
+    public static final int IMAGE_JPEG_QUALITY = 85;
+
     /**
      * Static reference to self
      */
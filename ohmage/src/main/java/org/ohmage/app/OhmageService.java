@@ -27,9 +27,13 @@ import org.ohmage.models.Stream;
 import org.ohmage.models.Survey;
 import org.ohmage.models.Surveys;
 import org.ohmage.models.User;
+import org.ohmage.sync.ChunkedMediaUploader;
+import org.ohmage.sync.DataPointBatchTypedOutput;
 import org.ohmage.sync.DataPointTypedOutput;
+import org.ohmage.sync.FileChunkTypedOutput;
 import org.ohmage.sync.ResponseTypedOutput;
 import org.ohmage.sync.StreamWriterOutput;
+import org.ohmage.sync.StreamWriterOutput.EncodedBatch;
 
 import java.util.Collection;
 import java.util.List;
@@ -41,8 +45,10 @@ import retrofit.http.DELETE;
 import retrofit.http.Field;
 import retrofit.http.FormUrlEncoded;
 import retrofit.http.GET;
+import retrofit.http.Header;
 import retrofit.http.Headers;
 import retrofit.http.POST;
+import retrofit.http.PUT;
 import retrofit.http.Path;
 import retrofit.http.Query;
 import rx.Observable;
@@ -134,6 +140,19 @@ public interface OhmageService {
             @Path("streamVersion") long streamVersion, @Body StreamWriterOutput data)
             throws AuthenticationException;
 
+    @POST("/streams/{streamId}/{streamVersion}/data")
+    Response uploadStreamData(@Path("streamId") String streamId,
+            @Path("streamVersion") long streamVersion,
+            @Header("Content-Encoding") String contentEncoding, @Body StreamWriterOutput data)
+            throws AuthenticationException;
+
+    @POST("/streams/{streamId}/{streamVersion}/data")
+    Response uploadStreamData(@Path("streamId") String streamId,
+            @Path("streamVersion") long streamVersion,
+            @Header("Content-Encoding") String contentEncoding,
+            @Header("Idempotency-Key") String batchId, @Body EncodedBatch data)
+            throws AuthenticationException;
+
     // *** START OMH-DSU *** //
     @Headers(AuthUtil.OMH_AUTH_HEADER)
     @GET("/google-signin") AccessToken getAccessTokenWithCode(@Query("code") String code,
@@ -152,6 +171,21 @@ public interface OhmageService {
     Observable<Response> uploadDataPoint(@Body DataPointTypedOutput data)
             throws AuthenticationException;
 
+    /**
+     * Uploads many data points without media at once. The server replies with a json array which
+     * has a {@code {"id":..., "status":...}} result for each data point.
+     */
+    @POST("/dataPoints/batch")
+    Observable<Response> uploadDataPoints(@Body DataPointBatchTypedOutput data)
+            throws AuthenticationException;
+
+    /**
+     * Uploads one chunk of a media file. See {@link ChunkedMediaUploader} for the replies.
+     */
+    @PUT("/media/{id}")
+    Response uploadMedia(@Path("id") String id, @Header("Content-Range") String range,
+            @Body FileChunkTypedOutput chunk) throws AuthenticationException;
+
     // *** END OMH-DSU *** //
     public abstract static class CancelableCallback<T> implements Callback<T> {
 
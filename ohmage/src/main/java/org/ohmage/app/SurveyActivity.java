@@ -51,9 +51,12 @@ import com.google.android.gms.location.LocationClient;
 import com.google.android.gms.location.LocationListener;
 import com.google.android.gms.location.LocationRequest;
 import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.google.gson.reflect.TypeToken;
 import com.viewpagerindicator.CirclePageIndicator;
 
+import org.joda.time.format.ISODateTimeFormat;
 import org.ohmage.condition.Condition;
 import org.ohmage.condition.NoResponse;
 import org.ohmage.dagger.InjectedActionBarActivity;
@@ -258,16 +261,32 @@ public class SurveyActivity extends InjectedActionBarActivity
         ContentValues values = new ContentValues();
         values.put(Responses.SURVEY_ID, Surveys.getId(getIntent().getData()));
         values.put(Responses.SURVEY_VERSION, Surveys.getVersion(getIntent().getData()));
-        values.put(Responses.RESPONSE_METADATA,
-                new StreamPointBuilder().now().withId()
-                        .withLocation(mLocationClient.getLastLocation())
-                        .getMetadata()
-        );
+        String metadata = new StreamPointBuilder().now().withId()
+                .withLocation(mLocationClient.getLastLocation())
+                .getMetadata();
+        values.put(Responses.RESPONSE_METADATA, metadata);
+        putHeaderColumns(values, metadata);
         mPagerAdapter.buildResponse(values);
         getContentResolver().insert(Responses.CONTENT_URI, values);
         finish();
     }
 
+    /**
+     * Copies the id and timestamp from the metadata into their own columns so the sync adapter can
+     * build the data point header without parsing the metadata again
+     *
+     * @param values
+     * @param metadata
+     */
+    static void putHeaderColumns(ContentValues values, String metadata) {
+        JsonObject json = new JsonParser().parse(metadata).getAsJsonObject();
+        String timestamp = json.get("timestamp").getAsString();
+        values.put(Responses.RESPONSE_ID, json.get("id").getAsString());
+        values.put(Responses.RESPONSE_TIMESTAMP, timestamp);
+        values.put(Responses.RESPONSE_TIME,
+                ISODateTimeFormat.dateTimeParser().parseMillis(timestamp));
+    }
+
     @Override public void onConnected(Bundle bundle) {
         mLocationClient.requestLocationUpdates(REQUEST, new LocationListener() {
             @Override public void onLocationChanged(Location location) {
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2015 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.helper;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Scales images from the camera without decoding them at full size. Images are first decoded with
+ * the largest power of two {@link BitmapFactory.Options#inSampleSize} which keeps them at least as
+ * big as needed, then scaled the rest of the way. The exif orientation is applied to the pixels
+ * since it is lost when the image is compressed again.
+ * <p/>
+ * These methods do disk io and decode images, so they should not be called on the main thread.
+ */
+public class ImageScaler {
+
+    private static final String TAG = ImageScaler.class.getSimpleName();
+
+    private ImageScaler() {
+    }
+
+    /**
+     * Finds the largest power of two sample size which keeps the image at least as large as the
+     * requested size in both dimensions.
+     *
+     * @param width     the width of the image
+     * @param height    the height of the image
+     * @param reqWidth  the smallest width needed
+     * @param reqHeight the smallest height needed
+     * @return the sample size to decode with
+     */
+    public static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int inSampleSize = 1;
+        while (width / (inSampleSize * 2) >= reqWidth && height / (inSampleSize * 2) >= reqHeight) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    /**
+     * Decodes an image to show as a preview. The image is sampled down so it is not much larger
+     * than the size given, but it is not scaled exactly to that size.
+     *
+     * @param file      the image file
+     * @param reqWidth  the width of the view showing the image
+     * @param reqHeight the height of the view showing the image
+     * @return the bitmap, or null if the file couldn't be decoded
+     */
+    public static Bitmap decodePreview(File file, int reqWidth, int reqHeight) {
+        BitmapFactory.Options options = readBounds(file);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight,
+                Math.max(reqWidth, 1), Math.max(reqHeight, 1));
+        options.inJustDecodeBounds = false;
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        if (bitmap == null)
+            return null;
+        return transform(bitmap, readRotation(file), 1);
+    }
+
+    /**
+     * Replaces an image with a copy whose largest side is at most {@code maxDimension}, compressed
+     * as a jpeg. Images which are already small enough are still compressed again. If the image
+     * can't be decoded it is left as it is.
+     *
+     * @param file         the image file
+     * @param maxDimension the largest the width or height of the copy can be
+     * @param quality      the jpeg quality from 0 to 100
+     * @return true if the image was replaced
+     */
+    public static boolean scaleInPlace(File file, int maxDimension, int quality) {
+        BitmapFactory.Options options = readBounds(file);
+        int largest = Math.max(options.outWidth, options.outHeight);
+        if (largest <= 0)
+            return false;
+
+        // Sample on the largest side so a portrait image isn't decoded bigger than needed
+        int target = Math.min(maxDimension, largest);
+        options.inSampleSize = calculateInSampleSize(largest, largest, target, target);
+        options.inJustDecodeBounds = false;
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        if (bitmap == null)
+            return false;
+
+        float scale = (float) target / Math.max(bitmap.getWidth(), bitmap.getHeight());
+        bitmap = transform(bitmap, readRotation(file), scale);
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out))
+                return false;
+            out.close();
+            out = null;
+            return tmp.renameTo(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write scaled image", e);
+            return false;
+        } finally {
+            bitmap.recycle();
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+            tmp.delete();
+        }
+    }
+
+    private static BitmapFactory.Options readBounds(File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        return options;
+    }
+
+    /**
+     * @return the clockwise rotation in degrees from the exif orientation of the image
+     */
+    private static int readRotation(File file) {
+        try {
+            switch (new ExifInterface(file.getAbsolutePath()).getAttributeInt(
+                    ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL)) {
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    return 90;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    return 180;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    return 270;
+                default:
+                    return 0;
+            }
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Rotates and scales a bitmap, recycling the original if a new bitmap was made
+     */
+    private static Bitmap transform(Bitmap bitmap, int rotation, float scale) {
+        if (rotation == 0 && scale >= 1)
+            return bitmap;
+
+        Matrix matrix = new Matrix();
+        if (scale < 1)
+            matrix.postScale(scale, scale);
+        matrix.postRotate(rotation);
+        Bitmap transformed = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(),
+                bitmap.getHeight(), matrix, true);
+        if (transformed != bitmap)
+            bitmap.recycle();
+        return transformed;
+    }
+}
@@ -53,6 +53,11 @@ public class Stream implements Savable, Readable, Syncable {
 
     public String description;
 
+    /**
+     * Limits on how fast points for this stream are accepted, or null to use the defaults
+     */
+    public IngestLimits ingest;
+
     public Stream(String schemaId, long schemaVersion) {
         this.schemaId = schemaId;
         this.schemaVersion = schemaVersion;
@@ -68,6 +73,8 @@ public class Stream implements Savable, Readable, Syncable {
         values.put(OhmageContract.Streams.STREAM_NAME, name);
         values.put(OhmageContract.Streams.STREAM_DESCRIPTION, description);
         values.put(OhmageContract.Streams.STREAM_APP, saver.gson().toJson(app));
+        values.put(OhmageContract.Streams.STREAM_INGEST,
+                ingest == null ? null : saver.gson().toJson(ingest));
         return values;
     }
 
@@ -93,6 +100,60 @@ public class Stream implements Savable, Readable, Syncable {
         name = cursor.getString(2);
         description = cursor.getString(3);
         app = gson.fromJson(cursor.getString(4), RemoteApp.class);
+        if (cursor.getColumnCount() > 5 && !cursor.isNull(5))
+            ingest = gson.fromJson(cursor.getString(5), IngestLimits.class);
+    }
+
+    /**
+     * How fast the points of a stream are accepted from the stream app. Points sent faster than
+     * {@link #rate} once the {@link #burst} is used up are over the limit.
+     */
+    public static class IngestLimits {
+
+        public enum Priority {
+            /**
+             * Never limited by the points other streams send
+             */
+            CRITICAL,
+
+            NORMAL,
+
+            /**
+             * Limited first when many points are being sent
+             */
+            BULK
+        }
+
+        /**
+         * What happens to points over the limit
+         */
+        public enum OverLimit {
+            DROP,
+
+            /**
+             * Keep one of every {@link #keepOneIn} points
+             */
+            DOWNSAMPLE
+        }
+
+        public Priority priority;
+
+        /**
+         * Points per second, or 0 to use the default for the priority
+         */
+        public double rate;
+
+        /**
+         * The most points which can be sent at once, or 0 to use the default for the priority
+         */
+        public int burst;
+
+        public OverLimit overLimit;
+
+        /**
+         * When downsampling, one of this many points over the limit is kept
+         */
+        public int keepOneIn;
     }
 
     public static class RemoteApp {
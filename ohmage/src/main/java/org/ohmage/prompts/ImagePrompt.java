@@ -19,8 +19,8 @@ package org.ohmage.prompts;
 import android.app.Activity;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.provider.MediaStore;
 import android.view.LayoutInflater;
@@ -29,7 +29,9 @@ import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.ImageView;
 
+import org.ohmage.app.Ohmage;
 import org.ohmage.app.R;
+import org.ohmage.helper.ImageScaler;
 
 import java.io.File;
 
@@ -49,6 +51,7 @@ public class ImagePrompt extends MediaPrompt {
     public static class ImagePromptFragment extends PromptLauncherFragment<ImagePrompt> {
 
         private static final int REQUEST_CODE = 0;
+        private static final int PREVIEW_HEIGHT = 300;
         private File mFile;
 
         public static ImagePromptFragment getInstance(ImagePrompt prompt) {
@@ -80,12 +83,53 @@ public class ImagePrompt extends MediaPrompt {
         @Override public void onActivityResult(int requestCode, int resultCode, Intent data) {
             super.onActivityResult(requestCode, resultCode, data);
             if (resultCode == Activity.RESULT_OK) {
-                //TODO: resize image
-                setValue(mFile);
-                Bitmap bitmap = BitmapFactory.decodeFile(mFile.getAbsolutePath());
                 ImageView imgView = (ImageView) this.getView().findViewById(R.id.img);
-                imgView.getLayoutParams().height = 300;
+                imgView.getLayoutParams().height = PREVIEW_HEIGHT;
                 imgView.requestLayout();
+                new ScaleImageTask(mFile, getMaxDimension(), imgView.getWidth()).execute();
+            }
+        }
+
+        private int getMaxDimension() {
+            long maxDimension = getPrompt().maxDimension;
+            if (maxDimension <= 0 || maxDimension > Integer.MAX_VALUE)
+                return Ohmage.IMAGE_MAX_DIMENSION;
+            return (int) maxDimension;
+        }
+
+        /**
+         * Scales the image down for uploading and decodes a small preview of it. The value is set
+         * once the image has been scaled so the full size image is never uploaded.
+         */
+        private class ScaleImageTask extends AsyncTask<Void, Void, Bitmap> {
+            private final File mImage;
+
+            private final int mMaxDimension;
+
+            private final int mPreviewWidth;
+
+            public ScaleImageTask(File image, int maxDimension, int previewWidth) {
+                mImage = image;
+                mMaxDimension = maxDimension;
+                mPreviewWidth = previewWidth;
+            }
+
+            @Override protected Bitmap doInBackground(Void... params) {
+                ImageScaler.scaleInPlace(mImage, mMaxDimension, Ohmage.IMAGE_JPEG_QUALITY);
+                return ImageScaler.decodePreview(mImage, mPreviewWidth, PREVIEW_HEIGHT);
+            }
+
+            @Override protected void onPostExecute(Bitmap bitmap) {
+                // The prompt may have been skipped while the image was scaled
+                if (mImage != mFile)
+                    return;
+
+                setValue(mImage);
+
+                // The view is gone if the prompt was closed, but the image is still the answer
+                if (getView() == null)
+                    return;
+                ImageView imgView = (ImageView) getView().findViewById(R.id.img);
                 imgView.setImageBitmap(bitmap);
             }
         }
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.provider;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Merges change notifications for the same uri. The first change to a uri starts a window of
+ * {@code windowMs}, and every uri which changed during the window is notified once when it ends.
+ * While points are inserted many times a second, observers and loaders are only woken up once per
+ * window instead of once per insert.
+ * <p/>
+ * With a window of 0 every change is notified right away.
+ */
+public class ChangeNotificationCoalescer {
+
+    private final ContentResolver mResolver;
+
+    private final Handler mHandler;
+
+    private final long mWindowMs;
+
+    /**
+     * The uris which changed during the current window
+     */
+    private final Set<Uri> mPending = new LinkedHashSet<Uri>();
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param resolver the resolver to notify
+     * @param looper   the looper the notifications are sent from when a window ends
+     * @param windowMs how long changes are merged for
+     */
+    public ChangeNotificationCoalescer(ContentResolver resolver, Looper looper, long windowMs) {
+        mResolver = resolver;
+        mHandler = new Handler(looper);
+        mWindowMs = windowMs;
+    }
+
+    /**
+     * Notifies observers of the uri once the current window ends
+     *
+     * @param uri
+     */
+    public void notifyChange(Uri uri) {
+        if (mWindowMs <= 0) {
+            mResolver.notifyChange(uri, null, false);
+            return;
+        }
+
+        synchronized (this) {
+            if (mPending.isEmpty())
+                mHandler.postDelayed(mFlush, mWindowMs);
+            mPending.add(uri);
+        }
+    }
+
+    /**
+     * Sends the notifications for all the uris which changed during the current window right away
+     */
+    public void flush() {
+        List<Uri> uris;
+        synchronized (this) {
+            if (mPending.isEmpty())
+                return;
+            mHandler.removeCallbacks(mFlush);
+            uris = new ArrayList<Uri>(mPending);
+            mPending.clear();
+        }
+
+        for (Uri uri : uris) {
+            mResolver.notifyChange(uri, null, false);
+        }
+    }
+}
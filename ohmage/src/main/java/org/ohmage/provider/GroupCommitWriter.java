@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.provider;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inserts points from all callers on a single writer thread. Points are queued and committed
+ * together in one transaction once {@code maxRows} points are waiting or the oldest has waited
+ * {@code maxDelayMs}, so many producers inserting a few points each share one transaction and one
+ * sync to disk instead of each waiting for their own.
+ * <p/>
+ * Callers can return as soon as their points are queued, or wait until they are committed. At most
+ * {@code maxQueued} inserts can be waiting, after which callers block until the writer catches up.
+ * <p/>
+ * {@link #close()} stops the writer thread and commits whatever is still queued. Points written
+ * after that are committed right away on the caller's thread.
+ */
+public class GroupCommitWriter {
+
+    private static final String TAG = GroupCommitWriter.class.getSimpleName();
+
+    /**
+     * Does the work of inserting points for the writer
+     */
+    public interface Target {
+
+        /**
+         * Inserts a point in the open transaction
+         *
+         * @param db
+         * @param values
+         * @return true if the point was inserted
+         */
+        boolean insert(SQLiteDatabase db, ContentValues values);
+
+        /**
+         * Called on the writer thread after a group of points has been committed
+         *
+         * @param count the number of points which were inserted
+         */
+        void onCommitted(int count);
+
+        /**
+         * Called on the writer thread after a group of points failed to commit, so anything
+         * counted while the points were inserted can be forgotten
+         */
+        void onRolledBack();
+    }
+
+    private final BlockingQueue<Request> mQueue;
+
+    private final SQLiteOpenHelper mDbHelper;
+
+    private final Target mTarget;
+
+    private final long mMaxDelayMs;
+
+    private final int mMaxRows;
+
+    private Thread mThread;
+
+    /**
+     * True once {@link #close()} has been called
+     */
+    private boolean mClosed;
+
+    /**
+     * @param dbHelper   the database to insert points into
+     * @param target     inserts each point
+     * @param maxDelayMs the longest the first point of a group waits before it is committed
+     * @param maxRows    a group is committed as soon as it has this many points
+     * @param maxQueued  the most inserts which can wait to be committed
+     */
+    public GroupCommitWriter(SQLiteOpenHelper dbHelper, Target target, long maxDelayMs,
+            int maxRows, int maxQueued) {
+        mQueue = new LinkedBlockingQueue<Request>(maxQueued);
+        mDbHelper = dbHelper;
+        mTarget = target;
+        mMaxDelayMs = maxDelayMs;
+        mMaxRows = maxRows;
+    }
+
+    /**
+     * Queues points to be inserted with the next group. If the queue is full this blocks until
+     * there is room.
+     *
+     * @param values  the points
+     * @param durable if true, wait until the points are committed
+     * @return the number of points inserted if durable, otherwise the number of points queued
+     */
+    public int write(ContentValues[] values, boolean durable) {
+        if (values.length == 0)
+            return 0;
+
+        Request request = new Request(values, durable);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mQueue.put(request);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        // Started after the request is queued, so a writer which stopped with an empty queue is
+        // always started again for it
+        start();
+
+        while (durable) {
+            try {
+                request.done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        if (!durable)
+            return values.length;
+        if (request.error instanceof RuntimeException)
+            throw (RuntimeException) request.error;
+        if (request.error instanceof Error)
+            throw (Error) request.error;
+        if (request.error != null)
+            throw new RuntimeException(request.error);
+        return request.count;
+    }
+
+    /**
+     * Stops the writer thread and commits the points which are still queued before returning, so
+     * callers which didn't wait for their points don't lose them. The writer can still be used
+     * after it is closed, but each write is committed on its own.
+     */
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            mClosed = true;
+            thread = mThread;
+        }
+
+        boolean interrupted = false;
+        if (thread != null) {
+            // The writer commits the group it has started before it stops
+            thread.interrupt();
+            while (true) {
+                try {
+                    thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        drain();
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void start() {
+        synchronized (this) {
+            if (!mClosed) {
+                if (mThread == null)
+                    startThread();
+                return;
+            }
+        }
+        drain();
+    }
+
+    private void startThread() {
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeGroups();
+                } finally {
+                    stopped();
+                }
+            }
+        }, TAG);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Clears the writer thread so the next write starts a new one, and starts one now if requests
+     * were queued after the writer stopped taking them. Once the writer is closed the queue is
+     * committed by {@link #close()} instead.
+     */
+    private synchronized void stopped() {
+        mThread = null;
+        if (!mClosed && !mQueue.isEmpty())
+            startThread();
+    }
+
+    /**
+     * Commits everything in the queue on the calling thread
+     */
+    private void drain() {
+        List<Request> group = new ArrayList<Request>();
+        mQueue.drainTo(group);
+        commit(group);
+    }
+
+    private void writeGroups() {
+        List<Request> group = new ArrayList<Request>();
+        while (true) {
+            try {
+                Request first = mQueue.take();
+                group.add(first);
+                int rows = first.values.length;
+
+                long deadline = SystemClock.uptimeMillis() + mMaxDelayMs;
+                while (rows < mMaxRows) {
+                    long wait = deadline - SystemClock.uptimeMillis();
+                    Request next = wait > 0 ? mQueue.poll(wait, TimeUnit.MILLISECONDS)
+                                            : mQueue.poll();
+                    if (next == null)
+                        break;
+                    group.add(next);
+                    rows += next.values.length;
+                }
+            } catch (InterruptedException e) {
+                commit(group);
+                return;
+            }
+
+            commit(group);
+            group.clear();
+        }
+    }
+
+    /**
+     * Inserts a group of requests in a single transaction. If the transaction fails, none of the
+     * points are inserted and every waiting caller gets the error.
+     */
+    private void commit(List<Request> group) {
+        if (group.isEmpty())
+            return;
+
+        int count = 0;
+        Throwable error = null;
+        try {
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (Request request : group) {
+                    for (ContentValues values : request.values) {
+                        if (mTarget.insert(db, values))
+                            request.count++;
+                    }
+                    count += request.count;
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (Throwable e) {
+            // Anything thrown must still release the waiting callers
+            Log.e(TAG, "Failed to commit " + group.size() + " inserts", e);
+            error = e;
+            count = 0;
+        }
+
+        if (error != null) {
+            try {
+                mTarget.onRolledBack();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to roll back " + group.size() + " inserts", e);
+            }
+        }
+
+        for (Request request : group) {
+            if (error != null) {
+                request.error = error;
+                request.count = 0;
+            }
+            if (request.done != null)
+                request.done.countDown();
+        }
+
+        if (count > 0)
+            mTarget.onCommitted(count);
+    }
+
+    private static class Request {
+        final ContentValues[] values;
+
+        /**
+         * Counted down when the request is committed, or null if nobody is waiting for it
+         */
+        final CountDownLatch done;
+
+        int count;
+
+        Throwable error;
+
+        Request(ContentValues[] values, boolean durable) {
+            this.values = values;
+            this.done = durable ? new CountDownLatch(1) : null;
+        }
+    }
+}
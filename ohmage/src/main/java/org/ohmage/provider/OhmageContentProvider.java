@@ -137,7 +137,7 @@ public class OhmageContentProvider extends ContentProvider {
 
     @Override
     public boolean onCreate() {
-        dbHelper = new OhmageDbHelper(getContext());
+        dbHelper = OhmageDbHelper.getInstance(getContext());
         return true;
     }
 
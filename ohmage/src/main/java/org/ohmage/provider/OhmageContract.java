@@ -207,6 +207,11 @@ public class OhmageContract {
          * The application for this stream
          */
         String STREAM_APP = "stream_app";
+
+        /**
+         * The limits on how fast points for this stream are accepted, as json
+         */
+        String STREAM_INGEST = "stream_ingest";
     }
 
     private static final String PATH_STREAMS = "streams";
@@ -231,7 +236,8 @@ public class OhmageContract {
         }
 
         public static final String[] DEFAULT_PROJECTION = new String[]{
-                STREAM_ID, STREAM_VERSION, STREAM_NAME, STREAM_DESCRIPTION, STREAM_APP
+                STREAM_ID, STREAM_VERSION, STREAM_NAME, STREAM_DESCRIPTION, STREAM_APP,
+                STREAM_INGEST
         };
 
         public static String getId(Uri uri) {
@@ -16,9 +16,11 @@
 
 package org.ohmage.provider;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.provider.BaseColumns;
 
 import org.ohmage.models.Ohmlet.PrivacyState;
@@ -27,13 +29,25 @@ import org.ohmage.provider.OhmageContract.Streams;
 import org.ohmage.provider.OhmageContract.Surveys;
 import org.ohmage.provider.ResponseContract.Responses;
 import org.ohmage.reminders.base.ReminderContract.Reminders;
-import org.ohmage.streams.StreamContract;
 
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The database for ohmlets, streams, surveys and responses. Stream points are kept in the
+ * separate {@link StreamDbHelper} database so inserting them doesn't block reads of this one.
+ */
 public class OhmageDbHelper extends SQLiteOpenHelper {
 
-    private static final String DB_NAME = "ohmage.db";
+    static final String DB_NAME = "ohmage.db";
+
+    private static final int DB_VERSION = 42;
 
-    private static final int DB_VERSION = 37;
+    /**
+     * The helper for each database file, so everything in the process shares one connection
+     */
+    private static final Map<String, OhmageDbHelper> sInstances =
+            new HashMap<String, OhmageDbHelper>();
 
     public static final String SQL_AND = " AND %s='%s'";
 
@@ -42,11 +56,67 @@ public class OhmageDbHelper extends SQLiteOpenHelper {
         static final String Streams = "streams";
         static final String Surveys = "surveys";
         static final String Responses = "responses";
+        /**
+         * In the {@link StreamDbHelper} database
+         */
         static final String StreamData = "stream_data";
+        static final String StreamUploadLedger = "stream_upload_ledger";
+        static final String StreamCounts = "stream_counts";
+        static final String StreamMetadataDictionary = "stream_metadata_dictionary";
     }
 
+    private final String mPath;
+
     public OhmageDbHelper(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
+        mPath = context.getDatabasePath(DB_NAME).getPath();
+    }
+
+    /**
+     * Gets the helper shared by the whole process. The context should live as long as the
+     * process, like the application or a content provider context.
+     *
+     * @param context
+     * @return the helper for the database
+     */
+    public static synchronized OhmageDbHelper getInstance(Context context) {
+        String path = context.getDatabasePath(DB_NAME).getPath();
+        OhmageDbHelper helper = sInstances.get(path);
+        if (helper == null) {
+            helper = new OhmageDbHelper(context);
+            sInstances.put(path, helper);
+        }
+        return helper;
+    }
+
+    /**
+     * Closes the database and stops sharing this helper
+     */
+    @Override
+    public synchronized void close() {
+        synchronized (OhmageDbHelper.class) {
+            if (sInstances.get(mPath) == this)
+                sInstances.remove(mPath);
+        }
+        super.close();
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        enableWriteAheadLogging(db);
+    }
+
+    /**
+     * Turns on write-ahead logging so reads don't wait for a write to finish, and a write doesn't
+     * wait for reads. It is only available on Honeycomb and above.
+     *
+     * @param db
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    static void enableWriteAheadLogging(SQLiteDatabase db) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && !db.isReadOnly())
+            db.enableWriteAheadLogging();
     }
 
     @Override
@@ -68,6 +138,7 @@ public class OhmageDbHelper extends SQLiteOpenHelper {
                    + Streams.STREAM_NAME + " TEXT NOT NULL, "
                    + Streams.STREAM_DESCRIPTION + " TEXT NOT NULL,"
                    + Streams.STREAM_APP + " TEXT NOT NULL,"
+                   + Streams.STREAM_INGEST + " TEXT,"
                    + "PRIMARY KEY (" + Streams.STREAM_ID + ", " + Streams.STREAM_VERSION + "));");
 
         db.execSQL("CREATE TABLE IF NOT EXISTS " + Tables.Surveys + " ("
@@ -86,15 +157,13 @@ public class OhmageDbHelper extends SQLiteOpenHelper {
                    + Responses.SURVEY_VERSION + " INTEGER NOT NULL, "
                    + Responses.RESPONSE_METADATA + " TEXT, "
                    + Responses.RESPONSE_EXTRAS + " TEXT, "
-                   + Responses.RESPONSE_DATA + " TEXT);");
+                   + Responses.RESPONSE_DATA + " TEXT, "
+                   + Responses.RESPONSE_ID + " TEXT, "
+                   + Responses.RESPONSE_TIMESTAMP + " TEXT, "
+                   + Responses.RESPONSE_TIME + " INTEGER);");
 
-        db.execSQL("CREATE TABLE IF NOT EXISTS " + Tables.StreamData + " ("
-                   + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
-                   + StreamContract.Streams.STREAM_ID + " TEXT NOT NULL, "
-                   + StreamContract.Streams.STREAM_VERSION + " INTEGER NOT NULL, "
-                   + StreamContract.Streams.USERNAME + " TEXT NOT NULL, "
-                   + StreamContract.Streams.STREAM_METADATA + " TEXT, "
-                   + StreamContract.Streams.STREAM_DATA + " TEXT);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + Tables.Responses + "_time ON "
+                   + Tables.Responses + " (" + Responses.RESPONSE_TIME + ");");
     }
 
     @Override
@@ -112,8 +181,25 @@ public class OhmageDbHelper extends SQLiteOpenHelper {
             db.execSQL("DROP TABLE IF EXISTS campaigns");
             db.execSQL("DROP TABLE IF EXISTS prompt_responses");
             db.execSQL("DROP TABLE IF EXISTS survey_prompts");
+        } else {
+            if (oldVersion < 41) {
+                db.execSQL("ALTER TABLE " + Tables.Streams + " ADD COLUMN "
+                           + Streams.STREAM_INGEST + " TEXT");
+            }
+            if (oldVersion < 42) {
+                // Responses saved before this version only have these fields in their metadata
+                db.execSQL("ALTER TABLE " + Tables.Responses + " ADD COLUMN "
+                           + Responses.RESPONSE_ID + " TEXT");
+                db.execSQL("ALTER TABLE " + Tables.Responses + " ADD COLUMN "
+                           + Responses.RESPONSE_TIMESTAMP + " TEXT");
+                db.execSQL("ALTER TABLE " + Tables.Responses + " ADD COLUMN "
+                           + Responses.RESPONSE_TIME + " INTEGER");
+            }
         }
 
+        // The stream data and upload ledger tables are left for the StreamDbHelper to copy the
+        // points which haven't been uploaded yet, then it drops them
+
         onCreate(db);
     }
 
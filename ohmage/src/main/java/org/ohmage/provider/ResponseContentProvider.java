@@ -108,7 +108,7 @@ public class ResponseContentProvider extends ContentProvider {
 
     @Override
     public boolean onCreate() {
-        dbHelper = new OhmageDbHelper(getContext());
+        dbHelper = OhmageDbHelper.getInstance(getContext());
         return true;
     }
 
@@ -121,7 +121,8 @@ public class ResponseContentProvider extends ContentProvider {
         switch (sUriMatcher.match(uri)) {
             case MatcherTypes.RESPONSES:
                 cursor = dbHelper.getReadableDatabase().query(Tables.Responses, projection,
-                        selection, selectionArgs, null, null, sortOrder);
+                        selection, selectionArgs, null, null, sortOrder,
+                        uri.getQueryParameter(Responses.QUERY_PARAMETER_LIMIT));
                 break;
             default:
                 throw new UnsupportedOperationException("query(): Unknown URI: " + uri);
@@ -54,6 +54,23 @@ public class ResponseContract {
          * Data of the response
          */
         String RESPONSE_DATA = "response_data";
+
+        /**
+         * Unique id of the response, the same as the id in the metadata
+         */
+        String RESPONSE_ID = "response_id";
+
+        /**
+         * Time the response was taken as an ISO 8601 string, the same as the timestamp in the
+         * metadata
+         */
+        String RESPONSE_TIMESTAMP = "response_timestamp";
+
+        /**
+         * Time the response was taken in milliseconds since the epoch. This column is indexed so
+         * responses can be queried by time range.
+         */
+        String RESPONSE_TIME = "response_time";
     }
 
     private static final String PATH_RESPONSES = "responses";
@@ -70,5 +87,10 @@ public class ResponseContract {
         public static final String CONTENT_ITEM_TYPE =
                 "vnd.android.cursor.dir/vnd.ohmage.responses.response";
 
+        /**
+         * Query parameter for the maximum number of responses to return
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
     }
 }
@@ -0,0 +1,524 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ohmage.provider;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * The points of one stream, kept in append only segment files which are memory mapped. Each
+ * record in a segment is the length of the point, its id, a CRC32 of the id and point, and then
+ * the framed point. The pages of a mapped file can reach the disk in any order, so after a crash
+ * a record can have its length without the rest. When a segment is opened it is read up to the
+ * first record whose id isn't the next one or whose checksum doesn't match, and everything after
+ * that is zeroed so it can't be mistaken for a record later.
+ * <p/>
+ * Appended points are only written to disk when a segment is full, when {@link #sync()} is
+ * called, or when the log is closed.
+ * <p/>
+ * Points are never changed in place. Deleting points which were uploaded records their range in a
+ * checkpoint file, and reads skip every point it covers. A segment file is deleted once all of
+ * its points have been deleted.
+ */
+class SegmentLog {
+
+    /**
+     * The length, id and checksum before each point
+     */
+    static final int HEADER_SIZE = 4 + 8 + 4;
+
+    static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final String CHECKPOINT = "checkpoint";
+
+    /**
+     * Called for each point read from the log
+     */
+    interface Reader {
+
+        /**
+         * @param id     the id of the point
+         * @param buffer the segment the point is in
+         * @param offset the position of the point in the segment
+         * @param length the number of bytes in the point
+         */
+        void read(long id, ByteBuffer buffer, int offset, int length);
+    }
+
+    private static class Segment {
+        final File file;
+
+        /**
+         * The id of the first point in this segment
+         */
+        final long firstId;
+
+        /**
+         * The id of the last point in this segment, or 0 if it is empty
+         */
+        long lastId;
+
+        MappedByteBuffer buffer;
+
+        boolean writable;
+
+        /**
+         * The position after the last record
+         */
+        int end;
+
+        /**
+         * True if points were appended since the segment was last written to disk
+         */
+        boolean dirty;
+
+        Segment(File file, long firstId) {
+            this.file = file;
+            this.firstId = firstId;
+        }
+    }
+
+    final String username;
+
+    final String streamId;
+
+    final long streamVersion;
+
+    private final File mDir;
+
+    private final int mSegmentSize;
+
+    /**
+     * The segments in id order. Points are appended to the last one.
+     */
+    private final ArrayList<Segment> mSegments = new ArrayList<Segment>();
+
+    private long mNextId = 1;
+
+    /**
+     * Every point up to this id has been deleted
+     */
+    private long mCheckpointId;
+
+    /**
+     * Ranges of deleted points after {@link #mCheckpointId} which are waiting for the points
+     * before them to be deleted, from first id to last id
+     */
+    private final TreeMap<Long, Long> mDeletedRanges = new TreeMap<Long, Long>();
+
+    private long mCount;
+
+    private long mBytes;
+
+    /**
+     * Opens the log in a directory, reading the checkpoint and every segment in it
+     *
+     * @param dir
+     * @param username
+     * @param streamId
+     * @param streamVersion
+     * @param segmentSize   the size of new segment files
+     * @throws IOException
+     */
+    SegmentLog(File dir, String username, String streamId, long streamVersion, int segmentSize)
+            throws IOException {
+        this.username = username;
+        this.streamId = streamId;
+        this.streamVersion = streamVersion;
+        mDir = dir;
+        mSegmentSize = segmentSize;
+
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Could not create " + dir);
+
+        readCheckpoint();
+        mNextId = mCheckpointId + 1;
+
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override public boolean accept(File dir, String filename) {
+                return filename.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        // Segments are named by their zero padded first id so they sort in id order
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            Segment segment = new Segment(file,
+                    Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+            segment.buffer = map(file, FileChannel.MapMode.READ_ONLY);
+            scan(segment);
+            mSegments.add(segment);
+        }
+        deleteSegments();
+    }
+
+    /**
+     * Finds the end of a segment, and counts the points in it which haven't been deleted. The
+     * segment ends at the first record which was cut off by a crash, and anything written after
+     * it is zeroed.
+     */
+    private void scan(Segment segment) throws IOException {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        CRC32 crc = new CRC32();
+        byte[] point = new byte[0];
+        int position = 0;
+        while (position + HEADER_SIZE <= buffer.limit()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + HEADER_SIZE + length > buffer.limit())
+                break;
+            // The ids in a segment are contiguous from the id in its name
+            long id = buffer.getLong(position + 4);
+            if (id != (segment.lastId == 0 ? segment.firstId : segment.lastId + 1))
+                break;
+            if (point.length < length)
+                point = new byte[Math.max(length, point.length * 2)];
+            buffer.position(position + HEADER_SIZE);
+            buffer.get(point, 0, length);
+            if (buffer.getInt(position + 12) != checksum(crc, id, point, length))
+                break;
+
+            segment.lastId = id;
+            mNextId = Math.max(mNextId, id + 1);
+            if (!isDeleted(id)) {
+                mCount++;
+                mBytes += length;
+            }
+            position += HEADER_SIZE + length;
+        }
+        segment.end = position;
+
+        int last = buffer.limit() - 1;
+        while (last >= position && buffer.get(last) == 0)
+            last--;
+        if (last >= position)
+            zero(segment.file, position, last + 1);
+    }
+
+    /**
+     * @return the CRC32 of the id, as 8 big endian bytes, and the first {@code length} bytes of
+     * the point
+     */
+    private static int checksum(CRC32 crc, long id, byte[] point, int length) {
+        crc.reset();
+        for (int shift = 56; shift >= 0; shift -= 8)
+            crc.update((int) (id >>> shift));
+        crc.update(point, 0, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Writes zeros over part of a file and waits for them to reach the disk
+     */
+    private static void zero(File file, int from, int to) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            byte[] zeros = new byte[Math.min(to - from, 8192)];
+            raf.seek(from);
+            for (int position = from; position < to; position += zeros.length)
+                raf.write(zeros, 0, Math.min(zeros.length, to - position));
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Adds a point to the end of the log
+     *
+     * @param point the framed point, which can't be empty
+     * @return the id of the point
+     * @throws IOException
+     */
+    synchronized long append(byte[] point) throws IOException {
+        if (point.length == 0)
+            throw new IllegalArgumentException("Points can't be empty");
+
+        int size = HEADER_SIZE + point.length;
+        Segment tail = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+        if (tail == null || tail.buffer.capacity() - tail.end < size) {
+            if (tail != null && tail.dirty) {
+                tail.buffer.force();
+                tail.dirty = false;
+            }
+            tail = newSegment(Math.max(mSegmentSize, size));
+        } else if (!tail.writable) {
+            tail.buffer = map(tail.file, FileChannel.MapMode.READ_WRITE);
+            tail.writable = true;
+        }
+
+        long id = mNextId++;
+        ByteBuffer buffer = tail.buffer.duplicate();
+        buffer.putLong(tail.end + 4, id);
+        buffer.putInt(tail.end + 12, checksum(new CRC32(), id, point, point.length));
+        buffer.position(tail.end + HEADER_SIZE);
+        buffer.put(point);
+        buffer.putInt(tail.end, point.length);
+
+        tail.end += size;
+        tail.lastId = id;
+        tail.dirty = true;
+        mCount++;
+        mBytes += point.length;
+        return id;
+    }
+
+    private Segment newSegment(int size) throws IOException {
+        File file = new File(mDir, String.format(Locale.US, "%020d", mNextId) + SEGMENT_SUFFIX);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+        } finally {
+            raf.close();
+        }
+
+        Segment segment = new Segment(file, mNextId);
+        segment.buffer = map(file, FileChannel.MapMode.READ_WRITE);
+        segment.writable = true;
+        mSegments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Reads the points with ids from {@code firstId} to {@code lastId} which haven't been deleted
+     *
+     * @param firstId the first id to read, inclusive
+     * @param lastId  the last id to read, inclusive
+     * @param limit   the most points to read
+     * @param reader  called with each point in id order
+     * @return the number of points read
+     */
+    synchronized int read(long firstId, long lastId, int limit, Reader reader) {
+        int count = 0;
+        for (Segment segment : mSegments) {
+            if (count >= limit || segment.firstId > lastId)
+                break;
+            if (segment.lastId < firstId)
+                continue;
+
+            ByteBuffer buffer = segment.buffer;
+            int position = 0;
+            while (position < segment.end && count < limit) {
+                int length = buffer.getInt(position);
+                long id = buffer.getLong(position + 4);
+                if (id > lastId)
+                    return count;
+                if (id >= firstId && !isDeleted(id)) {
+                    reader.read(id, buffer, position + HEADER_SIZE, length);
+                    count++;
+                }
+                position += HEADER_SIZE + length;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Deletes the points with ids from {@code firstId} to {@code lastId} by recording them in the
+     * checkpoint, then deletes any segments which don't have points anymore
+     *
+     * @param firstId the first id to delete, inclusive
+     * @param lastId  the last id to delete, inclusive
+     * @return the number of points deleted
+     * @throws IOException
+     */
+    synchronized int delete(long firstId, long lastId) throws IOException {
+        firstId = Math.max(firstId, mCheckpointId + 1);
+        lastId = Math.min(lastId, mNextId - 1);
+        if (firstId > lastId)
+            return 0;
+
+        final long[] deleted = new long[2];
+        read(firstId, lastId, Integer.MAX_VALUE, new Reader() {
+            @Override public void read(long id, ByteBuffer buffer, int offset, int length) {
+                deleted[0]++;
+                deleted[1] += length;
+            }
+        });
+        if (deleted[0] == 0)
+            return 0;
+
+        addDeletedRange(firstId, lastId);
+        writeCheckpoint();
+        mCount -= deleted[0];
+        mBytes -= deleted[1];
+        deleteSegments();
+        return (int) deleted[0];
+    }
+
+    private void addDeletedRange(long firstId, long lastId) {
+        Map.Entry<Long, Long> before = mDeletedRanges.floorEntry(firstId);
+        if (before != null && before.getValue() >= firstId - 1) {
+            firstId = before.getKey();
+            lastId = Math.max(lastId, before.getValue());
+            mDeletedRanges.remove(before.getKey());
+        }
+        Map.Entry<Long, Long> after;
+        while ((after = mDeletedRanges.ceilingEntry(firstId)) != null
+               && after.getKey() <= lastId + 1) {
+            lastId = Math.max(lastId, after.getValue());
+            mDeletedRanges.remove(after.getKey());
+        }
+
+        if (firstId <= mCheckpointId + 1)
+            mCheckpointId = Math.max(mCheckpointId, lastId);
+        else
+            mDeletedRanges.put(firstId, lastId);
+    }
+
+    private boolean isDeleted(long id) {
+        if (id <= mCheckpointId)
+            return true;
+        Map.Entry<Long, Long> range = mDeletedRanges.floorEntry(id);
+        return range != null && range.getValue() >= id;
+    }
+
+    /**
+     * Deletes the segment files which only have deleted points. The ids in a segment are
+     * contiguous, so it is enough to check the first and last ids.
+     */
+    private void deleteSegments() {
+        Iterator<Segment> segments = mSegments.iterator();
+        while (segments.hasNext()) {
+            Segment segment = segments.next();
+            if (segment.lastId == 0)
+                continue;
+
+            Map.Entry<Long, Long> range = mDeletedRanges.floorEntry(segment.firstId);
+            if (segment.lastId <= mCheckpointId
+                || (range != null && range.getValue() >= segment.lastId)) {
+                segments.remove();
+                segment.buffer = null;
+                segment.file.delete();
+            }
+        }
+    }
+
+    private void readCheckpoint() throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new FileInputStream(new File(mDir, CHECKPOINT)));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+
+        try {
+            mCheckpointId = in.readLong();
+            int ranges = in.readInt();
+            for (int i = 0; i < ranges; i++)
+                mDeletedRanges.put(in.readLong(), in.readLong());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the checkpoint to a new file and renames it over the old one so a crash can't leave
+     * half a checkpoint
+     */
+    private void writeCheckpoint() throws IOException {
+        File tmp = new File(mDir, CHECKPOINT + ".tmp");
+        FileOutputStream file = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(file);
+            out.writeLong(mCheckpointId);
+            out.writeInt(mDeletedRanges.size());
+            for (Map.Entry<Long, Long> range : mDeletedRanges.entrySet()) {
+                out.writeLong(range.getKey());
+                out.writeLong(range.getValue());
+            }
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+
+        if (!tmp.renameTo(new File(mDir, CHECKPOINT)))
+            throw new IOException("Could not write the checkpoint in " + mDir);
+    }
+
+    private static MappedByteBuffer map(File file, FileChannel.MapMode mode) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file,
+                mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+        try {
+            return raf.getChannel().map(mode, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the number of points which haven't been deleted
+     */
+    synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the number of bytes in the points which haven't been deleted
+     */
+    synchronized long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * @return the total size of the segment files
+     */
+    synchronized long getSize() {
+        long size = 0;
+        for (Segment segment : mSegments)
+            size += segment.file.length();
+        return size;
+    }
+
+    /**
+     * Writes the points appended since the last sync to disk
+     */
+    synchronized void sync() {
+        for (Segment segment : mSegments) {
+            if (segment.dirty) {
+                segment.buffer.force();
+                segment.dirty = false;
+            }
+        }
+    }
+
+    /**
+     * Writes the segment points are being appended to out to disk
+     */
+    synchronized void close() {
+        sync();
+        mSegments.clear();
+    }
+}
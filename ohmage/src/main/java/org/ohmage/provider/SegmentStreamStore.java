@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ohmage.provider;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.util.Log;
+
+import org.ohmage.provider.StreamContentProvider.PendingCounts;
+import org.ohmage.streams.StreamContract;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A {@link StreamStore} which keeps each stream in a {@link SegmentLog} of memory mapped files.
+ * Appending a point copies it into the mapped segment without a transaction or any b-tree
+ * updates, and uploaded points are removed a whole segment at a time. Logs are kept in
+ * {@code username/streamId/streamVersion} directories under the directory given to the store.
+ */
+public class SegmentStreamStore implements StreamStore {
+
+    private static final String TAG = SegmentStreamStore.class.getSimpleName();
+
+    /**
+     * The name of the directory for the store in the files directory of the app
+     */
+    public static final String DIR_NAME = "stream_segments";
+
+    /**
+     * The size of each segment file
+     */
+    static final int SEGMENT_SIZE = 1024 * 1024;
+
+    private static final String[] DEFAULT_PROJECTION = new String[]{
+            StreamContract.Streams._ID, StreamContract.Streams.USERNAME,
+            StreamContract.Streams.STREAM_ID, StreamContract.Streams.STREAM_VERSION,
+            StreamContentProvider.COLUMN_POINT, StreamContentProvider.COLUMN_POINT_LENGTH};
+
+    private static final String[] DEFAULT_COUNTS_PROJECTION = new String[]{
+            StreamContract.Streams.STREAM_ID, StreamContract.Streams.STREAM_VERSION,
+            PendingCounts.COUNT, PendingCounts.BYTES};
+
+    private static final String DISTINCT = "distinct ";
+
+    private final File mDir;
+
+    private final int mSegmentSize;
+
+    /**
+     * The open logs by their directory, or null until they are opened
+     */
+    private TreeMap<String, SegmentLog> mLogs;
+
+    public SegmentStreamStore(File dir) {
+        this(dir, SEGMENT_SIZE);
+    }
+
+    SegmentStreamStore(File dir, int segmentSize) {
+        mDir = dir;
+        mSegmentSize = segmentSize;
+    }
+
+    /**
+     * Opens the log of every stream the first time it is needed so the counts are known
+     */
+    private synchronized TreeMap<String, SegmentLog> logs() {
+        if (mLogs == null) {
+            mLogs = new TreeMap<String, SegmentLog>();
+            for (File user : listDirs(mDir)) {
+                for (File stream : listDirs(user)) {
+                    for (File version : listDirs(stream)) {
+                        try {
+                            SegmentLog log = new SegmentLog(version,
+                                    Uri.decode(user.getName()), Uri.decode(stream.getName()),
+                                    Long.parseLong(version.getName()), mSegmentSize);
+                            mLogs.put(key(log.username, log.streamId, log.streamVersion), log);
+                        } catch (IOException e) {
+                            Log.e(TAG, "Could not open the stream in " + version, e);
+                        } catch (NumberFormatException e) {
+                            Log.e(TAG, "Not a stream directory " + version, e);
+                        }
+                    }
+                }
+            }
+        }
+        return mLogs;
+    }
+
+    private static File[] listDirs(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return new File[0];
+
+        ArrayList<File> dirs = new ArrayList<File>();
+        for (File file : files) {
+            if (file.isDirectory())
+                dirs.add(file);
+        }
+        return dirs.toArray(new File[dirs.size()]);
+    }
+
+    private static String key(String username, String streamId, long streamVersion) {
+        return Uri.encode(username) + File.separator + Uri.encode(streamId) + File.separator
+               + streamVersion;
+    }
+
+    /**
+     * @return the logs of the streams in the selection, in key order
+     */
+    private synchronized List<SegmentLog> logs(StreamSelection selection) {
+        ArrayList<SegmentLog> logs = new ArrayList<SegmentLog>();
+        for (SegmentLog log : logs().values()) {
+            if (selection.matches(log.username, log.streamId, log.streamVersion))
+                logs.add(log);
+        }
+        return logs;
+    }
+
+    @Override
+    public long append(String username, String streamId, long streamVersion, byte[] point) {
+        SegmentLog log;
+        String key = key(username, streamId, streamVersion);
+        try {
+            synchronized (this) {
+                log = logs().get(key);
+                if (log == null) {
+                    log = new SegmentLog(new File(mDir, key), username, streamId, streamVersion,
+                            mSegmentSize);
+                    mLogs.put(key, log);
+                }
+            }
+            return log.append(point);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not append a point to " + key, e);
+            return -1;
+        }
+    }
+
+    @Override
+    public Cursor query(String[] projection, StreamSelection selection, int limit) {
+        if (projection == null)
+            projection = DEFAULT_PROJECTION;
+
+        if (projection.length > 0
+            && projection[0].toLowerCase(Locale.US).startsWith(DISTINCT)) {
+            String[] columns = projection.clone();
+            columns[0] = columns[0].substring(DISTINCT.length()).trim();
+            MatrixCursor cursor = new MatrixCursor(columns);
+            for (SegmentLog log : logs(selection)) {
+                if (log.getCount() > 0)
+                    cursor.addRow(row(columns, log, 0, null));
+            }
+            return cursor;
+        }
+
+        final String[] columns = projection;
+        final MatrixCursor cursor = new MatrixCursor(columns);
+        int remaining = limit;
+        for (final SegmentLog log : logs(selection)) {
+            if (remaining <= 0)
+                break;
+            remaining -= log.read(selection.firstId, selection.lastId, remaining,
+                    new SegmentLog.Reader() {
+                        @Override
+                        public void read(long id, ByteBuffer buffer, int offset, int length) {
+                            byte[] point = new byte[length];
+                            ByteBuffer segment = buffer.duplicate();
+                            segment.position(offset);
+                            segment.get(point);
+                            cursor.addRow(row(columns, log, id, point));
+                        }
+                    });
+        }
+        return cursor;
+    }
+
+    private static Object[] row(String[] columns, SegmentLog log, long id, byte[] point) {
+        Object[] row = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            String column = columns[i];
+            if (StreamContract.Streams._ID.equals(column))
+                row[i] = id;
+            else if (StreamContract.Streams.USERNAME.equals(column))
+                row[i] = log.username;
+            else if (StreamContract.Streams.STREAM_ID.equals(column))
+                row[i] = log.streamId;
+            else if (StreamContract.Streams.STREAM_VERSION.equals(column))
+                row[i] = log.streamVersion;
+            else if (StreamContentProvider.COLUMN_POINT.equals(column))
+                row[i] = point;
+            else if (StreamContentProvider.COLUMN_POINT_LENGTH.equals(column))
+                row[i] = point != null ? point.length : null;
+        }
+        return row;
+    }
+
+    @Override
+    public int delete(StreamSelection selection) {
+        int count = 0;
+        for (SegmentLog log : logs(selection)) {
+            try {
+                count += log.delete(selection.firstId, selection.lastId);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not delete points from "
+                           + key(log.username, log.streamId, log.streamVersion), e);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Like the counts from the database, the counts of each stream are summed over every user
+     */
+    @Override
+    public Cursor counts(String[] projection) {
+        if (projection == null)
+            projection = DEFAULT_COUNTS_PROJECTION;
+
+        LinkedHashMap<String, Object[]> streams = new LinkedHashMap<String, Object[]>();
+        for (SegmentLog log : logs(new StreamSelection())) {
+            long count = log.getCount();
+            if (count == 0)
+                continue;
+
+            String key = log.streamId + File.separator + log.streamVersion;
+            Object[] stream = streams.get(key);
+            if (stream == null) {
+                stream = new Object[]{log, 0L, 0L};
+                streams.put(key, stream);
+            }
+            stream[1] = (Long) stream[1] + count;
+            stream[2] = (Long) stream[2] + log.getBytes();
+        }
+
+        MatrixCursor cursor = new MatrixCursor(projection);
+        for (Map.Entry<String, Object[]> stream : streams.entrySet()) {
+            Object[] values = stream.getValue();
+            Object[] row = row(projection, (SegmentLog) values[0], 0, null);
+            for (int i = 0; i < projection.length; i++) {
+                if (PendingCounts.COUNT.equals(projection[i]) || "count(*)".equals(projection[i]))
+                    row[i] = values[1];
+                else if (PendingCounts.BYTES.equals(projection[i]))
+                    row[i] = values[2];
+            }
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    /**
+     * @return the total size of the segment files
+     */
+    public long getSize() {
+        long size = 0;
+        for (SegmentLog log : logs(new StreamSelection()))
+            size += log.getSize();
+        return size;
+    }
+
+    @Override
+    public void sync() {
+        for (SegmentLog log : logs(new StreamSelection()))
+            log.sync();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (mLogs != null) {
+            for (SegmentLog log : mLogs.values())
+                log.close();
+            mLogs = null;
+        }
+    }
+}
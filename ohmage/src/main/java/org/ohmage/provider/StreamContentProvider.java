@@ -20,27 +20,277 @@ import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.accounts.OnAccountsUpdateListener;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Looper;
 import android.provider.BaseColumns;
 import android.text.TextUtils;
+import android.util.Log;
 
 import org.ohmage.app.Ohmage;
 import org.ohmage.auth.AuthUtil;
 import org.ohmage.provider.OhmageDbHelper.Tables;
 import org.ohmage.streams.AsyncBulkInsertHandler;
 import org.ohmage.streams.StreamContract;
+import org.ohmage.sync.OhmageSyncAdapter;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 
 import javax.inject.Inject;
 
 public class StreamContentProvider extends ContentProvider implements OnAccountsUpdateListener {
 
+    private static final String TAG = StreamContentProvider.class.getSimpleName();
+
+    /**
+     * Query parameter which limits the number of points returned by a query of
+     * {@link StreamContract.Streams#CONTENT_URI}
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+    /**
+     * Query parameters which restrict a delete of {@link StreamContract.Streams#CONTENT_URI} to an
+     * inclusive range of ids. Acknowledging an uploaded batch by its range lets sqlite use the
+     * primary key instead of parsing and scanning for every id in the batch.
+     */
+    public static final String QUERY_PARAMETER_FIRST_ID = "first_id";
+
+    public static final String QUERY_PARAMETER_LAST_ID = "last_id";
+
+    /**
+     * Query parameter for a range delete which also removes the {@link UploadLedger} entry with
+     * this batch id in the same transaction
+     */
+    public static final String QUERY_PARAMETER_BATCH_ID = "batch_id";
+
+    /**
+     * Query parameter for an insert of {@link StreamContract.Streams#CONTENT_URI} while group
+     * commit is on or points are kept in a {@link StreamStore}. If it is
+     * {@link #GROUP_COMMIT_ASYNC} the insert returns as soon as the points are queued or
+     * appended, otherwise it waits until they are committed or written to disk.
+     */
+    public static final String QUERY_PARAMETER_GROUP_COMMIT = "group_commit";
+
+    public static final String GROUP_COMMIT_ASYNC = "async";
+
+    public static final String GROUP_COMMIT_DURABLE = "durable";
+
+    /**
+     * Batches of points which have been sent to the server but not deleted yet. If the sync is
+     * killed before a batch is deleted, the next sync sends the same points again with the same
+     * batch id so the server can tell it already has them.
+     */
+    public interface UploadLedger extends BaseColumns {
+
+        public static final Uri CONTENT_URI = Uri.parse(
+                "content://" + StreamContract.CONTENT_AUTHORITY + "/ledger");
+
+        public static final String CONTENT_TYPE =
+                "vnd.android.cursor.dir/vnd.ohmage.stream_upload_ledger";
+
+        /**
+         * The id sent with the batch
+         */
+        public static final String BATCH_ID = "batch_id";
+
+        /**
+         * The id of the first point in the batch
+         */
+        public static final String FIRST_ID = "first_id";
+
+        /**
+         * The id of the last point in the batch
+         */
+        public static final String LAST_ID = "last_id";
+    }
+
+    /**
+     * The usage and eviction counters of each stream kept by the {@link StreamQuota}. Each row
+     * also has the {@link StreamContract.Streams#USERNAME},
+     * {@link StreamContract.Streams#STREAM_ID} and {@link StreamContract.Streams#STREAM_VERSION}
+     * of the stream.
+     */
+    public interface QuotaCounts {
+
+        public static final Uri CONTENT_URI = Uri.parse(
+                "content://" + StreamContract.CONTENT_AUTHORITY + "/quota");
+
+        public static final String CONTENT_TYPE =
+                "vnd.android.cursor.dir/vnd.ohmage.stream_quota";
+
+        /**
+         * The number of points waiting to be uploaded
+         */
+        public static final String ROWS = "rows";
+
+        /**
+         * The number of bytes waiting to be uploaded
+         */
+        public static final String BYTES = "bytes";
+
+        /**
+         * The number of points evicted to stay under the quota
+         */
+        public static final String EVICTED = "evicted";
+
+        /**
+         * The number of new points dropped to stay under the quota
+         */
+        public static final String REJECTED = "rejected";
+    }
+
+    /**
+     * The columns of {@link StreamContract.StreamCounts}, which has one row with the number of
+     * points and bytes waiting to be uploaded for each stream. The counts are kept up to date by
+     * triggers on the points table, so reading them doesn't have to scan any points. Each row also
+     * has the {@link StreamContract.Streams#STREAM_ID} and
+     * {@link StreamContract.Streams#STREAM_VERSION} of the stream.
+     */
+    public interface PendingCounts {
+
+        /**
+         * The number of points waiting to be uploaded
+         */
+        public static final String COUNT = "count";
+
+        /**
+         * The number of bytes waiting to be uploaded
+         */
+        public static final String BYTES = "bytes";
+    }
+
+    /**
+     * The dictionary of metadata fields shared by many points. Points stored with
+     * {@link #COLUMN_METADATA_ID} only keep the fields which change with every point in their
+     * metadata column, and the rest of their metadata is the entry with that id.
+     */
+    public interface SharedMetadata extends BaseColumns {
+
+        public static final Uri CONTENT_URI = Uri.parse(
+                "content://" + StreamContract.CONTENT_AUTHORITY + "/metadata");
+
+        public static final String CONTENT_TYPE =
+                "vnd.android.cursor.dir/vnd.ohmage.stream_metadata";
+
+        /**
+         * The shared fields, as a json object
+         */
+        public static final String METADATA = StreamContract.Streams.STREAM_METADATA;
+
+        /**
+         * The number of points which use this entry
+         */
+        public static final String REFS = "refs";
+    }
+
+    /**
+     * Maps the columns of the counts uri to the sums of the counts of each user. The
+     * {@code count(*)} column is kept for callers which grouped the points table themselves.
+     */
+    private static final HashMap<String, String> sCountsProjectionMap =
+            new HashMap<String, String>();
+
+    static {
+        sCountsProjectionMap.put(StreamContract.Streams.STREAM_ID,
+                StreamContract.Streams.STREAM_ID);
+        sCountsProjectionMap.put(StreamContract.Streams.STREAM_VERSION,
+                StreamContract.Streams.STREAM_VERSION);
+        sCountsProjectionMap.put(StreamContract.Streams.USERNAME,
+                StreamContract.Streams.USERNAME);
+        sCountsProjectionMap.put(PendingCounts.COUNT,
+                "sum(" + PendingCounts.COUNT + ") AS " + PendingCounts.COUNT);
+        sCountsProjectionMap.put(PendingCounts.BYTES,
+                "sum(" + PendingCounts.BYTES + ") AS " + PendingCounts.BYTES);
+        sCountsProjectionMap.put("count(*)", "sum(" + PendingCounts.COUNT + ") AS \"count(*)\"");
+    }
+
+    private static final String[] DEFAULT_COUNTS_PROJECTION = new String[]{
+            StreamContract.Streams.STREAM_ID, StreamContract.Streams.STREAM_VERSION,
+            PendingCounts.COUNT, PendingCounts.BYTES};
+
+    /**
+     * Column which holds the whole point as the UTF-8 json which is uploaded, made by
+     * {@link #encodePoint(String, String)}. If it is set, the data and metadata columns are null.
+     */
+    public static final String COLUMN_POINT = "stream_point";
+
+    /**
+     * Column which holds the number of bytes in {@link #COLUMN_POINT}
+     */
+    public static final String COLUMN_POINT_LENGTH = "stream_point_length";
+
+    /**
+     * Column which holds the id of the {@link SharedMetadata} entry for the point, or null if the
+     * metadata column holds all of the metadata
+     */
+    public static final String COLUMN_METADATA_ID = "stream_metadata_id";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * If true, points are stored in {@link #COLUMN_POINT} when they are inserted
+     */
+    private boolean mStoreFramedPoints = Ohmage.STORE_FRAMED_STREAM_POINTS;
+
+    /**
+     * If true, the metadata fields shared by many points are stored once in the
+     * {@link SharedMetadata} dictionary
+     */
+    private boolean mDeduplicateMetadata = Ohmage.DEDUPLICATE_STREAM_METADATA;
+
+    private StreamMetadataDictionary mDictionary;
+
+    /**
+     * Set while {@link #applyBatch(ArrayList)} is running on this thread so each operation doesn't
+     * send its own change notification
+     */
+    private final ThreadLocal<Boolean> mApplyingBatch = new ThreadLocal<Boolean>();
+
+    /**
+     * Set when points are deleted by {@link #applyBatch(ArrayList)} on this thread, so unused
+     * {@link SharedMetadata} entries are pruned once at the end of the batch
+     */
+    private final ThreadLocal<Boolean> mPruneMetadata = new ThreadLocal<Boolean>();
+
+    /**
+     * Limits the number of points waiting to be uploaded, or null if there are no limits
+     */
+    private StreamQuota mQuota;
+
+    /**
+     * Inserts points from all callers in shared transactions, or null if each call inserts its
+     * own points
+     */
+    private volatile GroupCommitWriter mGroupCommitWriter;
+
+    private StreamPointInserter mInserter;
+
+    /**
+     * Stores the points instead of the stream_data table, or null if they are kept in the
+     * database
+     */
+    private volatile StreamStore mStore;
+
+    /**
+     * Merges the change notifications sent while points are inserted and deleted
+     */
+    private volatile ChangeNotificationCoalescer mNotifier;
+
     @Inject AccountManager am;
 
     private AsyncBulkInsertHandler mAsyncQueryHandler;
@@ -54,9 +304,15 @@ public class StreamContentProvider extends ContentProvider implements OnAccounts
         int STREAMS_ID = 1;
 
         int COUNTS = 2;
+
+        int LEDGER = 3;
+
+        int QUOTA = 4;
+
+        int METADATA = 5;
     }
 
-    private OhmageDbHelper dbHelper;
+    private StreamDbHelper dbHelper;
 
     private static UriMatcher sUriMatcher;
 
@@ -66,6 +322,9 @@ public class StreamContentProvider extends ContentProvider implements OnAccounts
         sUriMatcher
                 .addURI(StreamContract.CONTENT_AUTHORITY, "streams/*/*", MatcherTypes.STREAMS_ID);
         sUriMatcher.addURI(StreamContract.CONTENT_AUTHORITY, "counts", MatcherTypes.COUNTS);
+        sUriMatcher.addURI(StreamContract.CONTENT_AUTHORITY, "ledger", MatcherTypes.LEDGER);
+        sUriMatcher.addURI(StreamContract.CONTENT_AUTHORITY, "quota", MatcherTypes.QUOTA);
+        sUriMatcher.addURI(StreamContract.CONTENT_AUTHORITY, "metadata", MatcherTypes.METADATA);
     }
 
     @Override
@@ -75,19 +334,201 @@ public class StreamContentProvider extends ContentProvider implements OnAccounts
         switch (sUriMatcher.match(uri)) {
 
             case MatcherTypes.STREAMS:
-                count = dbHelper.getWritableDatabase().delete(Tables.StreamData, selection,
-                        selectionArgs);
+                String firstId = uri.getQueryParameter(QUERY_PARAMETER_FIRST_ID);
+                String lastId = uri.getQueryParameter(QUERY_PARAMETER_LAST_ID);
+                if (firstId != null && lastId != null) {
+                    selection = DatabaseUtils.concatenateWhere(selection,
+                            BaseColumns._ID + " BETWEEN ? AND ?");
+                    selectionArgs = appendSelectionArgs(selectionArgs, firstId, lastId);
+                }
+                String batchId = uri.getQueryParameter(QUERY_PARAMETER_BATCH_ID);
+                StreamStore store = mStore;
+                if (store != null) {
+                    // The ledger entry is deleted after the points, so if the process dies in
+                    // between the batch is sent again and found to have no points
+                    count = store.delete(StreamSelection.parse(selection, selectionArgs));
+                    if (batchId != null) {
+                        dbHelper.getWritableDatabase().delete(Tables.StreamUploadLedger,
+                                UploadLedger.BATCH_ID + "=?", new String[]{batchId});
+                    }
+                    break;
+                }
+                SQLiteDatabase db = dbHelper.getWritableDatabase();
+                boolean successful = false;
+                db.beginTransaction();
+                try {
+                    count = db.delete(Tables.StreamData, selection, selectionArgs);
+                    if (mQuota != null && count > 0)
+                        mQuota.onDeleted();
+                    if (mDeduplicateMetadata && count > 0) {
+                        if (mApplyingBatch.get() == null)
+                            dictionary(db).prune();
+                        else
+                            mPruneMetadata.set(true);
+                    }
+                    if (batchId != null) {
+                        db.delete(Tables.StreamUploadLedger, UploadLedger.BATCH_ID + "=?",
+                                new String[]{batchId});
+                    }
+                    db.setTransactionSuccessful();
+                    successful = true;
+                } finally {
+                    endTransaction(db, successful);
+                }
                 break;
+            case MatcherTypes.LEDGER:
+                return dbHelper.getWritableDatabase().delete(Tables.StreamUploadLedger, selection,
+                        selectionArgs);
             case MatcherTypes.COUNTS:
 
             default:
                 throw new UnsupportedOperationException("insert(): Unknown URI: " + uri);
         }
 
-        notifyInsert(uri, count);
+        // The sync adapter deletes points as they are uploaded, which nobody needs to hear about
+        if (mApplyingBatch.get() == null && !isSyncAdapter(uri))
+            notifyInsert(uri, count);
         return count;
     }
 
+    /**
+     * Builds a uri which will delete the points with ids between {@code firstId} and
+     * {@code lastId} inclusive.
+     *
+     * @param contentUri usually {@link StreamContract.Streams#CONTENT_URI}
+     * @param firstId
+     * @param lastId
+     * @return the uri to pass to {@link #delete(Uri, String, String[])}
+     */
+    public static Uri buildRangeUri(Uri contentUri, long firstId, long lastId) {
+        return contentUri.buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_FIRST_ID, String.valueOf(firstId))
+                .appendQueryParameter(QUERY_PARAMETER_LAST_ID, String.valueOf(lastId))
+                .build();
+    }
+
+    /**
+     * Builds a uri which will delete the points with ids between {@code firstId} and
+     * {@code lastId} inclusive, and the {@link UploadLedger} entry for the batch.
+     *
+     * @param contentUri usually {@link StreamContract.Streams#CONTENT_URI}
+     * @param firstId
+     * @param lastId
+     * @param batchId    the id of the batch in the ledger
+     * @return the uri to pass to {@link #delete(Uri, String, String[])}
+     */
+    public static Uri buildRangeUri(Uri contentUri, long firstId, long lastId, String batchId) {
+        return buildRangeUri(contentUri, firstId, lastId).buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_BATCH_ID, batchId)
+                .build();
+    }
+
+    /**
+     * Applies all the operations in a single transaction and sends one change notification
+     * afterwards, unless every operation came from the sync adapter. The sync adapter uses this to
+     * acknowledge a batch of points by id.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        ContentProviderResult[] results;
+
+        mApplyingBatch.set(true);
+        boolean successful = false;
+        try {
+            db.beginTransaction();
+            results = super.applyBatch(operations);
+            if (mPruneMetadata.get() != null)
+                dictionary(db).prune();
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            mApplyingBatch.remove();
+            mPruneMetadata.remove();
+            endTransaction(db, successful);
+        }
+
+        int count = 0;
+        for (ContentProviderResult result : results) {
+            if (result.count != null)
+                count += result.count;
+        }
+        boolean syncAdapter = true;
+        for (ContentProviderOperation operation : operations) {
+            syncAdapter &= isSyncAdapter(operation.getUri());
+        }
+        if (!syncAdapter)
+            notifyInsert(StreamContract.Streams.CONTENT_URI, count);
+        return results;
+    }
+
+    /**
+     * Encodes a point as the json object it is uploaded as
+     *
+     * @param data
+     * @param metadata
+     * @return the UTF-8 bytes of {@code {"data":data,"meta_data":metadata}}
+     */
+    public static byte[] encodePoint(String data, String metadata) {
+        StringBuilder point = new StringBuilder().append('{');
+        if (!TextUtils.isEmpty(data)) {
+            point.append("\"data\":").append(data);
+        }
+        if (!TextUtils.isEmpty(metadata)) {
+            if (point.length() != 1) point.append(',');
+            point.append("\"meta_data\":").append(metadata);
+        }
+        return point.append('}').toString().getBytes(UTF_8);
+    }
+
+    /**
+     * Turns storing framed points on or off
+     *
+     * @param storeFramedPoints
+     */
+    public void setStoreFramedPoints(boolean storeFramedPoints) {
+        mStoreFramedPoints = storeFramedPoints;
+    }
+
+    /**
+     * Turns storing shared metadata fields in the dictionary on or off
+     *
+     * @param deduplicateMetadata
+     */
+    public void setDeduplicateMetadata(boolean deduplicateMetadata) {
+        mDeduplicateMetadata = deduplicateMetadata;
+    }
+
+    /**
+     * Sets the quota for points waiting to be uploaded
+     *
+     * @param quota the quota, or null for no limits
+     */
+    public synchronized void setQuota(StreamQuota quota) {
+        mQuota = quota != null && quota.isEnabled() ? quota : null;
+    }
+
+    /**
+     * Sets where points are stored. Points already in the old store are not moved.
+     *
+     * @param store the store, or null to keep points in the database
+     */
+    public synchronized void setStreamStore(StreamStore store) {
+        if (mStore != null && mStore != store)
+            mStore.close();
+        mStore = store;
+    }
+
+    private static String[] appendSelectionArgs(String[] selectionArgs, String... args) {
+        if (selectionArgs == null)
+            return args;
+
+        String[] result = Arrays.copyOf(selectionArgs, selectionArgs.length + args.length);
+        System.arraycopy(args, 0, result, selectionArgs.length, args.length);
+        return result;
+    }
+
     @Override
     public String getType(Uri uri) {
         switch (sUriMatcher.match(uri)) {
@@ -96,6 +537,12 @@ public class StreamContentProvider extends ContentProvider implements OnAccounts
                 return StreamContract.Streams.CONTENT_TYPE;
             case MatcherTypes.COUNTS:
                 return StreamContract.StreamCounts.CONTENT_TYPE;
+            case MatcherTypes.LEDGER:
+                return UploadLedger.CONTENT_TYPE;
+            case MatcherTypes.QUOTA:
+                return QuotaCounts.CONTENT_TYPE;
+            case MatcherTypes.METADATA:
+                return SharedMetadata.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("getType(): Unknown URI: " + uri);
         }
@@ -116,13 +563,41 @@ public class StreamContentProvider extends ContentProvider implements OnAccounts
                     return null;
                 }
 
-                // Set the correct username
-                values.put(StreamContract.Streams.USERNAME, mAccount);
+                StreamStore store = mStore;
+                if (store != null) {
+                    id = appendPoint(store, values, mAccount);
+                    if (id != -1 && isDurable(uri))
+                        store.sync();
+                    break;
+                }
+
+                GroupCommitWriter writer = mGroupCommitWriter;
+                if (writer != null) {
+                    // Set the correct username
+                    values.put(StreamContract.Streams.USERNAME, mAccount);
+                    // The row id isn't known until the group is committed, so the stream's uri
+                    // is returned instead
+                    if (writer.write(new ContentValues[]{values}, isDurable(uri)) == 0)
+                        return null;
+                    return StreamContract.Streams.CONTENT_URI;
+                }
 
                 SQLiteDatabase db = dbHelper.getWritableDatabase();
-                db.insert(Tables.StreamData, BaseColumns._ID, values);
+                boolean successful = false;
+                db.beginTransaction();
+                try {
+                    id = insertPoint(db, values, mAccount);
+                    db.setTransactionSuccessful();
+                    successful = true;
+                } finally {
+                    endTransaction(db, successful);
+                }
 
                 break;
+            case MatcherTypes.LEDGER:
+                id = dbHelper.getWritableDatabase().insert(Tables.StreamUploadLedger,
+                        BaseColumns._ID, values);
+                return id == -1 ? null : ContentUris.withAppendedId(UploadLedger.CONTENT_URI, id);
             default:
                 throw new UnsupportedOperationException("insert(): Unknown URI: " + uri);
         }
@@ -133,7 +608,16 @@ public class StreamContentProvider extends ContentProvider implements OnAccounts
 
     @Override
     public boolean onCreate() {
-        dbHelper = new OhmageDbHelper(getContext());
+        dbHelper = StreamDbHelper.getInstance(getContext());
+        setQuota(new StreamQuota(Ohmage.STREAM_QUOTA_POLICY, Ohmage.STREAM_QUOTA_MAX_STREAM_ROWS,
+                Ohmage.STREAM_QUOTA_MAX_STREAM_BYTES, Ohmage.STREAM_QUOTA_MAX_ROWS,
+                Ohmage.STREAM_QUOTA_MAX_BYTES));
+        setGroupCommit(Ohmage.GROUP_COMMIT_STREAM_INSERTS);
+        setNotificationWindow(Ohmage.STREAM_NOTIFICATION_WINDOW_MS);
+        if (Ohmage.SEGMENT_STREAM_STORE) {
+            setStreamStore(new SegmentStreamStore(
+                    new File(getContext().getFilesDir(), SegmentStreamStore.DIR_NAME)));
+        }
 
         ((Ohmage) getContext().getApplicationContext()).getApplicationGraph().inject(this);
 
@@ -141,6 +625,26 @@ public class StreamContentProvider extends ContentProvider implements OnAccounts
 
         mAsyncQueryHandler = new AsyncBulkInsertHandler(getContext().getContentResolver(),
                 StreamContract.Streams.CONTENT_URI);
+
+        // Points left in the old database are moved in the background so opening the provider
+        // doesn't wait for them
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (dbHelper.migrate() > 0) {
+                        // The quota didn't count the points which were moved
+                        synchronized (StreamContentProvider.this) {
+                            if (mQuota != null)
+                                mQuota.invalidate();
+                        }
+                        notifyInsert(StreamContract.Streams.CONTENT_URI, 1);
+                    }
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to move stream points from the old database", e);
+                }
+            }
+        }, "StreamMigration").start();
         return true;
     }
 
@@ -159,18 +663,52 @@ public class StreamContentProvider extends ContentProvider implements OnAccounts
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder) {
         Cursor cursor;
+        StreamStore store = mStore;
         switch (sUriMatcher.match(uri)) {
             case MatcherTypes.COUNTS:
-                SQLiteQueryBuilder streams = new SQLiteQueryBuilder();
-                streams.setTables(Tables.StreamData);
-                cursor = streams.query(dbHelper.getReadableDatabase(), projection, selection,
+                if (store != null) {
+                    cursor = store.counts(projection);
+                    break;
+                }
+                SQLiteQueryBuilder counts = new SQLiteQueryBuilder();
+                counts.setTables(Tables.StreamCounts);
+                counts.setProjectionMap(sCountsProjectionMap);
+                cursor = counts.query(dbHelper.getReadableDatabase(),
+                        projection != null ? projection : DEFAULT_COUNTS_PROJECTION, selection,
                         selectionArgs, StreamContract.Streams.STREAM_ID + ", "
-                                       + StreamContract.Streams.STREAM_VERSION, null, sortOrder);
+                                       + StreamContract.Streams.STREAM_VERSION,
+                        "sum(" + PendingCounts.COUNT + ")>0", sortOrder);
                 break;
             case MatcherTypes.STREAMS:
+                if (store != null) {
+                    String limit = uri.getQueryParameter(QUERY_PARAMETER_LIMIT);
+                    cursor = store.query(projection,
+                            StreamSelection.parse(selection, selectionArgs),
+                            limit != null ? Integer.parseInt(limit) : Integer.MAX_VALUE);
+                    break;
+                }
                 cursor = dbHelper.getReadableDatabase()
                         .query(Tables.StreamData, projection, selection,
-                                selectionArgs, null, null, sortOrder);
+                                selectionArgs, null, null, sortOrder,
+                                uri.getQueryParameter(QUERY_PARAMETER_LIMIT));
+                break;
+            case MatcherTypes.LEDGER:
+                cursor = dbHelper.getReadableDatabase().query(Tables.StreamUploadLedger,
+                        projection, selection, selectionArgs, null, null, sortOrder);
+                break;
+            case MatcherTypes.METADATA:
+                cursor = dbHelper.getReadableDatabase().query(Tables.StreamMetadataDictionary,
+                        projection, selection, selectionArgs, null, null, sortOrder);
+                break;
+            case MatcherTypes.QUOTA:
+                StreamQuota quota = mQuota;
+                cursor = quota != null ? quota.counts(dbHelper.getReadableDatabase())
+                                       : new MatrixCursor(new String[]{
+                                               StreamContract.Streams.USERNAME,
+                                               StreamContract.Streams.STREAM_ID,
+                                               StreamContract.Streams.STREAM_VERSION,
+                                               QuotaCounts.ROWS, QuotaCounts.BYTES,
+                                               QuotaCounts.EVICTED, QuotaCounts.REJECTED});
                 break;
             default:
                 throw new UnsupportedOperationException("query(): Unknown URI: " + uri);
@@ -186,52 +724,324 @@ public class StreamContentProvider extends ContentProvider implements OnAccounts
     }
 
     @Override
-    public synchronized int bulkInsert(Uri uri, ContentValues[] values) {
-        int count = 0;
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        // We can't insert any points if no account exists.
+        String account = mAccount;
+        if (TextUtils.isEmpty(account)) {
+            return 0;
+        }
 
+        if (sUriMatcher.match(uri) != MatcherTypes.STREAMS)
+            throw new UnsupportedOperationException("bulkInsert(): Unknown URI: " + uri);
+
+        StreamStore store = mStore;
+        if (store != null) {
+            int count = 0;
+            for (ContentValues v : values) {
+                if (appendPoint(store, v, account) != -1)
+                    count++;
+            }
+            if (count > 0 && isDurable(uri))
+                store.sync();
+            notifyInsert(uri, count);
+            return count;
+        }
+
+        GroupCommitWriter writer = mGroupCommitWriter;
+        if (writer != null) {
+            for (ContentValues v : values) {
+                v.put(StreamContract.Streams.USERNAME, account);
+            }
+            return writer.write(values, isDurable(uri));
+        }
+
+        int count = insertPoints(values, account);
+        notifyInsert(uri, count);
+        return count;
+    }
+
+    /**
+     * Inserts points from a producer in the same process without making a {@link ContentValues}
+     * for each point. These points are always inserted right away, even if group commit is on.
+     *
+     * @param rows the points to insert
+     * @return the number of points inserted
+     */
+    public int bulkInsert(StreamPointRows rows) {
         // We can't insert any points if no account exists.
         String account = mAccount;
         if (TextUtils.isEmpty(account)) {
             return 0;
         }
 
+        int count = 0;
+        StreamStore store = mStore;
+        if (store != null) {
+            for (int i = 0; i < rows.size(); i++) {
+                if (store.append(account, rows.getStreamId(i), rows.getStreamVersion(i),
+                        encodePoint(rows.getData(i), rows.getMetadata(i))) != -1)
+                    count++;
+            }
+            if (count > 0)
+                store.sync();
+        } else {
+            count = insertPoints(rows, account);
+        }
+        notifyInsert(StreamContract.Streams.CONTENT_URI, count);
+        return count;
+    }
+
+    /**
+     * Inserts the points in a single transaction
+     *
+     * @param values
+     * @param username
+     * @return the number of points inserted
+     */
+    private synchronized int insertPoints(ContentValues[] values, String username) {
+        int count = 0;
         SQLiteDatabase db = dbHelper.getWritableDatabase();
+        boolean successful = false;
 
         try {
             db.beginTransaction();
 
-            String table;
-            switch (sUriMatcher.match(uri)) {
-                case MatcherTypes.STREAMS:
-                    table = Tables.StreamData;
-                    break;
-                default:
-                    throw new UnsupportedOperationException("bulkInsert(): Unknown URI: " + uri);
+            for (ContentValues v : values) {
+                if (insertPoint(db, v, username) != -1)
+                    count++;
             }
 
-            for (ContentValues v : values) {
-                v.put(StreamContract.Streams.USERNAME, mAccount);
-                if (db.insert(table, BaseColumns._ID, v) != -1)
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            endTransaction(db, successful);
+        }
+
+        return count;
+    }
+
+    private synchronized int insertPoints(StreamPointRows rows, String username) {
+        int count = 0;
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        boolean successful = false;
+
+        try {
+            db.beginTransaction();
+
+            for (int i = 0; i < rows.size(); i++) {
+                if (insertPoint(db, rows.getStreamId(i), rows.getStreamVersion(i), username,
+                        rows.getMetadata(i), rows.getData(i)) != -1)
                     count++;
             }
 
             db.setTransactionSuccessful();
+            successful = true;
         } finally {
+            endTransaction(db, successful);
+        }
+
+        return count;
+    }
+
+    private long insertPoint(SQLiteDatabase db, ContentValues values, String username) {
+        String streamId = values.getAsString(StreamContract.Streams.STREAM_ID);
+        Long streamVersion = values.getAsLong(StreamContract.Streams.STREAM_VERSION);
+        if (streamId == null || streamVersion == null)
+            return -1;
+
+        return insertPoint(db, streamId, streamVersion, username,
+                values.getAsString(StreamContract.Streams.STREAM_METADATA),
+                values.getAsString(StreamContract.Streams.STREAM_DATA));
+    }
+
+    /**
+     * Frames and appends a single point to the store. The quota isn't used for stores.
+     *
+     * @return the id of the point, or -1 if it wasn't stored
+     */
+    private static long appendPoint(StreamStore store, ContentValues values, String username) {
+        String streamId = values.getAsString(StreamContract.Streams.STREAM_ID);
+        Long streamVersion = values.getAsLong(StreamContract.Streams.STREAM_VERSION);
+        if (streamId == null || streamVersion == null)
+            return -1;
+
+        return store.append(username, streamId, streamVersion,
+                encodePoint(values.getAsString(StreamContract.Streams.STREAM_DATA),
+                        values.getAsString(StreamContract.Streams.STREAM_METADATA)));
+    }
+
+    /**
+     * Frames and inserts a single point if the quota allows it
+     *
+     * @param db the database, in a transaction
+     * @return the id of the point, or -1 if it wasn't inserted
+     */
+    private long insertPoint(SQLiteDatabase db, String streamId, long streamVersion,
+            String username, String metadata, String data) {
+        StreamQuota quota = mQuota;
+        byte[] point = null;
+        long size = 0;
+        long metadataId = -1;
+        if (mStoreFramedPoints) {
+            point = encodePoint(data, metadata);
+            size = point.length;
+            metadata = null;
+            data = null;
+        } else {
+            long sharedSize = 0;
+            if (mDeduplicateMetadata && metadata != null) {
+                StreamMetadataDictionary.Entry entry = dictionary(db).add(metadata);
+                if (entry != null) {
+                    metadata = entry.varying;
+                    metadataId = entry.id;
+                    sharedSize = entry.sharedSize;
+                }
+            }
+            if (quota != null)
+                size = StreamQuota.sizeOf(data, metadata) + sharedSize;
+        }
+
+        if (quota != null && !quota.admit(db, username, streamId, streamVersion, size))
+            return -1;
+
+        long id = inserter(db).insert(streamId, streamVersion, username, metadata, data, point,
+                metadataId);
+        if (id != -1 && quota != null)
+            quota.onInserted(db, username, streamId, streamVersion, size);
+        return id;
+    }
+
+    /**
+     * Ends a transaction which inserted or deleted points. If it didn't commit, the quota reads
+     * its usage again and the metadata dictionary forgets its entries, since both were changed as
+     * if the transaction would commit.
+     *
+     * @param db
+     * @param successful true if the transaction was marked successful
+     */
+    private void endTransaction(SQLiteDatabase db, boolean successful) {
+        boolean committed = false;
+        try {
             db.endTransaction();
+            committed = successful;
+        } finally {
+            if (!committed)
+                onRolledBack();
         }
+    }
 
-        notifyInsert(uri, count);
+    private void onRolledBack() {
+        StreamQuota quota = mQuota;
+        if (quota != null)
+            quota.invalidate();
+        StreamMetadataDictionary dictionary = mDictionary;
+        if (dictionary != null)
+            dictionary.invalidate();
+    }
 
-        return count;
+    /**
+     * The insert statement is only used while a transaction is held on the database, so only one
+     * thread uses it at a time. The statement compiled for an old instance of the database is
+     * closed when it is replaced.
+     */
+    private StreamPointInserter inserter(SQLiteDatabase db) {
+        StreamPointInserter inserter = mInserter;
+        if (inserter == null || inserter.getDatabase() != db) {
+            if (inserter != null)
+                inserter.close();
+            inserter = new StreamPointInserter(db);
+            mInserter = inserter;
+        }
+        return inserter;
+    }
+
+    /**
+     * The dictionary is only used while a transaction is held on the database, like the
+     * {@link #inserter(SQLiteDatabase)}
+     */
+    private StreamMetadataDictionary dictionary(SQLiteDatabase db) {
+        StreamMetadataDictionary dictionary = mDictionary;
+        if (dictionary == null || dictionary.getDatabase() != db) {
+            dictionary = new StreamMetadataDictionary(db);
+            mDictionary = dictionary;
+        }
+        return dictionary;
+    }
+
+    /**
+     * Turns group commit on or off. While it is on, points from all callers are inserted together
+     * by a single writer thread. Turning it off commits the points which are still queued and
+     * stops the writer thread.
+     *
+     * @param groupCommit
+     */
+    public void setGroupCommit(boolean groupCommit) {
+        GroupCommitWriter closed = null;
+        synchronized (this) {
+            if (!groupCommit) {
+                closed = mGroupCommitWriter;
+                mGroupCommitWriter = null;
+            } else if (mGroupCommitWriter == null) {
+                mGroupCommitWriter = newGroupCommitWriter();
+            }
+        }
+        // Closed outside of the lock since it waits for the writer thread to commit
+        if (closed != null)
+            closed.close();
+    }
+
+    private GroupCommitWriter newGroupCommitWriter() {
+        return new GroupCommitWriter(dbHelper, new GroupCommitWriter.Target() {
+            @Override
+            public boolean insert(SQLiteDatabase db, ContentValues values) {
+                return insertPoint(db, values,
+                        values.getAsString(StreamContract.Streams.USERNAME)) != -1;
+            }
+
+            @Override
+            public void onCommitted(int count) {
+                notifyInsert(StreamContract.Streams.CONTENT_URI, count);
+            }
+
+            @Override
+            public void onRolledBack() {
+                StreamContentProvider.this.onRolledBack();
+            }
+        }, Ohmage.GROUP_COMMIT_MAX_DELAY_MS, Ohmage.GROUP_COMMIT_MAX_ROWS,
+                Ohmage.GROUP_COMMIT_MAX_QUEUED);
+    }
+
+    /**
+     * Sets how long change notifications for points are merged before they are sent. Any
+     * notifications waiting for the old window are sent right away.
+     *
+     * @param windowMs the length of the window, or 0 to notify every change right away
+     */
+    public void setNotificationWindow(long windowMs) {
+        ChangeNotificationCoalescer old = mNotifier;
+        mNotifier = new ChangeNotificationCoalescer(getContext().getContentResolver(),
+                Looper.getMainLooper(), windowMs);
+        if (old != null)
+            old.flush();
+    }
+
+    private static boolean isSyncAdapter(Uri uri) {
+        return uri.getQueryParameter(OhmageSyncAdapter.IS_SYNCADAPTER) != null;
+    }
+
+    /**
+     * @param uri
+     * @return false if the caller asked not to wait for a group commit
+     */
+    private static boolean isDurable(Uri uri) {
+        return !GROUP_COMMIT_ASYNC.equals(uri.getQueryParameter(QUERY_PARAMETER_GROUP_COMMIT));
     }
 
     private void notifyInsert(Uri uri, Integer count) {
         if (count > 0) {
-            ContentResolver cr = getContext().getContentResolver();
-
             switch (sUriMatcher.match(uri)) {
                 case MatcherTypes.STREAMS:
-                    cr.notifyChange(StreamContract.Streams.CONTENT_URI, null, false);
+                    mNotifier.notifyChange(StreamContract.Streams.CONTENT_URI);
                     break;
             }
         }
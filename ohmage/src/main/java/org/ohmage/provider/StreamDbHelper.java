@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.provider;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.provider.BaseColumns;
+import android.util.Log;
+
+import org.ohmage.provider.OhmageDbHelper.Tables;
+import org.ohmage.provider.StreamContentProvider.PendingCounts;
+import org.ohmage.provider.StreamContentProvider.SharedMetadata;
+import org.ohmage.provider.StreamContentProvider.UploadLedger;
+import org.ohmage.streams.StreamContract;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The database for stream points and the upload ledger. It is kept in its own file so inserting
+ * points and deleting uploaded batches don't hold the same lock as reads of surveys and ohmlets.
+ * <p/>
+ * Points used to be stored in the {@link OhmageDbHelper} database. Any points left there are moved
+ * over by {@link #migrate()} a page at a time, and the old tables are dropped once they are empty.
+ */
+public class StreamDbHelper extends SQLiteOpenHelper {
+
+    private static final String TAG = StreamDbHelper.class.getSimpleName();
+
+    static final String DB_NAME = "streams.db";
+
+    private static final int DB_VERSION = 4;
+
+    /**
+     * Index for reading the points of one stream in id order, which is how they are uploaded. It
+     * also covers listing the streams of a user and counting the points of each stream, so those
+     * queries only read the index instead of every point.
+     */
+    static final String INDEX_STREAM_DATA_UPLOAD = "stream_data_upload_idx";
+
+    /**
+     * The number of rows moved from the old database in each transaction
+     */
+    private static final int MIGRATION_PAGE_SIZE = 1000;
+
+    /**
+     * The helper for each database file, so everything in the process shares one connection
+     */
+    private static final Map<String, StreamDbHelper> sInstances =
+            new HashMap<String, StreamDbHelper>();
+
+    private final Context mContext;
+
+    private final String mPath;
+
+    /**
+     * Held while rows are moved from the old database, so only one thread moves them at a time
+     */
+    private final Object mMigrationLock = new Object();
+
+    public StreamDbHelper(Context context) {
+        super(context, DB_NAME, null, DB_VERSION);
+        mContext = context;
+        mPath = context.getDatabasePath(DB_NAME).getPath();
+    }
+
+    /**
+     * Gets the helper shared by the whole process. The context should live as long as the
+     * process, like the application or a content provider context.
+     *
+     * @param context
+     * @return the helper for the database
+     */
+    public static synchronized StreamDbHelper getInstance(Context context) {
+        String path = context.getDatabasePath(DB_NAME).getPath();
+        StreamDbHelper helper = sInstances.get(path);
+        if (helper == null) {
+            helper = new StreamDbHelper(context);
+            sInstances.put(path, helper);
+        }
+        return helper;
+    }
+
+    /**
+     * Closes the database and stops sharing this helper
+     */
+    @Override
+    public synchronized void close() {
+        synchronized (StreamDbHelper.class) {
+            if (sInstances.get(mPath) == this)
+                sInstances.remove(mPath);
+        }
+        super.close();
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + Tables.StreamData + " ("
+                   + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                   + StreamContract.Streams.STREAM_ID + " TEXT NOT NULL, "
+                   + StreamContract.Streams.STREAM_VERSION + " INTEGER NOT NULL, "
+                   + StreamContract.Streams.USERNAME + " TEXT NOT NULL, "
+                   + StreamContract.Streams.STREAM_METADATA + " TEXT, "
+                   + StreamContract.Streams.STREAM_DATA + " TEXT, "
+                   + StreamContentProvider.COLUMN_POINT + " BLOB, "
+                   + StreamContentProvider.COLUMN_POINT_LENGTH + " INTEGER, "
+                   + StreamContentProvider.COLUMN_METADATA_ID + " INTEGER);");
+
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + Tables.StreamUploadLedger + " ("
+                   + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                   + UploadLedger.BATCH_ID + " TEXT NOT NULL UNIQUE, "
+                   + StreamContract.Streams.USERNAME + " TEXT NOT NULL, "
+                   + StreamContract.Streams.STREAM_ID + " TEXT NOT NULL, "
+                   + StreamContract.Streams.STREAM_VERSION + " INTEGER NOT NULL, "
+                   + UploadLedger.FIRST_ID + " INTEGER NOT NULL, "
+                   + UploadLedger.LAST_ID + " INTEGER NOT NULL);");
+
+        createIndexes(db);
+        createMetadataDictionary(db);
+        createCounts(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 4) {
+            // The size of a point includes its shared metadata, so the dictionary is added first
+            // and the counts triggers are made again with the new size
+            db.execSQL("ALTER TABLE " + Tables.StreamData + " ADD COLUMN "
+                       + StreamContentProvider.COLUMN_METADATA_ID + " INTEGER");
+            createMetadataDictionary(db);
+            db.execSQL("DROP TRIGGER IF EXISTS stream_data_counts_insert");
+            db.execSQL("DROP TRIGGER IF EXISTS stream_data_counts_delete");
+        }
+        if (oldVersion < 2) {
+            createIndexes(db);
+        }
+        if (oldVersion < 4) {
+            createCounts(db);
+        }
+        if (oldVersion < 3) {
+            db.execSQL("INSERT OR REPLACE INTO " + Tables.StreamCounts + " SELECT "
+                       + StreamContract.Streams.USERNAME + ", " + StreamContract.Streams.STREAM_ID
+                       + ", " + StreamContract.Streams.STREAM_VERSION + ", count(*), sum("
+                       + pointSize(null) + ") FROM " + Tables.StreamData + " GROUP BY "
+                       + StreamContract.Streams.USERNAME + ", " + StreamContract.Streams.STREAM_ID
+                       + ", " + StreamContract.Streams.STREAM_VERSION);
+        }
+    }
+
+    /**
+     * Creates the table with the number of points and bytes waiting to be uploaded for each
+     * stream, and the triggers which keep it up to date in the same transaction as each insert
+     * and delete of a point
+     */
+    private static void createCounts(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + Tables.StreamCounts + " ("
+                   + StreamContract.Streams.USERNAME + " TEXT NOT NULL, "
+                   + StreamContract.Streams.STREAM_ID + " TEXT NOT NULL, "
+                   + StreamContract.Streams.STREAM_VERSION + " INTEGER NOT NULL, "
+                   + PendingCounts.COUNT + " INTEGER NOT NULL DEFAULT 0, "
+                   + PendingCounts.BYTES + " INTEGER NOT NULL DEFAULT 0, "
+                   + "PRIMARY KEY (" + StreamContract.Streams.USERNAME + ", "
+                   + StreamContract.Streams.STREAM_ID + ", "
+                   + StreamContract.Streams.STREAM_VERSION + "));");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS stream_data_counts_insert AFTER INSERT ON "
+                   + Tables.StreamData + " BEGIN "
+                   + "INSERT OR IGNORE INTO " + Tables.StreamCounts + " ("
+                   + StreamContract.Streams.USERNAME + ", " + StreamContract.Streams.STREAM_ID
+                   + ", " + StreamContract.Streams.STREAM_VERSION + ") VALUES (NEW."
+                   + StreamContract.Streams.USERNAME + ", NEW." + StreamContract.Streams.STREAM_ID
+                   + ", NEW." + StreamContract.Streams.STREAM_VERSION + "); "
+                   + "UPDATE " + Tables.StreamCounts + " SET " + PendingCounts.COUNT + "="
+                   + PendingCounts.COUNT + "+1, " + PendingCounts.BYTES + "="
+                   + PendingCounts.BYTES + "+" + pointSize("NEW") + countsRow("NEW") + "; END");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS stream_data_counts_delete AFTER DELETE ON "
+                   + Tables.StreamData + " BEGIN "
+                   + "UPDATE " + Tables.StreamCounts + " SET " + PendingCounts.COUNT + "="
+                   + PendingCounts.COUNT + "-1, " + PendingCounts.BYTES + "="
+                   + PendingCounts.BYTES + "-" + pointSize("OLD") + countsRow("OLD") + "; END");
+    }
+
+    /**
+     * Creates the dictionary of shared metadata, and the triggers which count the points which
+     * use each entry so unused entries can be found without reading the points
+     */
+    private static void createMetadataDictionary(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + Tables.StreamMetadataDictionary + " ("
+                   + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                   + SharedMetadata.METADATA + " TEXT NOT NULL UNIQUE, "
+                   + SharedMetadata.REFS + " INTEGER NOT NULL DEFAULT 0);");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS stream_data_metadata_insert AFTER INSERT ON "
+                   + Tables.StreamData + " WHEN NEW." + StreamContentProvider.COLUMN_METADATA_ID
+                   + " IS NOT NULL BEGIN UPDATE " + Tables.StreamMetadataDictionary + " SET "
+                   + SharedMetadata.REFS + "=" + SharedMetadata.REFS + "+1 WHERE "
+                   + BaseColumns._ID + "=NEW." + StreamContentProvider.COLUMN_METADATA_ID
+                   + "; END");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS stream_data_metadata_delete AFTER DELETE ON "
+                   + Tables.StreamData + " WHEN OLD." + StreamContentProvider.COLUMN_METADATA_ID
+                   + " IS NOT NULL BEGIN UPDATE " + Tables.StreamMetadataDictionary + " SET "
+                   + SharedMetadata.REFS + "=" + SharedMetadata.REFS + "-1 WHERE "
+                   + BaseColumns._ID + "=OLD." + StreamContentProvider.COLUMN_METADATA_ID
+                   + "; END");
+    }
+
+    /**
+     * @return the where clause matching the counts of the stream of a point in a trigger
+     */
+    private static String countsRow(String row) {
+        return " WHERE " + StreamContract.Streams.USERNAME + "=" + row + "."
+               + StreamContract.Streams.USERNAME + " AND " + StreamContract.Streams.STREAM_ID
+               + "=" + row + "." + StreamContract.Streams.STREAM_ID + " AND "
+               + StreamContract.Streams.STREAM_VERSION + "=" + row + "."
+               + StreamContract.Streams.STREAM_VERSION;
+    }
+
+    /**
+     * The number of bytes in a point. Framed points know their length, otherwise it is the UTF-8
+     * length of the data and metadata, including any metadata in the dictionary.
+     *
+     * @param row the name of the row in a trigger, or null for the current row of
+     *            {@link Tables#StreamData}
+     * @return the sql expression for the size
+     */
+    static String pointSize(String row) {
+        String prefix = row == null ? "" : row + ".";
+        return "ifnull(" + prefix + StreamContentProvider.COLUMN_POINT_LENGTH + ", "
+               + "ifnull(length(CAST(" + prefix + StreamContract.Streams.STREAM_DATA
+               + " AS BLOB)), 0) + ifnull(length(CAST(" + prefix
+               + StreamContract.Streams.STREAM_METADATA + " AS BLOB)), 0) + ifnull((SELECT "
+               + "length(CAST(" + SharedMetadata.METADATA + " AS BLOB)) FROM "
+               + Tables.StreamMetadataDictionary + " WHERE "
+               + Tables.StreamMetadataDictionary + "." + BaseColumns._ID + "="
+               + (row == null ? Tables.StreamData : row) + "."
+               + StreamContentProvider.COLUMN_METADATA_ID + "), 0))";
+    }
+
+    private static void createIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_STREAM_DATA_UPLOAD + " ON "
+                   + Tables.StreamData + " (" + StreamContract.Streams.USERNAME + ", "
+                   + StreamContract.Streams.STREAM_ID + ", "
+                   + StreamContract.Streams.STREAM_VERSION + ", " + BaseColumns._ID + ")");
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        OhmageDbHelper.enableWriteAheadLogging(db);
+        if (!db.isReadOnly())
+            reserveIds(db);
+    }
+
+    /**
+     * Makes sure new rows get ids after the rows still waiting in the old database, so they keep
+     * their ids when they are moved. Only the largest id of each table is read, so this is cheap
+     * enough to do whenever the database is opened.
+     *
+     * @param db
+     */
+    private void reserveIds(SQLiteDatabase db) {
+        SQLiteDatabase old = openOldDatabase();
+        if (old == null)
+            return;
+
+        for (String table : new String[]{Tables.StreamData, Tables.StreamUploadLedger}) {
+            if (!hasTable(old, table))
+                continue;
+            long maxId = DatabaseUtils.longForQuery(old,
+                    "SELECT ifnull(max(" + BaseColumns._ID + "), 0) FROM " + table, null);
+            ContentValues values = new ContentValues();
+            values.put("seq", maxId);
+            if (db.update("sqlite_sequence", values, "name=? AND seq<" + maxId,
+                    new String[]{table}) == 0
+                && DatabaseUtils.longForQuery(db,
+                    "SELECT count(*) FROM sqlite_sequence WHERE name=?",
+                    new String[]{table}) == 0) {
+                values.put("name", table);
+                db.insert("sqlite_sequence", null, values);
+            }
+        }
+    }
+
+    /**
+     * Moves the points and ledger entries left in the old database into this one. Each page of
+     * rows is copied in its own transaction and then deleted from the old database, so the
+     * database is never locked for long and an interrupted move carries on from where it stopped
+     * the next time this is called. Rows keep their ids and are copied with insert or ignore, so
+     * a page which was copied but not yet deleted is safe to copy again.
+     * <p/>
+     * This can take a while if a lot of points were left behind, so it shouldn't be called on the
+     * main thread.
+     *
+     * @return the number of points moved
+     */
+    public int migrate() {
+        synchronized (mMigrationLock) {
+            SQLiteDatabase old = openOldDatabase();
+            if (old == null)
+                return 0;
+
+            SQLiteDatabase db = getWritableDatabase();
+            int count = 0;
+            if (hasTable(old, Tables.StreamData)) {
+                count = move(old, db, Tables.StreamData);
+                old.execSQL("DROP TABLE IF EXISTS " + Tables.StreamData);
+            }
+            if (hasTable(old, Tables.StreamUploadLedger)) {
+                move(old, db, Tables.StreamUploadLedger);
+                old.execSQL("DROP TABLE IF EXISTS " + Tables.StreamUploadLedger);
+            }
+            if (count > 0)
+                Log.i(TAG, "Moved " + count + " stream points into " + DB_NAME);
+            return count;
+        }
+    }
+
+    /**
+     * @return the old database, or null if it doesn't exist
+     */
+    private SQLiteDatabase openOldDatabase() {
+        if (!mContext.getDatabasePath(OhmageDbHelper.DB_NAME).exists())
+            return null;
+        return OhmageDbHelper.getInstance(mContext).getWritableDatabase();
+    }
+
+    private static int move(SQLiteDatabase from, SQLiteDatabase to, String table) {
+        int count = 0;
+        ContentValues values = new ContentValues();
+        while (true) {
+            Cursor cursor = from.query(table, null, null, null, null, null, BaseColumns._ID,
+                    String.valueOf(MIGRATION_PAGE_SIZE));
+            long lastId;
+            try {
+                if (!cursor.moveToFirst())
+                    return count;
+
+                int idColumn = cursor.getColumnIndexOrThrow(BaseColumns._ID);
+                to.beginTransaction();
+                try {
+                    do {
+                        values.clear();
+                        DatabaseUtils.cursorRowToContentValues(cursor, values);
+                        to.insertWithOnConflict(table, null, values,
+                                SQLiteDatabase.CONFLICT_IGNORE);
+                        count++;
+                    } while (cursor.moveToNext());
+                    to.setTransactionSuccessful();
+                } finally {
+                    to.endTransaction();
+                }
+                cursor.moveToLast();
+                lastId = cursor.getLong(idColumn);
+            } finally {
+                cursor.close();
+            }
+
+            from.delete(table, BaseColumns._ID + "<=?", new String[]{String.valueOf(lastId)});
+        }
+    }
+
+    private static boolean hasTable(SQLiteDatabase db, String table) {
+        return DatabaseUtils.longForQuery(db,
+                "SELECT count(*) FROM sqlite_master WHERE type='table' AND name=?",
+                new String[]{table}) > 0;
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.provider;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+
+import org.ohmage.provider.OhmageDbHelper.Tables;
+import org.ohmage.provider.StreamContentProvider.SharedMetadata;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Splits the metadata of stream points into the fields which change with every point and the
+ * rest, which is stored once in the {@link SharedMetadata} dictionary and shared by every point
+ * with the same fields. The metadata is put back together by the
+ * {@link org.ohmage.sync.StreamWriterOutput} when it is uploaded.
+ * <p/>
+ * The metadata isn't parsed and written out again, since that could change the order of the
+ * fields, how strings are escaped and how numbers are written. Instead it is cut into two pieces
+ * of the original text at the comma after the last varying field, so joining the pieces gives
+ * back exactly the metadata which was inserted. Only metadata whose varying fields all come before
+ * the shared fields can be split this way, and any other metadata is stored as it is.
+ * <p/>
+ * Like the {@link StreamPointInserter}, the dictionary must only be used while the caller holds a
+ * transaction on the database. If that transaction is rolled back {@link #invalidate()} must be
+ * called, since entries added in it are remembered.
+ */
+class StreamMetadataDictionary {
+
+    /**
+     * The top level metadata fields which are different for every point
+     */
+    static final Set<String> VARYING_FIELDS = new HashSet<String>(
+            Arrays.asList("id", "timestamp"));
+
+    /**
+     * The number of entries whose ids are remembered
+     */
+    private static final int CACHE_SIZE = 32;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The metadata of a point after it was split
+     */
+    static class Entry {
+
+        /**
+         * The id of the dictionary entry with the shared fields
+         */
+        final long id;
+
+        /**
+         * The varying fields, as a json object cut from the original metadata
+         */
+        final String varying;
+
+        /**
+         * The number of bytes in the shared fields
+         */
+        final long sharedSize;
+
+        Entry(long id, String varying, long sharedSize) {
+            this.id = id;
+            this.varying = varying;
+            this.sharedSize = sharedSize;
+        }
+    }
+
+    private final SQLiteDatabase mDb;
+
+    /**
+     * The id and size of the most recently used entries by their shared fields
+     */
+    private final LinkedHashMap<String, long[]> mEntries =
+            new LinkedHashMap<String, long[]>(CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    StreamMetadataDictionary(SQLiteDatabase db) {
+        mDb = db;
+    }
+
+    /**
+     * @return the database the dictionary reads and writes
+     */
+    SQLiteDatabase getDatabase() {
+        return mDb;
+    }
+
+    /**
+     * Splits the metadata and adds the shared fields to the dictionary if they aren't already in
+     * it
+     *
+     * @param metadata
+     * @return the split metadata, or null if it isn't a json object or has no shared fields
+     */
+    synchronized Entry add(String metadata) {
+        String[] split = split(metadata);
+        if (split == null)
+            return null;
+
+        long[] entry = mEntries.get(split[1]);
+        if (entry == null) {
+            entry = new long[]{find(split[1]), split[1].getBytes(UTF_8).length};
+            mEntries.put(split[1], entry);
+        }
+        return new Entry(entry[0], split[0], entry[1]);
+    }
+
+    private long find(String shared) {
+        try {
+            return DatabaseUtils.longForQuery(mDb, "SELECT " + SharedMetadata._ID + " FROM "
+                                                   + Tables.StreamMetadataDictionary + " WHERE "
+                                                   + SharedMetadata.METADATA + "=?",
+                    new String[]{shared});
+        } catch (SQLiteDoneException e) {
+            ContentValues values = new ContentValues();
+            values.put(SharedMetadata.METADATA, shared);
+            return mDb.insertOrThrow(Tables.StreamMetadataDictionary, null, values);
+        }
+    }
+
+    /**
+     * Forgets the remembered entries. This must be called after a transaction which used the
+     * dictionary is rolled back, since the ids of entries it inserted no longer exist.
+     */
+    synchronized void invalidate() {
+        mEntries.clear();
+    }
+
+    /**
+     * Deletes the entries which no points use anymore
+     *
+     * @return the number of entries deleted
+     */
+    synchronized int prune() {
+        int count = mDb.delete(Tables.StreamMetadataDictionary, SharedMetadata.REFS + "<=0",
+                null);
+        if (count != 0)
+            mEntries.clear();
+        return count;
+    }
+
+    /**
+     * Splits metadata into the {@link #VARYING_FIELDS} and the rest. The varying part is the text
+     * of the metadata up to the comma after the last varying field with the object closed, and
+     * the shared part is the text after that comma with the object opened, so
+     * {@code varying[0, length - 1] + "," + shared[1, length]} is the original metadata. If there
+     * are no varying fields the varying part is {@code {}} and the shared part is the metadata.
+     *
+     * @param metadata
+     * @return the varying fields and the shared fields as json objects, or null if the metadata
+     * isn't a json object, has no shared fields, or has a varying field after a shared field
+     */
+    String[] split(String metadata) {
+        int length = metadata.length();
+        int i = skipWhitespace(metadata, 0);
+        if (i >= length || metadata.charAt(i) != '{')
+            return null;
+
+        // The index of the comma after the last varying field, or -1 if there are none
+        int cut = -1;
+        boolean shared = false;
+        i = skipWhitespace(metadata, i + 1);
+        if (i < length && metadata.charAt(i) == '}')
+            return null;
+        while (true) {
+            if (i >= length || metadata.charAt(i) != '"')
+                return null;
+            int keyEnd = skipString(metadata, i);
+            if (keyEnd < 0)
+                return null;
+            boolean varying = VARYING_FIELDS.contains(metadata.substring(i + 1, keyEnd - 1));
+            if (varying && shared)
+                return null;
+            shared |= !varying;
+
+            i = skipWhitespace(metadata, keyEnd);
+            if (i >= length || metadata.charAt(i) != ':')
+                return null;
+            i = skipValue(metadata, skipWhitespace(metadata, i + 1));
+            if (i < 0)
+                return null;
+            i = skipWhitespace(metadata, i);
+            if (i >= length)
+                return null;
+
+            char c = metadata.charAt(i);
+            if (c == '}')
+                break;
+            if (c != ',')
+                return null;
+            if (varying)
+                cut = i;
+            i = skipWhitespace(metadata, i + 1);
+        }
+        if (!shared || skipWhitespace(metadata, i + 1) != length)
+            return null;
+
+        if (cut < 0)
+            return new String[]{"{}", metadata};
+        return new String[]{metadata.substring(0, cut) + "}",
+                "{" + metadata.substring(cut + 1)};
+    }
+
+    private static int skipWhitespace(String json, int i) {
+        while (i < json.length() && Character.isWhitespace(json.charAt(i)))
+            i++;
+        return i;
+    }
+
+    /**
+     * @return the index after the string starting at {@code start}, or -1 if it isn't closed
+     */
+    private static int skipString(String json, int start) {
+        for (int i = start + 1; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c == '\\')
+                i++;
+            else if (c == '"')
+                return i + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Skips a value without checking that it is valid json, only that its strings, objects and
+     * arrays are closed
+     *
+     * @return the index after the value starting at {@code start}, or -1 if it isn't closed
+     */
+    private static int skipValue(String json, int start) {
+        int depth = 0;
+        int i = start;
+        while (i < json.length()) {
+            char c = json.charAt(i);
+            if (c == '"') {
+                i = skipString(json, i);
+                if (i < 0)
+                    return -1;
+                if (depth == 0)
+                    return i;
+                continue;
+            }
+            if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                if (depth == 0)
+                    return i == start ? -1 : i;
+                if (--depth == 0)
+                    return i + 1;
+            } else if (c == ',' && depth == 0) {
+                return i == start ? -1 : i;
+            }
+            i++;
+        }
+        return -1;
+    }
+}
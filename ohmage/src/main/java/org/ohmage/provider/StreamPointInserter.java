@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.provider;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import org.ohmage.provider.OhmageDbHelper.Tables;
+import org.ohmage.streams.StreamContract;
+
+/**
+ * Inserts stream points with one compiled statement which is bound and run again for every
+ * point. This skips building the sql and boxing each value into a {@link ContentValues} the way
+ * {@link SQLiteDatabase#insert(String, String, ContentValues)} does.
+ * <p/>
+ * The statement must only be used while the caller holds a transaction on the database.
+ */
+public class StreamPointInserter {
+
+    private static final String SQL = "INSERT INTO " + Tables.StreamData + " ("
+                                      + StreamContract.Streams.STREAM_ID + ", "
+                                      + StreamContract.Streams.STREAM_VERSION + ", "
+                                      + StreamContract.Streams.USERNAME + ", "
+                                      + StreamContract.Streams.STREAM_METADATA + ", "
+                                      + StreamContract.Streams.STREAM_DATA + ", "
+                                      + StreamContentProvider.COLUMN_POINT + ", "
+                                      + StreamContentProvider.COLUMN_POINT_LENGTH + ", "
+                                      + StreamContentProvider.COLUMN_METADATA_ID
+                                      + ") VALUES (?,?,?,?,?,?,?,?)";
+
+    private final SQLiteDatabase mDb;
+
+    private final SQLiteStatement mStatement;
+
+    public StreamPointInserter(SQLiteDatabase db) {
+        mDb = db;
+        mStatement = db.compileStatement(SQL);
+    }
+
+    /**
+     * @return the database the statement was compiled for
+     */
+    public SQLiteDatabase getDatabase() {
+        return mDb;
+    }
+
+    /**
+     * Inserts a point
+     *
+     * @param streamId
+     * @param streamVersion
+     * @param username
+     * @param metadata      the metadata, or null if the point is framed
+     * @param data          the data, or null if the point is framed
+     * @param point         the framed point made by
+     *                      {@link StreamContentProvider#encodePoint(String, String)}, or null
+     * @return the id of the point, or -1 if it couldn't be inserted
+     */
+    public long insert(String streamId, long streamVersion, String username,
+            String metadata, String data, byte[] point) {
+        return insert(streamId, streamVersion, username, metadata, data, point, -1);
+    }
+
+    /**
+     * Inserts a point which may have some of its metadata in the
+     * {@link StreamContentProvider.SharedMetadata} dictionary
+     *
+     * @param streamId
+     * @param streamVersion
+     * @param username
+     * @param metadata      the metadata which isn't in the dictionary, or null if the point is
+     *                      framed
+     * @param data          the data, or null if the point is framed
+     * @param point         the framed point, or null
+     * @param metadataId    the id of the dictionary entry with the rest of the metadata, or -1
+     * @return the id of the point, or -1 if it couldn't be inserted
+     */
+    public synchronized long insert(String streamId, long streamVersion, String username,
+            String metadata, String data, byte[] point, long metadataId) {
+        bind(1, streamId);
+        mStatement.bindLong(2, streamVersion);
+        bind(3, username);
+        if (point != null) {
+            mStatement.bindNull(4);
+            mStatement.bindNull(5);
+            mStatement.bindBlob(6, point);
+            mStatement.bindLong(7, point.length);
+        } else {
+            bind(4, metadata);
+            bind(5, data);
+            mStatement.bindNull(6);
+            mStatement.bindNull(7);
+        }
+        if (metadataId == -1) {
+            mStatement.bindNull(8);
+        } else {
+            mStatement.bindLong(8, metadataId);
+        }
+        return mStatement.executeInsert();
+    }
+
+    private void bind(int index, String value) {
+        if (value == null) {
+            mStatement.bindNull(index);
+        } else {
+            mStatement.bindString(index, value);
+        }
+    }
+
+    public synchronized void close() {
+        mStatement.close();
+    }
+}
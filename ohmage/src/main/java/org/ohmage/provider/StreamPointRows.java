@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.provider;
+
+import java.util.Arrays;
+
+/**
+ * A reusable list of stream points for producers in the same process to insert with
+ * {@link StreamContentProvider#bulkInsert(StreamPointRows)}. The points are kept in plain arrays
+ * so no {@link android.content.ContentValues} has to be made for each one.
+ */
+public class StreamPointRows {
+
+    private String[] mStreamIds;
+
+    private long[] mStreamVersions;
+
+    private String[] mMetadata;
+
+    private String[] mData;
+
+    private int mSize;
+
+    public StreamPointRows() {
+        this(16);
+    }
+
+    /**
+     * @param capacity the number of points which can be added before the arrays grow
+     */
+    public StreamPointRows(int capacity) {
+        mStreamIds = new String[capacity];
+        mStreamVersions = new long[capacity];
+        mMetadata = new String[capacity];
+        mData = new String[capacity];
+    }
+
+    public void add(String streamId, long streamVersion, String metadata, String data) {
+        if (mSize == mStreamIds.length) {
+            int capacity = Math.max(mSize * 2, 16);
+            mStreamIds = Arrays.copyOf(mStreamIds, capacity);
+            mStreamVersions = Arrays.copyOf(mStreamVersions, capacity);
+            mMetadata = Arrays.copyOf(mMetadata, capacity);
+            mData = Arrays.copyOf(mData, capacity);
+        }
+        mStreamIds[mSize] = streamId;
+        mStreamVersions[mSize] = streamVersion;
+        mMetadata[mSize] = metadata;
+        mData[mSize] = data;
+        mSize++;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Removes all of the points so the list can be reused
+     */
+    public void clear() {
+        Arrays.fill(mStreamIds, 0, mSize, null);
+        Arrays.fill(mMetadata, 0, mSize, null);
+        Arrays.fill(mData, 0, mSize, null);
+        mSize = 0;
+    }
+
+    public String getStreamId(int index) {
+        return mStreamIds[index];
+    }
+
+    public long getStreamVersion(int index) {
+        return mStreamVersions[index];
+    }
+
+    public String getMetadata(int index) {
+        return mMetadata[index];
+    }
+
+    public String getData(int index) {
+        return mData[index];
+    }
+}
@@ -0,0 +1,642 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.BaseColumns;
+
+import org.ohmage.provider.OhmageDbHelper.Tables;
+import org.ohmage.provider.StreamContentProvider.PendingCounts;
+import org.ohmage.provider.StreamContentProvider.QuotaCounts;
+import org.ohmage.streams.StreamContract;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Limits how many stream points can wait to be uploaded, for each stream of each user and for all
+ * of the streams together. Limits can be a number of rows, a number of bytes, or both, and a limit
+ * of 0 means there is no limit.
+ * <p/>
+ * The number of rows and bytes of each stream are read from the pending counts the first time a
+ * point is inserted, and then kept up to date as points are inserted. After points are deleted
+ * they are read from the pending counts again. This keeps checking the quota on every insert
+ * cheap. When a limit is passed, points are evicted until the
+ * usage is down to {@link #LOW_WATER_MARK} of the limit so eviction doesn't run again for the
+ * next insert.
+ * <p/>
+ * The usage is changed in the transaction of the insert or delete, so if that transaction is
+ * rolled back {@link #invalidate()} must be called to read the usage again.
+ */
+public class StreamQuota {
+
+    /**
+     * What happens when a limit is passed
+     */
+    public enum Policy {
+        /**
+         * Delete the oldest points
+         */
+        OLDEST_FIRST,
+
+        /**
+         * Delete every {@link StreamQuota#THIN_STRIDE}th point of the older half of the stream,
+         * so older data is kept at a lower rate instead of being lost. Each eviction carries on
+         * from where the last one stopped, and once the older half has been thinned it is thinned
+         * again.
+         */
+        DOWNSAMPLE_OLDER,
+
+        /**
+         * Drop new points until uploaded points have been deleted
+         */
+        REJECT_NEW
+    }
+
+    /**
+     * Eviction frees space until the usage is at this fraction of the limit
+     */
+    static final float LOW_WATER_MARK = 0.9f;
+
+    /**
+     * The number of bytes in a point
+     */
+    static final String POINT_SIZE = StreamDbHelper.pointSize(null);
+
+    /**
+     * Downsampling deletes one of every this many points
+     */
+    static final int THIN_STRIDE = 2;
+
+    /**
+     * Matches the points of one stream using the upload index
+     */
+    private static final String STREAM_SELECTION = StreamContract.Streams.USERNAME + "=? AND "
+                                                   + StreamContract.Streams.STREAM_ID + "=? AND "
+                                                   + StreamContract.Streams.STREAM_VERSION + "=?";
+
+    /**
+     * The most ids which can be bound in a single delete
+     */
+    private static final int MAX_BOUND_IDS = 999;
+
+    /**
+     * The fewest points read at a time while evicting for a limit on bytes, where the number of
+     * points needed isn't known ahead of time
+     */
+    private static final int MIN_EVICT_PAGE = 64;
+
+    private final Policy mPolicy;
+
+    private final long mMaxStreamRows;
+
+    private final long mMaxStreamBytes;
+
+    private final long mMaxRows;
+
+    private final long mMaxBytes;
+
+    /**
+     * The usage of each stream, or null until it is read from the database
+     */
+    private Map<String, Usage> mUsage;
+
+    /**
+     * True if the usage must be read again from the pending counts, because points were deleted or
+     * a transaction which changed the usage was rolled back
+     */
+    private boolean mStale;
+
+    private long mRows;
+
+    private long mBytes;
+
+    private long mEvicted;
+
+    private long mRejected;
+
+    /**
+     * @param policy         what to do when a limit is passed
+     * @param maxStreamRows  the most points for each stream
+     * @param maxStreamBytes the most bytes for each stream
+     * @param maxRows        the most points for all streams
+     * @param maxBytes       the most bytes for all streams
+     */
+    public StreamQuota(Policy policy, long maxStreamRows, long maxStreamBytes, long maxRows,
+            long maxBytes) {
+        mPolicy = policy;
+        mMaxStreamRows = maxStreamRows;
+        mMaxStreamBytes = maxStreamBytes;
+        mMaxRows = maxRows;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return true if any limit is set
+     */
+    public boolean isEnabled() {
+        return mMaxStreamRows > 0 || mMaxStreamBytes > 0 || mMaxRows > 0 || mMaxBytes > 0;
+    }
+
+    /**
+     * Checks if a point can be inserted. Points are only refused by {@link Policy#REJECT_NEW}.
+     *
+     * @param db
+     * @param values the point which will be inserted
+     * @return false if the point should be dropped
+     */
+    public boolean admit(SQLiteDatabase db, ContentValues values) {
+        String username = values.getAsString(StreamContract.Streams.USERNAME);
+        String streamId = values.getAsString(StreamContract.Streams.STREAM_ID);
+        Long streamVersion = values.getAsLong(StreamContract.Streams.STREAM_VERSION);
+        if (username == null || streamId == null || streamVersion == null)
+            return true;
+        return admit(db, username, streamId, streamVersion, sizeOf(values));
+    }
+
+    /**
+     * Checks if a point can be inserted. Points are only refused by {@link Policy#REJECT_NEW}.
+     *
+     * @param db
+     * @param username
+     * @param streamId
+     * @param streamVersion
+     * @param size          the number of bytes in the point from {@link #sizeOf(String, String)}
+     * @return false if the point should be dropped
+     */
+    public synchronized boolean admit(SQLiteDatabase db, String username, String streamId,
+            long streamVersion, long size) {
+        if (mPolicy != Policy.REJECT_NEW)
+            return true;
+
+        Usage usage = usage(db, username, streamId, streamVersion);
+        if (over(usage.rows + 1, mMaxStreamRows) || over(usage.bytes + size, mMaxStreamBytes)
+            || over(mRows + 1, mMaxRows) || over(mBytes + size, mMaxBytes)) {
+            usage.rejected++;
+            mRejected++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Counts a point which was inserted and evicts points if it passed a limit
+     *
+     * @param db     the database, in the transaction the point was inserted in
+     * @param values the point which was inserted
+     */
+    public void onInserted(SQLiteDatabase db, ContentValues values) {
+        String username = values.getAsString(StreamContract.Streams.USERNAME);
+        String streamId = values.getAsString(StreamContract.Streams.STREAM_ID);
+        Long streamVersion = values.getAsLong(StreamContract.Streams.STREAM_VERSION);
+        if (username != null && streamId != null && streamVersion != null)
+            onInserted(db, username, streamId, streamVersion, sizeOf(values));
+    }
+
+    /**
+     * Counts a point which was inserted and evicts points if it passed a limit
+     *
+     * @param db            the database, in the transaction the point was inserted in
+     * @param username
+     * @param streamId
+     * @param streamVersion
+     * @param size          the number of bytes in the point from {@link #sizeOf(String, String)}
+     */
+    public synchronized void onInserted(SQLiteDatabase db, String username, String streamId,
+            long streamVersion, long size) {
+        // If the usage is read now, the counts already include the new point
+        boolean counted = mUsage == null || mStale;
+        Usage usage = usage(db, username, streamId, streamVersion);
+        if (!counted) {
+            usage.rows++;
+            usage.bytes += size;
+            mRows++;
+            mBytes += size;
+        }
+
+        if (mPolicy == Policy.REJECT_NEW)
+            return;
+
+        if (over(usage.rows, mMaxStreamRows) || over(usage.bytes, mMaxStreamBytes)) {
+            evict(db, usage, excess(usage.rows, mMaxStreamRows),
+                    excess(usage.bytes, mMaxStreamBytes));
+        }
+
+        // Take space from the largest streams first so a stream with a small backlog isn't
+        // evicted because of another stream
+        while (over(mRows, mMaxRows) || over(mBytes, mMaxBytes)) {
+            Usage largest = largest();
+            if (largest == null
+                || evict(db, largest, excess(mRows, mMaxRows), excess(mBytes, mMaxBytes)) == 0)
+                break;
+        }
+    }
+
+    /**
+     * Uncounts points which were deleted. The pending counts are kept up to date by the delete
+     * triggers, so the usage is read from them again the next time it is needed instead of
+     * counting the deleted points a second time.
+     */
+    public synchronized void onDeleted() {
+        mStale = true;
+    }
+
+    /**
+     * Forgets the usage so it is read again from the pending counts. This must be called after a
+     * transaction which inserted or deleted points is rolled back, since the usage was changed as
+     * if it had been committed. The eviction counters are kept.
+     */
+    public synchronized void invalidate() {
+        mStale = true;
+    }
+
+    /**
+     * @return the number of points evicted since the quota was created
+     */
+    public synchronized long getEvicted() {
+        return mEvicted;
+    }
+
+    /**
+     * @return the number of points rejected since the quota was created
+     */
+    public synchronized long getRejected() {
+        return mRejected;
+    }
+
+    /**
+     * Lists the usage and eviction counters of each stream
+     *
+     * @param db
+     * @return a cursor with the columns of {@link QuotaCounts}
+     */
+    public synchronized Cursor counts(SQLiteDatabase db) {
+        if (mUsage == null || mStale)
+            load(db);
+
+        MatrixCursor cursor = new MatrixCursor(new String[]{
+                StreamContract.Streams.USERNAME, StreamContract.Streams.STREAM_ID,
+                StreamContract.Streams.STREAM_VERSION, QuotaCounts.ROWS, QuotaCounts.BYTES,
+                QuotaCounts.EVICTED, QuotaCounts.REJECTED});
+        for (Usage usage : mUsage.values()) {
+            cursor.addRow(new Object[]{usage.username, usage.streamId, usage.streamVersion,
+                    usage.rows, usage.bytes, usage.evicted, usage.rejected});
+        }
+        return cursor;
+    }
+
+    /**
+     * Evicts points from a stream until the number of rows and bytes given are freed
+     *
+     * @return the number of points evicted
+     */
+    private int evict(SQLiteDatabase db, Usage usage, long rows, long bytes) {
+        Freed freed = new Freed(rows, bytes);
+
+        if (mPolicy == Policy.DOWNSAMPLE_OLDER)
+            thin(db, usage, freed);
+
+        // Downsampling falls back to the oldest points once there is nothing left to thin
+        if (!freed.isEnough())
+            evictOldest(db, usage, freed);
+
+        remove(usage, freed.rows, freed.bytes);
+        usage.evicted += freed.rows;
+        mEvicted += freed.rows;
+        return freed.rows;
+    }
+
+    /**
+     * Deletes the oldest points of a stream. The points are read in id order from the upload
+     * index a page at a time, and deleted with a single range delete.
+     */
+    private static void evictOldest(SQLiteDatabase db, Usage usage, Freed freed) {
+        long lastId = -1;
+        while (!freed.isEnough()) {
+            int page = freed.pageSize(1);
+            Cursor cursor = db.query(Tables.StreamData, new String[]{BaseColumns._ID, POINT_SIZE},
+                    STREAM_SELECTION + " AND " + BaseColumns._ID + ">?",
+                    usage.selectionArgs(String.valueOf(lastId)), null, null, BaseColumns._ID,
+                    String.valueOf(page));
+            try {
+                while (!freed.isEnough() && cursor.moveToNext()) {
+                    lastId = cursor.getLong(0);
+                    freed.add(cursor.getLong(1));
+                }
+                if (cursor.getCount() < page)
+                    break;
+            } finally {
+                cursor.close();
+            }
+        }
+
+        if (lastId != -1) {
+            db.delete(Tables.StreamData, STREAM_SELECTION + " AND " + BaseColumns._ID + "<=?",
+                    usage.selectionArgs(String.valueOf(lastId)));
+        }
+    }
+
+    /**
+     * Deletes every {@link #THIN_STRIDE}th point of the older half of a stream, starting where
+     * the last thinning of the stream stopped. Only a window of about {@link #THIN_STRIDE} times
+     * the number of points needed is read at a time.
+     */
+    private static void thin(SQLiteDatabase db, Usage usage, Freed freed) {
+        List<Long> ids = new ArrayList<Long>();
+        // The number of points freed when a round was started by this eviction
+        int roundStart = -1;
+
+        while (!freed.isEnough()) {
+            if (usage.thinTo == -1) {
+                startThinning(db, usage);
+                if (usage.thinTo == -1)
+                    break;
+                roundStart = freed.rows;
+            }
+
+            int window = freed.pageSize(THIN_STRIDE);
+            Cursor cursor = db.query(Tables.StreamData, new String[]{BaseColumns._ID, POINT_SIZE},
+                    STREAM_SELECTION + " AND " + BaseColumns._ID + ">? AND " + BaseColumns._ID
+                    + "<=?", usage.selectionArgs(String.valueOf(usage.thinFrom),
+                            String.valueOf(usage.thinTo)), null, null, BaseColumns._ID,
+                    String.valueOf(window));
+            try {
+                if (cursor.getCount() == 0) {
+                    // A round which was started here and didn't find anything won't next time
+                    if (roundStart == freed.rows)
+                        break;
+                    // The next round reads from the oldest point again, so it must not see the
+                    // points this round is deleting
+                    deleteIds(db, ids);
+                    ids.clear();
+                    usage.thinTo = -1;
+                    continue;
+                }
+                while (!freed.isEnough() && cursor.moveToNext()) {
+                    usage.thinFrom = cursor.getLong(0);
+                    if (cursor.getPosition() % THIN_STRIDE == THIN_STRIDE - 1) {
+                        ids.add(usage.thinFrom);
+                        freed.add(cursor.getLong(1));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        deleteIds(db, ids);
+    }
+
+    /**
+     * Starts a round of thinning at the oldest point of the stream which ends at the middle point
+     */
+    private static void startThinning(SQLiteDatabase db, Usage usage) {
+        usage.thinFrom = -1;
+        usage.thinTo = -1;
+        Cursor cursor = db.query(Tables.StreamData, new String[]{BaseColumns._ID},
+                STREAM_SELECTION, usage.selectionArgs(), null, null, BaseColumns._ID,
+                (usage.rows / 2) + ",1");
+        try {
+            if (cursor.moveToFirst())
+                usage.thinTo = cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void deleteIds(SQLiteDatabase db, List<Long> ids) {
+        for (int start = 0; start < ids.size(); start += MAX_BOUND_IDS) {
+            int end = Math.min(start + MAX_BOUND_IDS, ids.size());
+            String[] args = new String[end - start];
+            StringBuilder selection = new StringBuilder(BaseColumns._ID).append(" IN (");
+            for (int i = start; i < end; i++) {
+                selection.append(i == start ? "?" : ",?");
+                args[i - start] = String.valueOf(ids.get(i));
+            }
+            selection.append(')');
+            db.delete(Tables.StreamData, selection.toString(), args);
+        }
+    }
+
+    private void remove(Usage usage, long rows, long bytes) {
+        usage.rows = Math.max(usage.rows - rows, 0);
+        usage.bytes = Math.max(usage.bytes - bytes, 0);
+        mRows = Math.max(mRows - rows, 0);
+        mBytes = Math.max(mBytes - bytes, 0);
+    }
+
+    private Usage largest() {
+        Usage largest = null;
+        for (Usage usage : mUsage.values()) {
+            if (usage.rows == 0)
+                continue;
+            if (largest == null || (mMaxBytes > 0 ? usage.bytes > largest.bytes
+                                                  : usage.rows > largest.rows))
+                largest = usage;
+        }
+        return largest;
+    }
+
+    private Usage usage(SQLiteDatabase db, String username, String streamId, long streamVersion) {
+        if (mUsage == null || mStale)
+            load(db);
+
+        String key = key(username, streamId, streamVersion);
+        Usage usage = mUsage.get(key);
+        if (usage == null) {
+            usage = new Usage(username, streamId, streamVersion);
+            mUsage.put(key, usage);
+        }
+        return usage;
+    }
+
+    /**
+     * Reads the usage of every stream from the counts kept by the database. The counters and
+     * thinning progress of streams which were already known are kept.
+     */
+    private void load(SQLiteDatabase db) {
+        Map<String, Usage> old = mUsage;
+        mUsage = new HashMap<String, Usage>();
+        mStale = false;
+        mRows = 0;
+        mBytes = 0;
+
+        Cursor cursor = db.query(Tables.StreamCounts, new String[]{
+                        StreamContract.Streams.USERNAME, StreamContract.Streams.STREAM_ID,
+                        StreamContract.Streams.STREAM_VERSION, PendingCounts.COUNT,
+                        PendingCounts.BYTES}, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                String key = key(cursor.getString(0), cursor.getString(1), cursor.getLong(2));
+                Usage usage = old != null ? old.get(key) : null;
+                if (usage == null)
+                    usage = new Usage(cursor.getString(0), cursor.getString(1), cursor.getLong(2));
+                usage.rows = cursor.getLong(3);
+                usage.bytes = cursor.getLong(4);
+                mUsage.put(key, usage);
+                mRows += usage.rows;
+                mBytes += usage.bytes;
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the amount to free to get back down to the low water mark, or 0 if the value isn't
+     * over the limit
+     */
+    private static long excess(long value, long max) {
+        return over(value, max) ? value - (long) (max * LOW_WATER_MARK) : 0;
+    }
+
+    private static boolean over(long value, long max) {
+        return max > 0 && value > max;
+    }
+
+    private static String key(String username, String streamId, long streamVersion) {
+        return username + ":" + streamId + ":" + streamVersion;
+    }
+
+    /**
+     * The number of bytes a point will use, computed the same way as {@link #POINT_SIZE}
+     */
+    static long sizeOf(ContentValues values) {
+        Integer length = values.getAsInteger(StreamContentProvider.COLUMN_POINT_LENGTH);
+        if (length != null)
+            return length;
+        return sizeOf(values.getAsString(StreamContract.Streams.STREAM_DATA),
+                values.getAsString(StreamContract.Streams.STREAM_METADATA));
+    }
+
+    /**
+     * The number of bytes a point which isn't framed will use
+     *
+     * @param data
+     * @param metadata
+     * @return the UTF-8 length of the data and metadata
+     */
+    public static long sizeOf(String data, String metadata) {
+        return utf8Length(data) + utf8Length(metadata);
+    }
+
+    private static long utf8Length(String s) {
+        if (s == null)
+            return 0;
+
+        long length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static class Usage {
+        final String username;
+
+        final String streamId;
+
+        final long streamVersion;
+
+        long rows;
+
+        long bytes;
+
+        long evicted;
+
+        long rejected;
+
+        /**
+         * The id of the last point looked at by the current round of thinning
+         */
+        long thinFrom = -1;
+
+        /**
+         * The id of the last point of the current round of thinning, or -1 if there isn't one
+         */
+        long thinTo = -1;
+
+        Usage(String username, String streamId, long streamVersion) {
+            this.username = username;
+            this.streamId = streamId;
+            this.streamVersion = streamVersion;
+        }
+
+        String[] selectionArgs(String... extra) {
+            String[] args = new String[3 + extra.length];
+            args[0] = username;
+            args[1] = streamId;
+            args[2] = String.valueOf(streamVersion);
+            System.arraycopy(extra, 0, args, 3, extra.length);
+            return args;
+        }
+    }
+
+    /**
+     * Counts what an eviction has freed against what it needs to free
+     */
+    private static class Freed {
+        final long neededRows;
+
+        final long neededBytes;
+
+        int rows;
+
+        long bytes;
+
+        Freed(long neededRows, long neededBytes) {
+            this.neededRows = neededRows;
+            this.neededBytes = neededBytes;
+        }
+
+        void add(long size) {
+            rows++;
+            bytes += size;
+        }
+
+        boolean isEnough() {
+            return rows >= neededRows && bytes >= neededBytes;
+        }
+
+        /**
+         * @param stride the number of points read for each point freed
+         * @return how many points to read for the rest of the eviction. This is exact for a limit
+         * on rows, and a page of at least {@link #MIN_EVICT_PAGE} for a limit on bytes.
+         */
+        int pageSize(int stride) {
+            long points = Math.max(neededRows - rows, 0);
+            if (bytes < neededBytes)
+                points = Math.max(points, MIN_EVICT_PAGE);
+            return (int) Math.min(points * stride, Integer.MAX_VALUE);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ohmage.provider;
+
+import org.ohmage.streams.StreamContract;
+
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The selections of stream points a {@link StreamStore} understands. These are terms joined by
+ * AND which match the {@link StreamContract.Streams#USERNAME},
+ * {@link StreamContract.Streams#STREAM_ID} and {@link StreamContract.Streams#STREAM_VERSION}
+ * exactly, and limit the {@link StreamContract.Streams#_ID} with {@code >?}, {@code >=?},
+ * {@code =?} or {@code BETWEEN ? AND ?}. This covers the selections made by
+ * {@link org.ohmage.models.Streams} and the sync adapter.
+ */
+public class StreamSelection {
+
+    private static final Pattern TERM = Pattern.compile(
+            "\\s*\\(*\\s*(\\w+)\\s*(=|>=|>|BETWEEN)\\s*\\?(\\s*AND\\s*\\?)?"
+            + "\\s*\\)*\\s*(?:AND\\b|$)", Pattern.CASE_INSENSITIVE);
+
+    public String username;
+
+    public String streamId;
+
+    public Long streamVersion;
+
+    /**
+     * The first id in the selection, inclusive
+     */
+    public long firstId = 0;
+
+    /**
+     * The last id in the selection, inclusive
+     */
+    public long lastId = Long.MAX_VALUE;
+
+    /**
+     * Parses a selection
+     *
+     * @param selection
+     * @param selectionArgs
+     * @return the selection
+     * @throws UnsupportedOperationException if the selection has terms which aren't understood
+     */
+    public static StreamSelection parse(String selection, String[] selectionArgs) {
+        StreamSelection result = new StreamSelection();
+        if (selection == null)
+            return result;
+
+        Matcher term = TERM.matcher(selection);
+        int position = 0;
+        int arg = 0;
+        while (position < selection.length()) {
+            term.region(position, selection.length());
+            if (!term.lookingAt())
+                throw new UnsupportedOperationException("Unsupported selection: " + selection);
+
+            String column = term.group(1);
+            String operator = term.group(2).toUpperCase(Locale.US);
+            boolean range = term.group(3) != null;
+            if (range != "BETWEEN".equals(operator) || selectionArgs == null
+                || selectionArgs.length < arg + (range ? 2 : 1))
+                throw new UnsupportedOperationException("Unsupported selection: " + selection);
+
+            String value = selectionArgs[arg++];
+            if (StreamContract.Streams._ID.equals(column)) {
+                long id = Long.parseLong(value);
+                if (">".equals(operator)) {
+                    result.firstId = Math.max(result.firstId, id + 1);
+                } else if (">=".equals(operator)) {
+                    result.firstId = Math.max(result.firstId, id);
+                } else {
+                    long last = range ? Long.parseLong(selectionArgs[arg++]) : id;
+                    result.firstId = Math.max(result.firstId, id);
+                    result.lastId = Math.min(result.lastId, last);
+                }
+            } else if (!"=".equals(operator)) {
+                throw new UnsupportedOperationException("Unsupported selection: " + selection);
+            } else if (StreamContract.Streams.USERNAME.equals(column)) {
+                result.username = value;
+            } else if (StreamContract.Streams.STREAM_ID.equals(column)) {
+                result.streamId = value;
+            } else if (StreamContract.Streams.STREAM_VERSION.equals(column)) {
+                result.streamVersion = Long.valueOf(value);
+            } else {
+                throw new UnsupportedOperationException("Unsupported selection: " + selection);
+            }
+            position = term.end();
+        }
+        return result;
+    }
+
+    /**
+     * @return true if the stream is in the selection
+     */
+    public boolean matches(String username, String streamId, long streamVersion) {
+        return (this.username == null || this.username.equals(username))
+               && (this.streamId == null || this.streamId.equals(streamId))
+               && (this.streamVersion == null || this.streamVersion == streamVersion);
+    }
+}
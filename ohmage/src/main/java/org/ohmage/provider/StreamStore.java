@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.ohmage.provider;
+
+import android.database.Cursor;
+
+import org.ohmage.provider.StreamContentProvider.PendingCounts;
+import org.ohmage.streams.StreamContract;
+
+/**
+ * Storage for stream points which the {@link StreamContentProvider} can use instead of the
+ * stream_data table. Points are stored framed as the json they are uploaded as, made by
+ * {@link StreamContentProvider#encodePoint(String, String)}, with ids which increase within each
+ * stream.
+ */
+public interface StreamStore {
+
+    /**
+     * Adds a point to the end of a stream
+     *
+     * @param username
+     * @param streamId
+     * @param streamVersion
+     * @param point         the framed point
+     * @return the id of the point, or -1 if it couldn't be stored
+     */
+    long append(String username, String streamId, long streamVersion, byte[] point);
+
+    /**
+     * Reads the points in the selection in id order. If the first column of the projection
+     * starts with {@code distinct}, there is one row for each stream which has points instead.
+     *
+     * @param projection columns from {@link StreamContract.Streams},
+     *                   {@link StreamContentProvider#COLUMN_POINT} and
+     *                   {@link StreamContentProvider#COLUMN_POINT_LENGTH}
+     * @param selection
+     * @param limit      the most points to read
+     * @return the points
+     */
+    Cursor query(String[] projection, StreamSelection selection, int limit);
+
+    /**
+     * Deletes the points in the selection
+     *
+     * @param selection
+     * @return the number of points deleted
+     */
+    int delete(StreamSelection selection);
+
+    /**
+     * @param projection columns from {@link PendingCounts} and {@link StreamContract.Streams}
+     * @return the {@link PendingCounts} of each stream which has points
+     */
+    Cursor counts(String[] projection);
+
+    /**
+     * Writes the points appended so far to disk. Appended points may only be in memory until this
+     * is called, so inserts which must survive a crash call it before they return.
+     */
+    void sync();
+
+    /**
+     * Releases the resources held by the store
+     */
+    void close();
+}
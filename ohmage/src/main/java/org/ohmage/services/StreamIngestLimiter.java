@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.services;
+
+import android.os.SystemClock;
+
+import org.ohmage.models.Stream;
+import org.ohmage.models.Stream.IngestLimits;
+import org.ohmage.models.Stream.IngestLimits.OverLimit;
+import org.ohmage.models.Stream.IngestLimits.Priority;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Limits how fast the {@link StreamReceiver} accepts points for each stream using token buckets.
+ * Each stream has its own bucket, set by the {@link IngestLimits} of its definition or by the
+ * defaults for its priority. Normal and bulk streams also share a bucket for the whole device, and
+ * bulk streams stop getting points from it once it is half empty, so a stream app flooding the
+ * receiver can't starve the rest. Critical streams only use their own bucket.
+ * <p/>
+ * Points over the limit are dropped or downsampled, and counted for each stream.
+ */
+public class StreamIngestLimiter {
+
+    /**
+     * Bulk streams can't use the last points of this fraction of the shared bucket
+     */
+    static final double BULK_RESERVE = 0.5;
+
+    /**
+     * When downsampling, one of this many points over the limit is kept if the stream doesn't say
+     */
+    static final int DEFAULT_KEEP_ONE_IN = 10;
+
+    /**
+     * The number of points for a stream which were accepted, downsampled or dropped
+     */
+    public static class Counts {
+
+        public long accepted;
+
+        /**
+         * Points over the limit which were kept by downsampling
+         */
+        public long downsampled;
+
+        public long dropped;
+    }
+
+    static class TokenBucket {
+
+        /**
+         * Tokens added each millisecond
+         */
+        private final double mRate;
+
+        final double capacity;
+
+        private double mTokens;
+
+        private long mLast;
+
+        TokenBucket(double ratePerSecond, double capacity, long now) {
+            mRate = ratePerSecond / 1000;
+            this.capacity = capacity;
+            mTokens = capacity;
+            mLast = now;
+        }
+
+        /**
+         * @param now
+         * @param reserve the number of tokens which must be left after one is taken
+         * @return true if a token can be taken
+         */
+        boolean has(long now, double reserve) {
+            if (now > mLast) {
+                mTokens = Math.min(capacity, mTokens + (now - mLast) * mRate);
+                mLast = now;
+            }
+            return mTokens - 1 >= reserve;
+        }
+
+        void take() {
+            mTokens--;
+        }
+    }
+
+    private static class StreamState {
+        Priority priority;
+
+        OverLimit overLimit;
+
+        int keepOneIn;
+
+        /**
+         * The bucket for the stream, or null if it isn't limited
+         */
+        TokenBucket bucket;
+
+        /**
+         * The number of points which were over the limit
+         */
+        long over;
+    }
+
+    private final double mNormalRate;
+
+    private final int mNormalBurst;
+
+    private final double mBulkRate;
+
+    private final int mBulkBurst;
+
+    private final TokenBucket mShared;
+
+    /**
+     * The limits for each stream from its definition
+     */
+    private final Map<String, IngestLimits> mLimits = new HashMap<String, IngestLimits>();
+
+    private final Map<String, StreamState> mStreams = new HashMap<String, StreamState>();
+
+    private final Map<String, Counts> mCounts = new HashMap<String, Counts>();
+
+    /**
+     * @param normalRate  the default points per second for normal streams
+     * @param normalBurst the default burst for normal streams
+     * @param bulkRate    the default points per second for bulk streams
+     * @param bulkBurst   the default burst for bulk streams
+     * @param sharedRate  the points per second normal and bulk streams can send together
+     * @param sharedBurst the burst normal and bulk streams can send together
+     */
+    public StreamIngestLimiter(double normalRate, int normalBurst, double bulkRate, int bulkBurst,
+            double sharedRate, int sharedBurst) {
+        this(normalRate, normalBurst, bulkRate, bulkBurst, sharedRate, sharedBurst,
+                SystemClock.elapsedRealtime());
+    }
+
+    StreamIngestLimiter(double normalRate, int normalBurst, double bulkRate, int bulkBurst,
+            double sharedRate, int sharedBurst, long now) {
+        mNormalRate = normalRate;
+        mNormalBurst = normalBurst;
+        mBulkRate = bulkRate;
+        mBulkBurst = bulkBurst;
+        mShared = new TokenBucket(sharedRate, sharedBurst, now);
+    }
+
+    /**
+     * Replaces the limits of every stream with the limits from their definitions. Streams whose
+     * limits changed start with a full bucket, the rest keep the tokens they have.
+     *
+     * @param streams
+     */
+    public synchronized void setLimits(Collection<Stream> streams) {
+        Map<String, IngestLimits> limits = new HashMap<String, IngestLimits>();
+        for (Stream stream : streams) {
+            if (stream.ingest != null)
+                limits.put(key(stream.schemaId, stream.schemaVersion), stream.ingest);
+        }
+
+        Iterator<String> keys = mStreams.keySet().iterator();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if (!sameLimits(mLimits.get(key), limits.get(key)))
+                keys.remove();
+        }
+        mLimits.clear();
+        mLimits.putAll(limits);
+    }
+
+    /**
+     * Decides if a point sent now should be accepted
+     *
+     * @param streamId
+     * @param streamVersion
+     * @return true if the point should be inserted
+     */
+    public boolean admit(String streamId, long streamVersion) {
+        return admit(streamId, streamVersion, SystemClock.elapsedRealtime());
+    }
+
+    synchronized boolean admit(String streamId, long streamVersion, long now) {
+        String key = key(streamId, streamVersion);
+        StreamState state = state(key, now);
+        Counts counts = getCounts(key);
+
+        if (hasTokens(state, now)) {
+            if (state.bucket != null)
+                state.bucket.take();
+            if (state.priority != Priority.CRITICAL)
+                mShared.take();
+            counts.accepted++;
+            return true;
+        }
+
+        if (state.overLimit == OverLimit.DOWNSAMPLE && state.over++ % state.keepOneIn == 0) {
+            counts.downsampled++;
+            return true;
+        }
+        counts.dropped++;
+        return false;
+    }
+
+    private boolean hasTokens(StreamState state, long now) {
+        if (state.bucket != null && !state.bucket.has(now, 0))
+            return false;
+
+        switch (state.priority) {
+            case CRITICAL:
+                return true;
+            case BULK:
+                return mShared.has(now, mShared.capacity * BULK_RESERVE);
+            default:
+                return mShared.has(now, 0);
+        }
+    }
+
+    /**
+     * @param streamId
+     * @param streamVersion
+     * @return a copy of the counts for the stream
+     */
+    public synchronized Counts getCounts(String streamId, long streamVersion) {
+        return copy(getCounts(key(streamId, streamVersion)));
+    }
+
+    /**
+     * @return a copy of the counts of every stream which has sent points, by
+     * {@code streamId:streamVersion}
+     */
+    public synchronized Map<String, Counts> getCounts() {
+        Map<String, Counts> counts = new TreeMap<String, Counts>();
+        for (Map.Entry<String, Counts> entry : mCounts.entrySet())
+            counts.put(entry.getKey(), copy(entry.getValue()));
+        return counts;
+    }
+
+    private static Counts copy(Counts counts) {
+        Counts copy = new Counts();
+        copy.accepted = counts.accepted;
+        copy.downsampled = counts.downsampled;
+        copy.dropped = counts.dropped;
+        return copy;
+    }
+
+    private Counts getCounts(String key) {
+        Counts counts = mCounts.get(key);
+        if (counts == null) {
+            counts = new Counts();
+            mCounts.put(key, counts);
+        }
+        return counts;
+    }
+
+    private StreamState state(String key, long now) {
+        StreamState state = mStreams.get(key);
+        if (state != null)
+            return state;
+
+        IngestLimits limits = mLimits.get(key);
+        state = new StreamState();
+        state.priority = limits == null || limits.priority == null ? Priority.NORMAL
+                                                                    : limits.priority;
+        state.overLimit = limits == null || limits.overLimit == null ? OverLimit.DROP
+                                                                      : limits.overLimit;
+        state.keepOneIn = limits == null || limits.keepOneIn <= 0 ? DEFAULT_KEEP_ONE_IN
+                                                                   : limits.keepOneIn;
+
+        double rate = limits == null ? 0 : limits.rate;
+        int burst = limits == null ? 0 : limits.burst;
+        if (state.priority == Priority.BULK) {
+            rate = rate > 0 ? rate : mBulkRate;
+            burst = burst > 0 ? burst : mBulkBurst;
+        } else if (state.priority == Priority.NORMAL) {
+            rate = rate > 0 ? rate : mNormalRate;
+            burst = burst > 0 ? burst : mNormalBurst;
+        }
+        if (rate > 0)
+            state.bucket = new TokenBucket(rate, Math.max(burst, 1), now);
+
+        mStreams.put(key, state);
+        return state;
+    }
+
+    private static boolean sameLimits(IngestLimits a, IngestLimits b) {
+        if (a == null || b == null)
+            return a == b;
+        return a.priority == b.priority && a.rate == b.rate && a.burst == b.burst
+               && a.overLimit == b.overLimit && a.keepOneIn == b.keepOneIn;
+    }
+
+    private static String key(String streamId, long streamVersion) {
+        return streamId + ":" + streamVersion;
+    }
+}
@@ -19,13 +19,28 @@ package org.ohmage.services;
 import android.app.Service;
 import android.content.ContentValues;
 import android.content.Intent;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
 import android.os.IBinder;
 import android.os.RemoteException;
 
+import org.ohmage.app.Ohmage;
+import org.ohmage.models.Stream;
+import org.ohmage.provider.ContentProviderReader;
+import org.ohmage.provider.OhmageContract;
+import org.ohmage.provider.StreamContentProvider;
 import org.ohmage.streams.AsyncBulkInsertHandler;
 import org.ohmage.streams.IStreamReceiver;
+import org.ohmage.streams.IStreamReceiver2;
 import org.ohmage.streams.StreamContract.Streams;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
 /**
  * This service handles stream data from other apks. It validates information about data sent from
  * different apks and saves it to the db to be uploaded.
@@ -35,6 +50,11 @@ import org.ohmage.streams.StreamContract.Streams;
  */
 public class StreamReceiver extends Service {
 
+    /**
+     * Action to bind to the {@link IStreamReceiver2} interface which takes batches of points
+     */
+    public static final String ACTION_WRITE_BATCH = "org.ohmage.streams.ACTION_WRITE_BATCH";
+
     /**
      * Action to view analytics data for a stream
      */
@@ -50,22 +70,90 @@ public class StreamReceiver extends Service {
      */
     public static final String STREAM_META_DATA = "org.ohmage.StreamReceiver";
 
+    /**
+     * Points are inserted with this uri when group commit is on so the binder call returns as
+     * soon as they are queued
+     */
+    private static final Uri GROUP_COMMIT_URI = Streams.CONTENT_URI.buildUpon()
+            .appendQueryParameter(StreamContentProvider.QUERY_PARAMETER_GROUP_COMMIT,
+                    StreamContentProvider.GROUP_COMMIT_ASYNC).build();
+
     private AsyncBulkInsertHandler mAsyncQueryHandler;
 
+    /**
+     * Limits how fast points are accepted for each stream, or null if there are no limits
+     */
+    private StreamIngestLimiter mLimiter;
+
+    /**
+     * Set when the stream definitions change so the limits are read again before the next point
+     */
+    private volatile boolean mLimitsChanged = true;
+
+    private final ContentObserver mStreamsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mLimitsChanged = true;
+        }
+    };
+
+    /**
+     * Saves each batch of points with a single bulk insert
+     */
+    private final IStreamReceiver2.Stub mBatchReceiver = new IStreamReceiver2.Stub() {
+
+        @Override
+        public int sendStreamBatch(String streamId, int streamVersion, String[] metadata,
+                String[] data) throws RemoteException {
+            if (metadata == null || data == null || metadata.length != data.length) {
+                throw new IllegalArgumentException(
+                        "metadata and data must have one entry for each point");
+            }
+
+            List<ContentValues> values = new ArrayList<ContentValues>(data.length);
+            for (int i = 0; i < data.length; i++) {
+                if (!admit(streamId, streamVersion))
+                    continue;
+
+                ContentValues point = new ContentValues();
+                point.put(Streams.STREAM_ID, streamId);
+                point.put(Streams.STREAM_VERSION, streamVersion);
+                point.put(Streams.STREAM_METADATA, metadata[i]);
+                point.put(Streams.STREAM_DATA, data[i]);
+                values.add(point);
+            }
+            if (values.isEmpty())
+                return 0;
+
+            return getContentResolver().bulkInsert(
+                    Ohmage.GROUP_COMMIT_STREAM_INSERTS ? GROUP_COMMIT_URI : Streams.CONTENT_URI,
+                    values.toArray(new ContentValues[values.size()]));
+        }
+    };
+
     @Override
     public IBinder onBind(Intent intent) {
+        if (ACTION_WRITE_BATCH.equals(intent.getAction()))
+            return mBatchReceiver;
+
         return new IStreamReceiver.Stub() {
 
             @Override
             public void sendStream(String streamId, int streamVersion, String metadata, String data)
                     throws RemoteException {
+                if (!admit(streamId, streamVersion))
+                    return;
 
                 ContentValues values = new ContentValues();
                 values.put(Streams.STREAM_ID, streamId);
                 values.put(Streams.STREAM_VERSION, streamVersion);
                 values.put(Streams.STREAM_METADATA, metadata);
                 values.put(Streams.STREAM_DATA, data);
-                mAsyncQueryHandler.startInsert(values);
+                if (Ohmage.GROUP_COMMIT_STREAM_INSERTS) {
+                    getContentResolver().insert(GROUP_COMMIT_URI, values);
+                } else {
+                    mAsyncQueryHandler.startInsert(values);
+                }
             }
         };
     }
@@ -74,5 +162,80 @@ public class StreamReceiver extends Service {
     public void onCreate() {
         super.onCreate();
         mAsyncQueryHandler = new AsyncBulkInsertHandler(getContentResolver(), Streams.CONTENT_URI);
+        if (Ohmage.STREAM_INGEST_LIMITS) {
+            mLimiter = new StreamIngestLimiter(Ohmage.STREAM_INGEST_NORMAL_RATE,
+                    Ohmage.STREAM_INGEST_NORMAL_BURST, Ohmage.STREAM_INGEST_BULK_RATE,
+                    Ohmage.STREAM_INGEST_BULK_BURST, Ohmage.STREAM_INGEST_SHARED_RATE,
+                    Ohmage.STREAM_INGEST_SHARED_BURST);
+            getContentResolver().registerContentObserver(OhmageContract.Streams.CONTENT_URI, true,
+                    mStreamsObserver);
+        }
+    }
+
+    /**
+     * Prints the ingest counts of each stream for {@code adb shell dumpsys activity service}
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        StreamIngestLimiter limiter = mLimiter;
+        if (limiter == null) {
+            writer.println("Ingest limits are off");
+            return;
+        }
+
+        writer.println("Ingest counts (accepted, downsampled, dropped):");
+        for (Map.Entry<String, StreamIngestLimiter.Counts> entry
+                : limiter.getCounts().entrySet()) {
+            StreamIngestLimiter.Counts counts = entry.getValue();
+            writer.println("  " + entry.getKey() + ": " + counts.accepted + ", "
+                           + counts.downsampled + ", " + counts.dropped);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        if (mLimiter != null)
+            getContentResolver().unregisterContentObserver(mStreamsObserver);
+        super.onDestroy();
+    }
+
+    /**
+     * Checks the limits for the stream, reading them from the stream definitions the
+     * {@link org.ohmage.sync.OhmageSyncAdapter} downloaded if they have changed
+     *
+     * @param streamId
+     * @param streamVersion
+     * @return true if the point should be inserted
+     */
+    private boolean admit(String streamId, int streamVersion) {
+        StreamIngestLimiter limiter = mLimiter;
+        if (limiter == null)
+            return true;
+
+        if (mLimitsChanged) {
+            mLimitsChanged = false;
+            limiter.setLimits(readStreams());
+        }
+        return limiter.admit(streamId, streamVersion);
+    }
+
+    private List<Stream> readStreams() {
+        List<Stream> streams = new ArrayList<Stream>();
+        Cursor cursor = getContentResolver().query(OhmageContract.Streams.CONTENT_URI,
+                OhmageContract.Streams.DEFAULT_PROJECTION, null, null, null);
+        if (cursor == null)
+            return streams;
+
+        try {
+            ContentProviderReader reader = new ContentProviderReader();
+            while (cursor.moveToNext()) {
+                Stream stream = new Stream();
+                reader.read(stream, cursor);
+                streams.add(stream);
+            }
+        } finally {
+            cursor.close();
+        }
+        return streams;
     }
 }
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.os.RemoteException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects points for a stream and sends them to an {@link IStreamReceiver2} in batches. A batch
+ * is sent as soon as adding another point would make the call larger than
+ * {@link #MAX_BATCH_BYTES}, which keeps each call well under the binder transaction limit that is
+ * shared by every call in the process.
+ */
+public class StreamBatchSender {
+
+    /**
+     * The largest number of bytes of points sent in one call. The binder transaction buffer is
+     * 1MB for the whole process, so a batch only uses a quarter of it.
+     */
+    public static final int MAX_BATCH_BYTES = 256 * 1024;
+
+    private final IStreamReceiver2 mReceiver;
+
+    private final String mStreamId;
+
+    private final int mStreamVersion;
+
+    private final List<String> mMetadata = new ArrayList<String>();
+
+    private final List<String> mData = new ArrayList<String>();
+
+    private int mBytes;
+
+    public StreamBatchSender(IStreamReceiver2 receiver, String streamId, int streamVersion) {
+        mReceiver = receiver;
+        mStreamId = streamId;
+        mStreamVersion = streamVersion;
+    }
+
+    /**
+     * Adds a point to the batch, sending the batch first if the point doesn't fit. If sending
+     * fails the point isn't added.
+     *
+     * @param metadata
+     * @param data
+     * @return the number of points saved if a batch was sent, otherwise 0
+     * @throws RemoteException
+     */
+    public int add(String metadata, String data) throws RemoteException {
+        int size = parcelSize(metadata) + parcelSize(data);
+        int sent = 0;
+        if (!mData.isEmpty() && mBytes + size > MAX_BATCH_BYTES)
+            sent = flush();
+
+        mMetadata.add(metadata);
+        mData.add(data);
+        mBytes += size;
+        return sent;
+    }
+
+    /**
+     * Sends the points which haven't been sent yet. If sending fails the points are kept so they
+     * can be sent again.
+     *
+     * @return the number of points saved
+     * @throws RemoteException
+     */
+    public int flush() throws RemoteException {
+        if (mData.isEmpty())
+            return 0;
+
+        int saved = mReceiver.sendStreamBatch(mStreamId, mStreamVersion,
+                mMetadata.toArray(new String[mMetadata.size()]),
+                mData.toArray(new String[mData.size()]));
+        mMetadata.clear();
+        mData.clear();
+        mBytes = 0;
+        return saved;
+    }
+
+    /**
+     * The number of bytes a string takes in a parcel: its length, then UTF-16 characters and a
+     * terminator padded to 4 bytes
+     */
+    static int parcelSize(String s) {
+        if (s == null)
+            return 4;
+        return 4 + (((s.length() + 1) * 2 + 3) & ~3);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.sync;
+
+import android.content.ContentProviderClient;
+import android.database.CharArrayBuffer;
+import android.net.Uri;
+import android.os.RemoteException;
+
+/**
+ * A forward only view of the points waiting to be uploaded. Each point that is read is marked so
+ * it can be deleted once the server has accepted the batch it was part of.
+ */
+public interface BatchCursor {
+
+    /**
+     * @return true if there are no more points to read
+     */
+    boolean isAfterLast();
+
+    /**
+     * Move to the next point and mark it to be deleted
+     *
+     * @return false if there are no more points
+     */
+    boolean moveToNext();
+
+    /**
+     * @param columnIndex
+     * @return the value of the column for the current point
+     */
+    String getString(int columnIndex);
+
+    /**
+     * Copies the value of the column for the current point into a buffer which can be reused for
+     * every point, so reading the point doesn't create a string
+     *
+     * @param columnIndex
+     * @param buffer
+     */
+    void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer);
+
+    /**
+     * @param columnIndex
+     * @return true if the column for the current point is null
+     */
+    boolean isNull(int columnIndex);
+
+    /**
+     * @param columnIndex
+     * @return the value of the column for the current point
+     */
+    long getLong(int columnIndex);
+
+    /**
+     * @param columnIndex
+     * @return the value of the column for the current point
+     */
+    byte[] getBlob(int columnIndex);
+
+    /**
+     * Restarts the current batch so it can be sent again
+     *
+     * @return true if the batch was restarted
+     */
+    boolean restart();
+
+    /**
+     * Check to see if there are points we can delete
+     *
+     * @return true if there are points we can delete
+     */
+    boolean hasPointsToDelete();
+
+    /**
+     * Delete all points that have been marked so far
+     *
+     * @param provider
+     * @param contentUri
+     * @return the number of points that were marked
+     * @throws RemoteException
+     */
+    int deleteMarked(ContentProviderClient provider, Uri contentUri) throws RemoteException;
+
+    void close();
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.sync;
+
+import android.content.SharedPreferences;
+
+import org.ohmage.models.Stream;
+
+/**
+ * Tunes the maximum size and number of points in a batch for a single stream using additive
+ * increase, multiplicative decrease. The limits grow by a step after each batch that uploads
+ * quickly without hurting throughput, and are cut in half when a batch fails or takes longer than
+ * {@link #TARGET_LATENCY_MS}. The learned limits are saved so the next sync can start from them.
+ */
+public class BatchSizeController {
+
+    /**
+     * Name of the preferences file the limits are saved in
+     */
+    public static final String PREFERENCES_NAME = "stream_batch_sizes";
+
+    /**
+     * Batches which take longer than this to upload will make the limits smaller
+     */
+    static final long TARGET_LATENCY_MS = 10 * 1000;
+
+    static final long MIN_SIZE_BYTES = 1024 * 16;
+
+    static final long MAX_SIZE_BYTES = 1024 * 1024 * 4;
+
+    static final long SIZE_STEP_BYTES = 1024 * 64;
+
+    static final int MIN_COUNT = 10;
+
+    static final int MAX_COUNT = 5000;
+
+    static final int COUNT_STEP = 50;
+
+    /**
+     * Weight given to the newest sample in the moving averages
+     */
+    private static final float SMOOTHING = 0.25f;
+
+    /**
+     * The limits stop growing if more batches than this fail
+     */
+    private static final float MAX_ERROR_RATE = 0.2f;
+
+    /**
+     * The limits stop growing if the throughput drops below this fraction of the average
+     */
+    private static final float MIN_THROUGHPUT_RATIO = 0.9f;
+
+    private final String mKey;
+
+    private long mSize;
+
+    private int mNum;
+
+    /**
+     * Moving average of the throughput in bytes per millisecond
+     */
+    private float mThroughput;
+
+    /**
+     * Moving average of the fraction of batches which failed
+     */
+    private float mErrorRate;
+
+    BatchSizeController(String key, long size, int num, float throughput, float errorRate) {
+        mKey = key;
+        mSize = clamp(size, MIN_SIZE_BYTES, MAX_SIZE_BYTES);
+        mNum = (int) clamp(num, MIN_COUNT, MAX_COUNT);
+        mThroughput = throughput;
+        mErrorRate = errorRate;
+    }
+
+    /**
+     * Loads the limits learned for a stream, or starts with the default
+     * {@link StreamWriterOutput} limits if the stream hasn't been uploaded before.
+     *
+     * @param prefs
+     * @param stream
+     * @return the controller for the stream
+     */
+    public static BatchSizeController load(SharedPreferences prefs, Stream stream) {
+        String key = stream.schemaId + ":" + stream.schemaVersion;
+        return new BatchSizeController(key,
+                prefs.getLong(key + ":size", StreamWriterOutput.BATCH_MAX_SIZE_BYTES),
+                prefs.getInt(key + ":num", StreamWriterOutput.BATCH_MAX_COUNT),
+                prefs.getFloat(key + ":throughput", 0),
+                prefs.getFloat(key + ":error_rate", 0));
+    }
+
+    /**
+     * Saves the limits so they can be used by the next sync
+     *
+     * @param prefs
+     */
+    public void save(SharedPreferences prefs) {
+        prefs.edit()
+                .putLong(mKey + ":size", mSize)
+                .putInt(mKey + ":num", mNum)
+                .putFloat(mKey + ":throughput", mThroughput)
+                .putFloat(mKey + ":error_rate", mErrorRate)
+                .apply();
+    }
+
+    /**
+     * @return the maximum number of bytes for the next batch
+     */
+    public long getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return the maximum number of points for the next batch
+     */
+    public int getNum() {
+        return mNum;
+    }
+
+    /**
+     * Applies the limits to the writer for the next batch
+     *
+     * @param writer
+     */
+    public void apply(StreamWriterOutput writer) {
+        writer.setBatchLimits(mSize, mNum);
+    }
+
+    /**
+     * Called after a batch was uploaded
+     *
+     * @param bytes     the number of bytes in the batch
+     * @param elapsedMs how long the upload took
+     */
+    public void onSuccess(long bytes, long elapsedMs) {
+        float throughput = (float) bytes / Math.max(elapsedMs, 1);
+        float averageThroughput = mThroughput;
+        mThroughput = mThroughput == 0 ? throughput : average(mThroughput, throughput);
+        mErrorRate = average(mErrorRate, 0);
+
+        if (elapsedMs > TARGET_LATENCY_MS) {
+            decrease();
+        } else if (mErrorRate <= MAX_ERROR_RATE
+                   && throughput >= averageThroughput * MIN_THROUGHPUT_RATIO) {
+            mSize = Math.min(mSize + SIZE_STEP_BYTES, MAX_SIZE_BYTES);
+            mNum = Math.min(mNum + COUNT_STEP, MAX_COUNT);
+        }
+    }
+
+    /**
+     * Called after a batch failed to upload because of a network error
+     */
+    public void onFailure() {
+        mErrorRate = average(mErrorRate, 1);
+        decrease();
+    }
+
+    private void decrease() {
+        mSize = Math.max(mSize / 2, MIN_SIZE_BYTES);
+        mNum = Math.max(mNum / 2, MIN_COUNT);
+    }
+
+    private static float average(float average, float sample) {
+        return average + SMOOTHING * (sample - average);
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(value, max));
+    }
+}
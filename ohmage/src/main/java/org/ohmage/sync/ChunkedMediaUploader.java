@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2015 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.sync;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.apache.http.auth.AuthenticationException;
+import org.ohmage.app.OhmageService;
+import org.ohmage.sync.ResponseTypedOutput.ResponseFiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import retrofit.RetrofitError;
+import retrofit.client.Header;
+import retrofit.client.Response;
+
+/**
+ * Uploads response media files a chunk at a time so a failed upload can be resumed from the last
+ * chunk the server acknowledged instead of from the start of the file. Each chunk is sent with a
+ * {@code Content-Range} header. The server replies with {@link #RESUME_INCOMPLETE} and a
+ * {@code Range: bytes=0-n} header with the bytes it has so far, or with a 2xx status once it has
+ * the whole file.
+ * <p/>
+ * The confirmed offset for each file is saved after every chunk, so the next sync can continue
+ * where the last one stopped. The offsets are kept until {@link #forget(ResponseFiles)} is called
+ * once the response itself was uploaded.
+ */
+public class ChunkedMediaUploader {
+
+    private static final String TAG = ChunkedMediaUploader.class.getSimpleName();
+
+    /**
+     * Name of the preferences file the confirmed offsets are saved in
+     */
+    public static final String PREFERENCES_NAME = "media_upload_offsets";
+
+    /**
+     * Status the server replies with while the file is still incomplete
+     */
+    static final int RESUME_INCOMPLETE = 308;
+
+    /**
+     * The number of times in a row a chunk can fail to upload before giving up on the file until
+     * the next sync
+     */
+    static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * How long to wait before the first retry of a chunk. The wait doubles for each retry after.
+     */
+    static final long RETRY_DELAY_MS = 1000;
+
+    private final OhmageService mService;
+
+    private final SharedPreferences mPrefs;
+
+    private final int mChunkSize;
+
+    private final long mRetryDelayMs;
+
+    public ChunkedMediaUploader(OhmageService service, SharedPreferences prefs, int chunkSize) {
+        this(service, prefs, chunkSize, RETRY_DELAY_MS);
+    }
+
+    /**
+     * @param service
+     * @param prefs
+     * @param chunkSize
+     * @param retryDelayMs how long to wait before the first retry of a chunk
+     */
+    public ChunkedMediaUploader(OhmageService service, SharedPreferences prefs, int chunkSize,
+            long retryDelayMs) {
+        mService = service;
+        mPrefs = prefs;
+        mChunkSize = chunkSize;
+        mRetryDelayMs = retryDelayMs;
+    }
+
+    /**
+     * Uploads each of the files, starting from the last confirmed offset of each one
+     *
+     * @param files
+     * @throws AuthenticationException
+     * @throws IOException             if a file couldn't be uploaded after {@link #MAX_ATTEMPTS}
+     */
+    public void upload(ResponseFiles files) throws AuthenticationException, IOException {
+        for (String id : files.getIds()) {
+            upload(id, files.getFile(id));
+        }
+    }
+
+    /**
+     * Uploads a file, starting from its last confirmed offset
+     *
+     * @param id   the media id of the file
+     * @param file
+     * @throws AuthenticationException
+     * @throws IOException             if the file couldn't be uploaded after {@link #MAX_ATTEMPTS}
+     */
+    public void upload(String id, File file) throws AuthenticationException, IOException {
+        long length = file.length();
+        long offset = getOffset(id);
+        int failures = 0;
+
+        while (offset < length) {
+            long end = Math.min(offset + mChunkSize, length) - 1;
+            Response response;
+            try {
+                response = mService.uploadMedia(id,
+                        "bytes " + offset + "-" + end + "/" + length,
+                        new FileChunkTypedOutput(file, offset, end - offset + 1));
+            } catch (RetrofitError e) {
+                response = e.getResponse();
+                if (response == null || response.getStatus() != RESUME_INCOMPLETE) {
+                    if (!e.isNetworkError() || ++failures >= MAX_ATTEMPTS)
+                        throw new IOException("Failed to upload " + id + " at " + offset, e);
+                    Log.w(TAG, "Retrying " + id + " from " + offset, e);
+                    backOff(failures);
+                    continue;
+                }
+            }
+
+            long confirmed = response.getStatus() == RESUME_INCOMPLETE
+                    ? readConfirmedOffset(response) : length;
+            boolean progressed = confirmed > offset;
+            if (progressed)
+                failures = 0;
+            else if (++failures >= MAX_ATTEMPTS)
+                throw new IOException("Server stopped accepting " + id + " at " + confirmed);
+            offset = confirmed;
+            mPrefs.edit().putLong(id, offset).apply();
+            if (!progressed)
+                backOff(failures);
+        }
+    }
+
+    /**
+     * Waits before a retry, twice as long as before for each failure in a row
+     *
+     * @param failures the number of failures in a row so far
+     * @throws InterruptedIOException if the sync is cancelled while waiting
+     */
+    private void backOff(int failures) throws InterruptedIOException {
+        try {
+            Thread.sleep(mRetryDelayMs << (failures - 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+
+    /**
+     * Removes the saved offsets for files which are no longer needed
+     *
+     * @param files
+     */
+    public void forget(ResponseFiles files) {
+        SharedPreferences.Editor editor = mPrefs.edit();
+        for (String id : files.getIds()) {
+            editor.remove(id);
+        }
+        editor.apply();
+    }
+
+    /**
+     * @param id the media id of a file
+     * @return the number of bytes of the file the server has confirmed
+     */
+    public long getOffset(String id) {
+        return mPrefs.getLong(id, 0);
+    }
+
+    /**
+     * Reads the offset after the last byte in the {@code Range: bytes=0-n} header, or 0 if the
+     * server doesn't have any bytes yet
+     */
+    static long readConfirmedOffset(Response response) {
+        for (Header header : response.getHeaders()) {
+            if (!"Range".equalsIgnoreCase(header.getName()) || header.getValue() == null)
+                continue;
+
+            String value = header.getValue();
+            int dash = value.lastIndexOf('-');
+            if (dash == -1)
+                return 0;
+            try {
+                return Long.parseLong(value.substring(dash + 1).trim()) + 1;
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.sync;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import retrofit.mime.TypedOutput;
+
+/**
+ * Uploads many response data points without media in one request. The body is a json array of
+ * {@code {"header":...,"body":...}} data points, and the id from each header is kept so the results
+ * from the server can be mapped back to the local response ids.
+ */
+public class DataPointBatchTypedOutput implements TypedOutput {
+    private static final String sDataFormatter = "{\"header\":%s,\"body\":%s}";
+
+    private final StringBuilder mData = new StringBuilder("[");
+
+    private final List<Long> mLocalIds = new ArrayList<Long>();
+
+    private final HashMap<String, Long> mIds = new HashMap<String, Long>();
+
+    private byte[] mBytes;
+
+    /**
+     * Adds a data point to the batch
+     *
+     * @param localId the local id of the response
+     * @param id      the id of the data point from its header
+     * @param header  the header as json
+     * @param data    the body as json
+     */
+    public void add(long localId, String id, String header, String data) {
+        if (!mLocalIds.isEmpty())
+            mData.append(',');
+        mData.append(String.format(sDataFormatter, header, data));
+        mLocalIds.add(localId);
+        mIds.put(id, localId);
+        mBytes = null;
+    }
+
+    /**
+     * @return the number of data points in the batch
+     */
+    public int size() {
+        return mLocalIds.size();
+    }
+
+    /**
+     * @return the local ids of the responses in the order they were added
+     */
+    public List<Long> getLocalIds() {
+        return mLocalIds;
+    }
+
+    /**
+     * @param id the id of a data point
+     * @return the local id of the response for the data point, or null if it isn't in the batch
+     */
+    public Long getLocalId(String id) {
+        return mIds.get(id);
+    }
+
+    private byte[] getBytes() {
+        if (mBytes == null) {
+            try {
+                mBytes = new StringBuilder(mData).append(']').toString().getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return mBytes;
+    }
+
+    @Override public String fileName() {
+        return null;
+    }
+
+    @Override public String mimeType() {
+        return "application/json; charset=UTF-8";
+    }
+
+    @Override public long length() {
+        return getBytes().length;
+    }
+
+    @Override public void writeTo(OutputStream out) throws IOException {
+        out.write(getBytes());
+    }
+}
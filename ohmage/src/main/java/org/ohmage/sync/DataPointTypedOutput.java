@@ -16,8 +16,6 @@
 
 package org.ohmage.sync;
 
-import android.util.Log;
-
 import org.ohmage.sync.ResponseTypedOutput.ResponseFiles;
 
 import java.io.File;
@@ -41,7 +39,6 @@ public class DataPointTypedOutput implements TypedOutput {
 
 
     public DataPointTypedOutput(String data, String header, ResponseFiles files) {
-        Log.e(DataPointTypedOutput.class.getSimpleName(), String.format(sDataFormatter,  header, data));
         mMulitpartType = new MultipartTypedOutput();
         mMulitpartType.addPart("data", new TypedByteArray("application/json",
                 String.format(sDataFormatter,  header, data).getBytes()));
@@ -17,19 +17,27 @@
 package org.ohmage.sync;
 
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.CursorWrapper;
 import android.net.Uri;
 import android.os.RemoteException;
 import android.provider.BaseColumns;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 
 /**
  * A cursor that handles deletions while the data is still being read. The normal cursor will
  * not update its position correctly
  */
-public class DeletingCursor extends CursorWrapper {
+public class DeletingCursor extends CursorWrapper implements BatchCursor {
+
+    /**
+     * The maximum number of parameters sqlite can bind in one statement
+     */
+    private static final int MAX_SQL_VARIABLES = 999;
 
     private final LinkedList<Long> ids = new LinkedList<Long>();
 
@@ -79,6 +87,7 @@ public class DeletingCursor extends CursorWrapper {
      *
      * @return true if the cursor was restarted
      */
+    @Override
     public boolean restart() {
         if (mOffset == 0 && mDeleted == 0) {
             ids.clear();
@@ -142,44 +151,67 @@ public class DeletingCursor extends CursorWrapper {
      *
      * @return true if there are points we can delete
      */
+    @Override
     public boolean hasPointsToDelete() {
         return !ids.isEmpty();
     }
 
     /**
-     * Delete all points that have been marked so far
+     * Delete all points that have been marked so far. The ids are bound as parameters and all
+     * deletes are applied by the provider in a single transaction.
      *
      * @param provider
      * @param contentUri
      * @return
      * @throws android.os.RemoteException
      */
+    @Override
     public int deleteMarked(ContentProviderClient provider, Uri contentUri)
             throws RemoteException {
-        StringBuilder deleteString = new StringBuilder();
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
 
-        // Deleting this batch of points. We can only delete
-        // with a maximum expression tree depth of 1000
+        // Sqlite can bind a maximum of 999 parameters for each statement
+        String[] args = new String[Math.min(ids.size(), MAX_SQL_VARIABLES)];
         int batch = 0;
         for (Long id : ids) {
-            if (deleteString.length() != 0)
-                deleteString.append(" OR ");
-            deleteString.append(BaseColumns._ID + "=" + id);
+            args[batch % MAX_SQL_VARIABLES] = String.valueOf(id);
             batch++;
 
-            // If we have 1000 Expressions or we are at the last
-            // point, delete them
-            if ((batch % (1000 - 2) == 0) || batch == ids.size()) {
-                provider.delete(contentUri, deleteString.toString(), null);
-                deleteString = new StringBuilder();
+            // If we have filled the parameters or we are at the last point, delete them
+            if ((batch % MAX_SQL_VARIABLES == 0) || batch == ids.size()) {
+                operations.add(ContentProviderOperation.newDelete(contentUri)
+                        .withSelection(inSelection(args.length), args).build());
+                args = new String[Math.min(ids.size() - batch, MAX_SQL_VARIABLES)];
             }
         }
+
+        if (!operations.isEmpty()) {
+            try {
+                provider.applyBatch(operations);
+            } catch (OperationApplicationException e) {
+                RemoteException remoteException = new RemoteException();
+                remoteException.initCause(e);
+                throw remoteException;
+            }
+        }
+
         int count = ids.size();
         mDeleted += count;
         ids.clear();
         return count;
     }
 
+    private static String inSelection(int count) {
+        StringBuilder selection = new StringBuilder(BaseColumns._ID).append(" IN (");
+        for (int i = 0; i < count; i++) {
+            if (i != 0)
+                selection.append(',');
+            selection.append('?');
+        }
+        return selection.append(')').toString();
+    }
+
     @Override
     @Deprecated
     public boolean requery() {
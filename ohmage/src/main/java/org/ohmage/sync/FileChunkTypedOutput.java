@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.sync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import retrofit.mime.TypedOutput;
+
+/**
+ * Writes one chunk of a file, starting at an offset, without reading the rest of the file
+ */
+public class FileChunkTypedOutput implements TypedOutput {
+    private static final int BUFFER_SIZE = 4096;
+
+    private final File mFile;
+
+    private final long mOffset;
+
+    private final long mLength;
+
+    /**
+     * @param file   the file the chunk is in
+     * @param offset the first byte of the chunk
+     * @param length the number of bytes in the chunk
+     */
+    public FileChunkTypedOutput(File file, long offset, long length) {
+        mFile = file;
+        mOffset = offset;
+        mLength = length;
+    }
+
+    @Override public String fileName() {
+        return mFile.getName();
+    }
+
+    @Override public String mimeType() {
+        return "application/octet-stream";
+    }
+
+    @Override public long length() {
+        return mLength;
+    }
+
+    @Override public void writeTo(OutputStream out) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            file.seek(mOffset);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = mLength;
+            while (remaining > 0) {
+                int read = file.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1)
+                    throw new IOException("File ended before the end of the chunk");
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.sync;
+
+import android.content.ContentProviderClient;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.provider.BaseColumns;
+
+import org.ohmage.provider.StreamContentProvider;
+
+import java.util.Arrays;
+
+/**
+ * A {@link BatchCursor} which only holds one page of points at a time. Each page is queried with
+ * {@code _id > lastAckedId ORDER BY _id LIMIT n}, so the memory used and the cost of reading a
+ * batch stays the same no matter how many points are waiting to be uploaded.
+ * <p/>
+ * A new page is read after every {@link #deleteMarked(ContentProviderClient, Uri)}, which means a
+ * page always starts at the first point of the current batch. The projection must have
+ * {@link BaseColumns#_ID} as its first column.
+ */
+public class PagedBatchCursor implements BatchCursor {
+
+    private final ContentProviderClient mProvider;
+
+    private final Uri mUri;
+
+    private final String[] mProjection;
+
+    private final String mSelection;
+
+    private final String[] mSelectionArgs;
+
+    private int mPageSize;
+
+    private Cursor mPage;
+
+    /**
+     * The id of the last point which was deleted or detached, or -1 if there are none. The current
+     * batch starts after this point.
+     */
+    private long mLastAckedId = -1;
+
+    /**
+     * The id of the last point which was read
+     */
+    private long mLastMarkedId = -1;
+
+    /**
+     * The number of points read since the last delete
+     */
+    private int mMarked;
+
+    /**
+     * Create a cursor and query for the first page of points
+     *
+     * @param provider      the provider to query
+     * @param uri           the uri of the points
+     * @param projection    the columns to read, the first column must be {@link BaseColumns#_ID}
+     * @param selection     the selection of points to read
+     * @param selectionArgs the arguments for the selection
+     * @param pageSize      the maximum number of points read by one query
+     * @throws RemoteException
+     */
+    public PagedBatchCursor(ContentProviderClient provider, Uri uri, String[] projection,
+            String selection, String[] selectionArgs, int pageSize) throws RemoteException {
+        mProvider = provider;
+        mUri = uri;
+        mProjection = projection;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        mPageSize = pageSize;
+        queryPage();
+    }
+
+    private void queryPage() throws RemoteException {
+        closePage();
+
+        String[] args = Arrays.copyOf(mSelectionArgs, mSelectionArgs.length + 1);
+        args[mSelectionArgs.length] = String.valueOf(mLastAckedId);
+
+        mPage = mProvider.query(
+                mUri.buildUpon().appendQueryParameter(StreamContentProvider.QUERY_PARAMETER_LIMIT,
+                        String.valueOf(mPageSize)).build(),
+                mProjection, "(" + mSelection + ") AND " + BaseColumns._ID + ">?", args,
+                BaseColumns._ID);
+        mLastMarkedId = mLastAckedId;
+        mMarked = 0;
+    }
+
+    /**
+     * Sets the number of points read by the next page query
+     *
+     * @param pageSize
+     */
+    public void setPageSize(int pageSize) {
+        mPageSize = pageSize;
+    }
+
+    @Override
+    public boolean isAfterLast() {
+        return mPage == null || mPage.isAfterLast();
+    }
+
+    @Override
+    public boolean moveToNext() {
+        if (mPage != null && mPage.moveToNext()) {
+            mLastMarkedId = mPage.getLong(0);
+            mMarked++;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        return mPage.getString(columnIndex);
+    }
+
+    @Override
+    public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+        mPage.copyStringToBuffer(columnIndex, buffer);
+    }
+
+    @Override
+    public boolean isNull(int columnIndex) {
+        return mPage.isNull(columnIndex);
+    }
+
+    @Override
+    public long getLong(int columnIndex) {
+        return mPage.getLong(columnIndex);
+    }
+
+    @Override
+    public byte[] getBlob(int columnIndex) {
+        return mPage.getBlob(columnIndex);
+    }
+
+    /**
+     * Since the page always starts at the first point of the batch, the batch can always be
+     * restarted by moving back to the start of the page.
+     *
+     * @return true if the cursor was restarted
+     */
+    @Override
+    public boolean restart() {
+        if (mPage == null)
+            return false;
+
+        mLastMarkedId = mLastAckedId;
+        mMarked = 0;
+        return mPage.moveToPosition(-1);
+    }
+
+    @Override
+    public boolean hasPointsToDelete() {
+        return mMarked != 0;
+    }
+
+    /**
+     * Deletes all the points in the selection between the last deleted point and the last read
+     * point as a single range, then reads the next page.
+     *
+     * @param provider
+     * @param contentUri
+     * @return the number of points that were marked
+     * @throws RemoteException
+     */
+    @Override
+    public int deleteMarked(ContentProviderClient provider, Uri contentUri)
+            throws RemoteException {
+        if (!hasPointsToDelete())
+            return 0;
+
+        deleteRange(provider, contentUri, getFirstMarkedId(), getLastMarkedId());
+        return detachMarked();
+    }
+
+    /**
+     * @return the first id in the range of points read for the current batch
+     */
+    public long getFirstMarkedId() {
+        return mLastAckedId + 1;
+    }
+
+    /**
+     * @return the last id in the range of points read for the current batch
+     */
+    public long getLastMarkedId() {
+        return mLastMarkedId;
+    }
+
+    /**
+     * Hands off the points read so far without deleting them, and reads the next page starting
+     * after them. This lets the next batch be read while an earlier one is still being uploaded.
+     * The detached points must be deleted later with
+     * {@link #deleteRange(ContentProviderClient, Uri, long, long)}.
+     *
+     * @return the number of points that were marked
+     * @throws RemoteException
+     */
+    public int detachMarked() throws RemoteException {
+        if (!hasPointsToDelete())
+            return 0;
+
+        int count = mMarked;
+        mLastAckedId = mLastMarkedId;
+        queryPage();
+        return count;
+    }
+
+    /**
+     * Deletes the points in the selection with ids in the range given.
+     *
+     * @param provider
+     * @param contentUri
+     * @param firstId    the first id in the range
+     * @param lastId     the last id in the range
+     * @return the number of points deleted
+     * @throws RemoteException
+     */
+    public int deleteRange(ContentProviderClient provider, Uri contentUri, long firstId,
+            long lastId) throws RemoteException {
+        return provider.delete(StreamContentProvider.buildRangeUri(contentUri, firstId, lastId),
+                mSelection, mSelectionArgs);
+    }
+
+    @Override
+    public void close() {
+        closePage();
+    }
+
+    private void closePage() {
+        if (mPage != null) {
+            mPage.close();
+            mPage = null;
+        }
+    }
+}
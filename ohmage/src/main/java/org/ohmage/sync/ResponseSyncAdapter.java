@@ -23,10 +23,8 @@ import android.accounts.OperationCanceledException;
 import android.annotation.TargetApi;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
-import android.content.ContentProviderOperation;
 import android.content.ContentUris;
 import android.content.Context;
-import android.content.OperationApplicationException;
 import android.content.SyncResult;
 import android.database.Cursor;
 import android.net.Uri;
@@ -37,7 +35,10 @@ import android.provider.BaseColumns;
 import android.util.Log;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 
 import org.apache.http.auth.AuthenticationException;
@@ -46,20 +47,22 @@ import org.ohmage.app.OhmageService;
 import org.ohmage.auth.AuthUtil;
 import org.ohmage.models.OmhDataPointHeader;
 import org.ohmage.models.SchemaId;
-import org.ohmage.provider.ResponseContract;
 import org.ohmage.provider.ResponseContract.Responses;
 import org.ohmage.sync.ResponseTypedOutput.ResponseFiles;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.InputStreamReader;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
 
 import javax.inject.Inject;
 
 import retrofit.client.Response;
 import rx.Observable;
 import rx.Subscriber;
-import rx.util.functions.Action1;
-import rx.util.functions.Func1;
+import rx.functions.Func1;
+import rx.schedulers.Schedulers;
 
 /**
  * Handle the transfer of data between a server the ohmage app using the Android sync adapter
@@ -77,12 +80,30 @@ public class ResponseSyncAdapter extends AbstractThreadedSyncAdapter {
 
     private static final String TAG = ResponseSyncAdapter.class.getSimpleName();
 
+    /**
+     * The number of responses read by each query
+     */
+    static final int PAGE_SIZE = 50;
+
+    private static final String[] PROJECTION = new String[]{
+            BaseColumns._ID, Responses.SURVEY_ID, Responses.SURVEY_VERSION,
+            Responses.RESPONSE_DATA, Responses.RESPONSE_METADATA, Responses.RESPONSE_EXTRAS,
+            Responses.RESPONSE_ID, Responses.RESPONSE_TIMESTAMP
+    };
+
+    private int mWindow = Ohmage.RESPONSE_UPLOAD_WINDOW;
+
+    private int mBatchSize = Ohmage.RESPONSE_UPLOAD_BATCH_SIZE;
+
+    private ChunkedMediaUploader mMediaUploader;
+
     /**
      * Set up the sync adapter
      */
     public ResponseSyncAdapter(Context context, boolean autoInitialize) {
         super(context, autoInitialize);
         Ohmage.app().getApplicationGraph().inject(this);
+        createMediaUploader();
     }
 
     /**
@@ -97,6 +118,7 @@ public class ResponseSyncAdapter extends AbstractThreadedSyncAdapter {
             boolean allowParallelSyncs) {
         super(context, autoInitialize, allowParallelSyncs);
         Ohmage.app().getApplicationGraph().inject(this);
+        createMediaUploader();
     }
 
     @Override
@@ -119,126 +141,370 @@ public class ResponseSyncAdapter extends AbstractThreadedSyncAdapter {
             syncResult.stats.numIoExceptions > 0 || syncResult.stats.numAuthExceptions > 0)
             return;
 
-        // Upload responses
-        Observable<Long> toDelete = null;
-        Observable<ResponseFiles> filesToDelete = null;
-
-        Cursor cursor = null;
+        performSync(provider, syncResult);
+    }
 
-        try {
-            cursor = provider.query(Responses.CONTENT_URI,
-                    new String[]{BaseColumns._ID, Responses.SURVEY_ID, Responses.SURVEY_VERSION,
-                            Responses.RESPONSE_DATA, Responses.RESPONSE_METADATA,
-                            Responses.RESPONSE_EXTRAS}, null, null, null);
+    private void createMediaUploader() {
+        if (Ohmage.RESUMABLE_MEDIA_UPLOADS) {
+            mMediaUploader = new ChunkedMediaUploader(ohmageService,
+                    getContext().getSharedPreferences(ChunkedMediaUploader.PREFERENCES_NAME,
+                            Context.MODE_PRIVATE), Ohmage.MEDIA_UPLOAD_CHUNK_SIZE);
+        }
+    }
 
-            while (cursor.moveToNext()) {
-                final ResponseFiles files = gson.fromJson(cursor.getString(5), ResponseFiles.class);
-                try {
-                    // Make the call to upload responses
-                    Observable<Response> uploadResponse = null;
+    /**
+     * Sets the number of responses which are uploaded at once
+     *
+     * @param window
+     */
+    public void setWindow(int window) {
+        mWindow = Math.max(1, window);
+    }
 
-                    if(Ohmage.USE_DSU_DATAPOINTS_API) {
-                        uploadResponse = uploadDatapoint(cursor, files);
-                    } else {
-                        uploadOhmagePoint(cursor, files);
-                    }
+    /**
+     * Sets the most responses without media which are packed into one upload. A batch size of 1
+     * uploads each response on its own.
+     *
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        mBatchSize = Math.max(1, batchSize);
+    }
 
-                    // Map the data for the upload response to the local id in the db
-                    final long localResponseId = cursor.getLong(0);
-                    Observable<Long> responseId = uploadResponse.map(new Func1<Response, Long>() {
-                        @Override public Long call(Response response) {
-                            return localResponseId;
-                        }
-                    });
+    /**
+     * Sets the uploader used to send media files a chunk at a time before the response they belong
+     * to. If it is null, media files are sent in the same request as their response.
+     *
+     * @param uploader
+     */
+    public void setMediaUploader(ChunkedMediaUploader uploader) {
+        mMediaUploader = uploader;
+    }
 
-                    if(toDelete == null) {
-                        toDelete = responseId;
-                    } else {
-                        toDelete = Observable.mergeDelayError(responseId, toDelete);
-                    }
+    /**
+     * Uploads the responses in the order they were saved, with at most {@link #setWindow(int)}
+     * uploads in flight at once. Responses are read {@link #PAGE_SIZE} at a time by id, and each
+     * response and its files are deleted soon after its upload finishes, so the memory used stays
+     * the same no matter how many responses are waiting.
+     * <p/>
+     * Uploads finish on other threads, but the provider client should only be used by the sync
+     * thread. Responses which were uploaded are queued and deleted by the sync thread each time it
+     * waits for a place in the window, and once all of the uploads are done.
+     * <p/>
+     * If the batch size is more than 1, responses without media are packed together and uploaded
+     * with {@link OhmageService#uploadDataPoints(DataPointBatchTypedOutput)}. A batch takes up one
+     * place in the window just like a single response.
+     *
+     * @param provider
+     * @param syncResult
+     */
+    public void performSync(ContentProviderClient provider, SyncResult syncResult) {
+        int window = mWindow;
+        int batchSize = Ohmage.USE_DSU_DATAPOINTS_API ? mBatchSize : 1;
+        Semaphore uploads = new Semaphore(window);
+        Queue<Acknowledged> acknowledged = new ConcurrentLinkedQueue<Acknowledged>();
+        DataPointBatchTypedOutput batch = null;
+        long lastId = -1;
+        try {
+            int count = PAGE_SIZE;
+            while (count == PAGE_SIZE) {
+                Cursor cursor = provider.query(Responses.CONTENT_URI.buildUpon()
+                                .appendQueryParameter(Responses.QUERY_PARAMETER_LIMIT,
+                                        String.valueOf(PAGE_SIZE)).build(), PROJECTION,
+                        BaseColumns._ID + ">?", new String[]{String.valueOf(lastId)},
+                        BaseColumns._ID);
+                if (cursor == null)
+                    break;
 
-                    // Map the data for the upload response to the files in the db
-                    Observable<ResponseFiles> responseFiles = uploadResponse.map(new Func1<Response, ResponseFiles>() {
-                        @Override public ResponseFiles call(Response response) {
-                            return files;
+                try {
+                    count = cursor.getCount();
+                    while (cursor.moveToNext()) {
+                        lastId = cursor.getLong(0);
+                        ResponseFiles files =
+                                gson.fromJson(cursor.getString(5), ResponseFiles.class);
+
+                        if (batchSize > 1 && (files == null || files.getIds().isEmpty())) {
+                            if (batch == null)
+                                batch = new DataPointBatchTypedOutput();
+                            OmhDataPointHeader header = buildHeader(cursor);
+                            batch.add(lastId, header.id, gson.toJson(header),
+                                    cursor.getString(3));
+                            if (batch.size() >= batchSize) {
+                                acquire(uploads, provider, acknowledged, syncResult);
+                                upload(batch, acknowledged, uploads, syncResult);
+                                batch = null;
+                            }
+                            continue;
                         }
-                    });
 
-                    if(filesToDelete == null) {
-                        filesToDelete = responseFiles;
-                    } else {
-                        filesToDelete = Observable.mergeDelayError(responseFiles, filesToDelete);
+                        acquire(uploads, provider, acknowledged, syncResult);
+                        upload(cursor, files, acknowledged, uploads, syncResult);
                     }
-                } catch (AuthenticationException e) {
-                    Log.e(TAG, "Auth", e);
-                    syncResult.stats.numAuthExceptions++;
+                } finally {
+                    cursor.close();
                 }
             }
-            cursor.close();
-
-
 
+            if (batch != null) {
+                acquire(uploads, provider, acknowledged, syncResult);
+                upload(batch, acknowledged, uploads, syncResult);
+            }
         } catch (RemoteException e) {
             Log.e(TAG, "Remote", e);
-            syncResult.stats.numIoExceptions++;
+            synchronized (syncResult) {
+                syncResult.stats.numIoExceptions++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
-            if (cursor != null)
-                cursor.close();
+            // Wait for the uploads which are still in flight
+            uploads.acquireUninterruptibly(window);
+            deleteAcknowledged(provider, acknowledged, syncResult);
         }
+    }
 
-        if(toDelete != null) {
-            toDelete.flatMap(new Func1<Long, Observable<ContentProviderOperation>>() {
-                @Override public Observable<ContentProviderOperation> call(Long aLong) {
-                    return Observable.from(ContentProviderOperation.newDelete(appendSyncAdapterParam(
-                            ContentUris.withAppendedId(Responses.CONTENT_URI, aLong))).build());
-                }
-            }).subscribe(new Subscriber<ContentProviderOperation>() {
-                ArrayList<ContentProviderOperation> toDelete =
-                        new ArrayList<ContentProviderOperation>();
-
-                @Override public void onCompleted() {
-                    try {
-                        getContext().getContentResolver()
-                                .applyBatch(ResponseContract.CONTENT_AUTHORITY, toDelete);
-                    } catch (RemoteException e) {
-                        syncResult.stats.numIoExceptions++;
-                    } catch (OperationApplicationException e) {
+    /**
+     * Waits for a place in the window, then deletes the responses whose uploads finished while
+     * waiting
+     */
+    private void acquire(Semaphore uploads, ContentProviderClient provider,
+            Queue<Acknowledged> acknowledged, SyncResult syncResult) throws InterruptedException {
+        uploads.acquire();
+        deleteAcknowledged(provider, acknowledged, syncResult);
+    }
+
+    /**
+     * Starts uploading the response at the cursor. The permit is released once the upload is done.
+     * If the media is uploaded a chunk at a time, that happens on an io thread as part of the
+     * upload so the sync thread can go on to the next response.
+     */
+    private void upload(Cursor cursor, final ResponseFiles files,
+            final Queue<Acknowledged> acknowledged, final Semaphore uploads,
+            final SyncResult syncResult) {
+        final long localResponseId = cursor.getLong(0);
+
+        Observable<Response> uploadResponse;
+        try {
+            final ChunkedMediaUploader uploader = mMediaUploader;
+            if (!Ohmage.USE_DSU_DATAPOINTS_API) {
+                uploadResponse = uploadOhmagePoint(cursor, files);
+            } else if (uploader != null && files != null && !files.getIds().isEmpty()) {
+                // The media will already be on the server, so only the data point is left. The
+                // point is read from the cursor now but isn't sent until it is subscribed to.
+                final Observable<Response> uploadPoint =
+                        uploadDatapoint(cursor, new ResponseFiles());
+                uploadResponse = Observable.from(files).subscribeOn(Schedulers.io())
+                        .flatMap(new Func1<ResponseFiles, Observable<Response>>() {
+                            @Override public Observable<Response> call(ResponseFiles files) {
+                                try {
+                                    uploader.upload(files);
+                                } catch (AuthenticationException e) {
+                                    return Observable.error(e);
+                                } catch (IOException e) {
+                                    return Observable.error(e);
+                                }
+                                return uploadPoint;
+                            }
+                        });
+            } else {
+                uploadResponse = uploadDatapoint(cursor, files);
+            }
+        } catch (AuthenticationException e) {
+            Log.e(TAG, "Auth", e);
+            synchronized (syncResult) {
+                syncResult.stats.numAuthExceptions++;
+            }
+            uploads.release();
+            return;
+        }
+
+        uploadResponse.subscribe(new Subscriber<Response>() {
+            @Override public void onCompleted() {
+                acknowledged.add(new Acknowledged(localResponseId, files));
+                uploads.release();
+            }
+
+            @Override public void onError(Throwable e) {
+                Log.e(TAG, "Failed to upload response " + localResponseId, e);
+                synchronized (syncResult) {
+                    if (e instanceof AuthenticationException)
+                        syncResult.stats.numAuthExceptions++;
+                    else
                         syncResult.stats.numIoExceptions++;
-                    }
-                    unsubscribe();
                 }
+                uploads.release();
+            }
 
-                @Override public void onError(Throwable e) {
-                    // Delete the successful ones
-                    onCompleted();
-                }
+            @Override public void onNext(Response response) {
+            }
+        });
+    }
 
-                @Override public void onNext(ContentProviderOperation args) {
-                    toDelete.add(args);
-                }
-            });
+    /**
+     * Starts uploading a batch of responses. The permit is released once the upload is done.
+     */
+    private void upload(final DataPointBatchTypedOutput batch,
+            final Queue<Acknowledged> acknowledged, final Semaphore uploads,
+            final SyncResult syncResult) {
+        Observable<Response> uploadResponse;
+        try {
+            uploadResponse = ohmageService.uploadDataPoints(batch);
+        } catch (AuthenticationException e) {
+            Log.e(TAG, "Auth", e);
+            synchronized (syncResult) {
+                syncResult.stats.numAuthExceptions++;
+            }
+            uploads.release();
+            return;
         }
 
-        if(filesToDelete != null) {
-            filesToDelete.doOnNext(new Action1<ResponseFiles>() {
-                @Override public void call(ResponseFiles responseFiles) {
-                    for (String s : responseFiles.getIds()) {
-                        responseFiles.getFile(s).delete();
-                    }
-                }
-            }).subscribe(new Subscriber<ResponseFiles>() {
-                @Override public void onCompleted() {
-                    unsubscribe();
-                }
+        uploadResponse.subscribe(new Subscriber<Response>() {
+            private Response mResponse;
 
-                @Override public void onError(Throwable e) {
+            @Override public void onCompleted() {
+                acknowledge(acknowledged, batch, mResponse, syncResult);
+                uploads.release();
+            }
 
+            @Override public void onError(Throwable e) {
+                Log.e(TAG, "Failed to upload batch of " + batch.size() + " responses", e);
+                synchronized (syncResult) {
+                    syncResult.stats.numIoExceptions++;
                 }
+                uploads.release();
+            }
+
+            @Override public void onNext(Response response) {
+                mResponse = response;
+            }
+        });
+    }
+
+    /**
+     * Queues the responses in a batch which the server accepted to be deleted. The server replies
+     * with a result for each data point. If there are no results, the whole batch was accepted.
+     * Responses the server didn't accept are kept and uploaded again by the next sync.
+     */
+    private void acknowledge(Queue<Acknowledged> acknowledged, DataPointBatchTypedOutput batch,
+            Response response, SyncResult syncResult) {
+        JsonArray results = readResults(response);
+        if (results == null) {
+            for (Long localResponseId : batch.getLocalIds()) {
+                acknowledged.add(new Acknowledged(localResponseId, null));
+            }
+            return;
+        }
+
+        int accepted = 0;
+        for (JsonElement element : results) {
+            if (!element.isJsonObject())
+                continue;
+            JsonObject result = element.getAsJsonObject();
+            JsonElement id = result.get("id");
+            Long localResponseId = id == null || id.isJsonNull() ? null
+                    : batch.getLocalId(id.getAsString());
+            if (localResponseId == null)
+                continue;
+
+            JsonElement status = result.get("status");
+            int code = status == null || status.isJsonNull() ? 201 : status.getAsInt();
+            // A conflict means the data point was already uploaded
+            if ((code >= 200 && code < 300) || code == 409) {
+                acknowledged.add(new Acknowledged(localResponseId, null));
+                accepted++;
+            } else {
+                Log.w(TAG, "Response " + localResponseId + " was rejected with " + code);
+            }
+        }
 
-                @Override public void onNext(ResponseFiles responseFiles) {
+        synchronized (syncResult) {
+            syncResult.stats.numSkippedEntries += batch.size() - accepted;
+        }
+    }
+
+    /**
+     * @return the array of results for a batch, or null if the server didn't send any
+     */
+    private static JsonArray readResults(Response response) {
+        if (response == null || response.getBody() == null)
+            return null;
 
+        InputStreamReader reader = null;
+        try {
+            reader = new InputStreamReader(response.getBody().in(), "UTF-8");
+            JsonElement results = new JsonParser().parse(reader);
+            return results.isJsonArray() ? results.getAsJsonArray() : null;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read batch results", e);
+            return null;
+        } catch (JsonParseException e) {
+            Log.w(TAG, "Could not parse batch results", e);
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Ignore
                 }
-            });
+            }
+        }
+    }
+
+    /**
+     * Deletes the responses which were queued after they were uploaded. This must only be called
+     * on the sync thread.
+     */
+    private void deleteAcknowledged(ContentProviderClient provider,
+            Queue<Acknowledged> acknowledged, SyncResult syncResult) {
+        Acknowledged response;
+        while ((response = acknowledged.poll()) != null) {
+            delete(provider, response.localResponseId, response.files, syncResult);
+        }
+    }
+
+    /**
+     * Deletes a response and its files after it was uploaded
+     */
+    private void delete(ContentProviderClient provider, long localResponseId,
+            ResponseFiles files, SyncResult syncResult) {
+        try {
+            provider.delete(appendSyncAdapterParam(
+                    ContentUris.withAppendedId(Responses.CONTENT_URI, localResponseId)), null, null);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Remote", e);
+            synchronized (syncResult) {
+                syncResult.stats.numIoExceptions++;
+            }
+            return;
+        }
+
+        if (files != null) {
+            for (String s : files.getIds()) {
+                files.getFile(s).delete();
+            }
+            if (mMediaUploader != null)
+                mMediaUploader.forget(files);
+        }
+        synchronized (syncResult) {
+            syncResult.stats.numEntries++;
+        }
+    }
+
+    /**
+     * A response which was uploaded and is waiting to be deleted by the sync thread
+     */
+    private static class Acknowledged {
+        final long localResponseId;
+
+        /**
+         * The files of the response, or null if it had none
+         */
+        final ResponseFiles files;
+
+        Acknowledged(long localResponseId, ResponseFiles files) {
+            this.localResponseId = localResponseId;
+            this.files = files;
         }
     }
 
@@ -250,22 +516,35 @@ public class ResponseSyncAdapter extends AbstractThreadedSyncAdapter {
         // Make the call to upload responses
         return ohmageService.uploadResponse(cursor.getString(1), cursor.getLong(2),
                 new ResponseTypedOutput(cursor.getString(3),
-                        cursor.getString(4), files)).cache();
+                        cursor.getString(4), files));
 
     }
 
     private Observable<Response> uploadDatapoint(Cursor cursor, ResponseFiles files) throws AuthenticationException {
+        OmhDataPointHeader header = buildHeader(cursor);
+        DataPointTypedOutput point = new DataPointTypedOutput(cursor.getString(3), gson.toJson(header), files);
+
+        // Make the call to upload responses
+        return ohmageService.uploadDataPoint(point);
+    }
+
+    /**
+     * Builds the data point header from the response columns. Responses saved before the id and
+     * timestamp had their own columns only have them in the metadata.
+     */
+    private static OmhDataPointHeader buildHeader(Cursor cursor) {
         OmhDataPointHeader header = new OmhDataPointHeader();
         header.schemaId = new SchemaId(cursor.getString(1), cursor.getString(2));
 
+        if (!cursor.isNull(6) && !cursor.isNull(7)) {
+            header.id = cursor.getString(6);
+            header.creationDateTime = cursor.getString(7);
+            return header;
+        }
 
         JsonObject metadata =  new JsonParser().parse(cursor.getString(4)).getAsJsonObject();
         header.creationDateTime = metadata.get("timestamp").getAsString();
         header.id = metadata.get("id").getAsString();
-        Log.e(TAG, cursor.getString(3) + gson.toJson(header) + files.getIds().toString());
-        DataPointTypedOutput point = new DataPointTypedOutput(cursor.getString(3), gson.toJson(header), files);
-
-        // Make the call to upload responses
-        return ohmageService.uploadDataPoint(point).cache();
+        return header;
     }
 }
@@ -22,10 +22,12 @@ import android.annotation.TargetApi;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.content.SyncResult;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.apache.http.auth.AuthenticationException;
@@ -35,8 +37,19 @@ import org.ohmage.auth.AuthUtil;
 import org.ohmage.auth.Authenticator;
 import org.ohmage.models.Stream;
 import org.ohmage.models.Streams;
+import org.ohmage.sync.StreamWriterOutput.EncodedBatch;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.inject.Inject;
 
@@ -66,6 +79,29 @@ public class StreamSyncAdapter extends AbstractThreadedSyncAdapter {
      */
     public static final String EXTRA_STREAM_VERSION = "extra_stream_version";
 
+    /**
+     * If true, batches are uploaded using {@link #uploadPipelined(Account, Stream,
+     * StreamWriterOutput, BatchSizeController, SyncResult)}
+     */
+    private boolean mPipelined = Ohmage.PIPELINE_STREAM_UPLOADS;
+
+    /**
+     * If true, the batch limits for each stream are tuned by a {@link BatchSizeController}
+     */
+    private boolean mAdaptiveBatches = Ohmage.ADAPTIVE_STREAM_BATCHES;
+
+    /**
+     * The number of streams uploaded at the same time. Streams are uploaded one after the other
+     * if this is 1.
+     */
+    private int mConcurrency = Ohmage.STREAM_UPLOAD_CONCURRENCY;
+
+    /**
+     * If true, batches are recorded in a {@link StreamUploadLedger} while they are uploading. The
+     * ledger needs each batch to be encoded before it is sent, so the pipelined upload is used.
+     */
+    private boolean mUploadLedger = Ohmage.STREAM_UPLOAD_LEDGER;
+
     /**
      * Set up the sync adapter
      */
@@ -95,35 +131,66 @@ public class StreamSyncAdapter extends AbstractThreadedSyncAdapter {
         String streamId = extras.getString(EXTRA_STREAM_ID);
         Long streamVersion = extras.getLong(EXTRA_STREAM_VERSION);
 
-        performSyncForStreams(account, new Streams(provider, account, streamId, streamVersion),
-                new StreamWriterOutput(provider), syncResult);
+        Streams streams = new Streams(provider, account, streamId, streamVersion);
+
+        if (mConcurrency > 1) {
+            performParallelSyncForStreams(account, streams, authority, syncResult);
+        } else {
+            performSyncForStreams(account, streams, newWriter(provider), syncResult);
+        }
+    }
+
+    /**
+     * Creates the writer used to read and upload the points of a stream
+     *
+     * @param provider
+     * @return a new writer
+     */
+    StreamWriterOutput newWriter(ContentProviderClient provider) {
+        StreamWriterOutput writer = new StreamWriterOutput(provider);
+        writer.setGzip(Ohmage.GZIP_STREAM_UPLOADS);
+        return writer;
+    }
+
+    /**
+     * Creates the writer used to upload one stream when the streams are uploaded in parallel
+     *
+     * @param provider the client acquired for the stream
+     * @param stream
+     * @return a new writer
+     */
+    StreamWriterOutput newWriter(ContentProviderClient provider, Stream stream) {
+        return newWriter(provider);
     }
 
     public void performSyncForStreams(Account account, Streams streams, StreamWriterOutput writer,
             SyncResult syncResult) {
         Log.d("ohmage", "start stream sync");
 
+        SharedPreferences batchSizes = getBatchSizes();
+
         try {
             for (Stream stream : streams) {
+                BatchSizeController controller = null;
+                if (batchSizes != null) {
+                    controller = BatchSizeController.load(batchSizes, stream);
+                    controller.apply(writer);
+                }
+
                 try {
                     writer.query(account.name, stream);
 
-                    while (writer.moveToNextBatch()) {
-                        sendData(account, stream, writer);
-                        syncResult.stats.numEntries += writer.deleteBatch();
-                    }
-                } catch (RetrofitError e) {
-                    if (e.getCause() instanceof IOException)
-                        syncResult.stats.numIoExceptions++;
-                    else if (e.getCause() instanceof ConversionException) {
-                        syncResult.stats.numParseExceptions++;
+                    if (mPipelined || mUploadLedger) {
+                        uploadPipelined(account, stream, writer, controller, syncResult);
                     } else {
-                        // Skipped entries for some other error
-                        syncResult.stats.numSkippedEntries++;
-                        e.printStackTrace();
+                        while (uploadNextBatch(account, stream, writer, controller, syncResult)) ;
                     }
+                } catch (RetrofitError e) {
+                    onUploadError(e, syncResult);
                 } finally {
                     writer.close();
+                    if (controller != null)
+                        controller.save(batchSizes);
                 }
             }
         } catch (RemoteException e) {
@@ -135,27 +202,489 @@ public class StreamSyncAdapter extends AbstractThreadedSyncAdapter {
         }
     }
 
+    /**
+     * Uploads several streams at the same time. Each stream gets its own provider client and writer
+     * when its upload starts, and at most {@link #setConcurrency(int)} streams are uploaded at
+     * once. After a stream uploads a batch it goes to the back of the queue, so the streams take
+     * turns uploading one batch each and a stream with a large backlog can't hold up the others
+     * until it is done.
+     * <p/>
+     * If the pipelined upload or the upload ledger is on, each stream is uploaded with
+     * {@link #uploadPipelined(Account, Stream, StreamWriterOutput, BatchSizeController,
+     * SyncResult)} in one turn instead, so batches left in the ledger are still resumed.
+     * <p/>
+     * An auth or database error stops all of the streams, like it does for
+     * {@link #performSyncForStreams(Account, Streams, StreamWriterOutput, SyncResult)}. If the sync
+     * is interrupted, this waits for the batches which are uploading to finish so the providers
+     * and the sync result aren't used after it returns.
+     *
+     * @param account    the account we are syncing
+     * @param streams    the streams to upload
+     * @param authority  the authority of the provider the points are read from
+     * @param syncResult
+     */
+    public void performParallelSyncForStreams(Account account, Streams streams,
+            String authority, SyncResult syncResult) {
+        Log.d("ohmage", "start parallel stream sync");
+
+        if (streams.isEmpty()) {
+            Log.d(TAG, "Finished Sync");
+            return;
+        }
+
+        SharedPreferences batchSizes = getBatchSizes();
+        ExecutorService uploaders = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(mConcurrency, streams.size())));
+        CountDownLatch done = new CountDownLatch(streams.size());
+        AtomicBoolean stopped = new AtomicBoolean();
+        boolean interrupted = false;
+
+        try {
+            for (Stream stream : streams) {
+                BatchSizeController controller = null;
+                if (batchSizes != null)
+                    controller = BatchSizeController.load(batchSizes, stream);
+                uploaders.execute(new StreamUpload(account, stream, authority, controller,
+                        batchSizes, uploaders, done, stopped, syncResult));
+            }
+            done.await();
+        } catch (InterruptedException e) {
+            stopped.set(true);
+            interrupted = true;
+        } finally {
+            uploaders.shutdown();
+            // The streams stop after the batch they are uploading
+            while (true) {
+                try {
+                    if (uploaders.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS))
+                        break;
+                } catch (InterruptedException e) {
+                    stopped.set(true);
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            Log.d(TAG, "Finished Sync");
+        }
+    }
+
+    /**
+     * Acquires a provider client for one of the streams uploaded in parallel, since a client
+     * shouldn't be used by more than one thread at a time
+     *
+     * @param authority
+     * @return the client, or null if the provider couldn't be found
+     */
+    ContentProviderClient acquireProvider(String authority) {
+        return getContext().getContentResolver().acquireContentProviderClient(authority);
+    }
+
+    /**
+     * Uploads one batch of a stream, then puts itself at the back of the uploader queue to upload
+     * the next one. Only one task exists for each stream, so a writer is only used by one thread at
+     * a time. The provider client is acquired when the stream first runs and released when the
+     * stream is done, so streams waiting for a thread don't hold a client. Stats are counted in a
+     * result for the stream and added to the sync result when the stream is done.
+     */
+    private class StreamUpload implements Runnable {
+
+        private final Account mAccount;
+
+        private final Stream mStream;
+
+        private final String mAuthority;
+
+        private ContentProviderClient mProvider;
+
+        private StreamWriterOutput mWriter;
+
+        private final BatchSizeController mController;
+
+        private final SharedPreferences mBatchSizes;
+
+        private final ExecutorService mUploaders;
+
+        private final CountDownLatch mDone;
+
+        private final AtomicBoolean mStopped;
+
+        private final SyncResult mSyncResult;
+
+        private final SyncResult mStreamResult = new SyncResult();
+
+        private boolean mQueried;
+
+        StreamUpload(Account account, Stream stream, String authority,
+                BatchSizeController controller, SharedPreferences batchSizes,
+                ExecutorService uploaders, CountDownLatch done, AtomicBoolean stopped,
+                SyncResult syncResult) {
+            mAccount = account;
+            mStream = stream;
+            mAuthority = authority;
+            mController = controller;
+            mBatchSizes = batchSizes;
+            mUploaders = uploaders;
+            mDone = done;
+            mStopped = stopped;
+            mSyncResult = syncResult;
+        }
+
+        @Override public void run() {
+            boolean requeued = false;
+            try {
+                requeued = upload();
+            } finally {
+                if (!requeued)
+                    finish();
+            }
+        }
+
+        /**
+         * Uploads the next batch of the stream
+         *
+         * @return true if the stream was put back in the queue to upload its next batch
+         */
+        private boolean upload() {
+            boolean more = false;
+            try {
+                if (!mStopped.get()) {
+                    if (mProvider == null) {
+                        mProvider = acquireProvider(mAuthority);
+                        if (mProvider == null) {
+                            mStreamResult.databaseError = true;
+                            return false;
+                        }
+                        mWriter = newWriter(mProvider, mStream);
+                    }
+                    if (!mQueried) {
+                        if (mController != null)
+                            mController.apply(mWriter);
+                        mWriter.query(mAccount.name, mStream);
+                        mQueried = true;
+                    }
+                    if (mPipelined || mUploadLedger) {
+                        uploadPipelined(mAccount, mStream, mWriter, mController, mStreamResult);
+                    } else {
+                        more = uploadNextBatch(mAccount, mStream, mWriter, mController,
+                                mStreamResult);
+                    }
+                }
+            } catch (RetrofitError e) {
+                onUploadError(e, mStreamResult);
+            } catch (RemoteException e) {
+                mStreamResult.databaseError = true;
+                mStopped.set(true);
+            } catch (AuthenticationException e) {
+                mStreamResult.stats.numAuthExceptions++;
+                mStopped.set(true);
+            } catch (RuntimeException e) {
+                mStreamResult.stats.numSkippedEntries++;
+                Log.e(TAG, "Failed to upload " + mStream.schemaId, e);
+            }
+
+            if (more) {
+                try {
+                    mUploaders.execute(this);
+                    return true;
+                } catch (RejectedExecutionException e) {
+                    // The sync was interrupted and the uploaders were shut down
+                }
+            }
+            return false;
+        }
+
+        private void finish() {
+            try {
+                if (mWriter != null)
+                    mWriter.close();
+                if (mProvider != null)
+                    mProvider.release();
+                if (mController != null)
+                    mController.save(mBatchSizes);
+                synchronized (mSyncResult) {
+                    mSyncResult.databaseError |= mStreamResult.databaseError;
+                    mSyncResult.stats.numEntries += mStreamResult.stats.numEntries;
+                    mSyncResult.stats.numIoExceptions += mStreamResult.stats.numIoExceptions;
+                    mSyncResult.stats.numParseExceptions += mStreamResult.stats.numParseExceptions;
+                    mSyncResult.stats.numSkippedEntries += mStreamResult.stats.numSkippedEntries;
+                    mSyncResult.stats.numAuthExceptions += mStreamResult.stats.numAuthExceptions;
+                }
+            } finally {
+                mDone.countDown();
+            }
+        }
+    }
+
+    /**
+     * Uploads and deletes the next batch of points for a stream
+     *
+     * @return false if there were no more points to upload
+     */
+    private boolean uploadNextBatch(Account account, Stream stream, StreamWriterOutput writer,
+            BatchSizeController controller, SyncResult syncResult)
+            throws RemoteException, AuthenticationException, RetrofitError {
+        if (!writer.moveToNextBatch())
+            return false;
+
+        long start = SystemClock.elapsedRealtime();
+        sendData(account, stream, writer, controller);
+        onBatchSent(writer, controller, writer.getBatchBytes(), start);
+        syncResult.stats.numEntries += writer.deleteBatch();
+        return true;
+    }
+
+    private void onUploadError(RetrofitError e, SyncResult syncResult) {
+        if (e.getCause() instanceof IOException)
+            syncResult.stats.numIoExceptions++;
+        else if (e.getCause() instanceof ConversionException) {
+            syncResult.stats.numParseExceptions++;
+        } else {
+            // Skipped entries for some other error
+            syncResult.stats.numSkippedEntries++;
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the preferences the batch limits are saved in, or null if the limits are not tuned
+     */
+    private SharedPreferences getBatchSizes() {
+        if (!mAdaptiveBatches)
+            return null;
+        return getContext().getSharedPreferences(BatchSizeController.PREFERENCES_NAME,
+                Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Sets how many streams are uploaded at the same time. If this is more than 1,
+     * {@link #onPerformSync(Account, Bundle, String, ContentProviderClient, SyncResult)} uploads
+     * the streams in parallel.
+     *
+     * @param concurrency
+     */
+    public void setConcurrency(int concurrency) {
+        mConcurrency = concurrency;
+    }
+
+    /**
+     * Turns the pipelined upload mode on or off
+     *
+     * @param pipelined
+     */
+    public void setPipelined(boolean pipelined) {
+        mPipelined = pipelined;
+    }
+
+    /**
+     * Turns the adaptive batch sizes on or off
+     *
+     * @param adaptiveBatches
+     */
+    public void setAdaptiveBatches(boolean adaptiveBatches) {
+        mAdaptiveBatches = adaptiveBatches;
+    }
+
+    /**
+     * Tells the controller how long a batch took to upload and gives the writer the new limits
+     * for the following batches.
+     */
+    private void onBatchSent(StreamWriterOutput writer, BatchSizeController controller, long bytes,
+            long start) {
+        if (controller != null) {
+            controller.onSuccess(bytes, SystemClock.elapsedRealtime() - start);
+            controller.apply(writer);
+        }
+    }
+
+    /**
+     * Tells the controller a batch failed to upload because of a network error
+     */
+    private void onBatchFailed(RetrofitError e, BatchSizeController controller) {
+        if (controller != null && e.getCause() instanceof IOException) {
+            controller.onFailure();
+        }
+    }
+
+    /**
+     * Turns the upload ledger on or off
+     *
+     * @param uploadLedger
+     */
+    public void setUploadLedger(boolean uploadLedger) {
+        mUploadLedger = uploadLedger;
+    }
+
+    /**
+     * Sends the batches left in the ledger by a sync which didn't finish, using the same batch ids
+     * they were sent with before
+     *
+     * @return true if any batches were sent again
+     */
+    private boolean resumeFromLedger(Account account, Stream stream, StreamWriterOutput writer,
+            StreamUploadLedger ledger, SyncResult syncResult)
+            throws RemoteException, AuthenticationException, RetrofitError, IOException {
+        List<StreamUploadLedger.Entry> entries = ledger.pending(account.name, stream);
+        for (StreamUploadLedger.Entry entry : entries) {
+            EncodedBatch batch = writer.encodeBatch(entry.batchId, entry.firstId, entry.lastId);
+            if (batch.count == 0) {
+                ledger.remove(entry);
+                continue;
+            }
+            sendData(account, stream, batch, true);
+            syncResult.stats.numEntries += writer.deleteBatch(batch);
+        }
+        return !entries.isEmpty();
+    }
+
+    /**
+     * Uploads the points for a stream while reading and encoding the next batch into memory on
+     * another thread, so the database and the network are both kept busy. A batch is only deleted
+     * after it has been uploaded and after all the batches before it were deleted.
+     *
+     * @param account    the account we are syncing
+     * @param stream     the stream we are currently syncing
+     * @param writer     the writer which has been queried for the stream
+     * @param controller the controller tuning the batch limits, or null
+     * @param syncResult
+     * @throws RemoteException
+     * @throws AuthenticationException
+     * @throws RetrofitError
+     */
+    private void uploadPipelined(Account account, Stream stream, final StreamWriterOutput writer,
+            BatchSizeController controller, SyncResult syncResult)
+            throws RemoteException, AuthenticationException, RetrofitError {
+        StreamUploadLedger ledger = null;
+        if (mUploadLedger) {
+            ledger = writer.newLedger();
+            try {
+                if (resumeFromLedger(account, stream, writer, ledger, syncResult)) {
+                    // Read the first page again since the points it started with were deleted
+                    writer.query(account.name, stream);
+                }
+            } catch (IOException e) {
+                RemoteException remoteException = new RemoteException();
+                remoteException.initCause(e);
+                throw remoteException;
+            }
+        }
+
+        Callable<EncodedBatch> encodeNextBatch = new Callable<EncodedBatch>() {
+            @Override public EncodedBatch call() throws Exception {
+                return writer.encodeNextBatch();
+            }
+        };
+
+        // Reads and encodes the next batch while the current batch is being uploaded
+        ExecutorService encoder = Executors.newSingleThreadExecutor();
+        try {
+            uploadPipelined(account, stream, writer, controller, ledger, encoder,
+                    encodeNextBatch, syncResult);
+        } finally {
+            encoder.shutdown();
+        }
+    }
+
+    private void uploadPipelined(final Account account, final Stream stream,
+            final StreamWriterOutput writer, BatchSizeController controller,
+            final StreamUploadLedger ledger, ExecutorService encoder,
+            Callable<EncodedBatch> encodeNextBatch, SyncResult syncResult)
+            throws RemoteException, AuthenticationException, RetrofitError {
+        EncodedBatch batch = getResult(encoder.submit(encodeNextBatch));
+        while (batch != null) {
+            final EncodedBatch current = batch;
+            // The ledger and the deletes use the writer's provider client too, so they are run on
+            // the encoder thread to keep the client on one thread
+            if (ledger != null) {
+                getResult(encoder.submit(new Callable<Void>() {
+                    @Override public Void call() throws Exception {
+                        ledger.record(account.name, stream, current);
+                        return null;
+                    }
+                }));
+            }
+            Future<EncodedBatch> next = encoder.submit(encodeNextBatch);
+
+            boolean sent = false;
+            long start = SystemClock.elapsedRealtime();
+            try {
+                sendData(account, stream, batch, true);
+                sent = true;
+            } catch (RetrofitError e) {
+                onBatchFailed(e, controller);
+                throw e;
+            } finally {
+                if (!sent) {
+                    // Wait for the encoder to finish so the writer isn't closed while it is in use
+                    try {
+                        next.get();
+                    } catch (Exception e) {
+                        // The batch failed to send so the error from encoding doesn't matter
+                    }
+                }
+            }
+
+            EncodedBatch encoded = getResult(next);
+            // The new limits are used from the batch after the one which was just encoded
+            onBatchSent(writer, controller, batch.length(), start);
+            syncResult.stats.numEntries += getResult(encoder.submit(new Callable<Integer>() {
+                @Override public Integer call() throws Exception {
+                    return writer.deleteBatch(current);
+                }
+            }));
+            batch = encoded;
+        }
+    }
+
+    private <T> T getResult(Future<T> future) throws RemoteException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            RemoteException remoteException = new RemoteException();
+            remoteException.initCause(e);
+            throw remoteException;
+        } catch (ExecutionException e) {
+            RemoteException remoteException = new RemoteException();
+            remoteException.initCause(e.getCause());
+            throw remoteException;
+        }
+    }
+
     /**
      * Streams points over the network to the ohmage server.
      *
-     * @param account the account we are syncing
-     * @param stream  the stream we are currently syncing
-     * @param data    A reference to the data via a {@link DeletingCursor}
+     * @param account    the account we are syncing
+     * @param stream     the stream we are currently syncing
+     * @param data       A reference to the data via a {@link DeletingCursor}
+     * @param controller the controller tuning the batch limits, or null
      * @throws AuthenticationException thrown if there is a problem getting the auth token or
      *                                 the server responds with an auth error
      * @throws RetrofitError           thrown if there is an error communicating with the server
      *                                 which causes us to stop syncing
      */
-    private void sendData(Account account, Stream stream, StreamWriterOutput data) throws
-            AuthenticationException, RetrofitError {
-        sendData(account, stream, data, true);
+    private void sendData(Account account, Stream stream, StreamWriterOutput data,
+            BatchSizeController controller) throws AuthenticationException, RetrofitError {
+        try {
+            sendData(account, stream, data, true);
+        } catch (RetrofitError e) {
+            onBatchFailed(e, controller);
+            throw e;
+        }
     }
 
     private void sendData(Account account, Stream stream, StreamWriterOutput data,
             boolean retry) throws AuthenticationException, RetrofitError {
         try {
-            if (accountStillExists(account))
-                ohmageService.uploadStreamData(stream.schemaId, stream.schemaVersion, data);
+            if (accountStillExists(account)) {
+                if (data.isGzip()) {
+                    ohmageService.uploadStreamData(stream.schemaId, stream.schemaVersion,
+                            StreamWriterOutput.CONTENT_ENCODING_GZIP, data);
+                } else {
+                    ohmageService.uploadStreamData(stream.schemaId, stream.schemaVersion, data);
+                }
+            }
         } catch (AuthenticationException e) {
             // If the response failed because of an auth error, we will try one more time
             if (retry) {
@@ -171,6 +700,27 @@ public class StreamSyncAdapter extends AbstractThreadedSyncAdapter {
         }
     }
 
+    /**
+     * Uploads a batch which has already been encoded. Since the batch is in memory, it can be
+     * sent again as is if there is an auth error.
+     */
+    private void sendData(Account account, Stream stream, EncodedBatch batch, boolean retry)
+            throws AuthenticationException, RetrofitError {
+        try {
+            if (accountStillExists(account)) {
+                ohmageService.uploadStreamData(stream.schemaId, stream.schemaVersion,
+                        batch.contentEncoding(), batch.getBatchId(), batch);
+            }
+        } catch (AuthenticationException e) {
+            // If the response failed because of an auth error, we will try one more time
+            if (retry) {
+                sendData(account, stream, batch, false);
+            } else {
+                throw e;
+            }
+        }
+    }
+
     /**
      * Checks to see if the account still exists on the system
      * <p/>
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2014 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.sync;
+
+import android.content.ContentProviderClient;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.RemoteException;
+
+import org.ohmage.models.Stream;
+import org.ohmage.provider.StreamContentProvider.UploadLedger;
+import org.ohmage.streams.StreamContract;
+import org.ohmage.sync.StreamWriterOutput.EncodedBatch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the batches which are being uploaded so a sync which is killed after the server accepts
+ * a batch but before it is deleted doesn't upload a new copy of the points. The next sync sends the
+ * batches left in the ledger again with the same batch id, which lets the server ignore them.
+ * Entries are removed in the same transaction that deletes the points of their batch.
+ */
+public class StreamUploadLedger {
+
+    private static final String SELECTION = StreamContract.Streams.USERNAME + "=? AND "
+                                            + StreamContract.Streams.STREAM_ID + "=? AND "
+                                            + StreamContract.Streams.STREAM_VERSION + "=?";
+
+    private final ContentProviderClient mProvider;
+
+    public StreamUploadLedger(ContentProviderClient provider) {
+        mProvider = provider;
+    }
+
+    /**
+     * Records a batch before it is sent
+     *
+     * @param accountName
+     * @param stream
+     * @param batch
+     * @throws RemoteException
+     */
+    public void record(String accountName, Stream stream, EncodedBatch batch)
+            throws RemoteException {
+        ContentValues values = new ContentValues();
+        values.put(UploadLedger.BATCH_ID, batch.batchId);
+        values.put(StreamContract.Streams.USERNAME, accountName);
+        values.put(StreamContract.Streams.STREAM_ID, stream.schemaId);
+        values.put(StreamContract.Streams.STREAM_VERSION, stream.schemaVersion);
+        values.put(UploadLedger.FIRST_ID, batch.firstId);
+        values.put(UploadLedger.LAST_ID, batch.lastId);
+        mProvider.insert(UploadLedger.CONTENT_URI, values);
+    }
+
+    /**
+     * Finds the batches of a stream which were sent but never deleted
+     *
+     * @param accountName
+     * @param stream
+     * @return the entries in the order they were sent
+     * @throws RemoteException
+     */
+    public List<Entry> pending(String accountName, Stream stream) throws RemoteException {
+        List<Entry> entries = new ArrayList<Entry>();
+        Cursor cursor = mProvider.query(UploadLedger.CONTENT_URI, new String[]{
+                        UploadLedger.BATCH_ID, UploadLedger.FIRST_ID, UploadLedger.LAST_ID},
+                SELECTION, new String[]{accountName, stream.schemaId,
+                        String.valueOf(stream.schemaVersion)}, UploadLedger.FIRST_ID);
+        if (cursor == null)
+            return entries;
+
+        try {
+            while (cursor.moveToNext()) {
+                entries.add(new Entry(cursor.getString(0), cursor.getLong(1), cursor.getLong(2)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return entries;
+    }
+
+    /**
+     * Removes an entry without deleting its points. This is used when the points of the batch
+     * don't exist anymore.
+     *
+     * @param entry
+     * @throws RemoteException
+     */
+    public void remove(Entry entry) throws RemoteException {
+        mProvider.delete(UploadLedger.CONTENT_URI, UploadLedger.BATCH_ID + "=?",
+                new String[]{entry.batchId});
+    }
+
+    /**
+     * A batch which was sent but never deleted
+     */
+    public static class Entry {
+        public final String batchId;
+
+        public final long firstId;
+
+        public final long lastId;
+
+        public Entry(String batchId, long firstId, long lastId) {
+            this.batchId = batchId;
+            this.firstId = firstId;
+            this.lastId = lastId;
+        }
+    }
+}
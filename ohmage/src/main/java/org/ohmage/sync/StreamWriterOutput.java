@@ -21,34 +21,59 @@ package org.ohmage.sync;
  */
 
 import android.content.ContentProviderClient;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.RemoteException;
-import android.text.TextUtils;
 
-import com.google.gson.stream.JsonWriter;
+import com.google.common.io.CountingOutputStream;
 
 import org.ohmage.models.Stream;
+import org.ohmage.provider.StreamContentProvider;
+import org.ohmage.provider.StreamContentProvider.SharedMetadata;
 import org.ohmage.streams.StreamContract;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
 
 import retrofit.mime.TypedOutput;
 
 /**
- * Streams data in batches from a {@link DeletingCursor} of {@link org.ohmage.models.Stream}s until
+ * Streams data in batches from a {@link BatchCursor} of {@link org.ohmage.models.Stream}s until
  * the max number of points or max number of bytes is reached.
  */
 public class StreamWriterOutput implements TypedOutput {
 
     private final ContentProviderClient mProvider;
 
-    private DeletingCursor mCursor;
+    private BatchCursor mCursor;
 
-    private JsonWriter writer;
+    private OutputStream mOut;
 
-    private OutputStreamWriter mOut;
+    /**
+     * Points are encoded into this buffer, which is written to {@link #mOut} when it is full
+     */
+    private final byte[] mBuffer = new byte[8192];
+
+    private int mBufferPos;
+
+    /**
+     * The data and metadata of each point are copied into these buffers so no strings are created
+     */
+    private final CharArrayBuffer mData = new CharArrayBuffer(1024);
+
+    private final CharArrayBuffer mMetaData = new CharArrayBuffer(1024);
+
+    /**
+     * The UTF-8 bytes of the {@link SharedMetadata} entries which have been read, by id
+     */
+    private final HashMap<Long, byte[]> mSharedMetadata = new HashMap<Long, byte[]>();
 
     private long mSize;
 
@@ -58,6 +83,32 @@ public class StreamWriterOutput implements TypedOutput {
 
     private int mCurrentNum;
 
+    /**
+     * The number of bytes written for the last batch
+     */
+    private long mBatchBytes;
+
+    /**
+     * The arguments for the selection of the account and stream which was queried
+     */
+    private String[] mSelectionArgs;
+
+    /**
+     * The length of the current batch, or -1 if it isn't known before it is written
+     */
+    private long mLength = -1;
+
+    /**
+     * True if the cursor was made by {@link #query(String, Stream)} and has the framed point
+     * columns
+     */
+    private boolean mFramedColumns;
+
+    /**
+     * If true, points are gzip compressed as they are written
+     */
+    private boolean mGzip;
+
     /**
      * Uploaded in batches based on the size of the points
      */
@@ -68,21 +119,64 @@ public class StreamWriterOutput implements TypedOutput {
      */
     public static final int BATCH_MAX_COUNT = 200;
 
+    /**
+     * Content encoding which should be sent with the upload when {@link #isGzip()} is true
+     */
+    public static final String CONTENT_ENCODING_GZIP = "gzip";
+
     private interface ProbeQuery {
         static final String[] PROJECTION = new String[]{
                 StreamContract.Streams._ID,
                 StreamContract.Streams.STREAM_METADATA,
-                StreamContract.Streams.STREAM_DATA
+                StreamContract.Streams.STREAM_DATA,
+                StreamContentProvider.COLUMN_POINT,
+                StreamContentProvider.COLUMN_POINT_LENGTH,
+                StreamContentProvider.COLUMN_METADATA_ID
         };
 
         static final int PROBE_METADATA = 1;
 
         static final int PROBE_DATA = 2;
+
+        static final int PROBE_POINT = 3;
+
+        static final int PROBE_POINT_LENGTH = 4;
+
+        static final int PROBE_METADATA_ID = 5;
     }
 
-    private final static String pointData = "\"data\":%s";
+    private static final String SELECTION = StreamContract.Streams.USERNAME + "=? AND "
+                                            + StreamContract.Streams.STREAM_ID + "=? AND "
+                                            + StreamContract.Streams.STREAM_VERSION + "=?";
+
+    /**
+     * Points are deleted as the sync adapter so the deletes don't send change notifications
+     */
+    private static final Uri DELETE_URI =
+            OhmageSyncAdapter.appendSyncAdapterParam(StreamContract.Streams.CONTENT_URI);
+
+    private static final byte BEGIN_ARRAY = '[';
+
+    private static final byte END_ARRAY = ']';
+
+    private static final byte BEGIN_OBJECT = '{';
+
+    private static final byte END_OBJECT = '}';
+
+    private static final byte SEPARATOR = ',';
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
 
-    private final static String pointMetaData = "\"meta_data\":%s";
+    private static final byte[] POINT_DATA = ascii("\"data\":");
+
+    private static final byte[] POINT_META_DATA = ascii("\"meta_data\":");
+
+    private static byte[] ascii(String value) {
+        byte[] bytes = new byte[value.length()];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) value.charAt(i);
+        return bytes;
+    }
 
     /**
      * Create a {@link StreamWriterOutput} that reads data from the given provider and uploads
@@ -95,8 +189,7 @@ public class StreamWriterOutput implements TypedOutput {
      */
     public StreamWriterOutput(ContentProviderClient provider, long size, int num) {
         mProvider = provider;
-        mSize = size;
-        mNum = num;
+        setBatchLimits(size, num);
     }
 
     /**
@@ -111,40 +204,72 @@ public class StreamWriterOutput implements TypedOutput {
     }
 
     /**
-     * Queries for the first batch of points for this account and stream
+     * Changes the maximum size in bytes and maximum number of points for the following batches.
+     * This is used by the {@link BatchSizeController} to tune the batches while uploading.
+     *
+     * @param size
+     * @param num
+     */
+    public void setBatchLimits(long size, int num) {
+        mSize = size;
+        mNum = num;
+        if (mCursor instanceof PagedBatchCursor) {
+            ((PagedBatchCursor) mCursor).setPageSize(num);
+        }
+    }
+
+    /**
+     * @return the number of bytes written for the last batch. If the batch was compressed this is
+     * the number of compressed bytes.
+     */
+    public long getBatchBytes() {
+        return mBatchBytes;
+    }
+
+    /**
+     * Queries for the first batch of points for this account and stream. Points are read one
+     * batch at a time using a {@link PagedBatchCursor}.
      *
      * @param accountName
      * @param stream
      * @throws RemoteException
      */
     public void query(String accountName, Stream stream) throws RemoteException {
-        setCursor(mProvider.query(
-                StreamContract.Streams.CONTENT_URI,
-                ProbeQuery.PROJECTION,
-                StreamContract.Streams.USERNAME + "=? AND "
-                + StreamContract.Streams.STREAM_ID + "=? AND "
-                + StreamContract.Streams.STREAM_VERSION + "=?", new String[]{
+        setBatchCursor(null);
+        mSelectionArgs = new String[]{
                 accountName, stream.schemaId, String.valueOf(stream.schemaVersion)
-        }, null));
+        };
+        setBatchCursor(new PagedBatchCursor(mProvider, StreamContract.Streams.CONTENT_URI,
+                ProbeQuery.PROJECTION, SELECTION, mSelectionArgs, mNum));
+        mFramedColumns = true;
     }
 
+    /**
+     * Sets the cursor points will be read from. If it isn't already a {@link BatchCursor} it will
+     * be wrapped in a {@link DeletingCursor}.
+     *
+     * @param cursor
+     */
     public void setCursor(Cursor cursor) {
+        if (cursor != null && !(cursor instanceof BatchCursor))
+            cursor = new DeletingCursor(cursor);
+        setBatchCursor((BatchCursor) cursor);
+    }
+
+    private void setBatchCursor(BatchCursor cursor) {
         if (mCursor != null) {
             mCursor.close();
             mCursor = null;
         }
 
-        if (cursor == null)
-            return;
-
-        if (!(cursor instanceof DeletingCursor))
-            cursor = new DeletingCursor(cursor);
-        mCursor = (DeletingCursor) cursor;
+        mCursor = cursor;
+        mFramedColumns = false;
     }
 
     public boolean moveToNextBatch() throws RemoteException {
         ensureNoDanglingPoints();
         reset();
+        mLength = computeLength();
         if (mCursor != null) {
             return !mCursor.isAfterLast();
         }
@@ -152,11 +277,145 @@ public class StreamWriterOutput implements TypedOutput {
         return false;
     }
 
+    /**
+     * Finds the length of the next batch if every point in it is stored as a framed point. The
+     * points are read with the same limits as {@link #writeTo(OutputStream)} and then the batch is
+     * restarted. A batch never goes past the page of a {@link PagedBatchCursor}, so this only reads
+     * points which are already in memory.
+     *
+     * @return the length of the batch, or -1 if it isn't known
+     */
+    private long computeLength() {
+        if (mGzip || !mFramedColumns || !(mCursor instanceof PagedBatchCursor))
+            return -1;
+
+        long size = mSize;
+        int num = mNum;
+        long length = 2;
+        try {
+            while (size > 0 && num > 0 && mCursor.moveToNext()) {
+                if (mCursor.isNull(ProbeQuery.PROBE_POINT_LENGTH))
+                    return -1;
+
+                long written = mCursor.getLong(ProbeQuery.PROBE_POINT_LENGTH);
+                if (num != mNum)
+                    written++;
+                length += written;
+                size -= written;
+                num--;
+            }
+            return length;
+        } finally {
+            mCursor.restart();
+        }
+    }
+
     public int deleteBatch() throws RemoteException {
         if (mCursor == null)
             return 0;
 
-        return mCursor.deleteMarked(mProvider, StreamContract.Streams.CONTENT_URI);
+        return mCursor.deleteMarked(mProvider, DELETE_URI);
+    }
+
+    /**
+     * Reads the next batch and encodes it into memory. The batch can then be uploaded while the
+     * batch after it is read. Only works after points have been queried with
+     * {@link #query(String, Stream)}.
+     *
+     * @return the encoded batch, or null if there are no more points
+     * @throws RemoteException
+     * @throws IOException
+     */
+    public EncodedBatch encodeNextBatch() throws RemoteException, IOException {
+        if (!(mCursor instanceof PagedBatchCursor))
+            throw new IllegalStateException("Batches can only be encoded after query() is called");
+
+        PagedBatchCursor cursor = (PagedBatchCursor) mCursor;
+        if (!moveToNextBatch())
+            return null;
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        writeTo(buffer);
+
+        if (!cursor.hasPointsToDelete())
+            return null;
+
+        long firstId = cursor.getFirstMarkedId();
+        long lastId = cursor.getLastMarkedId();
+        int count = cursor.detachMarked();
+        return new EncodedBatch(buffer.toByteArray(), mGzip, firstId, lastId, count,
+                UUID.randomUUID().toString());
+    }
+
+    /**
+     * Encodes the points of the queried stream with ids in the given range as one batch, no
+     * matter what the batch limits are. This is used to send a batch from the upload ledger again
+     * exactly as it was sent before. The current batch isn't changed.
+     *
+     * @param batchId the id the batch was sent with
+     * @param firstId the id of the first point in the batch
+     * @param lastId  the id of the last point in the batch
+     * @return the encoded batch, which has a count of 0 if the points don't exist anymore
+     * @throws RemoteException
+     * @throws IOException
+     */
+    public EncodedBatch encodeBatch(String batchId, long firstId, long lastId)
+            throws RemoteException, IOException {
+        if (mSelectionArgs == null)
+            throw new IllegalStateException("Batches can only be encoded after query() is called");
+
+        String[] args = Arrays.copyOf(mSelectionArgs, mSelectionArgs.length + 2);
+        args[mSelectionArgs.length] = String.valueOf(firstId);
+        args[mSelectionArgs.length + 1] = String.valueOf(lastId);
+        PagedBatchCursor range = new PagedBatchCursor(mProvider,
+                StreamContract.Streams.CONTENT_URI, ProbeQuery.PROJECTION,
+                SELECTION + " AND " + StreamContract.Streams._ID + " BETWEEN ? AND ?", args,
+                Integer.MAX_VALUE);
+
+        BatchCursor cursor = mCursor;
+        long size = mSize;
+        int num = mNum;
+        try {
+            mCursor = range;
+            mSize = Long.MAX_VALUE;
+            mNum = Integer.MAX_VALUE;
+            reset();
+
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            writeTo(buffer);
+            return new EncodedBatch(buffer.toByteArray(), mGzip, firstId, lastId,
+                    range.detachMarked(), batchId);
+        } finally {
+            range.close();
+            mCursor = cursor;
+            mSize = size;
+            mNum = num;
+            reset();
+        }
+    }
+
+    /**
+     * @return a ledger which records batches in the same provider the points are read from
+     */
+    public StreamUploadLedger newLedger() {
+        return new StreamUploadLedger(mProvider);
+    }
+
+    /**
+     * Deletes the points from a batch returned by {@link #encodeNextBatch()} after it has been
+     * uploaded. The upload ledger entry for the batch is deleted in the same transaction.
+     *
+     * @param batch
+     * @return the number of points in the batch
+     * @throws RemoteException
+     */
+    public int deleteBatch(EncodedBatch batch) throws RemoteException {
+        if (mSelectionArgs == null)
+            return 0;
+
+        mProvider.delete(StreamContentProvider.buildRangeUri(DELETE_URI, batch.firstId,
+                batch.lastId, batch.batchId), SELECTION, mSelectionArgs);
+        return batch.count;
     }
 
     /**
@@ -167,6 +426,7 @@ public class StreamWriterOutput implements TypedOutput {
             return;
 
         mCursor.restart();
+        reset();
     }
 
     public void close() {
@@ -175,6 +435,26 @@ public class StreamWriterOutput implements TypedOutput {
         }
     }
 
+    /**
+     * Compress the points with gzip as they are written. When compressing, the maximum batch size
+     * is counted in compressed bytes, so a batch can hold more points. The batch can be larger than
+     * the maximum by the amount of data the compressor has buffered but not yet written. The
+     * length of a compressed batch is never known before it is written.
+     *
+     * @param gzip
+     */
+    public void setGzip(boolean gzip) {
+        mGzip = gzip;
+    }
+
+    /**
+     * @return true if points will be compressed with gzip and the upload should be sent with a
+     * content encoding of {@link #CONTENT_ENCODING_GZIP}
+     */
+    public boolean isGzip() {
+        return mGzip;
+    }
+
     @Override public String fileName() {
         return null;
     }
@@ -183,8 +463,12 @@ public class StreamWriterOutput implements TypedOutput {
         return "application/json";
     }
 
+    /**
+     * @return the exact length of the batch if every point in it was stored framed and the batch
+     * isn't compressed, so it can be sent without chunked encoding. Otherwise -1.
+     */
     @Override public long length() {
-        return -1;
+        return mLength;
     }
 
     @Override public void writeTo(OutputStream out) throws IOException {
@@ -194,16 +478,40 @@ public class StreamWriterOutput implements TypedOutput {
         if (mCurrentSize == 0 || mCurrentNum == 0)
             return;
 
-        mOut = new OutputStreamWriter(out);
-        writer = new JsonWriter(mOut);
-        writer.beginArray();
+        mBatchBytes = 0;
+        CountingOutputStream compressedOut = null;
+        GZIPOutputStream gzipOut = null;
+        if (mGzip) {
+            compressedOut = new CountingOutputStream(out);
+            gzipOut = new GZIPOutputStream(compressedOut);
+            out = gzipOut;
+        }
+
+        mOut = out;
+        mBufferPos = 0;
+        mBatchBytes += writeByte(BEGIN_ARRAY);
+        boolean first = true;
         // the moveToNext call must be last, otherwise it will assume it was added to the batch
         while (mCurrentSize > 0 && mCurrentNum > 0 && mCursor.moveToNext()) {
-            mCurrentSize -= writePoint();
+            long written = writePoint(!first);
+            first = false;
+            if (compressedOut != null) {
+                mCurrentSize = mSize - compressedOut.getCount();
+            } else {
+                mCurrentSize -= written;
+                mBatchBytes += written;
+            }
             mCurrentNum--;
         }
-        writer.endArray();
-        writer.flush();
+        mBatchBytes += writeByte(END_ARRAY);
+        flushBuffer();
+        out.flush();
+        mOut = null;
+
+        if (gzipOut != null) {
+            gzipOut.finish();
+            mBatchBytes = compressedOut.getCount();
+        }
     }
 
     private void reset() {
@@ -212,58 +520,235 @@ public class StreamWriterOutput implements TypedOutput {
     }
 
     /**
-     * Write the contents of a point from the cursor. The {@link JsonWriter} does not have a way
-     * to write json objects that are already strings so this method starts an object and then
-     * writes directly to the {@link java.io.OutputStream}. It doesn't check the validity of the
-     * json objects for efficiency.
+     * Write the contents of a point from the cursor. The data and metadata are already json so
+     * they are copied into the batch as they are, between framing bytes which never change. The
+     * validity of the json isn't checked for efficiency. Nothing is allocated for each point, the
+     * strings are read into reusable buffers and encoded as UTF-8 into {@link #mBuffer}. Points
+     * which were stored framed are copied as they are, and metadata which was split by the
+     * {@link SharedMetadata} dictionary is joined back together.
      *
-     * @return the number of bytes written to the stream
+     * @param separate true if a separator should be written before the point
+     * @return the number of bytes written for the point
      * @throws java.io.IOException thrown if there is a problem writing to the stream
      */
-    private long writePoint() throws IOException {
-        writer.beginObject();
+    private long writePoint(boolean separate) throws IOException {
+        long written = 0;
+        if (separate)
+            written += writeByte(SEPARATOR);
+
+        if (mFramedColumns && !mCursor.isNull(ProbeQuery.PROBE_POINT_LENGTH)) {
+            // The point was stored already encoded so it can be copied as it is
+            return written + writeBytes(mCursor.getBlob(ProbeQuery.PROBE_POINT));
+        }
 
-        StringBuilder builder = new StringBuilder();
+        mCursor.copyStringToBuffer(ProbeQuery.PROBE_DATA, mData);
+        mCursor.copyStringToBuffer(ProbeQuery.PROBE_METADATA, mMetaData);
+        byte[] shared = null;
+        if (mFramedColumns && !mCursor.isNull(ProbeQuery.PROBE_METADATA_ID))
+            shared = getSharedMetadata(mCursor.getLong(ProbeQuery.PROBE_METADATA_ID));
 
-        String data = mCursor.getString(ProbeQuery.PROBE_DATA);
-        if (!TextUtils.isEmpty(data)) {
-            builder.append(String.format(pointData, data));
+        written += writeByte(BEGIN_OBJECT);
+        if (mData.sizeCopied != 0) {
+            written += writeBytes(POINT_DATA);
+            written += writeUtf8(mData, mData.sizeCopied);
+        }
+        if (mMetaData.sizeCopied != 0 || shared != null) {
+            if (mData.sizeCopied != 0)
+                written += writeByte(SEPARATOR);
+            written += writeBytes(POINT_META_DATA);
+            if (shared == null) {
+                written += writeUtf8(mMetaData, mMetaData.sizeCopied);
+            } else if (mMetaData.sizeCopied <= 2) {
+                // None of the fields were different for this point
+                written += writeBytes(shared, 0, shared.length);
+            } else {
+                // Join the two objects by replacing the end of the first and the start of the
+                // second with a separator
+                written += writeUtf8(mMetaData, mMetaData.sizeCopied - 1);
+                written += writeByte(SEPARATOR);
+                written += writeBytes(shared, 1, shared.length - 1);
+            }
         }
-        String metadata = mCursor.getString(ProbeQuery.PROBE_METADATA);
-        if (!TextUtils.isEmpty(metadata)) {
-            if (builder.length() != 0) builder.append(",");
-            builder.append(String.format(pointMetaData, metadata));
+        written += writeByte(END_OBJECT);
+        return written;
+    }
+
+    /**
+     * Reads a {@link SharedMetadata} entry the first time it is needed
+     *
+     * @param id
+     * @return the UTF-8 bytes of the shared fields
+     * @throws IOException if the entry couldn't be read
+     */
+    private byte[] getSharedMetadata(long id) throws IOException {
+        byte[] shared = mSharedMetadata.get(id);
+        if (shared != null)
+            return shared;
+
+        Cursor cursor = null;
+        try {
+            cursor = mProvider.query(SharedMetadata.CONTENT_URI,
+                    new String[]{SharedMetadata.METADATA}, SharedMetadata._ID + "=?",
+                    new String[]{String.valueOf(id)}, null);
+            if (cursor == null || !cursor.moveToFirst())
+                throw new IOException("Missing shared metadata " + id);
+            shared = cursor.getString(0).getBytes(UTF_8);
+        } catch (RemoteException e) {
+            throw new IOException(e);
+        } finally {
+            if (cursor != null)
+                cursor.close();
         }
+        mSharedMetadata.put(id, shared);
+        return shared;
+    }
 
-        mOut.write(builder.toString());
-        writer.endObject();
-        return Utf8LenCounter.length(builder);
+    private int writeByte(byte b) throws IOException {
+        if (mBufferPos == mBuffer.length)
+            flushBuffer();
+        mBuffer[mBufferPos++] = b;
+        return 1;
     }
 
-    private void ensureNoDanglingPoints() {
-        if (mCursor != null && mCursor.hasPointsToDelete()) {
-            throw new RuntimeException(
-                    "deleteBatch() must be called since there are some points to delete");
+    private int writeBytes(byte[] bytes) throws IOException {
+        return writeBytes(bytes, 0, bytes.length);
+    }
+
+    private int writeBytes(byte[] bytes, int offset, int length) throws IOException {
+        if (length > mBuffer.length - mBufferPos) {
+            flushBuffer();
+            if (length > mBuffer.length) {
+                mOut.write(bytes, offset, length);
+                return length;
+            }
         }
+        System.arraycopy(bytes, offset, mBuffer, mBufferPos, length);
+        mBufferPos += length;
+        return length;
     }
 
-    public static class Utf8LenCounter {
-        public static int length(CharSequence sequence) {
-            int count = 0;
-            for (int i = 0, len = sequence.length(); i < len; i++) {
-                char ch = sequence.charAt(i);
-                if (ch <= 0x7F) {
-                    count++;
-                } else if (ch <= 0x7FF) {
-                    count += 2;
-                } else if (Character.isHighSurrogate(ch)) {
-                    count += 4;
-                    ++i;
-                } else {
-                    count += 3;
-                }
+    /**
+     * Encodes the characters in the buffer as UTF-8
+     *
+     * @param chars
+     * @param len   the number of characters from the start of the buffer to encode
+     * @return the number of bytes written
+     * @throws IOException
+     */
+    private int writeUtf8(CharArrayBuffer chars, int len) throws IOException {
+        int start = mBufferPos;
+        int flushed = 0;
+        char[] data = chars.data;
+        for (int i = 0; i < len; i++) {
+            if (mBufferPos > mBuffer.length - 4) {
+                flushed += mBufferPos - start;
+                flushBuffer();
+                start = 0;
             }
+
+            char ch = data[i];
+            if (ch <= 0x7F) {
+                mBuffer[mBufferPos++] = (byte) ch;
+            } else if (ch <= 0x7FF) {
+                mBuffer[mBufferPos++] = (byte) (0xC0 | (ch >> 6));
+                mBuffer[mBufferPos++] = (byte) (0x80 | (ch & 0x3F));
+            } else if (Character.isHighSurrogate(ch) && i + 1 < len
+                       && Character.isLowSurrogate(data[i + 1])) {
+                int codePoint = Character.toCodePoint(ch, data[++i]);
+                mBuffer[mBufferPos++] = (byte) (0xF0 | (codePoint >> 18));
+                mBuffer[mBufferPos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                mBuffer[mBufferPos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                mBuffer[mBufferPos++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (ch >= Character.MIN_SURROGATE && ch <= Character.MAX_SURROGATE) {
+                // An unpaired surrogate can't be encoded
+                mBuffer[mBufferPos++] = '?';
+            } else {
+                mBuffer[mBufferPos++] = (byte) (0xE0 | (ch >> 12));
+                mBuffer[mBufferPos++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+                mBuffer[mBufferPos++] = (byte) (0x80 | (ch & 0x3F));
+            }
+        }
+        return flushed + mBufferPos - start;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mBufferPos != 0) {
+            mOut.write(mBuffer, 0, mBufferPos);
+            mBufferPos = 0;
+        }
+    }
+
+    /**
+     * A batch of points which has already been read and encoded into memory. Since the length is
+     * known it can be sent without chunked encoding, and can be sent again without reading the
+     * points again.
+     */
+    public static class EncodedBatch implements TypedOutput {
+
+        private final byte[] mBytes;
+
+        private final boolean mGzip;
+
+        final long firstId;
+
+        final long lastId;
+
+        final int count;
+
+        final String batchId;
+
+        EncodedBatch(byte[] bytes, boolean gzip, long firstId, long lastId, int count,
+                String batchId) {
+            mBytes = bytes;
+            mGzip = gzip;
+            this.firstId = firstId;
+            this.lastId = lastId;
+            this.count = count;
+            this.batchId = batchId;
+        }
+
+        /**
+         * @return the content encoding the batch should be sent with or null
+         */
+        public String contentEncoding() {
+            return mGzip ? CONTENT_ENCODING_GZIP : null;
+        }
+
+        /**
+         * @return the number of points in the batch
+         */
+        public int getCount() {
             return count;
         }
+
+        /**
+         * @return the id the batch is sent with so the server can ignore it if it is sent again
+         */
+        public String getBatchId() {
+            return batchId;
+        }
+
+        @Override public String fileName() {
+            return null;
+        }
+
+        @Override public String mimeType() {
+            return "application/json";
+        }
+
+        @Override public long length() {
+            return mBytes.length;
+        }
+
+        @Override public void writeTo(OutputStream out) throws IOException {
+            out.write(mBytes);
+        }
+    }
+
+    private void ensureNoDanglingPoints() {
+        if (mCursor != null && mCursor.hasPointsToDelete()) {
+            throw new RuntimeException(
+                    "deleteBatch() must be called since there are some points to delete");
+        }
     }
 }
@@ -61,7 +61,7 @@ public class LogoutTaskFragment extends InjectedDialogFragment {
         Account[] accounts = accountManager.getAccountsByType(AuthUtil.ACCOUNT_TYPE);
         //TODO: handle more than one account correctly
         if (accounts.length > 0) {
-            OhmageDbHelper db = new OhmageDbHelper(getActivity());
+            OhmageDbHelper db = OhmageDbHelper.getInstance(getActivity().getApplicationContext());
             db.clearAll();
             TriggerFramework.resetAllTriggerSettings(getActivity());
             res = accountManager.removeAccount(accounts[0], null, null);